@@ -50,24 +50,70 @@ import com.sun.tools.attach.VirtualMachine;
 
 public class AgentBootstrap {
     static final String REMOTE = "remote";
+    // remote, also serving the control socket
+    static final String REMOTE_SOCKET = "remote-socket";
     static final String LOCAL = "local";
+    // premain option, the file of the cache used by Agents.addCached
+    static final String TRANSFORM_CACHE = "transform-cache=";
+
+    private static volatile TransformCache transformCache = null;
 
     public static void premain(String agentArguments, Instrumentation instrumentation) throws Exception {
 	agentmain(agentArguments, instrumentation);
+	final String cacheFile = option(agentArguments, TRANSFORM_CACHE);
+	if (cacheFile != null) {
+	    // never closed, the lock is released and the mapped file written back when the VM exits
+	    transformCache = new TransformCache(new File(cacheFile));
+	}
     }
 
+    /**
+     * @param agentArguments
+     *            the mode, {@value #LOCAL}, {@value #REMOTE} or {@value #REMOTE_SOCKET}, followed by comma separated
+     *            options, e.g. {@code transform-cache=/var/cache/app.tc}
+     */
     public static void agentmain(String agentArguments, Instrumentation instrumentation) throws Exception {
-	instrumentor = new Instrumentor(instrumentation);
-	if (REMOTE.equals(agentArguments)) {
+	final String mode = agentArguments == null ? null : agentArguments.split(",", 2)[0];
+	// the agent may be loaded again, by a client using another control transport
+	if (instrumentor == null) {
+	    // the only transformer the agent installs for transformers registered with a class selector
+	    final TransformerDispatcher dispatcher = new TransformerDispatcher();
+	    instrumentation.addTransformer(dispatcher, true);
+
+	    instrumentor = new Instrumentor(instrumentation, dispatcher);
+	}
+	if (REMOTE.equals(mode) || REMOTE_SOCKET.equals(mode)) {
 	    startMBean(instrumentor);
 	}
+	// only when asked for, not to open any endpoint to clients using JMX
+	if (REMOTE_SOCKET.equals(mode)) {
+	    ControlServer.start(instrumentor);
+	}
+    }
+
+    // the value of the given option in the agent arguments, or null
+    static String option(String agentArguments, String name) {
+	if (agentArguments != null) {
+	    for (String argument : agentArguments.split(",")) {
+		if (argument.startsWith(name)) {
+		    return argument.substring(name.length());
+		}
+	    }
+	}
+	return null;
+    }
+
+    static TransformCache getTransformCache() {
+	return transformCache;
     }
 
     private static void startMBean(Instrumentor instr) {
 	try {
 	    final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
 	    final ObjectName name = new ObjectName("agenttools:service=AgentLoaderMBean");
-	    server.registerMBean(instr, name);
+	    if (!server.isRegistered(name)) {
+		server.registerMBean(instr, name);
+	    }
 	} catch (MalformedObjectNameException | InstanceAlreadyExistsException | MBeanRegistrationException
 		| NotCompliantMBeanException e) {
 	    throw new AgentLoadingException("Unable to register local agent as an mbean.", e);
@@ -76,7 +122,7 @@ public class AgentBootstrap {
 
     private static Instrumentor instrumentor = null;
 
-    static InstrumentorMBean getInstrumentor() {
+    static Instrumentor getInstrumentor() {
 	if (instrumentor == null) {
 	    VirtualMachine vm;
 	    try {
@@ -90,47 +136,123 @@ public class AgentBootstrap {
 	return instrumentor;
     }
 
+    /**
+     * Opens a new connection to the remote agent, starting it if needed, over the transport given by
+     * {@link Agents#getControlTransport()}.
+     * <p>
+     * This may attach to the remote VM, which is slow. Prefer {@link RemoteSessions#get(int)} which reuses
+     * connections.
+     */
     static ProxyConnection<InstrumentorMBean> getInstrumentorProxy(int pid) {
-	JMXConnector connector;
+	if (Agents.getControlTransport() == ControlTransport.SOCKET) {
+	    return getSocketProxy(pid);
+	}
 	try {
-	    connector = JMXUtils.connect(VirtualMachine.attach(String.valueOf(pid)));
-	    final MBeanServerConnection server = connector.getMBeanServerConnection();
-	    final ObjectName on = new ObjectName("agenttools:service=AgentLoaderMBean");
+	    final VirtualMachine vm = VirtualMachine.attach(String.valueOf(pid));
+	    try {
+		final JMXConnector connector = JMXUtils.connect(vm);
+		final MBeanServerConnection server = connector.getMBeanServerConnection();
+		final ObjectName on = new ObjectName("agenttools:service=AgentLoaderMBean");
 
-	    if (!server.isRegistered(on)) {
-		startRemote(pid);
-		assert server.isRegistered(on);
-	    }
+		if (!server.isRegistered(on)) {
+		    startRemote(vm, pid, REMOTE);
+		    assert server.isRegistered(on);
+		}
 
-	    return new ProxyConnection<>(connector, JMX.newMBeanProxy(server, on, InstrumentorMBean.class));
+		return new ProxyConnection<>(connector, JMX.newMBeanProxy(server, on, InstrumentorMBean.class));
+	    } finally {
+		vm.detach();
+	    }
+	} catch (IOException | AttachNotSupportedException | MalformedObjectNameException e) {
+	    throw new AgentLoadingException(String.format("Unable to connect to the agent in pid '%s'.", pid), e);
+	}
+    }
 
-	} catch (IOException | AgentLoadException | AgentInitializationException | AttachNotSupportedException
-		| MalformedObjectNameException e) {
-	    throw new AgentLoadingException(String.format("Unable to add the transformer in pid '%s'.", pid), e);
+    private static ProxyConnection<InstrumentorMBean> getSocketProxy(int pid) {
+	try {
+	    return ControlClient.connect(String.valueOf(pid));
+	} catch (IOException e) {
+	    // not started yet, or started by an older agent
+	}
+	try {
+	    final VirtualMachine vm = VirtualMachine.attach(String.valueOf(pid));
+	    try {
+		startRemote(vm, pid, REMOTE_SOCKET);
+	    } finally {
+		vm.detach();
+	    }
+	    return ControlClient.connect(String.valueOf(pid));
+	} catch (IOException | AttachNotSupportedException e) {
+	    throw new AgentLoadingException(String.format("Unable to connect to the agent in pid '%s'.", pid), e);
 	}
     }
 
+    private static final BootstrapJarCache bootstrapJars = new BootstrapJarCache();
+
     private static File createBootstrapJar() throws IOException, ClassNotFoundException, URISyntaxException {
-	final File bootstrapJar = ClassTools.createTemporaryJar("bootstrap", createManifest());
-	bootstrapJar.deleteOnExit();
-	return bootstrapJar;
+	return bootstrapJars.get(LOCAL, createManifest());
     }
 
     // visible for testing
     static File createRemoteBootstrapJar() throws IOException, URISyntaxException, ClassNotFoundException {
-	final String[] jarClasses = new String[] { //
-	AgentBootstrap.class.getName(), //
-		AgentLoadingException.class.getName(), //
-		Agents.class.getName(), //
-		ClassTools.class.getName(), //
-		FilteredClassFileTransformer.class.getName(), //
-		Instrumentor.class.getName(), //
-		InstrumentorMBean.class.getName(), //
-		JMXUtils.class.getName() };
-
-	final File bootstrapJar = ClassTools.createTemporaryJar("bootstrap", createManifest(), jarClasses);
-	bootstrapJar.deleteOnExit();
-	return bootstrapJar;
+	final String[] jarClasses = ClassTools.withNestedClasses( //
+		AgentBootstrap.class, //
+		AgentLoadingException.class, //
+		Agents.class, //
+		AsyncAgents.class, //
+		Batch.class, //
+		BatchResult.class, //
+		BootstrapJarCache.class, //
+		ClassFileEditor.class, //
+		ClassSelector.class, //
+		ClassTools.class, //
+		ControlClient.class, //
+		ControlProtocol.class, //
+		ControlServer.class, //
+		ControlTransport.class, //
+		EventBatch.class, //
+		EventChannel.class, //
+		Events.class, //
+		EventSink.class, //
+		FilteredClassFileTransformer.class, //
+		FilteredObjectInputStream.class, //
+		Fleet.class, //
+		FleetResult.class, //
+		GraphSize.class, //
+		Handoff.class, //
+		IdentitySet.class, //
+		InstanceCount.class, //
+		InstanceCounters.class, //
+		InstanceCountingTransformer.class, //
+		Instrumentor.class, //
+		InstrumentorMBean.class, //
+		JarStore.class, //
+		JMXUtils.class, //
+		LoadedClassIndex.class, //
+		MappedFiles.class, //
+		MethodTimers.class, //
+		MethodTiming.class, //
+		MethodTimingTransformer.class, //
+		ObjectGraphSizer.class, //
+		OriginalClassCache.class, //
+		PayloadTransport.class, //
+		PrivateFiles.class, //
+		ProbeSwitch.class, //
+		RedefineResult.class, //
+		RemoteSession.class, //
+		RemoteSessions.class, //
+		RetransformProgress.class, //
+		RetransformSchedule.class, //
+		ScheduledRetransform.class, //
+		TraceLayout.class, //
+		TraceReader.class, //
+		TraceRecord.class, //
+		TraceWriter.class, //
+		TransformCache.class, //
+		TransformerDispatcher.class, //
+		TransformerHandle.class, //
+		TransformerRegistry.class);
+	return bootstrapJars.get(REMOTE, createManifest(), jarClasses);
     }
 
     private static Manifest createManifest() {
@@ -148,7 +270,7 @@ public class AgentBootstrap {
 	return m;
     }
 
-    private static String getPid() {
+    static String getPid() {
 	final String os = System.getProperty("os.name").toLowerCase();
 	try {
 	    if (os.contains("win")) {
@@ -169,13 +291,11 @@ public class AgentBootstrap {
 	return nameOfRunningVM.substring(0, p);
     }
 
-    private static void startRemote(int pid) {
-	VirtualMachine vm;
+    private static void startRemote(VirtualMachine vm, int pid, String agentArguments) {
 	try {
-	    vm = VirtualMachine.attach(String.valueOf(pid));
-	    vm.loadAgent(AgentBootstrap.createRemoteBootstrapJar().getAbsolutePath(), REMOTE);
-	} catch (AttachNotSupportedException | IOException | AgentLoadException | AgentInitializationException
-		| URISyntaxException | ClassNotFoundException e) {
+	    vm.loadAgent(AgentBootstrap.createRemoteBootstrapJar().getAbsolutePath(), agentArguments);
+	} catch (IOException | AgentLoadException | AgentInitializationException | URISyntaxException
+		| ClassNotFoundException e) {
 	    throw new AgentLoadingException(String.format("Unable to start the remote agent in pid '%s'.", pid), e);
 	}
     }
@@ -185,10 +305,10 @@ public class AgentBootstrap {
     }
 
     static class ProxyConnection<T> implements AutoCloseable {
-	JMXConnector conn;
+	AutoCloseable conn;
 	T proxy;
 
-	ProxyConnection(JMXConnector conn, T proxy) {
+	ProxyConnection(AutoCloseable conn, T proxy) {
 	    this.conn = conn;
 	    this.proxy = proxy;
 	}
@@ -198,8 +318,8 @@ public class AgentBootstrap {
 	    try {
 		if (conn != null)
 		    conn.close();
-	    } catch (IOException e) {
-		throw new AgentLoadingException("Unable to close the JMXConnection", e);
+	    } catch (Exception e) {
+		throw new AgentLoadingException("Unable to close the connection", e);
 	    }
 	}
     }
@@ -25,7 +25,7 @@ public class AgentLoadingException extends RuntimeException
 {
     private static final long serialVersionUID = 1L;
 
-    AgentLoadingException(String message, Exception e)
+    AgentLoadingException(String message, Throwable e)
     {
         super(message, e);
     }
@@ -22,15 +22,32 @@
 package org.agenttools;
 
 import static org.agenttools.AgentBootstrap.getInstrumentor;
-import static org.agenttools.AgentBootstrap.getInstrumentorProxy;
 
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
 import java.io.Serializable;
 import java.lang.instrument.ClassFileTransformer;
-
-import org.agenttools.AgentBootstrap.ProxyConnection;
+import java.lang.reflect.UndeclaredThrowableException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.WeakHashMap;
+import java.util.function.Consumer;
+import java.util.function.Function;
 
 public class Agents {
 
+    private static volatile PayloadTransport payloadTransport = PayloadTransport.INLINE;
+    private static volatile ControlTransport controlTransport = ControlTransport.JMX;
+
+    // ids of the transformers registered in remote processes, equal transformers share the same id
+    private static final Map<ClassFileTransformer, String> transformerIds = Collections
+	    .synchronizedMap(new WeakHashMap<>());
+
     private Agents() {
     }
 
@@ -41,9 +58,69 @@ public class Agents {
      * 
      * @param transformer
      *            a class file transformer
+     * @return a handle which removes the transformer when closed
+     */
+    public static TransformerHandle add(ClassFileTransformer transformer) throws AgentLoadingException {
+	return getInstrumentor().install(transformer, false);
+    }
+
+    /**
+     * Same as {@link #add(ClassFileTransformer)}, but the classes it produces are kept in the transform cache given to
+     * the agent at startup, e.g. {@code -javaagent:agent-tools.jar=transform-cache=/var/cache/app.tc}, so that later
+     * runs get them back without running the transformer. Without it, the transformer is added as is.
+     * <p>
+     * Only for pure transformers, see {@link TransformCache#wrap(ClassFileTransformer, String)}. The transformer is
+     * added through a wrapper: remove it with the handle, {@link #remove(ClassFileTransformer)} doesn't find it.
+     * 
+     * @param transformer
+     *            a class file transformer
+     * @param version
+     *            identifies the output of the transformer, along with its class name
+     * @return a handle which removes the transformer when closed
+     */
+    public static TransformerHandle addCached(ClassFileTransformer transformer, String version)
+	    throws AgentLoadingException {
+	final TransformCache cache = getTransformCache();
+	return add(cache == null ? transformer : cache.wrap(transformer, version));
+    }
+
+    /**
+     * The cache opened by the {@code transform-cache} agent argument, or null if the agent wasn't given one.
+     */
+    public static TransformCache getTransformCache() {
+	return AgentBootstrap.getTransformCache();
+    }
+
+    /**
+     * Loads a transformer that will instrument the selected classes only, from now on.
+     * <p>
+     * Unlike {@link #add(ClassFileTransformer)} the transformer is never called for any other class, and it is also
+     * called when the selected classes are re-transformed or redefined.
+     * 
+     * @param transformer
+     *            a class file transformer
+     * @param selector
+     *            the classes to instrument
+     * @return a handle which removes the transformer when closed
      */
-    public static void add(ClassFileTransformer transformer) throws AgentLoadingException {
-	getInstrumentor().addTransformer(transformer);
+    public static TransformerHandle add(ClassFileTransformer transformer, ClassSelector selector)
+	    throws AgentLoadingException {
+	return getInstrumentor().install(transformer, selector);
+    }
+
+    /**
+     * Same as {@link #add(ClassFileTransformer, ClassSelector)}, but the selected classes that are already loaded are
+     * re-transformed as well.
+     * 
+     * @param transformer
+     *            a class file transformer
+     * @param selector
+     *            the classes to instrument, e.g. {@link ClassSelector#globs(String...)}
+     * @return a handle which removes the transformer when closed
+     */
+    public static TransformerHandle instrument(ClassFileTransformer transformer, ClassSelector selector)
+	    throws AgentLoadingException {
+	return getInstrumentor().instrument(transformer, selector);
     }
 
     /**
@@ -82,6 +159,104 @@ public class Agents {
 	getInstrumentor().retransform(transformer, classNames);
     }
 
+    /**
+     * Same as {@link #reset(String...)}, for the classes defined by the class loaders matching the hint only, see
+     * {@link ClassSelector#loadedBy(String)}.
+     */
+    public static void resetLoadedBy(String loaderHint, String... classNames) throws AgentLoadingException {
+	getInstrumentor().resetLoadedBy(loaderHint, classNames);
+    }
+
+    /**
+     * Same as {@link #retransform(ClassFileTransformer, String...)}, for the classes defined by the class loaders
+     * matching the hint only, see {@link ClassSelector#loadedBy(String)}.
+     */
+    public static void retransformLoadedBy(String loaderHint, ClassFileTransformer transformer, String... classNames)
+	    throws AgentLoadingException {
+	getInstrumentor().retransformLoadedBy(loaderHint, transformer, classNames);
+    }
+
+    /**
+     * Removes any instrumentation from the loaded classes the selector selects.
+     * 
+     * @return the number of classes reset
+     */
+    public static int reset(ClassSelector selector) throws AgentLoadingException {
+	return getInstrumentor().reset(selector);
+    }
+
+    /**
+     * Re-transforms the loaded classes the selector selects using the given transformer.
+     * <p>
+     * Unlike {@link #retransform(ClassFileTransformer, String...)}, classes not loaded yet aren't selected.
+     * 
+     * @return the number of classes re-transformed
+     */
+    public static int retransform(ClassFileTransformer transformer, ClassSelector selector)
+	    throws AgentLoadingException {
+	return getInstrumentor().retransform(transformer, selector);
+    }
+
+    /**
+     * Re-transforms classes using the given transformer, run on all cores before the classes are redefined at once.
+     * <p>
+     * The transformer is given the original class files, see
+     * {@link InstrumentorMBean#retransformParallel(ClassFileTransformer, String...)}.
+     */
+    public static RedefineResult retransformParallel(ClassFileTransformer transformer, String... classNames)
+	    throws AgentLoadingException {
+	return getInstrumentor().retransformParallel(transformer, classNames);
+    }
+
+    /**
+     * Same as {@link #retransformParallel(ClassFileTransformer, String...)}, for the loaded classes the selector
+     * selects.
+     */
+    public static RedefineResult retransformParallel(ClassFileTransformer transformer, ClassSelector selector)
+	    throws AgentLoadingException {
+	return getInstrumentor().retransformParallel(transformer, selector);
+    }
+
+    /**
+     * Re-transforms the loaded classes the selector selects in the background, in chunks which keep the safepoints
+     * within the pause budget of the schedule.
+     * 
+     * @return the id of the re-transformation, see {@link #getRetransformProgress(long)}
+     */
+    public static long scheduleRetransform(ClassFileTransformer transformer, ClassSelector selector,
+	    RetransformSchedule schedule) throws AgentLoadingException {
+	return getInstrumentor().scheduleRetransform(transformer, selector, schedule);
+    }
+
+    public static RetransformProgress getRetransformProgress(long id) {
+	return getInstrumentor().getRetransformProgress(id);
+    }
+
+    public static boolean cancelRetransform(long id) {
+	return getInstrumentor().cancelRetransform(id);
+    }
+
+    /**
+     * Looks up a loaded class by name, in any class loader, without loading anything. Unlike
+     * {@link Class#forName(String)} it finds the classes of application servers and plugin hosts as well.
+     * 
+     * @param loaderHint
+     *            the class loader defining the class, see {@link ClassSelector#loadedBy(String)}, or null for any
+     * @return null if no such class is loaded
+     * @throws AgentLoadingException
+     *             if several class loaders matching the hint define such a class
+     */
+    public static Class<?> findClass(String className, String loaderHint) throws AgentLoadingException {
+	return getInstrumentor().findClass(className, loaderHint);
+    }
+
+    /**
+     * The class loaders defining a class with the given name, see {@link InstrumentorMBean#getClassLoaders(String)}.
+     */
+    public static List<String> getClassLoaders(String className) {
+	return getInstrumentor().getClassLoaders(className);
+    }
+
     /**
      * Re-defines already loaded classes using the provided bytes.
      * 
@@ -94,36 +269,397 @@ public class Agents {
 	getInstrumentor().redefine(className, bytes);
     }
 
+    /**
+     * Re-defines many classes at once using the provided bytes.
+     * <p>
+     * All loaded classes are redefined in a single VM operation: either all of them are redefined or none is. Classes
+     * which haven't been loaded yet are loaded with their new definition.
+     * 
+     * @param definitions
+     *            class name to .class file bytes
+     * @return the outcome and timing per class
+     */
+    public static RedefineResult redefine(Map<String, byte[]> definitions) throws AgentLoadingException {
+	return getInstrumentor().redefine(definitions);
+    }
+
+    /**
+     * Same as {@link #redefine(Map)}, for the classes defined by the class loaders matching the hint only, see
+     * {@link ClassSelector#loadedBy(String)}.
+     */
+    public static RedefineResult redefineLoadedBy(String loaderHint, Map<String, byte[]> definitions)
+	    throws AgentLoadingException {
+	return getInstrumentor().redefineLoadedBy(loaderHint, definitions);
+    }
+
+    /**
+     * Records the original bytes of the selected classes when they are loaded from now on, so {@link #reset(String...)}
+     * doesn't need to read their class files.
+     * <p>
+     * Classes are kept compressed and off-heap. Beyond the budget the least recently used classes are evicted, and
+     * resetting them falls back to reading their class file.
+     * 
+     * @param selector
+     *            the classes to record
+     * @param byteBudget
+     *            the maximum (compressed) bytes kept
+     */
+    public static void enableResetCache(ClassSelector selector, long byteBudget) throws AgentLoadingException {
+	getInstrumentor().enableResetCache(selector, byteBudget);
+    }
+
+    /**
+     * Runs the steps of the batch in order, see {@link Batch}.
+     */
+    public static BatchResult execute(Batch batch) throws AgentLoadingException {
+	return getInstrumentor().execute(batch);
+    }
+
     public static long getObjectSize(Object o) {
 	return getInstrumentor().getObjectSize(o);
     }
 
+    /**
+     * Counts the instances constructed by the given classes from now on, and those still alive.
+     * <p>
+     * The classes are re-transformed by a {@link InstanceCountingTransformer}, reset them to stop counting.
+     * 
+     * @param classNames
+     *            a list of classes to count
+     */
+    public static void countInstances(String... classNames) throws AgentLoadingException {
+	retransform(new InstanceCountingTransformer(), classNames);
+    }
+
+    /**
+     * The instances counted since {@link #countInstances(String...)}, by class name and class loader.
+     */
+    public static List<InstanceCount> getInstanceCounts() {
+	return getInstrumentor().getInstanceCounts();
+    }
+
+    /**
+     * Pauses or resumes counting instances in all the counted classes.
+     * <p>
+     * Unlike resetting the classes, this doesn't re-transform any class, so it is cheap enough to flip often.
+     */
+    public static void setInstanceCountingEnabled(boolean enabled) {
+	getInstrumentor().setInstanceCountingEnabled(enabled);
+    }
+
+    /**
+     * Records the latency of the given methods from now on.
+     * <p>
+     * The classes of the methods are re-transformed by a {@link MethodTimingTransformer}, reset them to stop timing.
+     * 
+     * @param methods
+     *            the methods to time, as {@code className.methodName} where the method name may use {@code *}
+     */
+    public static void timeMethods(String... methods) throws AgentLoadingException {
+	final MethodTimingTransformer timing = new MethodTimingTransformer(methods);
+	retransform(timing, timing.getClassNames());
+    }
+
+    /**
+     * The latency histograms recorded since {@link #timeMethods(String...)}.
+     */
+    public static List<MethodTiming> getMethodTimings() {
+	return getInstrumentor().getMethodTimings();
+    }
+
+    /**
+     * Pauses or resumes timing all the timed methods.
+     * <p>
+     * Unlike resetting the classes, this doesn't re-transform any class, so it is cheap enough to flip often. Calls in
+     * progress when timing is paused or resumed aren't recorded.
+     */
+    public static void setMethodTimingEnabled(boolean enabled) {
+	getInstrumentor().setMethodTimingEnabled(enabled);
+    }
+
+    /**
+     * The channel of the events emitted by the probes, see {@link Events}.
+     */
+    public static EventChannel getEventChannel() {
+	return Events.channel();
+    }
+
+    /**
+     * Sizes the graph of objects reachable from the roots, see {@link ObjectGraphSizer}.
+     */
+    public static GraphSize getDeepSize(Object... roots) {
+	return getObjectGraphSizer().size(roots);
+    }
+
+    /**
+     * A sizer to walk object graphs within boundaries, or in parallel.
+     */
+    public static ObjectGraphSizer getObjectGraphSizer() {
+	return getInstrumentor().getObjectGraphSizer();
+    }
+
     /**
      * Remote version of {@link #add(ClassFileTransformer)}
+     * <p>
+     * The transformer is sent to the remote VM the first time only, see {@link #register(int, ClassFileTransformer)}.
+     * It stays registered there once removed, until {@link #unregister(int, String)} is given the id which
+     * {@link #register(int, ClassFileTransformer)} returns for it.
      */
     public static <SCFT extends ClassFileTransformer & Serializable> void add(int pid, SCFT transformer)
 	    throws AgentLoadingException {
-	try (ProxyConnection<InstrumentorMBean> proxyConn = getInstrumentorProxy(pid)) {
-	    proxyConn.proxy.addTransformer(transformer);
-	}
+	final String id = idOf(transformer);
+	run(pid, instrumentor -> {
+	    if (!instrumentor.addTransformer(id)) {
+		upload(instrumentor, id, transformer);
+		instrumentor.addTransformer(id);
+	    }
+	});
+    }
+
+    /**
+     * Remote version of {@link #add(ClassFileTransformer, ClassSelector)}
+     * <p>
+     * The transformer is sent to the remote VM the first time only, see {@link #register(int, ClassFileTransformer)}.
+     * It stays registered there once removed, until {@link #unregister(int, String)} is given the id which
+     * {@link #register(int, ClassFileTransformer)} returns for it.
+     */
+    public static <SCFT extends ClassFileTransformer & Serializable> void add(int pid, SCFT transformer,
+	    ClassSelector selector) throws AgentLoadingException {
+	final String id = idOf(transformer);
+	run(pid, instrumentor -> {
+	    if (!instrumentor.addTransformer(id, selector)) {
+		upload(instrumentor, id, transformer);
+		instrumentor.addTransformer(id, selector);
+	    }
+	});
     }
 
     /**
      * Remote version of {@link #remove(ClassFileTransformer)}
+     * <p>
+     * Removes the latest installation of the transformer added with {@link #add(int, ClassFileTransformer)}. Other
+     * transformers are removed if their remote copy equals the given transformer.
      */
     public static <SCFT extends ClassFileTransformer & Serializable> void remove(int pid, SCFT transformer)
 	    throws AgentLoadingException {
-	try (ProxyConnection<InstrumentorMBean> proxyConn = getInstrumentorProxy(pid)) {
-	    proxyConn.proxy.removeTransformer(transformer);
+	final String id = transformerIds.get(transformer);
+	if (id == null) {
+	    run(pid, instrumentor -> instrumentor.removeTransformer(transformer));
+	} else {
+	    run(pid, instrumentor -> instrumentor.removeTransformer(id));
 	}
     }
 
+    /**
+     * Sends the transformer to the remote VM, unless it was sent before, without installing it.
+     * <p>
+     * The transformer can then be added, removed and used to re-transform by id, which saves sending it on each call.
+     * Later changes to the transformer aren't seen by the remote VM.
+     * 
+     * @return the id of the transformer, the same for every process
+     */
+    public static <SCFT extends ClassFileTransformer & Serializable> String register(int pid, SCFT transformer)
+	    throws AgentLoadingException {
+	final String id = idOf(transformer);
+	run(pid, instrumentor -> {
+	    if (!instrumentor.isTransformerRegistered(id)) {
+		upload(instrumentor, id, transformer);
+	    }
+	});
+	return id;
+    }
+
+    /**
+     * Removes every installation of the registered transformer from the remote VM, and forgets it there.
+     */
+    public static void unregister(int pid, String id) throws AgentLoadingException {
+	run(pid, instrumentor -> instrumentor.unregisterTransformer(id));
+    }
+
+    /**
+     * Installs the registered transformer, see {@link #register(int, ClassFileTransformer)}.
+     */
+    public static void add(int pid, String id) throws AgentLoadingException {
+	run(pid, instrumentor -> checkRegistered(id, instrumentor.addTransformer(id)));
+    }
+
+    /**
+     * Installs the registered transformer for the selected classes, see {@link #register(int, ClassFileTransformer)}.
+     */
+    public static void add(int pid, String id, ClassSelector selector) throws AgentLoadingException {
+	run(pid, instrumentor -> checkRegistered(id, instrumentor.addTransformer(id, selector)));
+    }
+
+    /**
+     * Removes the latest installation of the registered transformer.
+     * 
+     * @return false if it isn't installed
+     */
+    public static boolean remove(int pid, String id) throws AgentLoadingException {
+	return call(pid, instrumentor -> instrumentor.removeTransformer(id));
+    }
+
+    /**
+     * Re-transforms classes using the registered transformer, see {@link #register(int, ClassFileTransformer)}.
+     */
+    public static void retransform(int pid, String id, String... classNames) throws AgentLoadingException {
+	run(pid, instrumentor -> checkRegistered(id, instrumentor.retransform(id, classNames)));
+    }
+
+    static String idOf(ClassFileTransformer transformer) {
+	return transformerIds.computeIfAbsent(transformer, t -> UUID.randomUUID().toString());
+    }
+
+    private static void upload(InstrumentorMBean instrumentor, String id, ClassFileTransformer transformer) {
+	if (payloadTransport == PayloadTransport.FILE_HANDOFF) {
+	    handoff(() -> Handoff.ofObject((Serializable) transformer), h -> instrumentor.registerTransformer(id, h));
+	} else {
+	    instrumentor.registerTransformer(id, transformer);
+	}
+    }
+
+    private static void checkRegistered(String id, boolean registered) {
+	if (!registered) {
+	    throw new AgentLoadingException(String.format("There isn't any transformer registered as { %s }.", id));
+	}
+    }
+
+    /**
+     * Remote version of {@link #execute(Batch)}
+     * <p>
+     * The whole batch is sent and run in a single call.
+     */
+    public static BatchResult execute(int pid, Batch batch) throws AgentLoadingException {
+	if (payloadTransport == PayloadTransport.FILE_HANDOFF) {
+	    final BatchResult[] result = new BatchResult[1];
+	    handoff(() -> Handoff.ofObject(batch), h -> result[0] = call(pid, instrumentor -> instrumentor.execute(h)));
+	    return result[0];
+	}
+	return call(pid, instrumentor -> instrumentor.execute(batch));
+    }
+
+    /**
+     * Remote version of {@link #enableResetCache(ClassSelector, long)}
+     */
+    public static void enableResetCache(int pid, ClassSelector selector, long byteBudget) throws AgentLoadingException {
+	run(pid, instrumentor -> instrumentor.enableResetCache(selector, byteBudget));
+    }
+
+    /**
+     * Remote version of {@link #countInstances(String...)}
+     */
+    public static void countInstances(int pid, String... classNames) throws AgentLoadingException {
+	retransform(pid, new InstanceCountingTransformer(), classNames);
+    }
+
+    /**
+     * Remote version of {@link #getInstanceCounts()}
+     */
+    public static List<InstanceCount> getInstanceCounts(int pid) throws AgentLoadingException {
+	return call(pid, InstrumentorMBean::getInstanceCounts);
+    }
+
+    /**
+     * Remote version of {@link #setInstanceCountingEnabled(boolean)}
+     */
+    public static void setInstanceCountingEnabled(int pid, boolean enabled) throws AgentLoadingException {
+	run(pid, instrumentor -> instrumentor.setInstanceCountingEnabled(enabled));
+    }
+
+    /**
+     * Remote version of {@link #timeMethods(String...)}
+     */
+    public static void timeMethods(int pid, String... methods) throws AgentLoadingException {
+	final MethodTimingTransformer timing = new MethodTimingTransformer(methods);
+	retransform(pid, timing, timing.getClassNames());
+    }
+
+    /**
+     * Remote version of {@link #getMethodTimings()}
+     */
+    public static List<MethodTiming> getMethodTimings(int pid) throws AgentLoadingException {
+	return call(pid, InstrumentorMBean::getMethodTimings);
+    }
+
+    /**
+     * Remote version of {@link #setMethodTimingEnabled(boolean)}
+     */
+    public static void setMethodTimingEnabled(int pid, boolean enabled) throws AgentLoadingException {
+	run(pid, instrumentor -> instrumentor.setMethodTimingEnabled(enabled));
+    }
+
+    /**
+     * Starts writing the events emitted in the remote process to a memory-mapped trace file, and opens it.
+     * <p>
+     * The trace holds 64 segments of 64 KB, see {@link #trace(int, int, int)}.
+     */
+    public static TraceReader trace(int pid) throws AgentLoadingException {
+	return trace(pid, 64 * 1024, 64);
+    }
+
+    /**
+     * Starts writing the events emitted in the remote process to a memory-mapped trace file, and opens it.
+     * <p>
+     * Only starting goes through JMX, records are then read from the file. Closing the reader stops the trace. Events
+     * are those emitted through {@link Events}, once the trace file is full the oldest segment is overwritten.
+     * 
+     * @param segmentBytes
+     *            the size of each segment of the file
+     * @param segments
+     *            the number of segments
+     */
+    public static TraceReader trace(int pid, int segmentBytes, int segments) throws AgentLoadingException {
+	final String path = call(pid, instrumentor -> instrumentor.startTrace(segmentBytes, segments));
+	try {
+	    // written by the remote process, only trusted in the private directory of the user
+	    PrivateFiles.checkPrivate(new File(path).getParentFile().toPath());
+	    PrivateFiles.checkPrivate(new File(path).toPath());
+	    return new TraceReader(new File(path), () -> stopTrace(pid));
+	} catch (IOException e) {
+	    stopTrace(pid);
+	    throw new AgentLoadingException(String.format("Unable to read the trace file '%s'.", path), e);
+	}
+    }
+
+    /**
+     * Stops writing the trace file of the remote process, readers keep what was written.
+     */
+    public static void stopTrace(int pid) throws AgentLoadingException {
+	run(pid, InstrumentorMBean::stopTrace);
+    }
+
     /**
      * Remote version of {@link #reset(String...)}
      */
     public static void reset(int pid, String... classNames) throws AgentLoadingException {
-	try (ProxyConnection<InstrumentorMBean> proxyConn = getInstrumentorProxy(pid)) {
-	    proxyConn.proxy.reset(classNames);
+	run(pid, instrumentor -> instrumentor.reset(classNames));
+    }
+
+    /**
+     * Remote version of {@link #resetLoadedBy(String, String...)}
+     */
+    public static void resetLoadedBy(int pid, String loaderHint, String... classNames) throws AgentLoadingException {
+	run(pid, instrumentor -> instrumentor.resetLoadedBy(loaderHint, classNames));
+    }
+
+    /**
+     * Remote version of {@link #retransformLoadedBy(String, ClassFileTransformer, String...)}
+     * <p>
+     * A transformer used by id before, e.g. added with {@link #add(int, ClassFileTransformer)}, is sent to the remote VM
+     * the first time only, and stays registered there until {@link #unregister(int, String)}.
+     */
+    public static <SCFT extends ClassFileTransformer & Serializable> void retransformLoadedBy(int pid,
+	    String loaderHint, SCFT transformer, String... classNames) throws AgentLoadingException {
+	final String id = transformerIds.get(transformer);
+	if (id != null) {
+	    run(pid, instrumentor -> {
+		if (!instrumentor.retransformLoadedBy(loaderHint, id, classNames)) {
+		    upload(instrumentor, id, transformer);
+		    instrumentor.retransformLoadedBy(loaderHint, id, classNames);
+		}
+	    });
+	} else {
+	    run(pid, instrumentor -> instrumentor.retransformLoadedBy(loaderHint, transformer, classNames));
 	}
     }
 
@@ -132,19 +668,186 @@ public class Agents {
      */
     public static <SCFT extends ClassFileTransformer & Serializable> void retransform(int pid, SCFT transformer,
 	    String... classNames) throws AgentLoadingException {
-	try (ProxyConnection<InstrumentorMBean> proxyConn = getInstrumentorProxy(pid)) {
-	    proxyConn.proxy.retransform(transformer, classNames);
+	// registered transformers aren't sent again, others are sent once and not kept by the remote VM
+	final String id = transformerIds.get(transformer);
+	if (id != null) {
+	    run(pid, instrumentor -> {
+		if (!instrumentor.retransform(id, classNames)) {
+		    upload(instrumentor, id, transformer);
+		    instrumentor.retransform(id, classNames);
+		}
+	    });
+	} else if (payloadTransport == PayloadTransport.FILE_HANDOFF) {
+	    handoff(() -> Handoff.ofObject(transformer),
+		    h -> run(pid, instrumentor -> instrumentor.retransform(h, classNames)));
+	} else {
+	    run(pid, instrumentor -> instrumentor.retransform(transformer, classNames));
 	}
     }
 
+    /**
+     * Remote version of {@link #retransformParallel(ClassFileTransformer, String...)}
+     * <p>
+     * A transformer used by id before, e.g. added with {@link #add(int, ClassFileTransformer)}, is sent to the remote VM
+     * the first time only, and stays registered there until {@link #unregister(int, String)}.
+     */
+    public static <SCFT extends ClassFileTransformer & Serializable> RedefineResult retransformParallel(int pid,
+	    SCFT transformer, String... classNames) throws AgentLoadingException {
+	final String id = transformerIds.get(transformer);
+	if (id != null) {
+	    return call(pid, instrumentor -> {
+		final RedefineResult result = instrumentor.retransformParallel(id, classNames);
+		if (result != null) {
+		    return result;
+		}
+		upload(instrumentor, id, transformer);
+		return instrumentor.retransformParallel(id, classNames);
+	    });
+	}
+	return call(pid, instrumentor -> instrumentor.retransformParallel(transformer, classNames));
+    }
+
+    /**
+     * Remote version of {@link #scheduleRetransform(ClassFileTransformer, ClassSelector, RetransformSchedule)}
+     * <p>
+     * The transformer is sent to the remote VM the first time only, see {@link #register(int, ClassFileTransformer)}.
+     * It stays registered there once removed, until {@link #unregister(int, String)} is given the id which
+     * {@link #register(int, ClassFileTransformer)} returns for it.
+     */
+    public static <SCFT extends ClassFileTransformer & Serializable> long scheduleRetransform(int pid,
+	    SCFT transformer, ClassSelector selector, RetransformSchedule schedule) throws AgentLoadingException {
+	final String id = idOf(transformer);
+	return call(pid, instrumentor -> {
+	    final long scheduled = instrumentor.scheduleRetransform(id, selector, schedule);
+	    if (scheduled >= 0) {
+		return scheduled;
+	    }
+	    upload(instrumentor, id, transformer);
+	    return instrumentor.scheduleRetransform(id, selector, schedule);
+	});
+    }
+
+    /**
+     * Remote version of {@link #getRetransformProgress(long)}
+     */
+    public static RetransformProgress getRetransformProgress(int pid, long id) throws AgentLoadingException {
+	return call(pid, instrumentor -> instrumentor.getRetransformProgress(id));
+    }
+
+    /**
+     * Remote version of {@link #cancelRetransform(long)}
+     */
+    public static boolean cancelRetransform(int pid, long id) throws AgentLoadingException {
+	return call(pid, instrumentor -> instrumentor.cancelRetransform(id));
+    }
+
+    /**
+     * Remote version of {@link #getClassLoaders(String)}
+     */
+    public static List<String> getClassLoaders(int pid, String className) throws AgentLoadingException {
+	return call(pid, instrumentor -> instrumentor.getClassLoaders(className));
+    }
+
+    /**
+     * Remote version of {@link #reset(ClassSelector)}
+     */
+    public static int reset(int pid, ClassSelector selector) throws AgentLoadingException {
+	return call(pid, instrumentor -> instrumentor.reset(selector));
+    }
+
+    /**
+     * Remote version of {@link #retransform(ClassFileTransformer, ClassSelector)}
+     * <p>
+     * The selector is resolved against the classes loaded by the remote VM. A transformer used by id before is sent
+     * the first time only, see {@link #retransformParallel(int, ClassFileTransformer, String...)}.
+     */
+    public static <SCFT extends ClassFileTransformer & Serializable> int retransform(int pid, SCFT transformer,
+	    ClassSelector selector) throws AgentLoadingException {
+	final String id = transformerIds.get(transformer);
+	if (id != null) {
+	    return call(pid, instrumentor -> {
+		final int retransformed = instrumentor.retransform(id, selector);
+		if (retransformed >= 0) {
+		    return retransformed;
+		}
+		upload(instrumentor, id, transformer);
+		return instrumentor.retransform(id, selector);
+	    });
+	}
+	return call(pid, instrumentor -> instrumentor.retransform(transformer, selector));
+    }
+
+    /**
+     * Remote version of {@link #retransformParallel(ClassFileTransformer, ClassSelector)}
+     * <p>
+     * A transformer used by id before is sent the first time only, see
+     * {@link #retransformParallel(int, ClassFileTransformer, String...)}.
+     */
+    public static <SCFT extends ClassFileTransformer & Serializable> RedefineResult retransformParallel(int pid,
+	    SCFT transformer, ClassSelector selector) throws AgentLoadingException {
+	final String id = transformerIds.get(transformer);
+	if (id != null) {
+	    return call(pid, instrumentor -> {
+		final RedefineResult result = instrumentor.retransformParallel(id, selector);
+		if (result != null) {
+		    return result;
+		}
+		upload(instrumentor, id, transformer);
+		return instrumentor.retransformParallel(id, selector);
+	    });
+	}
+	return call(pid, instrumentor -> instrumentor.retransformParallel(transformer, selector));
+    }
+
+    /**
+     * Remote version of {@link #instrument(ClassFileTransformer, ClassSelector)}
+     * <p>
+     * The transformer is sent to the remote VM the first time only, see {@link #register(int, ClassFileTransformer)}.
+     * It stays registered there once removed, until {@link #unregister(int, String)} is given the id which
+     * {@link #register(int, ClassFileTransformer)} returns for it.
+     * 
+     * @return the number of loaded classes re-transformed
+     */
+    public static <SCFT extends ClassFileTransformer & Serializable> int instrument(int pid, SCFT transformer,
+	    ClassSelector selector) throws AgentLoadingException {
+	final String id = idOf(transformer);
+	return call(pid, instrumentor -> {
+	    final int count = instrumentor.instrument(id, selector);
+	    if (count >= 0) {
+		return count;
+	    }
+	    upload(instrumentor, id, transformer);
+	    return instrumentor.instrument(id, selector);
+	});
+    }
+
     /**
      * Remote version of {@link #redefine(ClassFileTransformer, String...)}
      */
     public static <SCFT extends ClassFileTransformer & Serializable> void redefine(int pid, SCFT transformer,
 	    String className, byte[] bytes) throws AgentLoadingException {
-	try (ProxyConnection<InstrumentorMBean> proxyConn = getInstrumentorProxy(pid)) {
-	    proxyConn.proxy.redefine(className, bytes);
+	run(pid, instrumentor -> instrumentor.redefine(className, bytes));
+    }
+
+    /**
+     * Remote version of {@link #redefine(Map)}
+     */
+    public static RedefineResult redefine(int pid, Map<String, byte[]> definitions) throws AgentLoadingException {
+	if (payloadTransport == PayloadTransport.FILE_HANDOFF) {
+	    final RedefineResult[] result = new RedefineResult[1];
+	    handoff(() -> Handoff.ofDefinitions(definitions),
+		    h -> result[0] = call(pid, instrumentor -> instrumentor.redefine(h)));
+	    return result[0];
 	}
+	return call(pid, instrumentor -> instrumentor.redefine(definitions));
+    }
+
+    /**
+     * Remote version of {@link #redefineLoadedBy(String, Map)}
+     */
+    public static RedefineResult redefineLoadedBy(int pid, String loaderHint, Map<String, byte[]> definitions)
+	    throws AgentLoadingException {
+	return call(pid, instrumentor -> instrumentor.redefineLoadedBy(loaderHint, definitions));
     }
 
     /**
@@ -173,8 +876,142 @@ public class Agents {
      *            the jar file as a byte array
      */
     public static void loadJar(int pid, String jarName, byte[] jarBytes) {
-	try (ProxyConnection<InstrumentorMBean> proxyConn = getInstrumentorProxy(pid)) {
-	    proxyConn.proxy.appendToSystemClassLoader(jarName, jarBytes);
+	final String hash = JarStore.hash(jarBytes);
+	run(pid, instrumentor -> {
+	    // nothing to upload if the remote VM (or any other in the host) already got it
+	    if (!instrumentor.appendJarToSystemClassLoader(hash)) {
+		if (payloadTransport == PayloadTransport.FILE_HANDOFF) {
+		    handoff(() -> Handoff.ofBytes(jarBytes), h -> instrumentor.writeJar(hash, h));
+		} else {
+		    for (int offset = 0; offset < jarBytes.length; offset += JarStore.CHUNK_SIZE) {
+			final int end = Math.min(jarBytes.length, offset + JarStore.CHUNK_SIZE);
+			instrumentor.writeJarChunk(hash, offset, Arrays.copyOfRange(jarBytes, offset, end));
+		    }
+		}
+		appendUploaded(instrumentor, jarName, hash);
+	    }
+	});
+    }
+
+    /**
+     * Loads a jar file in a remote VM.
+     * <p>
+     * Same as {@link #loadJar(int, String, byte[])}, but the jar is streamed from the file rather than held in memory.
+     * 
+     * @param pid
+     *            the remote process id
+     * @param jar
+     *            the jar file
+     */
+    public static void loadJar(int pid, File jar) {
+	final String hash;
+	try {
+	    hash = JarStore.hash(jar);
+	} catch (IOException e) {
+	    throw new AgentLoadingException(String.format("Unable to read the jar { %s }.", jar), e);
+	}
+
+	run(pid, instrumentor -> {
+	    if (!instrumentor.appendJarToSystemClassLoader(hash)) {
+		if (payloadTransport == PayloadTransport.FILE_HANDOFF) {
+		    handoff(() -> Handoff.of(jar), h -> instrumentor.writeJar(hash, h));
+		} else {
+		    try (InputStream in = new FileInputStream(jar)) {
+			final byte[] buffer = new byte[JarStore.CHUNK_SIZE];
+			long offset = 0;
+			for (int n; (n = in.read(buffer)) >= 0; offset += n) {
+			    instrumentor.writeJarChunk(hash, offset, Arrays.copyOf(buffer, n));
+			}
+		    } catch (IOException e) {
+			throw new AgentLoadingException(String.format("Unable to read the jar { %s }.", jar), e);
+		    }
+		}
+		appendUploaded(instrumentor, jar.getName(), hash);
+	    }
+	});
+    }
+
+    private static void appendUploaded(InstrumentorMBean instrumentor, String jarName, String hash) {
+	if (!instrumentor.appendJarToSystemClassLoader(hash)) {
+	    throw new AgentLoadingException(String.format("The uploaded jar { %s } doesn't match its hash { %s }.",
+		    jarName, hash));
+	}
+    }
+
+    /**
+     * Sets how remote operations hand their payloads (jars, class bytes, serialized transformers) to the remote VM.
+     * <p>
+     * {@link PayloadTransport#FILE_HANDOFF} writes every payload once in a file which the remote VM maps, which saves
+     * the serialization and copies of large jars and bulk redefinitions.
+     */
+    public static void setPayloadTransport(PayloadTransport transport) {
+	payloadTransport = transport;
+    }
+
+    public static PayloadTransport getPayloadTransport() {
+	return payloadTransport;
+    }
+
+    /**
+     * Sets how remote operations reach the remote agent, for the sessions opened from now on.
+     * <p>
+     * {@link ControlTransport#SOCKET} avoids the JMX and RMI overhead of every operation, and doesn't start the
+     * management agent of the remote VM. Open sessions keep their transport until closed, see
+     * {@link RemoteSessions#closeAll()}.
+     */
+    public static void setControlTransport(ControlTransport transport) {
+	controlTransport = transport;
+    }
+
+    public static ControlTransport getControlTransport() {
+	return controlTransport;
+    }
+
+    /**
+     * The session to the remote process, see {@link RemoteSessions}.
+     * <p>
+     * Every remote operation reuses the session, so only the first one attaches to the remote process.
+     */
+    public static RemoteSession session(int pid) {
+	return RemoteSessions.get(pid);
+    }
+
+    private interface HandoffWriter {
+	Handoff write() throws IOException;
+    }
+
+    // The handoff file is deleted once the operation is done, whatever the outcome.
+    private static void handoff(HandoffWriter writer, Consumer<Handoff> operation) throws AgentLoadingException {
+	final Handoff handoff;
+	try {
+	    handoff = writer.write();
+	} catch (IOException e) {
+	    throw new AgentLoadingException("Unable to write the handoff file.", e);
+	}
+	try {
+	    operation.accept(handoff);
+	} finally {
+	    handoff.delete();
+	}
+    }
+
+    private static void run(int pid, Consumer<InstrumentorMBean> operation) throws AgentLoadingException {
+	call(pid, instrumentor -> {
+	    operation.accept(instrumentor);
+	    return null;
+	});
+    }
+
+    // A lost connection is dropped, so the next operation reconnects. The pool doesn't close the session meanwhile.
+    private static <T> T call(int pid, Function<InstrumentorMBean, T> operation) throws AgentLoadingException {
+	final RemoteSession session = RemoteSessions.acquire(pid);
+	try {
+	    return operation.apply(session.getInstrumentor());
+	} catch (UndeclaredThrowableException e) {
+	    session.disconnect();
+	    throw new AgentLoadingException(String.format("Lost the connection to pid '%s'.", pid), e);
+	} finally {
+	    session.release();
 	}
     }
 }
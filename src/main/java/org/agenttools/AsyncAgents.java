@@ -0,0 +1,469 @@
+/*******************************************************************************
+ * Copyright (c) 2017, Xavier Miret Andres <xavier.mires@gmail.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *******************************************************************************/
+package org.agenttools;
+
+import java.io.File;
+import java.io.Serializable;
+import java.lang.instrument.ClassFileTransformer;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Supplier;
+
+/**
+ * Non-blocking version of {@link Agents}. Every operation runs on the {@link #setExecutor(Executor) executor}, and
+ * completes the returned future.
+ * <p>
+ * Operations on the same remote process are queued and run one after the other, so they share a single attach and
+ * connection instead of racing to open their own.
+ * <p>
+ * Cancelling the future, or reaching its {@link #setTimeout(long, TimeUnit) timeout} or
+ * {@link #deadline(CompletableFuture, long, TimeUnit) deadline}, drops the operation if it didn't start yet, and
+ * abandons it otherwise: it isn't interrupted, which would close the connection shared by the operations on the
+ * same process, but runs to its end and its outcome is ignored. An abandoned operation may or may not have been
+ * applied, and the operations queued after it on the same process still wait for it.
+ */
+public class AsyncAgents {
+
+    private static volatile Executor executor = defaultExecutor();
+    private static volatile long timeoutNanos = 0;
+
+    private static final ScheduledThreadPoolExecutor watchdog = watchdog();
+
+    // the pending operations per remote process, guarded by itself
+    private static final Map<Integer, Queue<Queued>> queues = new HashMap<>();
+
+    private AsyncAgents() {
+    }
+
+    /**
+     * Runs operations on the given executor. Defaults to virtual threads where available (Java 21+), and to a cached
+     * pool of daemon threads otherwise.
+     */
+    public static void setExecutor(Executor executor) {
+	AsyncAgents.executor = executor;
+    }
+
+    /**
+     * Fails every operation which doesn't complete in time with a {@link TimeoutException}, zero for none (the
+     * default).
+     */
+    public static void setTimeout(long timeout, TimeUnit unit) {
+	timeoutNanos = unit.toNanos(timeout);
+    }
+
+    /**
+     * Fails the operation with a {@link TimeoutException} unless it completes in time.
+     * 
+     * @return the same future
+     */
+    public static <T> CompletableFuture<T> deadline(CompletableFuture<T> operation, long timeout, TimeUnit unit) {
+	final ScheduledFuture<?> expiry = watchdog.schedule(() -> operation.completeExceptionally(
+		new TimeoutException(String.format("The operation didn't complete in %s %s.", timeout, unit))),
+		timeout, unit);
+	// completed in time, don't keep the future until the deadline
+	operation.whenComplete((v, e) -> expiry.cancel(false));
+	return operation;
+    }
+
+    public static CompletableFuture<TransformerHandle> add(ClassFileTransformer transformer) {
+	return submit(null, () -> Agents.add(transformer));
+    }
+
+    public static CompletableFuture<TransformerHandle> add(ClassFileTransformer transformer, ClassSelector selector) {
+	return submit(null, () -> Agents.add(transformer, selector));
+    }
+
+    public static CompletableFuture<TransformerHandle> instrument(ClassFileTransformer transformer,
+	    ClassSelector selector) {
+	return submit(null, () -> Agents.instrument(transformer, selector));
+    }
+
+    public static CompletableFuture<Void> remove(ClassFileTransformer transformer) {
+	return run(null, () -> Agents.remove(transformer));
+    }
+
+    public static CompletableFuture<Void> reset(String... classNames) {
+	return run(null, () -> Agents.reset(classNames));
+    }
+
+    public static CompletableFuture<Void> retransform(ClassFileTransformer transformer, String... classNames) {
+	return run(null, () -> Agents.retransform(transformer, classNames));
+    }
+
+    public static CompletableFuture<Void> resetLoadedBy(String loaderHint, String... classNames) {
+	return run(null, () -> Agents.resetLoadedBy(loaderHint, classNames));
+    }
+
+    public static CompletableFuture<Void> retransformLoadedBy(String loaderHint, ClassFileTransformer transformer,
+	    String... classNames) {
+	return run(null, () -> Agents.retransformLoadedBy(loaderHint, transformer, classNames));
+    }
+
+    public static CompletableFuture<RedefineResult> retransformParallel(ClassFileTransformer transformer,
+	    String... classNames) {
+	return submit(null, () -> Agents.retransformParallel(transformer, classNames));
+    }
+
+    public static CompletableFuture<Integer> retransform(ClassFileTransformer transformer, ClassSelector selector) {
+	return submit(null, () -> Agents.retransform(transformer, selector));
+    }
+
+    public static CompletableFuture<Integer> reset(ClassSelector selector) {
+	return submit(null, () -> Agents.reset(selector));
+    }
+
+    public static CompletableFuture<Long> scheduleRetransform(ClassFileTransformer transformer,
+	    ClassSelector selector, RetransformSchedule schedule) {
+	return submit(null, () -> Agents.scheduleRetransform(transformer, selector, schedule));
+    }
+
+    public static CompletableFuture<RetransformProgress> getRetransformProgress(long id) {
+	return submit(null, () -> Agents.getRetransformProgress(id));
+    }
+
+    public static CompletableFuture<Boolean> cancelRetransform(long id) {
+	return submit(null, () -> Agents.cancelRetransform(id));
+    }
+
+    public static CompletableFuture<Void> redefine(String className, byte[] bytes) {
+	return run(null, () -> Agents.redefine(className, bytes));
+    }
+
+    public static CompletableFuture<RedefineResult> redefine(Map<String, byte[]> definitions) {
+	return submit(null, () -> Agents.redefine(definitions));
+    }
+
+    public static CompletableFuture<RedefineResult> redefineLoadedBy(String loaderHint,
+	    Map<String, byte[]> definitions) {
+	return submit(null, () -> Agents.redefineLoadedBy(loaderHint, definitions));
+    }
+
+    public static CompletableFuture<Class<?>> findClass(String className, String loaderHint) {
+	return submit(null, () -> Agents.findClass(className, loaderHint));
+    }
+
+    public static CompletableFuture<List<String>> getClassLoaders(String className) {
+	return submit(null, () -> Agents.getClassLoaders(className));
+    }
+
+    public static CompletableFuture<Void> enableResetCache(ClassSelector selector, long byteBudget) {
+	return run(null, () -> Agents.enableResetCache(selector, byteBudget));
+    }
+
+    public static CompletableFuture<BatchResult> execute(Batch batch) {
+	return submit(null, () -> Agents.execute(batch));
+    }
+
+    public static <SCFT extends ClassFileTransformer & Serializable> CompletableFuture<Void> add(int pid,
+	    SCFT transformer) {
+	return run(pid, () -> Agents.add(pid, transformer));
+    }
+
+    public static <SCFT extends ClassFileTransformer & Serializable> CompletableFuture<Void> add(int pid,
+	    SCFT transformer, ClassSelector selector) {
+	return run(pid, () -> Agents.add(pid, transformer, selector));
+    }
+
+    public static <SCFT extends ClassFileTransformer & Serializable> CompletableFuture<Void> remove(int pid,
+	    SCFT transformer) {
+	return run(pid, () -> Agents.remove(pid, transformer));
+    }
+
+    public static <SCFT extends ClassFileTransformer & Serializable> CompletableFuture<String> register(int pid,
+	    SCFT transformer) {
+	return submit(pid, () -> Agents.register(pid, transformer));
+    }
+
+    public static CompletableFuture<Void> unregister(int pid, String id) {
+	return run(pid, () -> Agents.unregister(pid, id));
+    }
+
+    public static CompletableFuture<Void> add(int pid, String id) {
+	return run(pid, () -> Agents.add(pid, id));
+    }
+
+    public static CompletableFuture<Void> add(int pid, String id, ClassSelector selector) {
+	return run(pid, () -> Agents.add(pid, id, selector));
+    }
+
+    public static CompletableFuture<Boolean> remove(int pid, String id) {
+	return submit(pid, () -> Agents.remove(pid, id));
+    }
+
+    public static CompletableFuture<Void> retransform(int pid, String id, String... classNames) {
+	return run(pid, () -> Agents.retransform(pid, id, classNames));
+    }
+
+    public static <SCFT extends ClassFileTransformer & Serializable> CompletableFuture<Void> retransform(int pid,
+	    SCFT transformer, String... classNames) {
+	return run(pid, () -> Agents.retransform(pid, transformer, classNames));
+    }
+
+    public static <SCFT extends ClassFileTransformer & Serializable> CompletableFuture<RedefineResult> retransformParallel(
+	    int pid, SCFT transformer, String... classNames) {
+	return submit(pid, () -> Agents.retransformParallel(pid, transformer, classNames));
+    }
+
+    public static CompletableFuture<Integer> reset(int pid, ClassSelector selector) {
+	return submit(pid, () -> Agents.reset(pid, selector));
+    }
+
+    public static <SCFT extends ClassFileTransformer & Serializable> CompletableFuture<Integer> retransform(int pid,
+	    SCFT transformer, ClassSelector selector) {
+	return submit(pid, () -> Agents.retransform(pid, transformer, selector));
+    }
+
+    public static <SCFT extends ClassFileTransformer & Serializable> CompletableFuture<RedefineResult> retransformParallel(
+	    int pid, SCFT transformer, ClassSelector selector) {
+	return submit(pid, () -> Agents.retransformParallel(pid, transformer, selector));
+    }
+
+    public static <SCFT extends ClassFileTransformer & Serializable> CompletableFuture<Integer> instrument(int pid,
+	    SCFT transformer, ClassSelector selector) {
+	return submit(pid, () -> Agents.instrument(pid, transformer, selector));
+    }
+
+    public static <SCFT extends ClassFileTransformer & Serializable> CompletableFuture<Long> scheduleRetransform(
+	    int pid, SCFT transformer, ClassSelector selector, RetransformSchedule schedule) {
+	return submit(pid, () -> Agents.scheduleRetransform(pid, transformer, selector, schedule));
+    }
+
+    public static CompletableFuture<RetransformProgress> getRetransformProgress(int pid, long id) {
+	return submit(pid, () -> Agents.getRetransformProgress(pid, id));
+    }
+
+    public static CompletableFuture<Boolean> cancelRetransform(int pid, long id) {
+	return submit(pid, () -> Agents.cancelRetransform(pid, id));
+    }
+
+    public static CompletableFuture<BatchResult> execute(int pid, Batch batch) {
+	return submit(pid, () -> Agents.execute(pid, batch));
+    }
+
+    public static CompletableFuture<Void> enableResetCache(int pid, ClassSelector selector, long byteBudget) {
+	return run(pid, () -> Agents.enableResetCache(pid, selector, byteBudget));
+    }
+
+    public static CompletableFuture<Void> reset(int pid, String... classNames) {
+	return run(pid, () -> Agents.reset(pid, classNames));
+    }
+
+    public static CompletableFuture<Void> resetLoadedBy(int pid, String loaderHint, String... classNames) {
+	return run(pid, () -> Agents.resetLoadedBy(pid, loaderHint, classNames));
+    }
+
+    public static <SCFT extends ClassFileTransformer & Serializable> CompletableFuture<Void> retransformLoadedBy(
+	    int pid, String loaderHint, SCFT transformer, String... classNames) {
+	return run(pid, () -> Agents.retransformLoadedBy(pid, loaderHint, transformer, classNames));
+    }
+
+    public static CompletableFuture<List<String>> getClassLoaders(int pid, String className) {
+	return submit(pid, () -> Agents.getClassLoaders(pid, className));
+    }
+
+    public static CompletableFuture<Void> countInstances(int pid, String... classNames) {
+	return run(pid, () -> Agents.countInstances(pid, classNames));
+    }
+
+    public static CompletableFuture<List<InstanceCount>> getInstanceCounts(int pid) {
+	return submit(pid, () -> Agents.getInstanceCounts(pid));
+    }
+
+    public static CompletableFuture<Void> setInstanceCountingEnabled(int pid, boolean enabled) {
+	return run(pid, () -> Agents.setInstanceCountingEnabled(pid, enabled));
+    }
+
+    public static CompletableFuture<Void> timeMethods(int pid, String... methods) {
+	return run(pid, () -> Agents.timeMethods(pid, methods));
+    }
+
+    public static CompletableFuture<List<MethodTiming>> getMethodTimings(int pid) {
+	return submit(pid, () -> Agents.getMethodTimings(pid));
+    }
+
+    public static CompletableFuture<Void> setMethodTimingEnabled(int pid, boolean enabled) {
+	return run(pid, () -> Agents.setMethodTimingEnabled(pid, enabled));
+    }
+
+    public static CompletableFuture<TraceReader> trace(int pid) {
+	return submit(pid, () -> Agents.trace(pid));
+    }
+
+    public static CompletableFuture<TraceReader> trace(int pid, int segmentBytes, int segments) {
+	return submit(pid, () -> Agents.trace(pid, segmentBytes, segments));
+    }
+
+    public static CompletableFuture<Void> stopTrace(int pid) {
+	return run(pid, () -> Agents.stopTrace(pid));
+    }
+
+    public static CompletableFuture<RedefineResult> redefine(int pid, Map<String, byte[]> definitions) {
+	return submit(pid, () -> Agents.redefine(pid, definitions));
+    }
+
+    public static CompletableFuture<RedefineResult> redefineLoadedBy(int pid, String loaderHint,
+	    Map<String, byte[]> definitions) {
+	return submit(pid, () -> Agents.redefineLoadedBy(pid, loaderHint, definitions));
+    }
+
+    public static CompletableFuture<Void> loadJar(int pid, String jarName, byte[] jarBytes) {
+	return run(pid, () -> Agents.loadJar(pid, jarName, jarBytes));
+    }
+
+    public static CompletableFuture<Void> loadJar(int pid, File jar) {
+	return run(pid, () -> Agents.loadJar(pid, jar));
+    }
+
+    private static CompletableFuture<Void> run(Integer pid, Runnable operation) {
+	return submit(pid, () -> {
+	    operation.run();
+	    return null;
+	});
+    }
+
+    /**
+     * @param pid
+     *            the remote process to queue the operation for, null to run it right away
+     */
+    private static <T> CompletableFuture<T> submit(Integer pid, Supplier<T> operation) {
+	final CompletableFuture<T> result = new CompletableFuture<>();
+	final Runnable task = () -> {
+	    if (result.isDone()) {
+		// cancelled or timed out before it started
+		return;
+	    }
+	    try {
+		result.complete(operation.get());
+	    } catch (RuntimeException | Error e) {
+		result.completeExceptionally(e);
+	    }
+	};
+
+	final long timeout = timeoutNanos;
+	if (timeout > 0) {
+	    deadline(result, timeout, TimeUnit.NANOSECONDS);
+	}
+	if (pid == null) {
+	    try {
+		executor.execute(task);
+	    } catch (RejectedExecutionException e) {
+		result.completeExceptionally(e);
+	    }
+	} else {
+	    enqueue(pid, new Queued(task, result));
+	}
+	return result;
+    }
+
+    private static void enqueue(int pid, Queued operation) {
+	synchronized (queues) {
+	    final Queue<Queued> queue = queues.get(pid);
+	    if (queue != null) {
+		queue.add(operation);
+		return;
+	    }
+	    queues.put(pid, new ArrayDeque<>());
+	}
+	try {
+	    executor.execute(() -> drain(pid, operation.task));
+	} catch (RejectedExecutionException e) {
+	    // nothing drains the queue, so the operations queued meanwhile fail as well
+	    final Queue<Queued> queued;
+	    synchronized (queues) {
+		queued = queues.remove(pid);
+	    }
+	    operation.result.completeExceptionally(e);
+	    for (Queued q : queued) {
+		q.result.completeExceptionally(e);
+	    }
+	}
+    }
+
+    // Runs the queued tasks of the process one after the other, then forgets the queue.
+    private static void drain(int pid, Runnable first) {
+	for (Runnable task = first; task != null;) {
+	    try {
+		task.run();
+	    } finally {
+		synchronized (queues) {
+		    final Queued next = queues.get(pid).poll();
+		    if (next == null) {
+			queues.remove(pid);
+		    }
+		    task = next == null ? null : next.task;
+		}
+	    }
+	}
+    }
+
+    private static final class Queued {
+	final Runnable task;
+	final CompletableFuture<?> result;
+
+	Queued(Runnable task, CompletableFuture<?> result) {
+	    this.task = task;
+	    this.result = result;
+	}
+    }
+
+    private static ScheduledThreadPoolExecutor watchdog() {
+	final ScheduledThreadPoolExecutor watchdog = new ScheduledThreadPoolExecutor(1, r -> {
+	    final Thread t = new Thread(r, "agent-tools-async-watchdog");
+	    t.setDaemon(true);
+	    return t;
+	});
+	// the deadlines of the completed operations are dropped right away
+	watchdog.setRemoveOnCancelPolicy(true);
+	return watchdog;
+    }
+
+    /**
+     * The deadlines of the operations not completed yet.
+     */
+    static int getPendingDeadlines() {
+	return watchdog.getQueue().size();
+    }
+
+    private static Executor defaultExecutor() {
+	try {
+	    return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+	} catch (ReflectiveOperationException e) {
+	    return Executors.newCachedThreadPool(r -> {
+		final Thread t = new Thread(r, "agent-tools-async");
+		t.setDaemon(true);
+		return t;
+	    });
+	}
+    }
+}
@@ -0,0 +1,275 @@
+/*******************************************************************************
+ * Copyright (c) 2017, Xavier Miret Andres <xavier.mires@gmail.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *******************************************************************************/
+package org.agenttools;
+
+import java.io.Serializable;
+import java.lang.instrument.ClassFileTransformer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A list of operations run in order by the agent, in a single call.
+ * 
+ * <pre>
+ * final BatchResult result = Agents.execute(pid, new Batch() //
+ *         .appendJarToSystemClassLoader(jarBytes) //
+ *         .register(tracer) //
+ *         .add(tracer, selector) //
+ *         .retransform(tracer, classNames) //
+ *         .getTransformerCount());
+ * </pre>
+ * 
+ * By default, the batch stops at the first failing step and the remaining ones are skipped, see
+ * {@link #continueOnFailure()}.
+ * <p>
+ * Transformers are identified the same way as in {@link Agents#register(int, ClassFileTransformer)}: a transformer
+ * registered by a batch can be removed by {@link Agents#remove(int, ClassFileTransformer)} and the other way around.
+ */
+public final class Batch implements Serializable {
+
+    private static final long serialVersionUID = 2L;
+
+    private final List<String> descriptions = new ArrayList<>();
+    private final List<Step> steps = new ArrayList<>();
+    private boolean continueOnFailure = false;
+
+    /**
+     * Runs every step, whether the previous ones failed or not.
+     */
+    public Batch continueOnFailure() {
+	continueOnFailure = true;
+	return this;
+    }
+
+    /**
+     * Appends a jar the agent already stores, see {@link Agents#loadJar(int, String, byte[])}. Fails otherwise.
+     */
+    public Batch appendJarToSystemClassLoader(String hash) {
+	return add("appendJarToSystemClassLoader " + hash, Op.APPEND_JAR_TO_SYSTEM, hash);
+    }
+
+    /**
+     * Appends the jar sent along with the batch, stored by the agent first unless it already has it, so that no
+     * upload is needed before the batch.
+     */
+    public Batch appendJarToSystemClassLoader(byte[] jarBytes) {
+	final String hash = JarStore.hash(jarBytes);
+	return add("appendJarToSystemClassLoader " + hash, Op.APPEND_JAR_TO_SYSTEM, hash, jarBytes.clone());
+    }
+
+    public Batch appendJarToBootstrapClassLoader(String hash) {
+	return add("appendJarToBootstrapClassLoader " + hash, Op.APPEND_JAR_TO_BOOTSTRAP, hash);
+    }
+
+    public Batch appendJarToBootstrapClassLoader(byte[] jarBytes) {
+	final String hash = JarStore.hash(jarBytes);
+	return add("appendJarToBootstrapClassLoader " + hash, Op.APPEND_JAR_TO_BOOTSTRAP, hash, jarBytes.clone());
+    }
+
+    /**
+     * Sends the transformer to the agent, without installing it. Other steps use the transformer once registered.
+     */
+    public <SCFT extends ClassFileTransformer & Serializable> Batch register(SCFT transformer) {
+	final String id = Agents.idOf(transformer);
+	return add("register " + id, Op.REGISTER, id, transformer);
+    }
+
+    public Batch unregister(ClassFileTransformer transformer) {
+	final String id = Agents.idOf(transformer);
+	return add("unregister " + id, Op.UNREGISTER, id);
+    }
+
+    public Batch add(ClassFileTransformer transformer) {
+	final String id = Agents.idOf(transformer);
+	return add("add " + id, Op.ADD, id);
+    }
+
+    public Batch add(ClassFileTransformer transformer, ClassSelector selector) {
+	final String id = Agents.idOf(transformer);
+	return add("add " + id, Op.ADD_SELECTED, id, selector);
+    }
+
+    /**
+     * Removes the latest installation of the transformer. The step value is false if it wasn't installed.
+     */
+    public Batch remove(ClassFileTransformer transformer) {
+	final String id = Agents.idOf(transformer);
+	return add("remove " + id, Op.REMOVE, id);
+    }
+
+    public Batch retransform(ClassFileTransformer transformer, String... classNames) {
+	final String id = Agents.idOf(transformer);
+	return add("retransform " + id + " " + Arrays.toString(classNames), Op.RETRANSFORM, id, classNames.clone());
+    }
+
+    public Batch reset(String... classNames) {
+	return add("reset " + Arrays.toString(classNames), Op.RESET, (Serializable) classNames.clone());
+    }
+
+    /**
+     * Fails unless every class is redefined. The step value is the {@link RedefineResult}.
+     */
+    public Batch redefine(Map<String, byte[]> definitions) {
+	final LinkedHashMap<String, byte[]> copy = new LinkedHashMap<>(definitions);
+	return add("redefine " + copy.keySet(), Op.REDEFINE, copy);
+    }
+
+    public Batch enableResetCache(ClassSelector selector, long byteBudget) {
+	return add("enableResetCache", Op.ENABLE_RESET_CACHE, selector, byteBudget);
+    }
+
+    public Batch disableResetCache() {
+	return add("disableResetCache", Op.DISABLE_RESET_CACHE);
+    }
+
+    /**
+     * The step value is the number of transformers installed at this point.
+     */
+    public Batch getTransformerCount() {
+	return add("getTransformerCount", Op.GET_TRANSFORMER_COUNT);
+    }
+
+    public int size() {
+	return steps.size();
+    }
+
+    BatchResult execute(InstrumentorMBean instrumentor) {
+	final BatchResult result = new BatchResult();
+	boolean failed = false;
+	for (int i = 0; i < steps.size(); i++) {
+	    if (failed && !continueOnFailure) {
+		result.skip(descriptions.get(i));
+		continue;
+	    }
+	    final long start = System.nanoTime();
+	    try {
+		final Serializable value = steps.get(i).run(instrumentor);
+		result.add(descriptions.get(i), value, null, System.nanoTime() - start);
+	    } catch (Throwable e) {
+		// i.e. a transformer class which can't be linked, recorded like any other failure
+		result.add(descriptions.get(i), null, e, System.nanoTime() - start);
+		failed = true;
+	    }
+	}
+	return result;
+    }
+
+    private Batch add(String description, Op op, Serializable... args) {
+	descriptions.add(description);
+	steps.add(new Step(op, args));
+	return this;
+    }
+
+    private static Boolean stored(String hash, boolean stored) {
+	if (!stored) {
+	    throw new AgentLoadingException(String.format("The jar { %s } must be uploaded first.", hash));
+	}
+	return Boolean.TRUE;
+    }
+
+    private static Boolean registered(String id, boolean registered) {
+	if (!registered) {
+	    throw new AgentLoadingException(String.format("There isn't any transformer registered as { %s }.", id));
+	}
+	return Boolean.TRUE;
+    }
+
+    private enum Op {
+	APPEND_JAR_TO_SYSTEM, APPEND_JAR_TO_BOOTSTRAP, REGISTER, UNREGISTER, ADD, ADD_SELECTED, REMOVE, RETRANSFORM,
+	RESET, REDEFINE, ENABLE_RESET_CACHE, DISABLE_RESET_CACHE, GET_TRANSFORMER_COUNT
+    }
+
+    // An operation and its plain arguments, so that no code is sent along with a batch.
+    private static final class Step implements Serializable {
+
+	private static final long serialVersionUID = 2L;
+
+	private final Op op;
+	private final Serializable[] args;
+
+	Step(Op op, Serializable[] args) {
+	    this.op = op;
+	    this.args = args;
+	}
+
+	Serializable run(InstrumentorMBean instrumentor) {
+	    switch (op) {
+	    case APPEND_JAR_TO_SYSTEM:
+		return stored(string(0), instrumentor.appendJarToSystemClassLoader(string(0))
+			|| upload(instrumentor) && instrumentor.appendJarToSystemClassLoader(string(0)));
+	    case APPEND_JAR_TO_BOOTSTRAP:
+		return stored(string(0), instrumentor.appendJarToBootstrapClassLoader(string(0))
+			|| upload(instrumentor) && instrumentor.appendJarToBootstrapClassLoader(string(0)));
+	    case REGISTER:
+		instrumentor.registerTransformer(string(0), (ClassFileTransformer) args[1]);
+		return null;
+	    case UNREGISTER:
+		instrumentor.unregisterTransformer(string(0));
+		return null;
+	    case ADD:
+		return registered(string(0), instrumentor.addTransformer(string(0)));
+	    case ADD_SELECTED:
+		return registered(string(0), instrumentor.addTransformer(string(0), (ClassSelector) args[1]));
+	    case REMOVE:
+		return instrumentor.removeTransformer(string(0));
+	    case RETRANSFORM:
+		return registered(string(0), instrumentor.retransform(string(0), (String[]) args[1]));
+	    case RESET:
+		instrumentor.reset((String[]) args[0]);
+		return null;
+	    case REDEFINE:
+		@SuppressWarnings("unchecked")
+		final RedefineResult result = instrumentor.redefine((Map<String, byte[]>) args[0]);
+		if (!result.isSuccess()) {
+		    throw new AgentLoadingException(result.toString());
+		}
+		return result;
+	    case ENABLE_RESET_CACHE:
+		instrumentor.enableResetCache((ClassSelector) args[0], (Long) args[1]);
+		return null;
+	    case DISABLE_RESET_CACHE:
+		instrumentor.disableResetCache();
+		return null;
+	    case GET_TRANSFORMER_COUNT:
+		return instrumentor.getTransformerCount();
+	    default:
+		throw new AgentLoadingException(String.format("Unknown batch operation %s.", op));
+	    }
+	}
+
+	// stores the jar sent along with the step, if any
+	private boolean upload(InstrumentorMBean instrumentor) {
+	    if (args.length < 2) {
+		return false;
+	    }
+	    instrumentor.writeJarChunk(string(0), 0, (byte[]) args[1]);
+	    return true;
+	}
+
+	private String string(int i) {
+	    return (String) args[i];
+	}
+    }
+}
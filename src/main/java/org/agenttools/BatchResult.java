@@ -0,0 +1,128 @@
+/*******************************************************************************
+ * Copyright (c) 2017, Xavier Miret Andres <xavier.mires@gmail.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *******************************************************************************/
+package org.agenttools;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The outcome of a {@link Batch}, per step in order.
+ */
+public final class BatchResult implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    private final List<StepOutcome> outcomes = new ArrayList<>();
+
+    void add(String step, Serializable value, Throwable error, long nanos) {
+	outcomes.add(new StepOutcome(step, value, error == null ? null : error.toString(), false, nanos));
+    }
+
+    void skip(String step) {
+	outcomes.add(new StepOutcome(step, null, null, true, 0));
+    }
+
+    /**
+     * True if every step ran and succeeded.
+     */
+    public boolean isSuccess() {
+	for (StepOutcome outcome : outcomes) {
+	    if (!outcome.isSuccess()) {
+		return false;
+	    }
+	}
+	return true;
+    }
+
+    public List<StepOutcome> getOutcomes() {
+	return Collections.unmodifiableList(outcomes);
+    }
+
+    public StepOutcome getOutcome(int step) {
+	return outcomes.get(step);
+    }
+
+    @Override
+    public String toString() {
+	return "BatchResult " + outcomes;
+    }
+
+    public static final class StepOutcome implements Serializable {
+
+	private static final long serialVersionUID = 1L;
+
+	private final String step;
+	private final Serializable value;
+	private final String error;
+	private final boolean skipped;
+	private final long nanos;
+
+	StepOutcome(String step, Serializable value, String error, boolean skipped, long nanos) {
+	    this.step = step;
+	    this.value = value;
+	    this.error = error;
+	    this.skipped = skipped;
+	    this.nanos = nanos;
+	}
+
+	public String getStep() {
+	    return step;
+	}
+
+	public boolean isSuccess() {
+	    return error == null && !skipped;
+	}
+
+	/**
+	 * The value of the step, if any, or null if it failed or was skipped.
+	 */
+	public Serializable getValue() {
+	    return value;
+	}
+
+	/**
+	 * The failure description, or null if the step succeeded or was skipped.
+	 */
+	public String getError() {
+	    return error;
+	}
+
+	/**
+	 * True if the step didn't run because a previous one failed.
+	 */
+	public boolean isSkipped() {
+	    return skipped;
+	}
+
+	public long getNanos() {
+	    return nanos;
+	}
+
+	@Override
+	public String toString() {
+	    final String outcome = skipped ? " skipped" : error == null ? " succeeded" : " failed (" + error + ")";
+	    return step + outcome + " in " + nanos + "ns";
+	}
+    }
+}
@@ -0,0 +1,152 @@
+/*******************************************************************************
+ * Copyright (c) 2017, Xavier Miret Andres <xavier.mires@gmail.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *******************************************************************************/
+package org.agenttools;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.net.JarURLConnection;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.jar.JarEntry;
+import java.util.jar.Manifest;
+
+/**
+ * The agent jars loaded by the attach API, built once and reused.
+ * <p>
+ * A jar is found by a fingerprint of its manifest and of the class files it packs (their name, size and time, or
+ * CRC when read from a jar), so that it is neither built nor hashed unless the agent classes change. It is named
+ * after the fingerprint and the SHA-256 of its content (i.e.
+ * &lt;tmp&gt;/agent-tools-&lt;user&gt;/bootstrap/&lt;fingerprint&gt;-&lt;hash&gt;.jar), and shared by every
+ * controller VM of the user. The directory is private to the user, see {@link PrivateFiles}. A jar is only used once
+ * its content matches its name, checked the first time a VM uses it.
+ */
+class BootstrapJarCache {
+
+    // null for the default, private, directory
+    private final File directory;
+    private final Map<String, File> verified = new ConcurrentHashMap<>();
+
+    BootstrapJarCache() {
+	this(null);
+    }
+
+    BootstrapJarCache(File directory) {
+	this.directory = directory;
+    }
+
+    /**
+     * @param kind
+     *            identifies the jar in this VM, the manifest and classes of a kind must not change
+     */
+    File get(String kind, Manifest manifest, String... classNames) throws IOException, URISyntaxException,
+	    ClassNotFoundException {
+	final File cached = verified.get(kind);
+	if (cached != null && cached.isFile()) {
+	    return cached;
+	}
+
+	final String fingerprint = fingerprint(manifest, classNames);
+	final File[] candidates = getDirectory().listFiles((d, name) -> name.startsWith(fingerprint + "-"));
+	if (candidates != null) {
+	    for (File candidate : candidates) {
+		if (isIntact(candidate)) {
+		    verified.put(kind, candidate);
+		    return candidate;
+		}
+	    }
+	}
+
+	final byte[] jarBytes = ClassTools.createJar(manifest, classNames);
+	final File jar = new File(getDirectory(), fingerprint + "-" + JarStore.hash(jarBytes) + ".jar");
+	write(jar, jarBytes);
+	verified.put(kind, jar);
+	return jar;
+    }
+
+    private File getDirectory() throws IOException {
+	return directory == null ? PrivateFiles.directory("bootstrap") : PrivateFiles.directory(directory);
+    }
+
+    // Cheap to compute, the class files are looked up but not read.
+    private static String fingerprint(Manifest manifest, String... classNames) throws IOException,
+	    URISyntaxException {
+	final MessageDigest digest = JarStore.sha256();
+	final ByteArrayOutputStream manifestBytes = new ByteArrayOutputStream();
+	manifest.write(manifestBytes);
+	digest.update(manifestBytes.toByteArray());
+
+	final ClassLoader loader = ClassTools.class.getClassLoader();
+	for (String className : classNames) {
+	    final String resource = className.replace('.', '/').concat(".class");
+	    final URL url = loader == null ? ClassLoader.getSystemResource(resource) : loader.getResource(resource);
+	    final String stamp;
+	    if (url == null) {
+		throw new IOException(String.format("Unable to find the class file of '%s'.", className));
+	    } else if ("file".equals(url.getProtocol())) {
+		final File file = new File(url.toURI());
+		stamp = file.length() + " " + file.lastModified();
+	    } else if ("jar".equals(url.getProtocol())) {
+		final JarEntry entry = ((JarURLConnection) url.openConnection()).getJarEntry();
+		stamp = entry.getSize() + " " + entry.getCrc();
+	    } else {
+		stamp = JarStore.hash(ClassTools.getClassBytes(loader, className));
+	    }
+	    digest.update((className + " " + stamp + "\n").getBytes(StandardCharsets.UTF_8));
+	}
+	return JarStore.toHex(digest.digest());
+    }
+
+    // private to the user, and matching its name
+    private static boolean isIntact(File jar) throws IOException {
+	if (!jar.isFile() || !jar.getName().endsWith(".jar")) {
+	    return false;
+	}
+	try {
+	    PrivateFiles.checkPrivate(jar.toPath());
+	} catch (IOException e) {
+	    return false;
+	}
+	final String name = jar.getName();
+	return name.substring(name.indexOf('-') + 1).equals(JarStore.hash(jar) + ".jar");
+    }
+    // Written aside and moved, other VMs never see a partial jar.
+    private void write(File jar, byte[] jarBytes) throws IOException {
+	final File part = new File(jar.getParentFile(), jar.getName() + "." + UUID.randomUUID() + ".part");
+	try {
+	    Files.write(part.toPath(), jarBytes, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+	    PrivateFiles.restrict(part.toPath(), "rw-------");
+	    Files.move(part.toPath(), jar.toPath(), StandardCopyOption.REPLACE_EXISTING,
+		    StandardCopyOption.ATOMIC_MOVE);
+	} finally {
+	    part.delete();
+	}
+    }
+}
@@ -0,0 +1,879 @@
+/*******************************************************************************
+ * Copyright (c) 2017, Xavier Miret Andres <xavier.mires@gmail.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *******************************************************************************/
+package org.agenttools;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A minimal class file editor, which injects fixed instruction sequences in methods: a prologue at the method start,
+ * an epilogue before every return, and a handler run when the method completes with an exception (but one thrown by
+ * an epilogue, as the method has already completed).
+ * <p>
+ * The agent ships without any bytecode library, so this only handles what the probes need. Injected code must be
+ * straight-line and keep the operand stack as it found it. The handler finds the exception on the stack, must not use
+ * any local variable and must throw it. Existing branches, exception ranges, stack map frames, debug tables and type
+ * annotations on instructions are moved along the injected code.
+ */
+class ClassFileEditor {
+
+    /**
+     * The code to inject in a method, null arrays for none.
+     */
+    static final class Injection {
+	final byte[] prologue;
+	final byte[] epilogue;
+	final byte[] handler;
+	final int extraStack;
+
+	Injection(byte[] prologue, byte[] epilogue, byte[] handler, int extraStack) {
+	    this.prologue = prologue;
+	    this.epilogue = epilogue;
+	    this.handler = handler;
+	    this.extraStack = extraStack;
+	}
+    }
+
+    interface Injector {
+	/**
+	 * @return the code to inject in the method, or null to leave it as it is
+	 */
+	Injection inject(int access, String name, String descriptor);
+    }
+
+    private static final int UTF8 = 1, INTEGER = 3, FLOAT = 4, LONG = 5, DOUBLE = 6, CLASS = 7, STRING = 8,
+	    FIELDREF = 9, METHODREF = 10, INTERFACE_METHODREF = 11, NAME_AND_TYPE = 12, METHOD_HANDLE = 15,
+	    METHOD_TYPE = 16, DYNAMIC = 17, INVOKE_DYNAMIC = 18, MODULE = 19, PACKAGE = 20;
+
+    private static final byte NOP = 0;
+
+    private final byte[] classFile;
+    // constant pool entries, as offsets in the class file (0 for the unused slot after longs and doubles)
+    private final int[] constants;
+    private final int constantPoolEnd;
+    private final ByteArrayOutputStream addedConstants = new ByteArrayOutputStream();
+    private final Map<String, Integer> added = new HashMap<>();
+    private int constantCount;
+
+    ClassFileEditor(byte[] classFile) {
+	this.classFile = classFile;
+	final ByteBuffer in = ByteBuffer.wrap(classFile);
+	if (in.getInt() != 0xCAFEBABE) {
+	    throw new IllegalArgumentException("Not a class file.");
+	}
+	in.position(8);
+	constantCount = in.getShort() & 0xFFFF;
+	constants = new int[constantCount];
+	for (int i = 1; i < constantCount; i++) {
+	    constants[i] = in.position();
+	    final int tag = in.get();
+	    switch (tag) {
+	    case UTF8:
+		final int length = in.getShort() & 0xFFFF;
+		in.position(in.position() + length);
+		break;
+	    case INTEGER:
+	    case FLOAT:
+	    case FIELDREF:
+	    case METHODREF:
+	    case INTERFACE_METHODREF:
+	    case NAME_AND_TYPE:
+	    case DYNAMIC:
+	    case INVOKE_DYNAMIC:
+		in.position(in.position() + 4);
+		break;
+	    case LONG:
+	    case DOUBLE:
+		in.position(in.position() + 8);
+		i++;
+		break;
+	    case CLASS:
+	    case STRING:
+	    case METHOD_TYPE:
+	    case MODULE:
+	    case PACKAGE:
+		in.position(in.position() + 2);
+		break;
+	    case METHOD_HANDLE:
+		in.position(in.position() + 3);
+		break;
+	    default:
+		throw new IllegalArgumentException("Unknown constant pool tag " + tag);
+	    }
+	}
+	constantPoolEnd = in.position();
+    }
+
+    /**
+     * The internal name of the class.
+     */
+    String getClassName() {
+	return getClassName(ByteBuffer.wrap(classFile).getShort(constantPoolEnd + 2) & 0xFFFF);
+    }
+
+    /**
+     * The internal name of the super class, null for java/lang/Object and modules.
+     */
+    String getSuperName() {
+	final int superClass = ByteBuffer.wrap(classFile).getShort(constantPoolEnd + 4) & 0xFFFF;
+	return superClass == 0 ? null : getClassName(superClass);
+    }
+
+    /**
+     * The internal names of the interfaces the class implements directly.
+     */
+    List<String> getInterfaceNames() {
+	final ByteBuffer in = ByteBuffer.wrap(classFile);
+	final int count = in.getShort(constantPoolEnd + 6) & 0xFFFF;
+	final List<String> names = new ArrayList<>(count);
+	for (int i = 0; i < count; i++) {
+	    names.add(getClassName(in.getShort(constantPoolEnd + 8 + i * 2) & 0xFFFF));
+	}
+	return names;
+    }
+
+    /**
+     * The internal names of the runtime visible annotations of the class (not of its members).
+     */
+    Set<String> getAnnotationNames() {
+	final Set<String> names = new HashSet<>();
+	final ByteBuffer in = ByteBuffer.wrap(classFile);
+	in.position(constantPoolEnd + 6);
+	final int interfaceCount = in.getShort() & 0xFFFF;
+	in.position(in.position() + interfaceCount * 2);
+	// fields, then methods
+	for (int members = 0; members < 2; members++) {
+	    final int count = in.getShort() & 0xFFFF;
+	    for (int i = 0; i < count; i++) {
+		in.position(in.position() + 6);
+		skipAttributes(in);
+	    }
+	}
+	final int attributeCount = in.getShort() & 0xFFFF;
+	for (int a = 0; a < attributeCount; a++) {
+	    final String attributeName = getUtf8(in.getShort() & 0xFFFF);
+	    final int length = in.getInt();
+	    if ("RuntimeVisibleAnnotations".equals(attributeName)) {
+		final int count = in.getShort(in.position()) & 0xFFFF;
+		int annotation = in.position() + 2;
+		for (int i = 0; i < count; i++) {
+		    final String descriptor = getUtf8(in.getShort(annotation) & 0xFFFF);
+		    names.add(descriptor.substring(1, descriptor.length() - 1));
+		    annotation = skipAnnotation(in, annotation);
+		}
+	    }
+	    in.position(in.position() + length);
+	}
+	return names;
+    }
+
+    // Returns the offset following the annotation.
+    private static int skipAnnotation(ByteBuffer in, int offset) {
+	final int pairs = in.getShort(offset + 2) & 0xFFFF;
+	int next = offset + 4;
+	for (int i = 0; i < pairs; i++) {
+	    next = skipElementValue(in, next + 2);
+	}
+	return next;
+    }
+
+    private static int skipElementValue(ByteBuffer in, int offset) {
+	switch (in.get(offset)) {
+	case 'e':
+	    return offset + 5;
+	case '@':
+	    return skipAnnotation(in, offset + 1);
+	case '[':
+	    final int count = in.getShort(offset + 1) & 0xFFFF;
+	    int next = offset + 3;
+	    for (int i = 0; i < count; i++) {
+		next = skipElementValue(in, next);
+	    }
+	    return next;
+	default:
+	    // constants and classes
+	    return offset + 3;
+	}
+    }
+
+    int getThisClass() {
+	return ByteBuffer.wrap(classFile).getShort(constantPoolEnd + 2) & 0xFFFF;
+    }
+
+    int addClass(String internalName) {
+	return add("C" + internalName, CLASS, addUtf8(internalName));
+    }
+
+    int addInteger(int value) {
+	final Integer index = added.get("I" + value);
+	if (index != null) {
+	    return index;
+	}
+	addedConstants.write(INTEGER);
+	writeInt(addedConstants, value);
+	added.put("I" + value, constantCount);
+	return constantCount++;
+    }
+
+    int addMethodref(String owner, String name, String descriptor) {
+	final int nameAndType = add("N" + name + descriptor, NAME_AND_TYPE, addUtf8(name), addUtf8(descriptor));
+	return add("M" + owner + "." + name + descriptor, METHODREF, addClass(owner), nameAndType);
+    }
+
+    private int addUtf8(String value) {
+	final Integer index = added.get("U" + value);
+	if (index != null) {
+	    return index;
+	}
+	try {
+	    addedConstants.write(UTF8);
+	    new DataOutputStream(addedConstants).writeUTF(value);
+	} catch (IOException e) {
+	    throw new IllegalStateException(e);
+	}
+	added.put("U" + value, constantCount);
+	return constantCount++;
+    }
+
+    private int add(String key, int tag, int... references) {
+	final Integer index = added.get(key);
+	if (index != null) {
+	    return index;
+	}
+	addedConstants.write(tag);
+	for (int reference : references) {
+	    writeShort(addedConstants, reference);
+	}
+	added.put(key, constantCount);
+	return constantCount++;
+    }
+
+    /**
+     * The descriptors of the constructors which delegate to another constructor of the class, i.e. call this(...).
+     */
+    Set<String> getChainedConstructors() {
+	final Set<String> chained = new HashSet<>();
+	final ByteBuffer in = ByteBuffer.wrap(classFile);
+	in.position(constantPoolEnd + 6);
+	final int interfaceCount = in.getShort() & 0xFFFF;
+	in.position(in.position() + interfaceCount * 2);
+	final int fieldCount = in.getShort() & 0xFFFF;
+	for (int i = 0; i < fieldCount; i++) {
+	    in.position(in.position() + 6);
+	    skipAttributes(in);
+	}
+	final int methodCount = in.getShort() & 0xFFFF;
+	for (int i = 0; i < methodCount; i++) {
+	    in.position(in.position() + 2);
+	    final String name = getUtf8(in.getShort() & 0xFFFF);
+	    final String descriptor = getUtf8(in.getShort() & 0xFFFF);
+	    final int attributeCount = in.getShort() & 0xFFFF;
+	    for (int a = 0; a < attributeCount; a++) {
+		final String attributeName = getUtf8(in.getShort() & 0xFFFF);
+		final int length = in.getInt();
+		if ("<init>".equals(name) && "Code".equals(attributeName) && callsThis(in.position() + 8,
+			in.getInt(in.position() + 4))) {
+		    chained.add(descriptor);
+		}
+		in.position(in.position() + length);
+	    }
+	}
+	return chained;
+    }
+
+    // The first constructor call which doesn't pair with a 'new' is the call to this(...) or super(...).
+    private boolean callsThis(int codeStart, int codeLength) {
+	final ByteBuffer b = ByteBuffer.wrap(classFile);
+	int created = 0;
+	for (int pc : instructions(codeStart, codeLength)) {
+	    final int opcode = classFile[codeStart + pc] & 0xFF;
+	    if (opcode == 0xBB) {
+		created++;
+	    } else if (opcode == 0xB7) {
+		final int methodref = constants[b.getShort(codeStart + pc + 1) & 0xFFFF];
+		final int nameAndType = constants[b.getShort(methodref + 3) & 0xFFFF];
+		if ("<init>".equals(getUtf8(b.getShort(nameAndType + 1) & 0xFFFF))) {
+		    if (created == 0) {
+			return (b.getShort(methodref + 1) & 0xFFFF) == getThisClass();
+		    }
+		    created--;
+		}
+	    }
+	}
+	return false;
+    }
+
+    /**
+     * Applies the injections to the methods of the class.
+     * 
+     * @return the edited class file, or null if no method was edited
+     */
+    byte[] edit(Injector injector) {
+	final ByteBuffer in = ByteBuffer.wrap(classFile);
+	in.position(constantPoolEnd + 6);
+	final int interfaceCount = in.getShort() & 0xFFFF;
+	in.position(in.position() + interfaceCount * 2);
+	final int fieldCount = in.getShort() & 0xFFFF;
+	for (int i = 0; i < fieldCount; i++) {
+	    in.position(in.position() + 6);
+	    skipAttributes(in);
+	}
+	final int methodsStart = in.position();
+
+	// edit the methods first, they add constants
+	final ByteArrayOutputStream methods = new ByteArrayOutputStream();
+	final int methodCount = in.getShort() & 0xFFFF;
+	writeShort(methods, methodCount);
+	boolean edited = false;
+	for (int i = 0; i < methodCount; i++) {
+	    final int start = in.position();
+	    final int access = in.getShort() & 0xFFFF;
+	    final String name = getUtf8(in.getShort() & 0xFFFF);
+	    final String descriptor = getUtf8(in.getShort() & 0xFFFF);
+	    final Injection injection = injector.inject(access, name, descriptor);
+	    if (injection == null) {
+		skipAttributes(in);
+		methods.write(classFile, start, in.position() - start);
+		continue;
+	    }
+	    methods.write(classFile, start, 6);
+	    final int attributeCount = in.getShort() & 0xFFFF;
+	    writeShort(methods, attributeCount);
+	    for (int a = 0; a < attributeCount; a++) {
+		final int attributeStart = in.position();
+		final String attributeName = getUtf8(in.getShort() & 0xFFFF);
+		final int length = in.getInt();
+		if ("Code".equals(attributeName)) {
+		    final byte[] code = editCode(in.position(), injection);
+		    writeShort(methods, classFile[attributeStart] << 8 & 0xFF00 | classFile[attributeStart + 1] & 0xFF);
+		    writeInt(methods, code.length);
+		    methods.write(code, 0, code.length);
+		    edited = true;
+		} else {
+		    methods.write(classFile, attributeStart, 6 + length);
+		}
+		in.position(in.position() + length);
+	    }
+	}
+	if (!edited) {
+	    return null;
+	}
+
+	final ByteArrayOutputStream out = new ByteArrayOutputStream(classFile.length + 1024);
+	out.write(classFile, 0, 8);
+	writeShort(out, constantCount);
+	out.write(classFile, 10, constantPoolEnd - 10);
+	final byte[] constants = addedConstants.toByteArray();
+	out.write(constants, 0, constants.length);
+	out.write(classFile, constantPoolEnd, methodsStart - constantPoolEnd);
+	final byte[] m = methods.toByteArray();
+	out.write(m, 0, m.length);
+	out.write(classFile, in.position(), classFile.length - in.position());
+	if (constantCount > 0xFFFF) {
+	    throw new IllegalStateException("Too many constants.");
+	}
+	return out.toByteArray();
+    }
+
+    private byte[] editCode(int offset, Injection injection) {
+	final ByteBuffer in = ByteBuffer.wrap(classFile);
+	in.position(offset);
+	final int maxStack = in.getShort() & 0xFFFF;
+	final int maxLocals = in.getShort() & 0xFFFF;
+	final int codeLength = in.getInt();
+	final int codeStart = in.position();
+
+	final byte[] prologue = pad(injection.prologue);
+	final byte[] epilogue = pad(injection.epilogue);
+	final List<Integer> instructions = instructions(codeStart, codeLength);
+	final CodeMap map = new CodeMap(prologue.length, epilogue.length, codeLength);
+	final List<Integer> returns = new ArrayList<>();
+	for (int pc : instructions) {
+	    if (epilogue.length > 0 && isReturn(classFile[codeStart + pc] & 0xFF)) {
+		map.returnAt(pc);
+		returns.add(pc);
+	    }
+	}
+
+	// code
+	final ByteArrayOutputStream code = new ByteArrayOutputStream(codeLength + 256);
+	code.write(prologue, 0, prologue.length);
+	for (int i = 0; i < instructions.size(); i++) {
+	    final int pc = instructions.get(i);
+	    final int end = i + 1 < instructions.size() ? instructions.get(i + 1) : codeLength;
+	    final int opcode = classFile[codeStart + pc] & 0xFF;
+	    if (epilogue.length > 0 && isReturn(opcode)) {
+		code.write(epilogue, 0, epilogue.length);
+	    }
+	    code.write(relocate(codeStart, pc, end, opcode, map), 0, end - pc);
+	}
+	final int handlerPc = code.size();
+	if (injection.handler != null) {
+	    code.write(injection.handler, 0, injection.handler.length);
+	}
+
+	// exception table
+	// the handler covers the code but the epilogues and their returns, which have completed the method
+	final List<Integer> handled = new ArrayList<>();
+	if (injection.handler != null) {
+	    int start = prologue.length;
+	    for (int pc : returns) {
+		final int epilogueStart = map.get(pc);
+		if (epilogueStart > start) {
+		    handled.add(start);
+		    handled.add(epilogueStart);
+		}
+		start = epilogueStart + epilogue.length + 1;
+	    }
+	    if (handlerPc > start) {
+		handled.add(start);
+		handled.add(handlerPc);
+	    }
+	}
+	in.position(codeStart + codeLength);
+	final int exceptionCount = in.getShort() & 0xFFFF;
+	final ByteArrayOutputStream exceptions = new ByteArrayOutputStream();
+	writeShort(exceptions, exceptionCount + handled.size() / 2);
+	for (int i = 0; i < exceptionCount; i++) {
+	    writeShort(exceptions, map.get(in.getShort() & 0xFFFF));
+	    writeShort(exceptions, map.get(in.getShort() & 0xFFFF));
+	    writeShort(exceptions, map.get(in.getShort() & 0xFFFF));
+	    writeShort(exceptions, in.getShort() & 0xFFFF);
+	}
+	// last, existing handlers come first
+	for (int i = 0; i < handled.size(); i += 2) {
+	    writeShort(exceptions, handled.get(i));
+	    writeShort(exceptions, handled.get(i + 1));
+	    writeShort(exceptions, handlerPc);
+	    writeShort(exceptions, 0);
+	}
+
+	// attributes
+	final ByteArrayOutputStream attributes = new ByteArrayOutputStream();
+	final int attributeCount = in.getShort() & 0xFFFF;
+	int written = 0;
+	boolean stackMap = false;
+	for (int a = 0; a < attributeCount; a++) {
+	    final int nameIndex = in.getShort() & 0xFFFF;
+	    final String name = getUtf8(nameIndex);
+	    final int length = in.getInt();
+	    final int start = in.position();
+	    in.position(start + length);
+
+	    final byte[] body;
+	    if ("StackMapTable".equals(name)) {
+		body = relocateFrames(start, map, injection.handler == null ? -1 : handlerPc);
+		stackMap = true;
+	    } else if ("LineNumberTable".equals(name)) {
+		body = relocateTable(start, 4, map, false);
+	    } else if ("LocalVariableTable".equals(name) || "LocalVariableTypeTable".equals(name)) {
+		body = relocateTable(start, 10, map, true);
+	    } else if (name.endsWith("TypeAnnotations")) {
+		body = relocateTypeAnnotations(start, length, map);
+	    } else {
+		body = new byte[length];
+		System.arraycopy(classFile, start, body, 0, length);
+	    }
+	    writeShort(attributes, nameIndex);
+	    writeInt(attributes, body.length);
+	    attributes.write(body, 0, body.length);
+	    written++;
+	}
+	if (!stackMap && injection.handler != null && majorVersion() >= 50) {
+	    final byte[] body = relocateFrames(-1, map, handlerPc);
+	    writeShort(attributes, addUtf8("StackMapTable"));
+	    writeInt(attributes, body.length);
+	    attributes.write(body, 0, body.length);
+	    written++;
+	}
+
+	if (code.size() > 0xFFFF) {
+	    throw new IllegalStateException("The method is too large.");
+	}
+	final ByteArrayOutputStream out = new ByteArrayOutputStream();
+	writeShort(out, maxStack + injection.extraStack);
+	writeShort(out, maxLocals);
+	writeInt(out, code.size());
+	final byte[] c = code.toByteArray();
+	out.write(c, 0, c.length);
+	final byte[] e = exceptions.toByteArray();
+	out.write(e, 0, e.length);
+	writeShort(out, written);
+	final byte[] at = attributes.toByteArray();
+	out.write(at, 0, at.length);
+	return out.toByteArray();
+    }
+
+    // The instruction, with its branch offsets relocated.
+    private byte[] relocate(int codeStart, int pc, int end, int opcode, CodeMap map) {
+	final byte[] instruction = new byte[end - pc];
+	System.arraycopy(classFile, codeStart + pc, instruction, 0, instruction.length);
+	final ByteBuffer b = ByteBuffer.wrap(instruction);
+	final int newPc = map.get(pc);
+	if (opcode >= 0x99 && opcode <= 0xA8 || opcode == 0xC6 || opcode == 0xC7) {
+	    final int target = map.get(pc + b.getShort(1)) - newPc;
+	    if (target != (short) target) {
+		throw new IllegalStateException("Branch offset overflow.");
+	    }
+	    b.putShort(1, (short) target);
+	} else if (opcode == 0xC8 || opcode == 0xC9) {
+	    b.putInt(1, map.get(pc + b.getInt(1)) - newPc);
+	} else if (opcode == 0xAA || opcode == 0xAB) {
+	    // the injected code is padded to 4 bytes, so is the switch
+	    int p = (pc + 4) & ~3;
+	    p -= pc;
+	    b.putInt(p, map.get(pc + b.getInt(p)) - newPc);
+	    if (opcode == 0xAA) {
+		final int low = b.getInt(p + 4);
+		final int high = b.getInt(p + 8);
+		for (int i = 0; i <= high - low; i++) {
+		    final int o = p + 12 + i * 4;
+		    b.putInt(o, map.get(pc + b.getInt(o)) - newPc);
+		}
+	    } else {
+		final int pairs = b.getInt(p + 4);
+		for (int i = 0; i < pairs; i++) {
+		    final int o = p + 12 + i * 8;
+		    b.putInt(o, map.get(pc + b.getInt(o)) - newPc);
+		}
+	    }
+	}
+	return instruction;
+    }
+
+    private List<Integer> instructions(int codeStart, int codeLength) {
+	final ByteBuffer b = ByteBuffer.wrap(classFile);
+	final List<Integer> instructions = new ArrayList<>();
+	for (int pc = 0; pc < codeLength;) {
+	    instructions.add(pc);
+	    final int opcode = classFile[codeStart + pc] & 0xFF;
+	    if (opcode == 0xAA) {
+		final int p = codeStart + ((pc + 4) & ~3);
+		pc = p - codeStart + 12 + (b.getInt(p + 8) - b.getInt(p + 4) + 1) * 4;
+	    } else if (opcode == 0xAB) {
+		final int p = codeStart + ((pc + 4) & ~3);
+		pc = p - codeStart + 8 + b.getInt(p + 4) * 8;
+	    } else if (opcode == 0xC4) {
+		pc += (classFile[codeStart + pc + 1] & 0xFF) == 0x84 ? 6 : 4;
+	    } else {
+		final int length = LENGTHS[opcode];
+		if (length == 0) {
+		    throw new IllegalArgumentException("Unknown opcode " + opcode);
+		}
+		pc += length;
+	    }
+	}
+	return instructions;
+    }
+
+    private byte[] relocateTable(int start, int entrySize, CodeMap map, boolean ranges) {
+	final ByteBuffer in = ByteBuffer.wrap(classFile);
+	final int count = in.getShort(start) & 0xFFFF;
+	final byte[] body = new byte[2 + count * entrySize];
+	System.arraycopy(classFile, start, body, 0, body.length);
+	final ByteBuffer out = ByteBuffer.wrap(body);
+	for (int i = 0; i < count; i++) {
+	    final int e = 2 + i * entrySize;
+	    final int pc = out.getShort(e) & 0xFFFF;
+	    out.putShort(e, (short) map.get(pc));
+	    if (ranges) {
+		final int length = out.getShort(e + 2) & 0xFFFF;
+		out.putShort(e + 2, (short) (map.get(pc + length) - map.get(pc)));
+	    }
+	}
+	return body;
+    }
+
+    /**
+     * Moves the type annotations of the code along with the instructions and ranges they target. Catch targets index
+     * the exception table, whose existing entries keep their place.
+     */
+    private byte[] relocateTypeAnnotations(int start, int length, CodeMap map) {
+	final byte[] body = new byte[length];
+	System.arraycopy(classFile, start, body, 0, length);
+	final ByteBuffer b = ByteBuffer.wrap(body);
+	final int count = b.getShort(0) & 0xFFFF;
+	int offset = 2;
+	for (int i = 0; i < count; i++) {
+	    final int target = b.get(offset++) & 0xFF;
+	    if (target == 0x40 || target == 0x41) {
+		// local variables, as ranges
+		final int ranges = b.getShort(offset) & 0xFFFF;
+		offset += 2;
+		for (int r = 0; r < ranges; r++, offset += 6) {
+		    final int pc = b.getShort(offset) & 0xFFFF;
+		    final int end = pc + (b.getShort(offset + 2) & 0xFFFF);
+		    b.putShort(offset, (short) map.get(pc));
+		    b.putShort(offset + 2, (short) (map.get(end) - map.get(pc)));
+		}
+	    } else if (target == 0x42) {
+		offset += 2;
+	    } else if (target >= 0x43 && target <= 0x4B) {
+		// an instruction, followed by the type argument of casts and invocations
+		b.putShort(offset, (short) map.get(b.getShort(offset) & 0xFFFF));
+		offset += target >= 0x47 ? 3 : 2;
+	    } else {
+		throw new IllegalStateException("Unexpected type annotation target " + target);
+	    }
+	    // the type path, then the annotation itself
+	    offset += 1 + 2 * (b.get(offset) & 0xFF);
+	    offset = skipAnnotation(b, offset);
+	}
+	return body;
+    }
+
+    /**
+     * Moves the frames along the code, and appends the frame of the injected handler.
+     * 
+     * @param start
+     *            the start of the existing table, -1 if there is none
+     */
+    private byte[] relocateFrames(int start, CodeMap map, int handlerPc) {
+	final ByteBuffer in = ByteBuffer.wrap(classFile);
+	final ByteArrayOutputStream out = new ByteArrayOutputStream();
+	final int count = start < 0 ? 0 : in.getShort(start) & 0xFFFF;
+	writeShort(out, count + (handlerPc < 0 ? 0 : 1));
+	if (start >= 0) {
+	    in.position(start + 2);
+	}
+	int previous = -1;
+	int newPrevious = -1;
+	for (int i = 0; i < count; i++) {
+	    final int type = in.get() & 0xFF;
+	    final int delta;
+	    if (type < 64) {
+		delta = type;
+	    } else if (type < 128) {
+		delta = type - 64;
+	    } else {
+		delta = in.getShort() & 0xFFFF;
+	    }
+	    final int pc = previous + delta + 1;
+	    final int newPc = map.get(pc);
+	    final int newDelta = newPc - newPrevious - 1;
+	    previous = pc;
+	    newPrevious = newPc;
+
+	    if (type < 64 || type == 251) {
+		if (newDelta < 64) {
+		    out.write(newDelta);
+		} else {
+		    out.write(251);
+		    writeShort(out, newDelta);
+		}
+	    } else if (type < 128 || type == 247) {
+		if (newDelta < 64) {
+		    out.write(64 + newDelta);
+		} else {
+		    out.write(247);
+		    writeShort(out, newDelta);
+		}
+		copyTypes(in, out, 1, map);
+	    } else if (type >= 248 && type <= 250) {
+		out.write(type);
+		writeShort(out, newDelta);
+	    } else if (type >= 252 && type <= 254) {
+		out.write(type);
+		writeShort(out, newDelta);
+		copyTypes(in, out, type - 251, map);
+	    } else if (type == 255) {
+		out.write(type);
+		writeShort(out, newDelta);
+		final int locals = in.getShort() & 0xFFFF;
+		writeShort(out, locals);
+		copyTypes(in, out, locals, map);
+		final int stack = in.getShort() & 0xFFFF;
+		writeShort(out, stack);
+		copyTypes(in, out, stack, map);
+	    } else {
+		throw new IllegalArgumentException("Unknown frame type " + type);
+	    }
+	}
+
+	if (handlerPc >= 0) {
+	    // the handler sees the exception only, whatever the locals hold
+	    out.write(255);
+	    writeShort(out, handlerPc - newPrevious - 1);
+	    writeShort(out, 0);
+	    writeShort(out, 1);
+	    out.write(7);
+	    writeShort(out, addClass("java/lang/Throwable"));
+	}
+	return out.toByteArray();
+    }
+
+    private static void copyTypes(ByteBuffer in, ByteArrayOutputStream out, int count, CodeMap map) {
+	for (int i = 0; i < count; i++) {
+	    final int tag = in.get() & 0xFF;
+	    out.write(tag);
+	    if (tag == 7) {
+		writeShort(out, in.getShort() & 0xFFFF);
+	    } else if (tag == 8) {
+		// uninitialized, the offset of its 'new' instruction
+		writeShort(out, map.get(in.getShort() & 0xFFFF));
+	    }
+	}
+    }
+
+    /**
+     * Maps the offsets of the original code to the edited one.
+     */
+    private static final class CodeMap {
+	private final int prologue;
+	private final int epilogue;
+	private final int codeLength;
+	private final List<Integer> returns = new ArrayList<>();
+
+	CodeMap(int prologue, int epilogue, int codeLength) {
+	    this.prologue = prologue;
+	    this.epilogue = epilogue;
+	    this.codeLength = codeLength;
+	}
+
+	void returnAt(int pc) {
+	    returns.add(pc);
+	}
+
+	// Jumps to a return land on its epilogue.
+	int get(int pc) {
+	    if (pc > codeLength) {
+		throw new IllegalArgumentException("Offset out of the code " + pc);
+	    }
+	    int before = 0;
+	    for (int r : returns) {
+		if (r >= pc) {
+		    break;
+		}
+		before++;
+	    }
+	    return prologue + pc + before * epilogue;
+	}
+    }
+
+    private static boolean isReturn(int opcode) {
+	return opcode >= 0xAC && opcode <= 0xB1;
+    }
+
+    private static byte[] pad(byte[] code) {
+	if (code == null) {
+	    return new byte[0];
+	}
+	final byte[] padded = new byte[(code.length + 3) & ~3];
+	System.arraycopy(code, 0, padded, 0, code.length);
+	for (int i = code.length; i < padded.length; i++) {
+	    padded[i] = NOP;
+	}
+	return padded;
+    }
+
+    private int majorVersion() {
+	return ByteBuffer.wrap(classFile).getShort(6) & 0xFFFF;
+    }
+
+    private String getClassName(int classIndex) {
+	return getUtf8(ByteBuffer.wrap(classFile).getShort(constants[classIndex] + 1) & 0xFFFF);
+    }
+
+    private String getUtf8(int index) {
+	final int offset = constants[index];
+	final int length = ByteBuffer.wrap(classFile).getShort(offset + 1) & 0xFFFF;
+	try {
+	    return new java.io.DataInputStream(new java.io.ByteArrayInputStream(classFile, offset + 1, length + 2))
+		    .readUTF();
+	} catch (IOException e) {
+	    throw new IllegalArgumentException(e);
+	}
+    }
+
+    private static void skipAttributes(ByteBuffer in) {
+	final int count = in.getShort() & 0xFFFF;
+	for (int i = 0; i < count; i++) {
+	    in.position(in.position() + 2);
+	    final int length = in.getInt();
+	    in.position(in.position() + length);
+	}
+    }
+
+    private static void writeShort(ByteArrayOutputStream out, int value) {
+	out.write(value >>> 8);
+	out.write(value);
+    }
+
+    private static void writeInt(ByteArrayOutputStream out, int value) {
+	writeShort(out, value >>> 16);
+	writeShort(out, value);
+    }
+
+    // Instruction lengths by opcode, 0 for the variable ones (and the unused opcodes).
+    private static final int[] LENGTHS = new int[256];
+
+    static {
+	for (int op = 0x00; op <= 0xB1; op++) {
+	    LENGTHS[op] = 1;
+	}
+	LENGTHS[0x10] = 2; // bipush
+	LENGTHS[0x11] = 3; // sipush
+	LENGTHS[0x12] = 2; // ldc
+	LENGTHS[0x13] = 3; // ldc_w
+	LENGTHS[0x14] = 3; // ldc2_w
+	for (int op = 0x15; op <= 0x19; op++) {
+	    LENGTHS[op] = 2; // xload
+	}
+	for (int op = 0x36; op <= 0x3A; op++) {
+	    LENGTHS[op] = 2; // xstore
+	}
+	LENGTHS[0x84] = 3; // iinc
+	for (int op = 0x99; op <= 0xA8; op++) {
+	    LENGTHS[op] = 3; // if, goto, jsr
+	}
+	LENGTHS[0xA9] = 2; // ret
+	LENGTHS[0xAA] = 0; // tableswitch
+	LENGTHS[0xAB] = 0; // lookupswitch
+	for (int op = 0xB2; op <= 0xB8; op++) {
+	    LENGTHS[op] = 3; // field and method instructions
+	}
+	LENGTHS[0xB9] = 5; // invokeinterface
+	LENGTHS[0xBA] = 5; // invokedynamic
+	LENGTHS[0xBB] = 3; // new
+	LENGTHS[0xBC] = 2; // newarray
+	LENGTHS[0xBD] = 3; // anewarray
+	LENGTHS[0xBE] = 1; // arraylength
+	LENGTHS[0xBF] = 1; // athrow
+	LENGTHS[0xC0] = 3; // checkcast
+	LENGTHS[0xC1] = 3; // instanceof
+	LENGTHS[0xC2] = 1; // monitorenter
+	LENGTHS[0xC3] = 1; // monitorexit
+	LENGTHS[0xC5] = 4; // multianewarray
+	LENGTHS[0xC6] = 3; // ifnull
+	LENGTHS[0xC7] = 3; // ifnonnull
+	LENGTHS[0xC8] = 5; // goto_w
+	LENGTHS[0xC9] = 5; // jsr_w
+    }
+}
@@ -0,0 +1,472 @@
+/*******************************************************************************
+ * Copyright (c) 2017, Xavier Miret Andres <xavier.mires@gmail.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *******************************************************************************/
+package org.agenttools;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.lang.annotation.Annotation;
+import java.lang.ref.WeakReference;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+/**
+ * Selects classes by name, by package, by name pattern, by super type or by annotation.
+ * <p>
+ * Transformers registered with a selector are indexed by the agent, so a loading class which isn't selected by any
+ * of them costs a single lookup and is never handed to any transformer. Patterns, super types and annotations can't
+ * be indexed, they are checked on every class load (super types and annotations by reading the class file).
+ * <p>
+ * A selector is resolved where it is used: sent to a remote VM, it selects the classes loaded there, and those loading
+ * later on.
+ */
+public final class ClassSelector implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    // the super types of so many types are kept, whatever their class loaders
+    static final int MAX_HIERARCHY = 4096;
+
+    // internal names (i.e. java/lang/Object)
+    private final Set<String> classNames;
+    // internal package names (i.e. java/lang), subpackages included
+    private final Set<String> packageNames;
+    // regular expressions matching binary names (i.e. java.lang.Object)
+    private final Set<String> patterns;
+    // internal names of the super classes and interfaces
+    private final Set<String> superTypes;
+    // internal names of the annotations
+    private final Set<String> annotations;
+    // the class loaders defining the classes, null for any, see LoadedClassIndex#isHinted(ClassLoader, String)
+    private final String loaderHint;
+
+    private transient volatile Pattern[] compiled;
+    // type -> internal names of all its super types, read from the class files visible to its class loader
+    private transient volatile Hierarchy hierarchy;
+
+    private ClassSelector(Set<String> classNames, Set<String> packageNames, Set<String> patterns,
+	    Set<String> superTypes, Set<String> annotations, String loaderHint) {
+	this.classNames = Collections.unmodifiableSet(classNames);
+	this.packageNames = Collections.unmodifiableSet(packageNames);
+	this.patterns = Collections.unmodifiableSet(patterns);
+	this.superTypes = Collections.unmodifiableSet(superTypes);
+	this.annotations = Collections.unmodifiableSet(annotations);
+	this.loaderHint = loaderHint;
+    }
+
+    /**
+     * Selects the given classes.
+     * 
+     * @param classNames
+     *            a list of class names, either binary (java.lang.Object) or internal (java/lang/Object)
+     */
+    public static ClassSelector names(String... classNames) {
+	return new ClassSelector(internal(classNames), none(), none(), none(), none(), null);
+    }
+
+    /**
+     * Selects every class in the given packages and their subpackages.
+     * 
+     * @param packageNames
+     *            a list of package names, either binary (java.lang) or internal (java/lang)
+     */
+    public static ClassSelector packages(String... packageNames) {
+	return new ClassSelector(none(), internal(packageNames), none(), none(), none(), null);
+    }
+
+    /**
+     * Selects the classes whose binary name matches any of the globs: <code>*</code> matches within a package name
+     * segment, <code>**</code> across segments and <code>?</code> a single character. For instance
+     * <code>com.acme.**</code> selects the package com.acme and its subpackages, and <code>com.acme.*Service</code> the
+     * services of com.acme only.
+     */
+    public static ClassSelector globs(String... globs) {
+	final Set<String> cns = new LinkedHashSet<>();
+	final Set<String> pns = new LinkedHashSet<>();
+	final Set<String> ps = new LinkedHashSet<>();
+	for (String glob : globs) {
+	    final String binary = glob.replace('/', '.');
+	    final int wildcard = indexOfWildcard(binary);
+	    if (wildcard < 0) {
+		cns.add(binary.replace('.', '/'));
+	    } else if (binary.endsWith(".**") && wildcard == binary.length() - 2) {
+		// indexed as a package
+		pns.add(binary.substring(0, binary.length() - 3).replace('.', '/'));
+	    } else {
+		ps.add(toRegex(binary));
+	    }
+	}
+	return new ClassSelector(cns, pns, ps, none(), none(), null);
+    }
+
+    /**
+     * Selects the classes whose binary name (i.e. java.lang.Object) matches any of the regular expressions.
+     */
+    public static ClassSelector regex(String... regexes) {
+	final Set<String> ps = new LinkedHashSet<>();
+	for (String regex : regexes) {
+	    ps.add(Pattern.compile(regex).pattern());
+	}
+	return new ClassSelector(none(), none(), ps, none(), none(), null);
+    }
+
+    /**
+     * Selects the classes which extend or implement any of the given types, directly or not. The types themselves
+     * aren't selected.
+     * <p>
+     * Classes loading later are matched against the class files of their super types, read from their class loader
+     * without loading anything.
+     * 
+     * @param typeNames
+     *            a list of class or interface names, either binary or internal
+     */
+    public static ClassSelector subtypesOf(String... typeNames) {
+	return new ClassSelector(none(), none(), none(), internal(typeNames), none(), null);
+    }
+
+    /**
+     * Selects the classes annotated with any of the given runtime visible annotations. Annotations of the super types
+     * aren't considered, even if inherited.
+     * 
+     * @param annotationNames
+     *            a list of annotation names, either binary or internal
+     */
+    public static ClassSelector annotatedWith(String... annotationNames) {
+	return new ClassSelector(none(), none(), none(), none(), internal(annotationNames), null);
+    }
+
+    /**
+     * Restricts the selection to the classes defined by the class loaders matching the hint: either the name of the
+     * class loader (as of java 9), its class name, its identity hash code in hexadecimal (i.e. "4e25154f" or
+     * "@4e25154f") or "bootstrap" for the bootstrap class loader. See {@link Agents#getClassLoaders(int, String)} to
+     * find out the class loaders defining a class.
+     */
+    public ClassSelector loadedBy(String loaderHint) {
+	return new ClassSelector(classNames, packageNames, patterns, superTypes, annotations, loaderHint);
+    }
+
+    /**
+     * Selects the classes selected by either this or the other selector.
+     * 
+     * @throws IllegalArgumentException
+     *             if the selectors are restricted to different class loaders
+     */
+    public ClassSelector or(ClassSelector other) {
+	if (loaderHint == null ? other.loaderHint != null : !loaderHint.equals(other.loaderHint)) {
+	    throw new IllegalArgumentException("Selectors restricted to different class loaders can't be combined.");
+	}
+	return new ClassSelector(union(classNames, other.classNames), union(packageNames, other.packageNames), union(
+		patterns, other.patterns), union(superTypes, other.superTypes), union(annotations, other.annotations),
+		loaderHint);
+    }
+
+    /**
+     * Whether the class is selected by its name: super types, annotations and class loaders aren't checked, see
+     * {@link #matches(Class)}.
+     * 
+     * @param className
+     *            a class name, either binary (java.lang.Object) or internal (java/lang/Object)
+     */
+    public boolean matches(String className) {
+	final String internalName = className.replace('.', '/');
+	if (classNames.contains(internalName)) {
+	    return true;
+	}
+	for (int i = internalName.lastIndexOf('/'); i > 0; i = internalName.lastIndexOf('/', i - 1)) {
+	    if (packageNames.contains(internalName.substring(0, i))) {
+		return true;
+	    }
+	}
+	if (!patterns.isEmpty()) {
+	    final String binaryName = internalName.replace('/', '.');
+	    for (Pattern pattern : compiled()) {
+		if (pattern.matcher(binaryName).matches()) {
+		    return true;
+		}
+	    }
+	}
+	return false;
+    }
+
+    /**
+     * Whether the loaded class is selected.
+     */
+    public boolean matches(Class<?> clazz) {
+	if (loaderHint != null && !LoadedClassIndex.isHinted(clazz.getClassLoader(), loaderHint)) {
+	    return false;
+	}
+	if (matches(clazz.getName())) {
+	    return true;
+	}
+	try {
+	    if (!annotations.isEmpty()) {
+		for (Annotation annotation : clazz.getDeclaredAnnotations()) {
+		    if (annotations.contains(annotation.annotationType().getName().replace('.', '/'))) {
+			return true;
+		    }
+		}
+	    }
+	    if (!superTypes.isEmpty()) {
+		final Deque<Class<?>> pending = new ArrayDeque<>();
+		pending.add(clazz);
+		for (Class<?> c; (c = pending.poll()) != null;) {
+		    if (c != clazz && superTypes.contains(c.getName().replace('.', '/'))) {
+			return true;
+		    }
+		    if (c.getSuperclass() != null) {
+			pending.add(c.getSuperclass());
+		    }
+		    pending.addAll(Arrays.asList(c.getInterfaces()));
+		}
+	    }
+	} catch (RuntimeException | LinkageError e) {
+	    // broken annotations or super types
+	}
+	return false;
+    }
+
+    /**
+     * Whether the class being loaded (or redefined) is selected, reading its class file if needed.
+     */
+    boolean matches(ClassLoader loader, String internalName, byte[] classfileBuffer) {
+	if (loaderHint != null && !LoadedClassIndex.isHinted(loader, loaderHint)) {
+	    return false;
+	}
+	if (matches(internalName)) {
+	    return true;
+	}
+	if (superTypes.isEmpty() && annotations.isEmpty()) {
+	    return false;
+	}
+	try {
+	    final ClassFileEditor classFile = new ClassFileEditor(classfileBuffer);
+	    if (!annotations.isEmpty() && !Collections.disjoint(annotations, classFile.getAnnotationNames())) {
+		return true;
+	    }
+	    if (!superTypes.isEmpty()) {
+		for (String superType : directSuperTypes(classFile)) {
+		    if (superTypes.contains(superType) || !Collections.disjoint(superTypes, allSuperTypes(loader,
+			    superType))) {
+			return true;
+		    }
+		}
+	    }
+	} catch (RuntimeException e) {
+	    // not a class file this version understands
+	}
+	return false;
+    }
+
+    /**
+     * Whether the selector can be indexed by class and package names, i.e. it doesn't need to check every class.
+     */
+    boolean isIndexed() {
+	return patterns.isEmpty() && superTypes.isEmpty() && annotations.isEmpty() && loaderHint == null;
+    }
+
+    /**
+     * Whether the selector selects class names only, which can be looked up rather than checked against every class.
+     */
+    boolean isNamesOnly() {
+	return packageNames.isEmpty() && patterns.isEmpty() && superTypes.isEmpty() && annotations.isEmpty();
+    }
+
+    private static Set<String> directSuperTypes(ClassFileEditor classFile) {
+	final Set<String> direct = new LinkedHashSet<>(classFile.getInterfaceNames());
+	final String superName = classFile.getSuperName();
+	if (superName != null) {
+	    direct.add(superName);
+	}
+	return direct;
+    }
+
+    // every super type of the type, read from the class files visible to the loader
+    private Set<String> allSuperTypes(ClassLoader loader, String internalName) {
+	Hierarchy cache = hierarchy;
+	if (cache == null) {
+	    hierarchy = cache = new Hierarchy();
+	}
+	final TypeKey key = new TypeKey(loader, internalName);
+	final Set<String> cached;
+	synchronized (cache) {
+	    cached = cache.get(key);
+	}
+	if (cached != null) {
+	    return cached;
+	}
+
+	final Set<String> all = new HashSet<>();
+	if (!"java/lang/Object".equals(internalName)) {
+	    try {
+		for (String superType : directSuperTypes(new ClassFileEditor(ClassTools.getClassBytes(loader,
+			internalName)))) {
+		    all.add(superType);
+		    all.addAll(allSuperTypes(loader, superType));
+		}
+	    } catch (IOException | RuntimeException e) {
+		// no class file, the hierarchy stops here
+	    }
+	}
+	synchronized (cache) {
+	    cache.put(key, all);
+	}
+	return all;
+    }
+
+    /**
+     * The super types of the latest types looked up.
+     */
+    private static final class Hierarchy extends LinkedHashMap<TypeKey, Set<String>> {
+	private static final long serialVersionUID = 1L;
+
+	Hierarchy() {
+	    super(64, 0.75f, true);
+	}
+
+	@Override
+	protected boolean removeEldestEntry(Map.Entry<TypeKey, Set<String>> eldest) {
+	    return size() > MAX_HIERARCHY;
+	}
+    }
+
+    /**
+     * A type as seen by a class loader, which it doesn't keep alive.
+     */
+    private static final class TypeKey {
+	// null for the bootstrap class loader
+	private final WeakReference<ClassLoader> loader;
+	private final String internalName;
+	private final int hash;
+
+	TypeKey(ClassLoader loader, String internalName) {
+	    this.loader = loader == null ? null : new WeakReference<>(loader);
+	    this.internalName = internalName;
+	    this.hash = 31 * System.identityHashCode(loader) + internalName.hashCode();
+	}
+
+	@Override
+	public int hashCode() {
+	    return hash;
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+	    if (!(obj instanceof TypeKey)) {
+		return false;
+	    }
+	    final TypeKey other = (TypeKey) obj;
+	    if (hash != other.hash || !internalName.equals(other.internalName)) {
+		return false;
+	    }
+	    if (loader == null || other.loader == null) {
+		return loader == other.loader;
+	    }
+	    // a cleared loader matches none
+	    final ClassLoader l = loader.get();
+	    return l != null && l == other.loader.get();
+	}
+    }
+
+    private Pattern[] compiled() {
+	Pattern[] ps = compiled;
+	if (ps == null) {
+	    ps = new Pattern[patterns.size()];
+	    int i = 0;
+	    for (String pattern : patterns) {
+		ps[i++] = Pattern.compile(pattern);
+	    }
+	    compiled = ps;
+	}
+	return ps;
+    }
+
+    Set<String> getClassNames() {
+	return classNames;
+    }
+
+    Set<String> getPackageNames() {
+	return packageNames;
+    }
+
+    String getLoaderHint() {
+	return loaderHint;
+    }
+
+    @Override
+    public String toString() {
+	return "ClassSelector [classNames=" + classNames + ", packageNames=" + packageNames + ", patterns=" + patterns
+		+ ", superTypes=" + superTypes + ", annotations=" + annotations
+		+ (loaderHint == null ? "" : ", loadedBy=" + loaderHint) + "]";
+    }
+
+    private static Set<String> internal(String... names) {
+	final Set<String> set = new LinkedHashSet<>();
+	for (String name : names) {
+	    set.add(name.replace('.', '/'));
+	}
+	return set;
+    }
+
+    private static Set<String> none() {
+	return Collections.<String> emptySet();
+    }
+
+    private static Set<String> union(Set<String> s1, Set<String> s2) {
+	final Set<String> union = new LinkedHashSet<>(s1);
+	union.addAll(s2);
+	return union;
+    }
+
+    private static int indexOfWildcard(String glob) {
+	for (int i = 0; i < glob.length(); i++) {
+	    if (glob.charAt(i) == '*' || glob.charAt(i) == '?') {
+		return i;
+	    }
+	}
+	return -1;
+    }
+
+    private static String toRegex(String glob) {
+	final StringBuilder regex = new StringBuilder();
+	for (int i = 0; i < glob.length(); i++) {
+	    final char c = glob.charAt(i);
+	    if (c == '*' && i + 1 < glob.length() && glob.charAt(i + 1) == '*') {
+		regex.append(".*");
+		i++;
+	    } else if (c == '*') {
+		regex.append("[^.]*");
+	    } else if (c == '?') {
+		regex.append("[^.]");
+	    } else {
+		regex.append(Pattern.quote(String.valueOf(c)));
+	    }
+	}
+	return regex.toString();
+    }
+}
@@ -21,21 +21,29 @@
  *******************************************************************************/
 package org.agenttools;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.UnsupportedEncodingException;
 import java.lang.instrument.ClassDefinition;
+import java.net.JarURLConnection;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.net.URL;
+import java.net.URLConnection;
 import java.net.URLDecoder;
 import java.nio.file.DirectoryStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
 import java.util.List;
+import java.util.jar.JarEntry;
 import java.util.jar.JarFile;
 import java.util.jar.JarOutputStream;
 import java.util.jar.Manifest;
@@ -68,6 +76,40 @@ public class ClassTools
         }
     }
 
+    // Any fixed time (2017-01-01T00:00:00Z).
+    private static final long ENTRY_TIME = 1483228800000L;
+
+    /**
+     * Same as {@link #createTemporaryJar(String, Manifest, String...)}, in memory. Entries have a fixed time, so that the
+     * same manifest and classes always produce the same jar.
+     */
+    static byte[] createJar(Manifest manifest, String... classNames) throws IOException, URISyntaxException, ClassNotFoundException
+    {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (JarOutputStream jos = new JarOutputStream(out))
+        {
+            if (manifest != null)
+            {
+                final ZipEntry ze = new ZipEntry(JarFile.MANIFEST_NAME);
+                ze.setTime(ENTRY_TIME);
+                jos.putNextEntry(ze);
+                manifest.write(jos);
+                jos.closeEntry();
+            }
+
+            // read as resources, the classes aren't loaded
+            for (String className : classNames)
+            {
+                final ZipEntry ze = new ZipEntry(className.replace('.', '/').concat(".class"));
+                ze.setTime(ENTRY_TIME);
+                jos.putNextEntry(ze);
+                jos.write(getClassBytes(className));
+                jos.closeEntry();
+            }
+        }
+        return out.toByteArray();
+    }
+
     static List<ClassDefinition> getClassDefinition(String... classNames) throws ClassNotFoundException, IOException, URISyntaxException
     {
         final List<ClassDefinition> cds = new ArrayList<ClassDefinition>();
@@ -88,6 +130,85 @@ public class ClassTools
         return cs;
     }
 
+    /**
+     * The classes and every class compiled along with them, i.e. each {@code Outer$*.class} next to
+     * {@code Outer.class}: member, local and anonymous classes, and the synthetic classes javac emits (enum switch
+     * maps, accessors). Works for folders and jars alike.
+     */
+    static String[] withNestedClasses(Class<?>... classes) throws IOException
+    {
+        final List<String> names = new ArrayList<String>();
+        for (Class<?> c : classes)
+        {
+            names.add(c.getName());
+            names.addAll(getNestedClassNames(c));
+        }
+        return names.toArray(new String[names.size()]);
+    }
+
+    private static List<String> getNestedClassNames(Class<?> clazz) throws IOException
+    {
+        final String className = clazz.getName();
+        final int dot = className.lastIndexOf('.');
+        final String pckgPath = className.substring(0, dot + 1).replace('.', '/');
+        final String simpleName = className.substring(dot + 1);
+        final String prefix = simpleName.concat("$");
+        final URL resource = clazz.getResource(simpleName.concat(".class"));
+        if (resource == null)
+        {
+            throw new FileNotFoundException(String.format("Unable to find the class file of '%s'.", className));
+        }
+
+        final List<String> fileNames = new ArrayList<String>();
+        final URLConnection connection = resource.openConnection();
+        if (connection instanceof JarURLConnection)
+        {
+            connection.setUseCaches(false);
+            try (JarFile jar = ((JarURLConnection) connection).getJarFile())
+            {
+                for (Enumeration<JarEntry> entries = jar.entries(); entries.hasMoreElements();)
+                {
+                    final String name = entries.nextElement().getName();
+                    if (name.startsWith(pckgPath.concat(prefix)) && name.indexOf('/', pckgPath.length()) < 0)
+                    {
+                        fileNames.add(name.substring(pckgPath.length()));
+                    }
+                }
+            }
+        }
+        else
+        {
+            final Path folder;
+            try
+            {
+                folder = Paths.get(resource.toURI()).getParent();
+            }
+            catch (URISyntaxException | IllegalArgumentException e)
+            {
+                throw new IOException(String.format("Unable to list the classes next to '%s'.", resource), e);
+            }
+            try (DirectoryStream<Path> paths = Files.newDirectoryStream(folder, prefix.concat("*.class")))
+            {
+                for (Path p : paths)
+                {
+                    fileNames.add(p.getFileName().toString());
+                }
+            }
+        }
+
+        final List<String> names = new ArrayList<String>();
+        for (String fileName : fileNames)
+        {
+            if (fileName.endsWith(".class"))
+            {
+                names.add(pckgPath.replace('/', '.').concat(fileName.substring(0, fileName.length() - ".class".length())));
+            }
+        }
+        // same jar for the same classes
+        Collections.sort(names);
+        return names;
+    }
+
     static void appendToJarStream(JarOutputStream jos, List<ClassDefinition> cds) throws IOException
     {
         for (ClassDefinition cd : cds)
@@ -111,9 +232,55 @@ public class ClassTools
         return result;
     }
 
-    static byte[] getClassBytes(String className) throws IOException, URISyntaxException
+    static byte[] getClassBytes(String className) throws IOException
+    {
+        return getClassBytes(ClassTools.class.getClassLoader(), className);
+    }
+
+    /**
+     * Reads the class file from the given class loader resources. Works for folders and jars alike.
+     */
+    static byte[] getClassBytes(ClassLoader loader, String className) throws IOException
     {
-        return Files.readAllBytes(getPath(className));
+        final String resource = className.replace('.', '/').concat(".class");
+        try (InputStream in = loader == null ? ClassLoader.getSystemResourceAsStream(resource) : loader.getResourceAsStream(resource))
+        {
+            if (in == null)
+            {
+                throw new FileNotFoundException(String.format("Unable to find the class file of '%s'.", className));
+            }
+            return readFully(in);
+        }
+    }
+
+    /**
+     * Whether the class loader resolves the class to that very class, i.e. code it defines can call the class.
+     */
+    static boolean isVisible(Class<?> clazz, ClassLoader loader)
+    {
+        if (loader == null)
+        {
+            return clazz.getClassLoader() == null;
+        }
+        try
+        {
+            return Class.forName(clazz.getName(), false, loader) == clazz;
+        }
+        catch (ClassNotFoundException | LinkageError e)
+        {
+            return false;
+        }
+    }
+
+    static byte[] readFully(InputStream in) throws IOException
+    {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final byte[] buffer = new byte[8192];
+        for (int n; (n = in.read(buffer)) >= 0;)
+        {
+            out.write(buffer, 0, n);
+        }
+        return out.toByteArray();
     }
 
     public static File findJarOf(Class<?> clazz) throws UnsupportedEncodingException
@@ -122,13 +289,6 @@ public class ClassTools
         return new File(URLDecoder.decode(path, "UTF-8"));
     }
     
-    private static Path getPath(String className) throws URISyntaxException
-    {
-        final String path = "/".concat(className.replace('.', '/').concat(".class"));
-        final URL url = ClassTools.class.getResource(path);
-        return Paths.get(url.toURI());
-    }
-
     // This should work for folder / jar / different os (TODO: test).
     private static final Pattern CLASS_NAME = Pattern.compile("(.+)\\/(.*)\\.class");
 
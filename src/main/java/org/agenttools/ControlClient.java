@@ -0,0 +1,147 @@
+/*******************************************************************************
+ * Copyright (c) 2017, Xavier Miret Andres <xavier.mires@gmail.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *******************************************************************************/
+package org.agenttools;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+
+import org.agenttools.AgentBootstrap.ProxyConnection;
+
+/**
+ * Invokes the operations of a remote agent over its control socket, see {@link ControlProtocol}.
+ * <p>
+ * Requests are sent one at a time, threads sharing a client wait for each other.
+ */
+final class ControlClient implements InvocationHandler, AutoCloseable {
+
+    private final SocketChannel channel;
+    private final String pid;
+
+    private ControlClient(SocketChannel channel, String pid) {
+	this.channel = channel;
+	this.pid = pid;
+    }
+
+    /**
+     * Connects to the agent of the given VM, as advertised by its endpoint file.
+     * 
+     * @throws IOException
+     *             if the agent doesn't serve a control socket
+     */
+    static ProxyConnection<InstrumentorMBean> connect(String pid) throws IOException {
+	final File endpoint = ControlProtocol.getEndpointFile(pid);
+	// anyone can write to the temporary directory, the endpoint is trusted once checked
+	if (!endpoint.exists()) {
+	    throw new FileNotFoundException(endpoint.toString());
+	}
+	PrivateFiles.checkPrivate(endpoint.getParentFile().getParentFile().toPath());
+	PrivateFiles.checkPrivate(endpoint.getParentFile().toPath());
+	PrivateFiles.checkPrivate(endpoint.toPath());
+	final String[] fields = new String(Files.readAllBytes(endpoint.toPath()), StandardCharsets.UTF_8).split(" ");
+	if (fields.length != 3) {
+	    throw new IOException(String.format("Invalid endpoint file '%s'.", endpoint));
+	}
+
+	final boolean unix = "unix".equals(fields[0]);
+	final SocketChannel channel = ControlProtocol.openClient(unix);
+	try {
+	    channel.connect(unix ? ControlProtocol.unixAddress(Paths.get(fields[1]))
+		    : ControlProtocol.loopbackAddress(Integer.parseInt(fields[1])));
+
+	    final ByteArrayOutputStream hello = new ByteArrayOutputStream();
+	    final DataOutputStream out = new DataOutputStream(hello);
+	    out.writeInt(ControlProtocol.VERSION);
+	    out.writeInt(ControlProtocol.methodsHash);
+	    ControlProtocol.writeString(out, fields[2]);
+	    out.flush();
+	    ControlProtocol.writeFrame(channel, hello);
+
+	    final DataInputStream accepted = ControlProtocol.readFrame(channel);
+	    if (accepted == null || accepted.readByte() != ControlProtocol.OK) {
+		throw new IOException(String.format("The agent in pid '%s' refused the connection.", pid));
+	    }
+	} catch (IOException | RuntimeException e) {
+	    channel.close();
+	    throw e;
+	}
+
+	final ControlClient client = new ControlClient(channel, pid);
+	final InstrumentorMBean proxy = (InstrumentorMBean) Proxy.newProxyInstance(
+		InstrumentorMBean.class.getClassLoader(), new Class<?>[] { InstrumentorMBean.class }, client);
+	return new ProxyConnection<>(client, proxy);
+    }
+
+    @Override
+    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+	if (method.getDeclaringClass() == Object.class) {
+	    switch (method.getName()) {
+	    case "equals":
+		return proxy == args[0];
+	    case "hashCode":
+		return System.identityHashCode(proxy);
+	    default:
+		return "ControlClient [pid=" + pid + "]";
+	    }
+	}
+
+	final ByteArrayOutputStream request = new ByteArrayOutputStream();
+	final DataOutputStream out = new DataOutputStream(request);
+	out.writeShort(ControlProtocol.indexOf(method));
+	if (args != null) {
+	    for (Object arg : args) {
+		ControlProtocol.writeValue(out, arg);
+	    }
+	}
+	out.flush();
+
+	final DataInputStream response;
+	synchronized (this) {
+	    ControlProtocol.writeFrame(channel, request);
+	    response = ControlProtocol.readFrame(channel);
+	}
+	if (response == null) {
+	    throw new IOException(String.format("The agent in pid '%s' closed the connection.", pid));
+	}
+	final byte status = response.readByte();
+	final Object value = ControlProtocol.readValue(response, FilteredObjectInputStream.REPLIES);
+	if (status == ControlProtocol.ERROR) {
+	    throw (Throwable) value;
+	}
+	return value;
+    }
+
+    @Override
+    public void close() throws IOException {
+	channel.close();
+    }
+}
@@ -0,0 +1,351 @@
+/*******************************************************************************
+ * Copyright (c) 2017, Xavier Miret Andres <xavier.mires@gmail.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *******************************************************************************/
+package org.agenttools;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.lang.reflect.Method;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ProtocolFamily;
+import java.net.SocketAddress;
+import java.net.StandardProtocolFamily;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.Predicate;
+
+/**
+ * The binary protocol of {@link ControlTransport#SOCKET}.
+ * <p>
+ * Each message is a frame: its length as an int, then its bytes. Numbers are big-endian.
+ * 
+ * <pre>
+ * hello    (client)  int version, int methods hash, string token
+ *          (server)  byte 0, or the connection is closed
+ * request  (client)  short method, then each argument as a value
+ * response (server)  byte 0 then the returned value, or byte 1 then the thrown exception as a value
+ * value    byte tag, then
+ *   0 null
+ *   1 boolean (byte)      2 int        3 long
+ *   4 string (int length, UTF-8 bytes)
+ *   5 byte[] (int length, bytes)
+ *   6 string[] (int length, strings)
+ *   7 map of string to byte[] (int size, string and byte[] pairs)
+ *   8 any other object, serialized (int length, bytes); clients only accept those of
+ *     {@link FilteredObjectInputStream#REPLIES}, the agent those of
+ *     {@link FilteredObjectInputStream#arguments(Class)} for the type of the argument
+ * </pre>
+ * 
+ * Methods are those of {@link InstrumentorMBean}, numbered in the order of their signatures. Both sides check they
+ * have the same methods with the hash sent in the hello.
+ * <p>
+ * The remote agent listens to a Unix domain socket when the VM supports them (Java 16 on), or to a loopback TCP socket
+ * otherwise. Either way, its address and a random token are written to an endpoint file only the user can read (see
+ * {@link PrivateFiles}, clients refuse any other), and
+ * clients must send the token first: the hello is limited to {@value #MAX_HELLO_FRAME} bytes and must be sent within
+ * a few seconds, or the connection is closed.
+ */
+final class ControlProtocol {
+
+    static final int VERSION = 1;
+
+    static final byte OK = 0;
+    static final byte ERROR = 1;
+
+    private static final byte NULL = 0, BOOLEAN = 1, INT = 2, LONG = 3, STRING = 4, BYTES = 5, STRINGS = 6,
+	    DEFINITIONS = 7, SERIALIZED = 8;
+
+    // frames larger than that are refused, the jars sent inline are chunked well below
+    static final int MAX_FRAME = 256 * 1024 * 1024;
+    // the hello is read before the client is authenticated
+    static final int MAX_HELLO_FRAME = 256;
+
+    static final Method[] methods = InstrumentorMBean.class.getMethods();
+
+    static {
+	Arrays.sort(methods, Comparator.comparing(ControlProtocol::signature));
+    }
+
+    static final int methodsHash = Arrays.stream(methods).map(ControlProtocol::signature).reduce("", String::concat)
+	    .hashCode();
+
+    private ControlProtocol() {
+    }
+
+    static int indexOf(Method method) {
+	for (int i = 0; i < methods.length; i++) {
+	    if (methods[i].equals(method)) {
+		return i;
+	    }
+	}
+	throw new IllegalArgumentException("Not an operation of the agent: " + method);
+    }
+
+    private static String signature(Method method) {
+	return method.getName() + Arrays.toString(method.getParameterTypes());
+    }
+
+    // endpoints
+
+    static File getEndpointFile(String pid) {
+	return new File(getDirectory(), pid + ".endpoint");
+    }
+
+    static File getDirectory() {
+	return PrivateFiles.path("control");
+    }
+
+    /**
+     * A Unix domain socket address, or null if the VM doesn't support them.
+     */
+    static SocketAddress unixAddress(Path path) {
+	try {
+	    return (SocketAddress) Class.forName("java.net.UnixDomainSocketAddress").getMethod("of", Path.class)
+		    .invoke(null, path);
+	} catch (ReflectiveOperationException e) {
+	    return null;
+	}
+    }
+
+    static SocketAddress loopbackAddress(int port) {
+	return new InetSocketAddress(InetAddress.getLoopbackAddress(), port);
+    }
+
+    static ServerSocketChannel openServer(boolean unix) throws IOException {
+	if (!unix) {
+	    return ServerSocketChannel.open();
+	}
+	try {
+	    return (ServerSocketChannel) ServerSocketChannel.class.getMethod("open", ProtocolFamily.class).invoke(
+		    null, StandardProtocolFamily.valueOf("UNIX"));
+	} catch (ReflectiveOperationException | IllegalArgumentException e) {
+	    throw new IOException("Unix domain sockets aren't supported.", e);
+	}
+    }
+
+    static SocketChannel openClient(boolean unix) throws IOException {
+	if (!unix) {
+	    return SocketChannel.open();
+	}
+	try {
+	    return (SocketChannel) SocketChannel.class.getMethod("open", ProtocolFamily.class).invoke(null,
+		    StandardProtocolFamily.valueOf("UNIX"));
+	} catch (ReflectiveOperationException | IllegalArgumentException e) {
+	    throw new IOException("Unix domain sockets aren't supported.", e);
+	}
+    }
+
+    // frames
+
+    static void writeFrame(SocketChannel channel, ByteArrayOutputStream payload) throws IOException {
+	final ByteBuffer frame = ByteBuffer.allocate(4 + payload.size());
+	frame.putInt(payload.size());
+	frame.put(payload.toByteArray());
+	frame.flip();
+	while (frame.hasRemaining()) {
+	    channel.write(frame);
+	}
+    }
+
+    /**
+     * @return the payload of the next frame, or null once the peer has closed the connection
+     */
+    static DataInputStream readFrame(SocketChannel channel) throws IOException {
+	return readFrame(channel, MAX_FRAME);
+    }
+
+    /**
+     * @param maxSize
+     *            the largest frame accepted, larger ones fail before they are read
+     */
+    static DataInputStream readFrame(SocketChannel channel, int maxSize) throws IOException {
+	final ByteBuffer length = ByteBuffer.allocate(4);
+	if (!readFully(channel, length, true)) {
+	    return null;
+	}
+	final int size = length.getInt(0);
+	if (size < 0 || size > maxSize) {
+	    throw new IOException("Invalid frame of " + size + " bytes.");
+	}
+	final ByteBuffer payload = ByteBuffer.allocate(size);
+	readFully(channel, payload, false);
+	return new DataInputStream(new ByteArrayInputStream(payload.array()));
+    }
+
+    private static boolean readFully(SocketChannel channel, ByteBuffer buffer, boolean eofAllowed) throws IOException {
+	while (buffer.hasRemaining()) {
+	    if (channel.read(buffer) < 0) {
+		if (eofAllowed && buffer.position() == 0) {
+		    return false;
+		}
+		throw new EOFException("The connection was closed.");
+	    }
+	}
+	return true;
+    }
+
+    // values
+
+    @SuppressWarnings("unchecked")
+    static void writeValue(DataOutputStream out, Object value) throws IOException {
+	if (value == null) {
+	    out.writeByte(NULL);
+	} else if (value instanceof Boolean) {
+	    out.writeByte(BOOLEAN);
+	    out.writeBoolean((Boolean) value);
+	} else if (value instanceof Integer) {
+	    out.writeByte(INT);
+	    out.writeInt((Integer) value);
+	} else if (value instanceof Long) {
+	    out.writeByte(LONG);
+	    out.writeLong((Long) value);
+	} else if (value instanceof String) {
+	    out.writeByte(STRING);
+	    writeString(out, (String) value);
+	} else if (value instanceof byte[]) {
+	    out.writeByte(BYTES);
+	    writeBytes(out, (byte[]) value);
+	} else if (value instanceof String[]) {
+	    out.writeByte(STRINGS);
+	    final String[] strings = (String[]) value;
+	    out.writeInt(strings.length);
+	    for (String s : strings) {
+		writeString(out, s);
+	    }
+	} else if (isDefinitions(value)) {
+	    out.writeByte(DEFINITIONS);
+	    final Map<String, byte[]> definitions = (Map<String, byte[]>) value;
+	    out.writeInt(definitions.size());
+	    for (Map.Entry<String, byte[]> definition : definitions.entrySet()) {
+		writeString(out, definition.getKey());
+		writeBytes(out, definition.getValue());
+	    }
+	} else {
+	    out.writeByte(SERIALIZED);
+	    final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+	    try (ObjectOutputStream oos = new ObjectOutputStream(bytes)) {
+		oos.writeObject(value);
+	    }
+	    out.writeInt(bytes.size());
+	    bytes.writeTo(out);
+	}
+    }
+
+    /**
+     * @param filter
+     *            the classes the serialized values may be made of
+     */
+    static Object readValue(DataInputStream in, Predicate<Class<?>> filter) throws IOException {
+	final byte tag = in.readByte();
+	switch (tag) {
+	case NULL:
+	    return null;
+	case BOOLEAN:
+	    return in.readBoolean();
+	case INT:
+	    return in.readInt();
+	case LONG:
+	    return in.readLong();
+	case STRING:
+	    return readString(in);
+	case BYTES:
+	    return readBytes(in);
+	case STRINGS: {
+	    final String[] strings = new String[checkLength(in, in.readInt())];
+	    for (int i = 0; i < strings.length; i++) {
+		strings[i] = readString(in);
+	    }
+	    return strings;
+	}
+	case DEFINITIONS: {
+	    final int size = checkLength(in, in.readInt());
+	    final Map<String, byte[]> definitions = new LinkedHashMap<>(size * 2);
+	    for (int i = 0; i < size; i++) {
+		definitions.put(readString(in), readBytes(in));
+	    }
+	    return definitions;
+	}
+	case SERIALIZED:
+	    try (ObjectInputStream ois = new FilteredObjectInputStream(new ByteArrayInputStream(readBytes(in)),
+		    filter)) {
+		return ois.readObject();
+	    } catch (ClassNotFoundException e) {
+		throw new IOException("Unable to read an argument.", e);
+	    }
+	default:
+	    throw new IOException("Unknown value tag " + tag);
+	}
+    }
+
+    private static boolean isDefinitions(Object value) {
+	if (!(value instanceof Map)) {
+	    return false;
+	}
+	for (Map.Entry<?, ?> entry : ((Map<?, ?>) value).entrySet()) {
+	    if (!(entry.getKey() instanceof String) || !(entry.getValue() instanceof byte[])) {
+		return false;
+	    }
+	}
+	return true;
+    }
+
+    static void writeString(DataOutputStream out, String s) throws IOException {
+	writeBytes(out, s.getBytes(StandardCharsets.UTF_8));
+    }
+
+    static String readString(DataInputStream in) throws IOException {
+	return new String(readBytes(in), StandardCharsets.UTF_8);
+    }
+
+    private static void writeBytes(DataOutputStream out, byte[] bytes) throws IOException {
+	out.writeInt(bytes.length);
+	out.write(bytes);
+    }
+
+    private static byte[] readBytes(DataInputStream in) throws IOException {
+	final byte[] bytes = new byte[checkLength(in, in.readInt())];
+	in.readFully(bytes);
+	return bytes;
+    }
+
+    // a length read from a frame can't exceed what remains of it (frames are read in memory before being decoded)
+    private static int checkLength(DataInputStream in, int length) throws IOException {
+	if (length < 0 || length > in.available()) {
+	    throw new IOException("Invalid length " + length);
+	}
+	return length;
+    }
+}
@@ -0,0 +1,261 @@
+/*******************************************************************************
+ * Copyright (c) 2017, Xavier Miret Andres <xavier.mires@gmail.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *******************************************************************************/
+package org.agenttools;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.NotSerializableException;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.net.InetSocketAddress;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.SecureRandom;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Serves the operations of the agent over a local socket, see {@link ControlProtocol}.
+ * <p>
+ * Each connection is served by its own thread, one request at a time. Up to {@value #MAX_CONNECTIONS} connections are
+ * served at once, any other is closed as soon as accepted.
+ */
+final class ControlServer implements AutoCloseable {
+
+    private static final Logger log = Logger.getLogger(ControlServer.class.getName());
+
+    static final int MAX_CONNECTIONS = 32;
+    // connections which haven't sent their hello by then are closed
+    static final long HANDSHAKE_TIMEOUT_MILLIS = 5000;
+
+    // guarded by the class
+    private static ControlServer running = null;
+
+    private final InstrumentorMBean target;
+    private final ServerSocketChannel server;
+    private final File endpoint;
+    private final Path socket;
+    private final String token;
+    private final ThreadPoolExecutor connections = new ThreadPoolExecutor(0, MAX_CONNECTIONS, 60, TimeUnit.SECONDS,
+	    new SynchronousQueue<>(), r -> daemon(r, "agent-tools-control-connection"));
+    private final ScheduledExecutorService handshakeTimeouts = Executors.newSingleThreadScheduledExecutor(
+	    r -> daemon(r, "agent-tools-control-timeout"));
+    private volatile boolean closed = false;
+
+    /**
+     * Starts serving the agent, unless it is already served.
+     */
+    static synchronized void start(InstrumentorMBean target) {
+	if (running == null) {
+	    final String pid = AgentBootstrap.getPid();
+	    final Path socket = new File(ControlProtocol.getDirectory(), pid + ".sock").toPath();
+	    try {
+		running = new ControlServer(target, pid, ControlProtocol.unixAddress(socket) == null ? null : socket);
+	    } catch (IOException e) {
+		// JMX is still there
+		log.log(Level.WARNING, "Unable to serve the agent over a socket.", e);
+	    }
+	}
+    }
+
+    /**
+     * @param socket
+     *            the path of the Unix domain socket to listen to, or null to listen to a loopback TCP socket
+     */
+    ControlServer(InstrumentorMBean target, String pid, Path socket) throws IOException {
+	this.target = target;
+	this.socket = socket;
+	this.endpoint = ControlProtocol.getEndpointFile(pid);
+	final byte[] random = new byte[16];
+	new SecureRandom().nextBytes(random);
+	final StringBuilder hex = new StringBuilder();
+	for (byte b : random) {
+	    hex.append(String.format("%02x", b));
+	}
+	this.token = hex.toString();
+
+	final File directory = PrivateFiles.directory("control");
+
+	final String address;
+	if (socket != null) {
+	    Files.deleteIfExists(socket);
+	    server = ControlProtocol.openServer(true);
+	    server.bind(ControlProtocol.unixAddress(socket));
+	    address = "unix " + socket;
+	} else {
+	    server = ControlProtocol.openServer(false);
+	    server.bind(ControlProtocol.loopbackAddress(0));
+	    address = "tcp " + ((InetSocketAddress) server.getLocalAddress()).getPort();
+	}
+
+	// written aside, then moved, so clients never read it partially written
+	final File part = new File(directory, endpoint.getName() + ".part");
+	Files.write(part.toPath(), (address + " " + token).getBytes(StandardCharsets.UTF_8));
+	PrivateFiles.restrict(part.toPath(), "rw-------");
+	Files.move(part.toPath(), endpoint.toPath(), StandardCopyOption.REPLACE_EXISTING,
+		StandardCopyOption.ATOMIC_MOVE);
+
+	daemon(this::accept, "agent-tools-control").start();
+    }
+
+    private static Thread daemon(Runnable r, String name) {
+	final Thread t = new Thread(r, name);
+	t.setDaemon(true);
+	return t;
+    }
+
+    private void accept() {
+	while (!closed) {
+	    try {
+		final SocketChannel connection = server.accept();
+		try {
+		    connections.execute(() -> serve(connection));
+		} catch (RejectedExecutionException e) {
+		    log.log(Level.WARNING, "Too many control connections, one was refused.");
+		    connection.close();
+		}
+	    } catch (IOException e) {
+		if (!closed) {
+		    log.log(Level.WARNING, "Unable to accept a control connection.", e);
+		}
+	    }
+	}
+    }
+
+    private void serve(SocketChannel connection) {
+	try (SocketChannel c = connection) {
+	    if (!hello(c)) {
+		return;
+	    }
+	    for (DataInputStream request; (request = ControlProtocol.readFrame(c)) != null;) {
+		ControlProtocol.writeFrame(c, invoke(request));
+	    }
+	} catch (IOException e) {
+	    log.log(Level.FINE, "Lost a control connection.", e);
+	}
+    }
+
+    private boolean hello(SocketChannel c) throws IOException {
+	// a blocked channel read can't time out, the channel is closed instead
+	final ScheduledFuture<?> timeout = handshakeTimeouts.schedule(() -> {
+	    try {
+		c.close();
+	    } catch (IOException e) {
+		log.log(Level.FINE, "Unable to close a control connection.", e);
+	    }
+	}, HANDSHAKE_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+	final DataInputStream hello;
+	try {
+	    hello = ControlProtocol.readFrame(c, ControlProtocol.MAX_HELLO_FRAME);
+	} finally {
+	    timeout.cancel(false);
+	}
+	if (hello == null || hello.readInt() != ControlProtocol.VERSION || hello.readInt() != ControlProtocol.methodsHash
+		|| !token.equals(ControlProtocol.readString(hello))) {
+	    return false;
+	}
+	final ByteArrayOutputStream ok = new ByteArrayOutputStream();
+	ok.write(ControlProtocol.OK);
+	ControlProtocol.writeFrame(c, ok);
+	return true;
+    }
+
+    private ByteArrayOutputStream invoke(DataInputStream request) throws IOException {
+	final short index = request.readShort();
+	if (index < 0 || index >= ControlProtocol.methods.length) {
+	    return error(new AgentLoadingException(String.format("Unknown operation %d.", index)));
+	}
+	final Method method = ControlProtocol.methods[index];
+	final Class<?>[] parameterTypes = method.getParameterTypes();
+	final Object[] arguments = new Object[parameterTypes.length];
+	for (int i = 0; i < arguments.length; i++) {
+	    arguments[i] = ControlProtocol.readValue(request, FilteredObjectInputStream.arguments(parameterTypes[i]));
+	}
+
+	Object value;
+	Throwable error = null;
+	try {
+	    value = method.invoke(target, arguments);
+	} catch (InvocationTargetException e) {
+	    value = null;
+	    error = e.getCause();
+	} catch (IllegalAccessException | IllegalArgumentException e) {
+	    value = null;
+	    error = new AgentLoadingException(String.format("Unable to invoke '%s'.", method.getName()), e);
+	}
+
+	if (error != null) {
+	    return error(error);
+	}
+	final ByteArrayOutputStream response = new ByteArrayOutputStream();
+	final DataOutputStream out = new DataOutputStream(response);
+	out.writeByte(ControlProtocol.OK);
+	ControlProtocol.writeValue(out, value);
+	out.flush();
+	return response;
+    }
+
+    private static ByteArrayOutputStream error(Throwable error) throws IOException {
+	final ByteArrayOutputStream response = new ByteArrayOutputStream();
+	final DataOutputStream out = new DataOutputStream(response);
+	out.writeByte(ControlProtocol.ERROR);
+	try {
+	    ControlProtocol.writeValue(out, error);
+	} catch (NotSerializableException e) {
+	    response.reset();
+	    out.writeByte(ControlProtocol.ERROR);
+	    ControlProtocol.writeValue(out, new AgentLoadingException(error.toString()));
+	}
+	out.flush();
+	return response;
+    }
+
+    @Override
+    public void close() {
+	closed = true;
+	connections.shutdown();
+	handshakeTimeouts.shutdownNow();
+	try {
+	    server.close();
+	} catch (IOException e) {
+	    log.log(Level.FINE, "Unable to close the control socket.", e);
+	}
+	endpoint.delete();
+	if (socket != null) {
+	    socket.toFile().delete();
+	}
+    }
+}
@@ -0,0 +1,85 @@
+/*******************************************************************************
+ * Copyright (c) 2017, Xavier Miret Andres <xavier.mires@gmail.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *******************************************************************************/
+package org.agenttools;
+
+/**
+ * A batch of events drained from an {@link EventChannel}, in columns. Events of the same thread are in the order they
+ * were offered.
+ */
+public final class EventBatch {
+
+    final long[] timestamps;
+    final long[] threads;
+    final int[] types;
+    final long[] firsts;
+    final long[] seconds;
+    int size = 0;
+
+    EventBatch(int capacity) {
+	this.timestamps = new long[capacity];
+	this.threads = new long[capacity];
+	this.types = new int[capacity];
+	this.firsts = new long[capacity];
+	this.seconds = new long[capacity];
+    }
+
+    public int size() {
+	return size;
+    }
+
+    boolean isFull() {
+	return size == types.length;
+    }
+
+    /**
+     * The {@link System#nanoTime()} when the event was offered.
+     */
+    public long getTimestamp(int i) {
+	return timestamps[check(i)];
+    }
+
+    /**
+     * The id of the thread which offered the event.
+     */
+    public long getThreadId(int i) {
+	return threads[check(i)];
+    }
+
+    public int getType(int i) {
+	return types[check(i)];
+    }
+
+    public long getFirst(int i) {
+	return firsts[check(i)];
+    }
+
+    public long getSecond(int i) {
+	return seconds[check(i)];
+    }
+
+    private int check(int i) {
+	if (i >= size) {
+	    throw new IndexOutOfBoundsException("Index: " + i + ", size: " + size);
+	}
+	return i;
+    }
+}
@@ -0,0 +1,251 @@
+/*******************************************************************************
+ * Copyright (c) 2017, Xavier Miret Andres <xavier.mires@gmail.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *******************************************************************************/
+package org.agenttools;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A bounded channel of events from any number of threads (i.e. instrumented code) to a background drainer, which
+ * hands them to the sinks in batches.
+ * <p>
+ * Events are fixed-size records (a type and two longs, plus the time and the thread) written in place in preallocated
+ * ring buffers, so offering an event takes no lock and allocates nothing. Threads are spread over several rings to
+ * keep them from contending on the same one. An event offered to a full ring is dropped and counted, producers never
+ * wait for the drainer.
+ * <p>
+ * Events drained without any sink are discarded.
+ */
+public final class EventChannel implements AutoCloseable {
+
+    private static final Logger log = Logger.getLogger(EventChannel.class.getName());
+
+    private static final int BATCH = 1024;
+    private static final long IDLE_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    private final Ring[] rings;
+    private final int mask;
+    private final List<EventSink> sinks = new CopyOnWriteArrayList<>();
+    private final LongAdder offered = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+    private final LongAdder delivered = new LongAdder();
+
+    // drained by one thread at a time, guarded by itself
+    private final EventBatch batch = new EventBatch(BATCH);
+    private final Thread drainer;
+    private volatile boolean closed = false;
+
+    /**
+     * @param stripes
+     *            the number of rings, rounded up to a power of two
+     * @param capacity
+     *            the events held by each ring, rounded up to a power of two
+     */
+    public EventChannel(int stripes, int capacity) {
+	final int n = powerOfTwo(stripes);
+	this.rings = new Ring[n];
+	for (int i = 0; i < n; i++) {
+	    rings[i] = new Ring(powerOfTwo(capacity));
+	}
+	this.mask = n - 1;
+	this.drainer = new Thread(this::drainLoop, "agent-tools-event-drainer");
+	drainer.setDaemon(true);
+	drainer.start();
+    }
+
+    /**
+     * Offers an event, timestamped now.
+     * 
+     * @return false if the event was dropped, its ring being full
+     */
+    public boolean offer(int type, long first, long second) {
+	final long id = Thread.currentThread().getId();
+	offered.increment();
+	if (rings[(int) id & mask].offer(System.nanoTime(), id, type, first, second)) {
+	    return true;
+	}
+	dropped.increment();
+	return false;
+    }
+
+    public void addSink(EventSink sink) {
+	sinks.add(sink);
+    }
+
+    public boolean removeSink(EventSink sink) {
+	return sinks.remove(sink);
+    }
+
+    public long getOffered() {
+	return offered.sum();
+    }
+
+    public long getDropped() {
+	return dropped.sum();
+    }
+
+    /**
+     * The events handed to the sinks, or discarded without any.
+     */
+    public long getDelivered() {
+	return delivered.sum();
+    }
+
+    /**
+     * Drains the events offered so far to the sinks, on the calling thread.
+     */
+    public void flush() {
+	while (drain() > 0) {
+	}
+    }
+
+    /**
+     * Stops the drainer, once the events offered so far are drained. Later events are dropped once the rings are full.
+     */
+    @Override
+    public void close() {
+	closed = true;
+	LockSupport.unpark(drainer);
+	try {
+	    drainer.join();
+	} catch (InterruptedException e) {
+	    Thread.currentThread().interrupt();
+	}
+	flush();
+    }
+
+    private void drainLoop() {
+	while (!closed) {
+	    if (drain() == 0) {
+		LockSupport.parkNanos(this, IDLE_NANOS);
+	    }
+	}
+    }
+
+    // A batch from every ring in turn, so a busy ring doesn't starve the others.
+    private int drain() {
+	synchronized (batch) {
+	    int drained = 0;
+	    for (Ring ring : rings) {
+		batch.size = 0;
+		ring.drain(batch);
+		if (batch.size > 0) {
+		    drained += batch.size;
+		    deliver(batch);
+		}
+	    }
+	    return drained;
+	}
+    }
+
+    private void deliver(EventBatch events) {
+	for (EventSink sink : sinks) {
+	    try {
+		sink.accept(events);
+	    } catch (RuntimeException e) {
+		log.log(Level.WARNING, "An event sink failed.", e);
+	    }
+	}
+	delivered.add(events.size);
+    }
+
+    private static int powerOfTwo(int n) {
+	if (n < 1 || n > 1 << 30) {
+	    throw new IllegalArgumentException("Expected 1 to 2^30, not " + n);
+	}
+	return n == 1 ? 1 : Integer.highestOneBit(n - 1) << 1;
+    }
+
+    /**
+     * A multi-producer, single-consumer ring. Producers claim a sequence, write its slot and publish it. The consumer
+     * reads the slots in sequence order while published.
+     */
+    private static final class Ring {
+	private final int mask;
+	private final long[] timestamps;
+	private final long[] threads;
+	private final int[] types;
+	private final long[] firsts;
+	private final long[] seconds;
+	// the sequence (plus one) last published in each slot
+	private final AtomicLongArray published;
+	// the next sequence to claim
+	private final AtomicLong tail = new AtomicLong();
+	// the next sequence to drain
+	private volatile long head = 0;
+
+	Ring(int capacity) {
+	    this.mask = capacity - 1;
+	    this.timestamps = new long[capacity];
+	    this.threads = new long[capacity];
+	    this.types = new int[capacity];
+	    this.firsts = new long[capacity];
+	    this.seconds = new long[capacity];
+	    this.published = new AtomicLongArray(capacity);
+	}
+
+	boolean offer(long timestamp, long thread, int type, long first, long second) {
+	    long sequence;
+	    do {
+		sequence = tail.get();
+		if (sequence - head > mask) {
+		    return false;
+		}
+	    } while (!tail.compareAndSet(sequence, sequence + 1));
+
+	    final int slot = (int) sequence & mask;
+	    timestamps[slot] = timestamp;
+	    threads[slot] = thread;
+	    types[slot] = type;
+	    firsts[slot] = first;
+	    seconds[slot] = second;
+	    published.lazySet(slot, sequence + 1);
+	    return true;
+	}
+
+	void drain(EventBatch batch) {
+	    long h = head;
+	    while (!batch.isFull()) {
+		final int slot = (int) h & mask;
+		if (published.get(slot) != h + 1) {
+		    break;
+		}
+		final int i = batch.size++;
+		batch.timestamps[i] = timestamps[slot];
+		batch.threads[i] = threads[slot];
+		batch.types[i] = types[slot];
+		batch.firsts[i] = firsts[slot];
+		batch.seconds[i] = seconds[slot];
+		h++;
+	    }
+	    // frees the slots
+	    head = h;
+	}
+    }
+}
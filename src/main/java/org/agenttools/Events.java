@@ -0,0 +1,53 @@
+/*******************************************************************************
+ * Copyright (c) 2017, Xavier Miret Andres <xavier.mires@gmail.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *******************************************************************************/
+package org.agenttools;
+
+/**
+ * The event channel of the agent, for probes to report events from the instrumented code.
+ * <p>
+ * Injected code calls {@link #emit(int, long, long)}, which never blocks: events are dropped once the channel is full.
+ * Sinks added to {@link #channel()} receive them from a background thread.
+ */
+public final class Events {
+
+    private static final int CAPACITY = 8192;
+
+    private static final EventChannel channel = new EventChannel(Runtime.getRuntime().availableProcessors() * 2,
+	    CAPACITY);
+
+    private Events() {
+    }
+
+    /**
+     * Called by the instrumented code to report an event.
+     * 
+     * @param type
+     *            the kind of event, as agreed by the probe and its sinks
+     */
+    public static void emit(int type, long first, long second) {
+	channel.offer(type, first, second);
+    }
+
+    public static EventChannel channel() {
+	return channel;
+    }
+}
@@ -48,6 +48,6 @@ public class FilteredClassFileTransformer implements ClassFileTransformer
         {
             return cft.transform(loader, className, classBeingRedefined, protectionDomain, classfileBuffer);
         }
-        return classfileBuffer;
+        return null; // unchanged
     }
 }
@@ -0,0 +1,117 @@
+/*******************************************************************************
+ * Copyright (c) 2017, Xavier Miret Andres <xavier.mires@gmail.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *******************************************************************************/
+package org.agenttools;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InvalidClassException;
+import java.io.ObjectInputStream;
+import java.io.ObjectStreamClass;
+import java.lang.instrument.ClassFileTransformer;
+import java.lang.invoke.SerializedLambda;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.function.Predicate;
+
+/**
+ * Deserializes the classes accepted by a filter only (the component type for arrays), whatever the objects they are
+ * nested in. Proxies are refused.
+ * <p>
+ * Classes are resolved without being initialized, so a refused class runs no code.
+ */
+final class FilteredObjectInputStream extends ObjectInputStream {
+
+    private static final Set<String> VALUES = new HashSet<>(Arrays.asList("java.lang.Object", "java.io.Serializable",
+	    "java.lang.String", "java.lang.Boolean", "java.lang.Byte", "java.lang.Short", "java.lang.Character",
+	    "java.lang.Integer", "java.lang.Long", "java.lang.Float", "java.lang.Double", "java.lang.Number",
+	    "java.lang.Enum", "java.lang.StackTraceElement", "java.util.ArrayList", "java.util.LinkedList",
+	    "java.util.HashMap", "java.util.LinkedHashMap", "java.util.TreeMap", "java.util.HashSet",
+	    "java.util.LinkedHashSet", "java.util.TreeSet", "java.util.Arrays$ArrayList"));
+
+    /**
+     * What the agent replies: its own classes, plain values and collections, and exceptions.
+     */
+    static final Predicate<Class<?>> REPLIES = c -> VALUES.contains(c.getName())
+	    || c.getName().startsWith("org.agenttools.") || c.getName().startsWith("java.util.Collections$")
+	    || Throwable.class.isAssignableFrom(c);
+
+    /**
+     * What is handed off to the agent: plain values and collections, the agent classes, and the caller's own classes
+     * (e.g. its transformers, and serializable lambdas). Any other JDK class is refused.
+     */
+    static final Predicate<Class<?>> PAYLOADS = c -> VALUES.contains(c.getName())
+	    || c.getName().startsWith("org.agenttools.") || c.getName().startsWith("java.util.Collections$")
+	    || c == SerializedLambda.class || !isJdk(c);
+
+    /**
+     * What a control client sends as an argument of the given type. Plain values and collections only, unless the
+     * argument may hold the caller's code (a transformer, or a selector, schedule, batch or handoff of the agent):
+     * then the same as {@link #PAYLOADS}.
+     */
+    static Predicate<Class<?>> arguments(Class<?> parameterType) {
+	if (parameterType == Object.class || ClassFileTransformer.class.isAssignableFrom(parameterType)
+		|| parameterType.getName().startsWith("org.agenttools.")) {
+	    return PAYLOADS;
+	}
+	return c -> VALUES.contains(c.getName()) || c.getName().startsWith("java.util.Collections$");
+    }
+
+    private final Predicate<Class<?>> filter;
+
+    FilteredObjectInputStream(InputStream in, Predicate<Class<?>> filter) throws IOException {
+	super(in);
+	this.filter = filter;
+    }
+
+    @Override
+    protected Class<?> resolveClass(ObjectStreamClass desc) throws IOException, ClassNotFoundException {
+	final Class<?> c = super.resolveClass(desc);
+	Class<?> component = c;
+	while (component.isArray()) {
+	    component = component.getComponentType();
+	}
+	if (!component.isPrimitive() && !filter.test(component)) {
+	    throw new InvalidClassException(desc.getName(), "Refused by the deserialization filter.");
+	}
+	return c;
+    }
+
+    // defined by the bootstrap loader or a parent of the system loader
+    private static boolean isJdk(Class<?> c) {
+	final ClassLoader loader = c.getClassLoader();
+	if (loader == null) {
+	    return true;
+	}
+	for (ClassLoader jdk = ClassLoader.getSystemClassLoader().getParent(); jdk != null; jdk = jdk.getParent()) {
+	    if (loader == jdk) {
+		return true;
+	    }
+	}
+	return false;
+    }
+
+    @Override
+    protected Class<?> resolveProxyClass(String[] interfaces) throws IOException, ClassNotFoundException {
+	throw new InvalidClassException(Arrays.toString(interfaces), "Proxies are refused.");
+    }
+}
@@ -0,0 +1,248 @@
+/*******************************************************************************
+ * Copyright (c) 2017, Xavier Miret Andres <xavier.mires@gmail.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *******************************************************************************/
+package org.agenttools;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Properties;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.IntConsumer;
+import java.util.function.IntFunction;
+import java.util.function.Predicate;
+
+import com.sun.tools.attach.AttachNotSupportedException;
+import com.sun.tools.attach.VirtualMachine;
+import com.sun.tools.attach.VirtualMachineDescriptor;
+
+/**
+ * A set of processes of this host, to run the same operation on all of them concurrently.
+ * 
+ * <pre>
+ * final FleetResult&lt;Void&gt; result = Fleet.discover().withMainClass("org.acme.Server")
+ *         .run(pid -&gt; Agents.add(pid, transformer));
+ * </pre>
+ * 
+ * At most {@link #withParallelism(int) parallelism} processes are operated at once. A process which doesn't complete
+ * within the {@link #withTimeout(long, TimeUnit) timeout} is reported as timed out and its slot goes to the next
+ * process, so that a hung process costs no more than its own timeout. Its operation isn't interrupted though (that
+ * would close the session it uses), and keeps its thread until it returns. At most as many operations as the
+ * parallelism are left running so, further processes then fail right away, and a run never uses more than twice the
+ * parallelism threads. Operations of {@link Agents} go through
+ * {@link RemoteSessions}, which closes the sessions it drops only once their operations return, but should hold as
+ * many sessions as processes in the fleet for them to be reused by later operations.
+ * <p>
+ * Fleets are immutable, filters return a new fleet.
+ */
+public final class Fleet {
+
+    private static final ScheduledExecutorService watchdog = Executors.newSingleThreadScheduledExecutor(r -> {
+	final Thread t = new Thread(r, "agent-tools-fleet-watchdog");
+	t.setDaemon(true);
+	return t;
+    });
+
+    private final List<VirtualMachineDescriptor> vms;
+    private final int parallelism;
+    private final long timeoutNanos;
+
+    private Fleet(List<VirtualMachineDescriptor> vms, int parallelism, long timeoutNanos) {
+	this.vms = vms;
+	this.parallelism = parallelism;
+	this.timeoutNanos = timeoutNanos;
+    }
+
+    /**
+     * Every attachable process of this host, but this one.
+     */
+    public static Fleet discover() {
+	final String self = AgentBootstrap.getPid();
+	final List<VirtualMachineDescriptor> vms = new ArrayList<>();
+	for (VirtualMachineDescriptor vm : VirtualMachine.list()) {
+	    if (!self.equals(vm.id()) && vm.id().matches("\\d+")) {
+		vms.add(vm);
+	    }
+	}
+	return new Fleet(vms, 16, TimeUnit.SECONDS.toNanos(30));
+    }
+
+    /**
+     * The processes running the given main class (or jar), as reported by the attach API.
+     */
+    public Fleet withMainClass(String mainClass) {
+	return filter(vm -> vm.displayName().equals(mainClass) || vm.displayName().startsWith(mainClass + " "));
+    }
+
+    /**
+     * The processes where the given system property holds the given value. Properties are read concurrently, and
+     * processes which fail to report them are excluded.
+     */
+    public Fleet withSystemProperty(String key, String value) {
+	final FleetResult<Properties> properties = call(Fleet::getSystemProperties);
+	return filter(vm -> {
+	    final FleetResult.TargetOutcome<Properties> outcome = properties.getOutcome(Integer.parseInt(vm.id()));
+	    return outcome.isSuccess() && Objects.equals(value, outcome.getValue().getProperty(key));
+	});
+    }
+
+    public Fleet filter(Predicate<VirtualMachineDescriptor> predicate) {
+	final List<VirtualMachineDescriptor> filtered = new ArrayList<>();
+	for (VirtualMachineDescriptor vm : vms) {
+	    if (predicate.test(vm)) {
+		filtered.add(vm);
+	    }
+	}
+	return new Fleet(filtered, parallelism, timeoutNanos);
+    }
+
+    /**
+     * The maximum number of processes operated at once, 16 by default.
+     */
+    public Fleet withParallelism(int parallelism) {
+	if (parallelism < 1) {
+	    throw new IllegalArgumentException("The parallelism must be positive.");
+	}
+	return new Fleet(vms, parallelism, timeoutNanos);
+    }
+
+    /**
+     * The time given to the operation in each process, from its start, 30 seconds by default.
+     */
+    public Fleet withTimeout(long timeout, TimeUnit unit) {
+	return new Fleet(vms, parallelism, unit.toNanos(timeout));
+    }
+
+    public List<Integer> getPids() {
+	final List<Integer> pids = new ArrayList<>();
+	for (VirtualMachineDescriptor vm : vms) {
+	    pids.add(Integer.parseInt(vm.id()));
+	}
+	return Collections.unmodifiableList(pids);
+    }
+
+    public List<VirtualMachineDescriptor> getVirtualMachines() {
+	return Collections.unmodifiableList(vms);
+    }
+
+    /**
+     * Runs the operation on every process, i.e. {@code pid -> Agents.add(pid, transformer)}.
+     */
+    public FleetResult<Void> run(IntConsumer operation) {
+	return call(pid -> {
+	    operation.accept(pid);
+	    return null;
+	});
+    }
+
+    /**
+     * Runs the operation on every process, and collects its results.
+     */
+    public <T> FleetResult<T> call(IntFunction<T> operation) {
+	final Map<Integer, CompletableFuture<FleetResult.TargetOutcome<T>>> outcomes = new LinkedHashMap<>();
+	final Semaphore slots = new Semaphore(parallelism);
+	// the operations which timed out but still run, each keeps its thread but not its slot
+	final AtomicInteger abandoned = new AtomicInteger();
+	// one thread per slot, and one per operation left running
+	final ThreadPoolExecutor executor = new ThreadPoolExecutor(2 * parallelism, 2 * parallelism, 60,
+		TimeUnit.SECONDS, new LinkedBlockingQueue<>(), r -> {
+		    final Thread t = new Thread(r, "agent-tools-fleet");
+		    t.setDaemon(true);
+		    return t;
+		});
+	executor.allowCoreThreadTimeOut(true);
+	try {
+	    for (int pid : getPids()) {
+		slots.acquireUninterruptibly();
+		// whatever completes first, the operation or its timeout, is the outcome and frees the slot
+		final CompletableFuture<FleetResult.TargetOutcome<T>> outcome = new CompletableFuture<>();
+		outcomes.put(pid, outcome);
+
+		final long start = System.nanoTime();
+		if (abandoned.get() >= parallelism) {
+		    outcome.complete(FleetResult.TargetOutcome.failed(pid, new AgentLoadingException(String.format(
+			    "Not started, %d operations which timed out are still running.", abandoned.get())), 0));
+		    slots.release();
+		    continue;
+		}
+		final ScheduledFuture<?> timeout = watchdog.schedule(() -> {
+		    if (outcome.complete(FleetResult.TargetOutcome.timedOut(pid, System.nanoTime() - start))) {
+			abandoned.incrementAndGet();
+			slots.release();
+		    }
+		}, timeoutNanos, TimeUnit.NANOSECONDS);
+		executor.execute(() -> {
+		    FleetResult.TargetOutcome<T> done;
+		    try {
+			done = FleetResult.TargetOutcome.succeeded(pid, operation.apply(pid), System.nanoTime() - start);
+		    } catch (RuntimeException | Error e) {
+			done = FleetResult.TargetOutcome.failed(pid, e, System.nanoTime() - start);
+		    }
+		    timeout.cancel(false);
+		    if (outcome.complete(done)) {
+			slots.release();
+		    } else {
+			abandoned.decrementAndGet();
+		    }
+		});
+	    }
+
+	    final List<FleetResult.TargetOutcome<T>> result = new ArrayList<>();
+	    for (CompletableFuture<FleetResult.TargetOutcome<T>> outcome : outcomes.values()) {
+		result.add(outcome.join());
+	    }
+	    return new FleetResult<>(result);
+	} finally {
+	    // the operations which timed out run to their end
+	    executor.shutdown();
+	}
+    }
+
+    private static Properties getSystemProperties(int pid) {
+	try {
+	    final VirtualMachine vm = VirtualMachine.attach(String.valueOf(pid));
+	    try {
+		return vm.getSystemProperties();
+	    } finally {
+		vm.detach();
+	    }
+	} catch (AttachNotSupportedException | IOException e) {
+	    throw new AgentLoadingException(String.format("Unable to read the system properties of pid '%s'.", pid), e);
+	}
+    }
+
+    @Override
+    public String toString() {
+	return "Fleet " + getPids();
+    }
+}
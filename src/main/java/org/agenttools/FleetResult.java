@@ -0,0 +1,146 @@
+/*******************************************************************************
+ * Copyright (c) 2017, Xavier Miret Andres <xavier.mires@gmail.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *******************************************************************************/
+package org.agenttools;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The outcome of an operation run on a {@link Fleet}, per process.
+ */
+public final class FleetResult<T> {
+
+    private final Map<Integer, TargetOutcome<T>> outcomes = new LinkedHashMap<>();
+
+    FleetResult(List<TargetOutcome<T>> outcomes) {
+	for (TargetOutcome<T> outcome : outcomes) {
+	    this.outcomes.put(outcome.getPid(), outcome);
+	}
+    }
+
+    /**
+     * True if the operation succeeded in every process.
+     */
+    public boolean isSuccess() {
+	return getFailures().isEmpty();
+    }
+
+    public List<TargetOutcome<T>> getOutcomes() {
+	return Collections.unmodifiableList(new ArrayList<>(outcomes.values()));
+    }
+
+    /**
+     * The outcomes of the processes where the operation failed or timed out.
+     */
+    public List<TargetOutcome<T>> getFailures() {
+	final List<TargetOutcome<T>> failures = new ArrayList<>();
+	for (TargetOutcome<T> outcome : outcomes.values()) {
+	    if (!outcome.isSuccess()) {
+		failures.add(outcome);
+	    }
+	}
+	return failures;
+    }
+
+    public TargetOutcome<T> getOutcome(int pid) {
+	return outcomes.get(pid);
+    }
+
+    @Override
+    public String toString() {
+	return "FleetResult " + outcomes.values();
+    }
+
+    public static final class TargetOutcome<T> {
+
+	private final int pid;
+	private final T value;
+	private final Throwable error;
+	private final boolean timedOut;
+	private final long nanos;
+
+	private TargetOutcome(int pid, T value, Throwable error, boolean timedOut, long nanos) {
+	    this.pid = pid;
+	    this.value = value;
+	    this.error = error;
+	    this.timedOut = timedOut;
+	    this.nanos = nanos;
+	}
+
+	static <T> TargetOutcome<T> succeeded(int pid, T value, long nanos) {
+	    return new TargetOutcome<>(pid, value, null, false, nanos);
+	}
+
+	static <T> TargetOutcome<T> failed(int pid, Throwable error, long nanos) {
+	    return new TargetOutcome<>(pid, null, error, false, nanos);
+	}
+
+	static <T> TargetOutcome<T> timedOut(int pid, long nanos) {
+	    return new TargetOutcome<>(pid, null, null, true, nanos);
+	}
+
+	public int getPid() {
+	    return pid;
+	}
+
+	public boolean isSuccess() {
+	    return error == null && !timedOut;
+	}
+
+	/**
+	 * The value returned by the operation, or null if it failed.
+	 */
+	public T getValue() {
+	    return value;
+	}
+
+	/**
+	 * The failure, or null if the operation succeeded or timed out.
+	 */
+	public Throwable getError() {
+	    return error;
+	}
+
+	/**
+	 * True if the operation didn't complete in time. It may still complete later.
+	 */
+	public boolean isTimedOut() {
+	    return timedOut;
+	}
+
+	/**
+	 * Time spent on this process, from the start of the operation to its outcome.
+	 */
+	public long getNanos() {
+	    return nanos;
+	}
+
+	@Override
+	public String toString() {
+	    final String outcome = timedOut ? " timed out" : error == null ? " succeeded" : " failed (" + error + ")";
+	    return pid + outcome + " in " + nanos + "ns";
+	}
+    }
+}
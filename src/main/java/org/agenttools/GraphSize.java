@@ -0,0 +1,137 @@
+/*******************************************************************************
+ * Copyright (c) 2017, Xavier Miret Andres <xavier.mires@gmail.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *******************************************************************************/
+package org.agenttools;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The size of the objects reachable from some roots, per class. See {@link ObjectGraphSizer}.
+ */
+public final class GraphSize {
+
+    private final Map<Class<?>, ClassSize> classSizes = new HashMap<>();
+    private long bytes = 0;
+    private long count = 0;
+    private boolean truncated = false;
+
+    void add(Class<?> type, long objectBytes) {
+	ClassSize size = classSizes.get(type);
+	if (size == null) {
+	    size = new ClassSize(type);
+	    classSizes.put(type, size);
+	}
+	size.count++;
+	size.bytes += objectBytes;
+	count++;
+	bytes += objectBytes;
+    }
+
+    void addAll(GraphSize other) {
+	for (ClassSize s : other.classSizes.values()) {
+	    ClassSize size = classSizes.get(s.type);
+	    if (size == null) {
+		size = new ClassSize(s.type);
+		classSizes.put(s.type, size);
+	    }
+	    size.count += s.count;
+	    size.bytes += s.bytes;
+	}
+	count += other.count;
+	bytes += other.bytes;
+	truncated |= other.truncated;
+    }
+
+    void truncate() {
+	truncated = true;
+    }
+
+    /**
+     * Total shallow size of the reachable objects, in bytes.
+     */
+    public long getBytes() {
+	return bytes;
+    }
+
+    /**
+     * Number of reachable objects.
+     */
+    public long getCount() {
+	return count;
+    }
+
+    /**
+     * True if the walk stopped at the byte cap, the sizes only cover part of the graph.
+     */
+    public boolean isTruncated() {
+	return truncated;
+    }
+
+    /**
+     * The size per class, biggest first.
+     */
+    public List<ClassSize> getClassSizes() {
+	final List<ClassSize> sizes = new ArrayList<>(classSizes.values());
+	Collections.sort(sizes, (a, b) -> Long.compare(b.bytes, a.bytes));
+	return sizes;
+    }
+
+    public ClassSize getClassSize(Class<?> type) {
+	return classSizes.get(type);
+    }
+
+    @Override
+    public String toString() {
+	return "GraphSize [bytes=" + bytes + ", count=" + count + (truncated ? ", truncated" : "") + "]";
+    }
+
+    public static final class ClassSize {
+
+	private final Class<?> type;
+	private long count = 0;
+	private long bytes = 0;
+
+	ClassSize(Class<?> type) {
+	    this.type = type;
+	}
+
+	public Class<?> getType() {
+	    return type;
+	}
+
+	public long getCount() {
+	    return count;
+	}
+
+	public long getBytes() {
+	    return bytes;
+	}
+
+	@Override
+	public String toString() {
+	    return type.getName() + " x" + count + " = " + bytes + " bytes";
+	}
+    }
+}
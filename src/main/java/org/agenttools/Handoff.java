@@ -0,0 +1,214 @@
+/*******************************************************************************
+ * Copyright (c) 2017, Xavier Miret Andres <xavier.mires@gmail.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *******************************************************************************/
+package org.agenttools;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * The location of a payload written in a file, to be read by another VM of the same host.
+ * <p>
+ * Only the location (path, offset, length and SHA-256 digest) is sent to the remote VM, over the authenticated
+ * control channel, which maps the file and reads the payload in place once it matches the digest. The handoff files
+ * are written in the private directory of the user (see {@link PrivateFiles}), checked again by the reader.
+ * 
+ * @see PayloadTransport#FILE_HANDOFF
+ */
+public final class Handoff implements Serializable {
+
+    private static final long serialVersionUID = 2L;
+
+    private final String path;
+    private final long offset;
+    private final long length;
+    private final String digest;
+    // handoff files are private and deleted once consumed, files provided by the caller are not
+    private final boolean temporary;
+
+    private Handoff(String path, long offset, long length, String digest, boolean temporary) {
+	this.path = path;
+	this.offset = offset;
+	this.length = length;
+	this.digest = digest;
+	this.temporary = temporary;
+    }
+
+    /**
+     * Hands off an existing file as it is.
+     */
+    static Handoff of(File file) throws IOException {
+	final ByteBuffer content = map(file.getAbsolutePath(), 0, file.length());
+	return new Handoff(file.getAbsolutePath(), 0, file.length(), JarStore.hash(content), false);
+    }
+
+    static Handoff ofBytes(byte[] bytes) throws IOException {
+	return write(out -> out.write(bytes));
+    }
+
+    /**
+     * Class name to class bytes, as expected by {@link Instrumentor#redefine(Map)}.
+     */
+    static Handoff ofDefinitions(Map<String, byte[]> definitions) throws IOException {
+	return write(out -> {
+	    final DataOutputStream data = new DataOutputStream(out);
+	    data.writeInt(definitions.size());
+	    for (Map.Entry<String, byte[]> definition : definitions.entrySet()) {
+		final byte[] name = definition.getKey().getBytes(StandardCharsets.UTF_8);
+		data.writeInt(name.length);
+		data.write(name);
+		data.writeInt(definition.getValue().length);
+		data.write(definition.getValue());
+	    }
+	    data.flush();
+	});
+    }
+
+    static Handoff ofObject(Serializable object) throws IOException {
+	return write(out -> {
+	    final ObjectOutputStream oos = new ObjectOutputStream(out);
+	    oos.writeObject(object);
+	    oos.flush();
+	});
+    }
+
+    private static Handoff write(Writer writer) throws IOException {
+	final File directory = PrivateFiles.directory("handoff");
+	final File file = File.createTempFile("handoff", ".bin", directory);
+	PrivateFiles.restrict(file.toPath(), "rw-------");
+
+	final MessageDigest digest = JarStore.sha256();
+	try (OutputStream out = new BufferedOutputStream(new DigestOutputStream(new FileOutputStream(file), digest))) {
+	    writer.write(out);
+	} catch (IOException | RuntimeException e) {
+	    file.delete();
+	    throw e;
+	}
+	return new Handoff(file.getAbsolutePath(), 0, file.length(), JarStore.toHex(digest.digest()), true);
+    }
+
+    /**
+     * Deletes the handoff file, unless it was provided by the caller.
+     */
+    void delete() {
+	if (temporary) {
+	    new File(path).delete();
+	}
+    }
+
+    /**
+     * The payload, mapped read-only and verified.
+     */
+    ByteBuffer map() throws IOException {
+	if (temporary) {
+	    final Path file = Paths.get(path);
+	    PrivateFiles.checkPrivate(file.getParent());
+	    PrivateFiles.checkPrivate(file);
+	}
+	final ByteBuffer payload = map(path, offset, length);
+	if (!JarStore.hash(payload).equals(digest)) {
+	    throw new IOException(String.format("The handoff file '%s' doesn't match its digest.", path));
+	}
+	return payload;
+    }
+
+    Map<String, byte[]> readDefinitions() throws IOException {
+	final ByteBuffer payload = map();
+	final int size = payload.getInt();
+	final Map<String, byte[]> definitions = new LinkedHashMap<>(size * 2);
+	for (int i = 0; i < size; i++) {
+	    final byte[] name = new byte[payload.getInt()];
+	    payload.get(name);
+	    final byte[] bytes = new byte[payload.getInt()];
+	    payload.get(bytes);
+	    definitions.put(new String(name, StandardCharsets.UTF_8), bytes);
+	}
+	return definitions;
+    }
+
+    /**
+     * @see FilteredObjectInputStream#PAYLOADS
+     */
+    Object readObject() throws IOException, ClassNotFoundException {
+	try (FilteredObjectInputStream in = new FilteredObjectInputStream(new ByteBufferInputStream(map()),
+		FilteredObjectInputStream.PAYLOADS)) {
+	    return in.readObject();
+	}
+    }
+
+    @Override
+    public String toString() {
+	return "Handoff [path=" + path + ", offset=" + offset + ", length=" + length + "]";
+    }
+
+    private static MappedByteBuffer map(String path, long offset, long length) throws IOException {
+	try (FileChannel channel = FileChannel.open(Paths.get(path), StandardOpenOption.READ)) {
+	    // the mapping stays valid once the channel is closed
+	    return channel.map(MapMode.READ_ONLY, offset, length);
+	}
+    }
+
+    private interface Writer {
+	void write(OutputStream out) throws IOException;
+    }
+
+    private static final class ByteBufferInputStream extends InputStream {
+	private final ByteBuffer buffer;
+
+	ByteBufferInputStream(ByteBuffer buffer) {
+	    this.buffer = buffer;
+	}
+
+	@Override
+	public int read() {
+	    return buffer.hasRemaining() ? buffer.get() & 0xFF : -1;
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) {
+	    if (!buffer.hasRemaining()) {
+		return -1;
+	    }
+	    final int n = Math.min(len, buffer.remaining());
+	    buffer.get(b, off, n);
+	    return n;
+	}
+    }
+}
@@ -0,0 +1,115 @@
+/*******************************************************************************
+ * Copyright (c) 2017, Xavier Miret Andres <xavier.mires@gmail.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *******************************************************************************/
+package org.agenttools;
+
+/**
+ * A set of objects compared by identity, with open addressing over a plain array.
+ * <p>
+ * Unlike {@link java.util.IdentityHashMap} based sets, adding an object allocates nothing but the occasional bigger
+ * table. Not thread safe.
+ */
+class IdentitySet {
+
+    private Object[] table;
+    private int size = 0;
+
+    IdentitySet() {
+	this(64);
+    }
+
+    IdentitySet(int expectedSize) {
+	table = new Object[tableSize(expectedSize)];
+    }
+
+    /**
+     * @return false if the object was already in the set
+     */
+    boolean add(Object o) {
+	final Object[] t = table;
+	final int mask = t.length - 1;
+	for (int i = index(o, mask);; i = (i + 1) & mask) {
+	    final Object e = t[i];
+	    if (e == null) {
+		t[i] = o;
+		if (++size > t.length >> 1) {
+		    resize();
+		}
+		return true;
+	    }
+	    if (e == o) {
+		return false;
+	    }
+	}
+    }
+
+    boolean contains(Object o) {
+	final Object[] t = table;
+	final int mask = t.length - 1;
+	for (int i = index(o, mask);; i = (i + 1) & mask) {
+	    final Object e = t[i];
+	    if (e == null) {
+		return false;
+	    }
+	    if (e == o) {
+		return true;
+	    }
+	}
+    }
+
+    int size() {
+	return size;
+    }
+
+    private void resize() {
+	final Object[] old = table;
+	final Object[] t = new Object[old.length << 1];
+	final int mask = t.length - 1;
+	for (Object o : old) {
+	    if (o != null) {
+		int i = index(o, mask);
+		while (t[i] != null) {
+		    i = (i + 1) & mask;
+		}
+		t[i] = o;
+	    }
+	}
+	table = t;
+    }
+
+    // identity hash codes are often sequential, spread them before masking
+    static int hash(Object o) {
+	final int h = System.identityHashCode(o) * 0x9E3779B9;
+	return h ^ (h >>> 16);
+    }
+
+    private static int index(Object o, int mask) {
+	return hash(o) & mask;
+    }
+
+    private static int tableSize(int expectedSize) {
+	int n = 16;
+	while (n < expectedSize << 1 && n < 1 << 30) {
+	    n <<= 1;
+	}
+	return n;
+    }
+}
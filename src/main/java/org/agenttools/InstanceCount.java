@@ -0,0 +1,98 @@
+/*******************************************************************************
+ * Copyright (c) 2017, Xavier Miret Andres <xavier.mires@gmail.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *******************************************************************************/
+package org.agenttools;
+
+import java.io.Serializable;
+
+/**
+ * The instances constructed by a class, and those still alive, see {@link InstanceCountingTransformer}.
+ */
+public final class InstanceCount implements Serializable {
+
+    private static final long serialVersionUID = 2L;
+
+    private final String className;
+    private final String classLoader;
+    private final long allocated;
+    private final long allocatedBytes;
+    private final long live;
+    private final long liveBytes;
+
+    InstanceCount(String className, String classLoader, long allocated, long allocatedBytes, long live,
+	    long liveBytes) {
+	this.className = className;
+	this.classLoader = classLoader;
+	this.allocated = allocated;
+	this.allocatedBytes = allocatedBytes;
+	this.live = live;
+	this.liveBytes = liveBytes;
+    }
+
+    public String getClassName() {
+	return className;
+    }
+
+    /**
+     * The class loader defining the class, as its name (or else its class name) and identity hash code, i.e.
+     * "app@4e25154f", or "bootstrap". Classes of the same name defined by different class loaders are counted apart.
+     */
+    public String getClassLoader() {
+	return classLoader;
+    }
+
+    /**
+     * The instances constructed since counting started.
+     */
+    public long getAllocated() {
+	return allocated;
+    }
+
+    /**
+     * The shallow size of the instances constructed since counting started.
+     */
+    public long getAllocatedBytes() {
+	return allocatedBytes;
+    }
+
+    /**
+     * The instances which haven't been collected yet.
+     * <p>
+     * Unreachable instances count as live until the garbage collector has collected them.
+     */
+    public long getLive() {
+	return live;
+    }
+
+    /**
+     * The shallow size of the instances which haven't been collected yet.
+     */
+    public long getLiveBytes() {
+	return liveBytes;
+    }
+
+    @Override
+    public String toString() {
+	return "InstanceCount [className=" + className + ", classLoader=" + classLoader + ", allocated="
+		+ allocated + ", allocatedBytes=" + allocatedBytes + ", live=" + live + ", liveBytes=" + liveBytes
+		+ "]";
+    }
+}
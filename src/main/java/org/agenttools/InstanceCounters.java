@@ -0,0 +1,201 @@
+/*******************************************************************************
+ * Copyright (c) 2017, Xavier Miret Andres <xavier.mires@gmail.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *******************************************************************************/
+package org.agenttools;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.ref.PhantomReference;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The counters of the instances constructed by the classes instrumented by {@link InstanceCountingTransformer}.
+ * <p>
+ * Every instance is tracked by a phantom reference until it is collected, so counting adds some work to the allocation
+ * path and to the garbage collector. Counters are kept until the VM exits, resetting the classes only stops counting.
+ * Counting can also be paused, which leaves the instrumented constructors as good as uninstrumented, and the instances
+ * constructed meanwhile untracked.
+ */
+public final class InstanceCounters {
+
+    private static final int STRIPES = 64;
+
+    static final ProbeSwitch enabled = new ProbeSwitch(true);
+    private static final MethodHandle guard = enabled.guard();
+
+    // one per class, classes of the same name defined by different class loaders aren't merged
+    private static final Queue<Counter> counters = new ConcurrentLinkedQueue<>();
+    private static final ByClass byClass = new ByClass();
+
+    private static final ReferenceQueue<Object> queue = new ReferenceQueue<>();
+    // keeps the references reachable until their instances are collected
+    private static final Tracked[] stripes = new Tracked[STRIPES];
+
+    static {
+	for (int i = 0; i < STRIPES; i++) {
+	    stripes[i] = new Tracked();
+	}
+	final Thread reaper = new Thread(InstanceCounters::reap, "agent-tools-instance-reaper");
+	reaper.setDaemon(true);
+	reaper.start();
+    }
+
+    private InstanceCounters() {
+    }
+
+    /**
+     * Called by the instrumented constructors once the instance is constructed.
+     * <p>
+     * Instances are counted by the constructors of their own class only, so instances of subclasses aren't counted
+     * twice, nor those constructors calling another one of the class.
+     * 
+     * @param instance
+     *            the constructed instance
+     * @param declaring
+     *            the class declaring the constructor
+     */
+    public static void constructed(Object instance, Class<?> declaring) {
+	if (!ProbeSwitch.isOn(guard) || instance.getClass() != declaring) {
+	    return;
+	}
+	final Counter counter = byClass.get(declaring);
+	long size = counter.size;
+	if (size == 0) {
+	    // sizes are the same for all instances of a class (other than arrays)
+	    counter.size = size = AgentBootstrap.getInstrumentor().getObjectSize(instance);
+	}
+	counter.allocated.increment();
+	counter.allocatedBytes.add(size);
+
+	final Tracked head = stripes[(int) Thread.currentThread().getId() & (STRIPES - 1)];
+	final Tracked tracked = new Tracked(instance, counter, size, head);
+	synchronized (head) {
+	    tracked.next = head.next;
+	    tracked.previous = head;
+	    if (head.next != null) {
+		head.next.previous = tracked;
+	    }
+	    head.next = tracked;
+	}
+    }
+
+    /**
+     * The counters of the classes which have constructed any instance, by class name and class loader.
+     */
+    static List<InstanceCount> getCounts() {
+	final List<InstanceCount> counts = new ArrayList<>();
+	for (Counter counter : counters) {
+	    final InstanceCount count = counter.snapshot();
+	    // a counter computed concurrently for the same class may be left unused
+	    if (count.getAllocated() > 0) {
+		counts.add(count);
+	    }
+	}
+	Collections.sort(counts, Comparator.comparing(InstanceCount::getClassName).thenComparing(
+		InstanceCount::getClassLoader));
+	return counts;
+    }
+
+    private static void reap() {
+	while (true) {
+	    final Reference<?> reference;
+	    try {
+		reference = queue.remove();
+	    } catch (InterruptedException e) {
+		return;
+	    }
+	    final Tracked tracked = (Tracked) reference;
+	    synchronized (tracked.head) {
+		tracked.previous.next = tracked.next;
+		if (tracked.next != null) {
+		    tracked.next.previous = tracked.previous;
+		}
+	    }
+	    tracked.counter.dead.increment();
+	    tracked.counter.deadBytes.add(tracked.size);
+	}
+    }
+
+    private static final class ByClass extends ClassValue<Counter> {
+	@Override
+	protected Counter computeValue(Class<?> type) {
+	    // keeps the name of the class loader only, so its classes can be unloaded
+	    final Counter counter = new Counter(type.getName(), LoadedClassIndex.describe(type.getClassLoader()));
+	    counters.add(counter);
+	    return counter;
+	}
+    }
+
+    private static final class Counter {
+	final String className;
+	final String classLoader;
+	final LongAdder allocated = new LongAdder();
+	final LongAdder allocatedBytes = new LongAdder();
+	final LongAdder dead = new LongAdder();
+	final LongAdder deadBytes = new LongAdder();
+	volatile long size;
+
+	Counter(String className, String classLoader) {
+	    this.className = className;
+	    this.classLoader = classLoader;
+	}
+
+	// dead first, so live counts never go negative
+	InstanceCount snapshot() {
+	    final long dead = this.dead.sum();
+	    final long deadBytes = this.deadBytes.sum();
+	    final long allocated = this.allocated.sum();
+	    final long allocatedBytes = this.allocatedBytes.sum();
+	    return new InstanceCount(className, classLoader, allocated, allocatedBytes, Math.max(0, allocated - dead),
+		    Math.max(0, allocatedBytes - deadBytes));
+	}
+    }
+
+    // A node of a stripe list, the head of each stripe tracks no instance.
+    private static final class Tracked extends PhantomReference<Object> {
+	final Counter counter;
+	final long size;
+	final Tracked head;
+	Tracked previous;
+	Tracked next;
+
+	Tracked() {
+	    super(null, null);
+	    this.counter = null;
+	    this.size = 0;
+	    this.head = this;
+	}
+
+	Tracked(Object instance, Counter counter, long size, Tracked head) {
+	    super(instance, queue);
+	    this.counter = counter;
+	    this.size = size;
+	    this.head = head;
+	}
+    }
+}
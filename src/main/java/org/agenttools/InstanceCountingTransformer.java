@@ -0,0 +1,74 @@
+/*******************************************************************************
+ * Copyright (c) 2017, Xavier Miret Andres <xavier.mires@gmail.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *******************************************************************************/
+package org.agenttools;
+
+import java.io.Serializable;
+import java.lang.instrument.ClassFileTransformer;
+import java.security.ProtectionDomain;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Instruments the constructors of the classes it transforms, so their instances are counted by
+ * {@link InstanceCounters}.
+ * <p>
+ * Use it to re-transform the classes to count, i.e. {@code Agents.retransform(new InstanceCountingTransformer(), ...)}
+ * and reset them to stop. Only classes whose class loader sees the agent are instrumented, which excludes those of the
+ * bootstrap class loader.
+ */
+public final class InstanceCountingTransformer implements ClassFileTransformer, Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    private static final Logger log = Logger.getLogger(InstanceCountingTransformer.class.getName());
+
+    private static final String COUNTERS = InstanceCounters.class.getName().replace('.', '/');
+    // ldc of a class constant needs a Java 5 class file
+    private static final int MIN_VERSION = 49;
+
+    @Override
+    public byte[] transform(ClassLoader loader, String className, Class<?> classBeingRedefined,
+	    ProtectionDomain protectionDomain, byte[] classfileBuffer) {
+	// the counters can't count themselves
+	if (className == null || className.startsWith(COUNTERS) || !ClassTools.isVisible(InstanceCounters.class, loader)
+		|| (classfileBuffer[6] << 8 | classfileBuffer[7] & 0xFF) < MIN_VERSION) {
+	    return null;
+	}
+	try {
+	    final ClassFileEditor editor = new ClassFileEditor(classfileBuffer);
+	    final Set<String> chained = editor.getChainedConstructors();
+	    // aload_0, ldc_w this, invokestatic InstanceCounters.constructed
+	    final int thisClass = editor.getThisClass();
+	    final int constructed = editor.addMethodref(COUNTERS, "constructed",
+		    "(Ljava/lang/Object;Ljava/lang/Class;)V");
+	    final byte[] epilogue = { 0x2A, 0x13, (byte) (thisClass >>> 8), (byte) thisClass, (byte) 0xB8,
+		    (byte) (constructed >>> 8), (byte) constructed };
+	    final ClassFileEditor.Injection injection = new ClassFileEditor.Injection(null, epilogue, null, 2);
+	    return editor.edit((access, name, descriptor) -> "<init>".equals(name) && !chained.contains(descriptor)
+		    ? injection : null);
+	} catch (RuntimeException e) {
+	    log.log(Level.WARNING, String.format("Unable to count the instances of the class '%s'.", className), e);
+	    return null;
+	}
+    }
+}
@@ -27,12 +27,21 @@ import java.lang.instrument.ClassDefinition;
 import java.lang.instrument.ClassFileTransformer;
 import java.lang.instrument.Instrumentation;
 import java.lang.instrument.UnmodifiableClassException;
-import java.nio.file.Files;
-import java.nio.file.Paths;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
-import java.util.function.Predicate;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.jar.JarFile;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -42,20 +51,226 @@ public class Instrumentor implements InstrumentorMBean {
 
     private static final Logger log = Logger.getLogger(Agents.class.getName());
 
+    // a precomputed transformation leaving the class unchanged
+    private static final Object UNCHANGED = new Object();
+    private static final int MAX_FINISHED_SCHEDULES = 16;
+
     private final Instrumentation instrumentation;
+    private final LoadedClassIndex loadedClasses;
+    private final TransformerRegistry transformers;
+    private final JarStore jars;
+    private final ObjectGraphSizer sizer;
+
+    // transformers uploaded once by remote controllers, by id
+    private final Map<String, ClassFileTransformer> registered = new ConcurrentHashMap<>();
+    // the installations of the registered transformers, most recent last, guarded by itself
+    private final Map<String, Deque<TransformerHandle>> installedById = new HashMap<>();
+
+    // guarded by this
+    private TraceWriter trace = null;
+
+    private volatile OriginalClassCache resetCache = null;
+    // Registered before any other transformer of the agent: non re-transforming transformers are called in
+    // registration order, so the reset cache records the class files before they transform them.
+    private final ClassFileTransformer originals = (loader, className, c, domain, bytes) -> {
+	final OriginalClassCache cache = resetCache;
+	return cache == null ? null : cache.transform(loader, className, c, domain, bytes);
+    };
+
+    // the scheduled re-transformations, oldest first, guarded by itself
+    private final Map<Long, ScheduledRetransform> scheduled = new LinkedHashMap<>();
+    private final AtomicLong scheduleIds = new AtomicLong();
 
-    Instrumentor(Instrumentation instrumentation) {
+    Instrumentor(Instrumentation instrumentation, TransformerDispatcher dispatcher) {
 	this.instrumentation = instrumentation;
+	instrumentation.addTransformer(originals, false);
+	this.transformers = new TransformerRegistry(instrumentation, dispatcher);
+	this.jars = new JarStore(instrumentation);
+	this.sizer = new ObjectGraphSizer(instrumentation);
+	this.loadedClasses = new LoadedClassIndex(instrumentation);
+	loadedClasses.install();
+    }
+
+    LoadedClassIndex getLoadedClasses() {
+	return loadedClasses;
+    }
+
+    /**
+     * Looks up a loaded class without loading anything, unlike {@link Class#forName(String)}.
+     * 
+     * @param loaderHint
+     *            the class loader defining the class, see {@link ClassSelector#loadedBy(String)}, or null for any
+     * @return null if no such class is loaded
+     * @throws AgentLoadingException
+     *             if several class loaders matching the hint define such a class
+     */
+    Class<?> findClass(String className, String loaderHint) {
+	final List<Class<?>> classes = loadedClasses.find(className, loaderHint);
+	if (classes.size() > 1) {
+	    final List<String> loaders = new ArrayList<>();
+	    for (Class<?> c : classes) {
+		loaders.add(LoadedClassIndex.describe(c.getClassLoader()));
+	    }
+	    throw new AgentLoadingException(String.format(
+		    "The class %s is defined by several class loaders %s, give a loader hint.", className, loaders));
+	}
+	return classes.isEmpty() ? null : classes.get(0);
+    }
+
+    @Override
+    public List<String> getClassLoaders(String className) {
+	return loadedClasses.findLoaders(className);
+    }
+
+    ObjectGraphSizer getObjectGraphSizer() {
+	return sizer;
     }
 
     @Override
     public void addTransformer(ClassFileTransformer transformer) {
-	instrumentation.addTransformer(transformer);
+	install(transformer, false);
+    }
+
+    /**
+     * Installs the transformer and returns a handle to remove it.
+     */
+    TransformerHandle install(ClassFileTransformer transformer, boolean canRetransform) {
+	return transformers.add(transformer, canRetransform);
+    }
+
+    /**
+     * Installs the transformer for the classes chosen by the selector only, and returns a handle to remove it.
+     */
+    TransformerHandle install(ClassFileTransformer transformer, ClassSelector selector) {
+	return transformers.add(transformer, selector);
+    }
+
+    @Override
+    public void addTransformer(ClassFileTransformer transformer, ClassSelector selector) {
+	install(transformer, selector);
     }
 
     @Override
     public boolean removeTransformer(ClassFileTransformer transformer) {
-	return instrumentation.removeTransformer(transformer);
+	// not installed through the agent (i.e. before it was started), try directly
+	return transformers.remove(transformer) || instrumentation.removeTransformer(transformer);
+    }
+
+    @Override
+    public void registerTransformer(String id, ClassFileTransformer transformer) {
+	registered.put(id, transformer);
+    }
+
+    @Override
+    public void registerTransformer(String id, Handoff transformer) {
+	registerTransformer(id, read(transformer));
+    }
+
+    @Override
+    public boolean isTransformerRegistered(String id) {
+	return registered.containsKey(id);
+    }
+
+    @Override
+    public void unregisterTransformer(String id) {
+	registered.remove(id);
+	final Deque<TransformerHandle> handles;
+	synchronized (installedById) {
+	    handles = installedById.remove(id);
+	}
+	if (handles != null) {
+	    for (TransformerHandle handle : handles) {
+		handle.close();
+	    }
+	}
+    }
+
+    @Override
+    public boolean addTransformer(String id) {
+	final ClassFileTransformer transformer = registered.get(id);
+	if (transformer == null) {
+	    return false;
+	}
+	installed(id, install(transformer, false));
+	return true;
+    }
+
+    @Override
+    public boolean addTransformer(String id, ClassSelector selector) {
+	final ClassFileTransformer transformer = registered.get(id);
+	if (transformer == null) {
+	    return false;
+	}
+	installed(id, install(transformer, selector));
+	return true;
+    }
+
+    private void installed(String id, TransformerHandle handle) {
+	synchronized (installedById) {
+	    installedById.computeIfAbsent(id, k -> new ArrayDeque<>()).addLast(handle);
+	}
+    }
+
+    @Override
+    public boolean removeTransformer(String id) {
+	final TransformerHandle handle;
+	synchronized (installedById) {
+	    final Deque<TransformerHandle> handles = installedById.get(id);
+	    handle = handles == null ? null : handles.pollLast();
+	}
+	if (handle == null) {
+	    return false;
+	}
+	handle.close();
+	return true;
+    }
+
+    @Override
+    public boolean retransform(String id, String... classNames) throws AgentLoadingException {
+	final ClassFileTransformer transformer = registered.get(id);
+	if (transformer == null) {
+	    return false;
+	}
+	retransform(transformer, classNames);
+	return true;
+    }
+
+    @Override
+    public boolean retransformLoadedBy(String loaderHint, String id, String... classNames)
+	    throws AgentLoadingException {
+	final ClassFileTransformer transformer = registered.get(id);
+	if (transformer == null) {
+	    return false;
+	}
+	retransformLoadedBy(loaderHint, transformer, classNames);
+	return true;
+    }
+
+    @Override
+    public int retransform(String id, ClassSelector selector) {
+	final ClassFileTransformer transformer = registered.get(id);
+	return transformer == null ? -1 : retransform(transformer, selector);
+    }
+
+    @Override
+    public BatchResult execute(Batch batch) {
+	return batch.execute(this);
+    }
+
+    @Override
+    public BatchResult execute(Handoff batch) {
+	final Batch b;
+	try {
+	    b = (Batch) batch.readObject();
+	} catch (IOException | ClassNotFoundException | ClassCastException e) {
+	    throw new AgentLoadingException(String.format("Unable to read the batch from { %s }.", batch), e);
+	}
+	return execute(b);
+    }
+
+    @Override
+    public int getTransformerCount() {
+	return transformers.size();
     }
 
     @Override
@@ -63,69 +278,512 @@ public class Instrumentor implements InstrumentorMBean {
 	retransform(reset, classNames);
     }
 
+    @Override
+    public void resetLoadedBy(String loaderHint, String... classNames) {
+	retransformLoadedBy(loaderHint, reset, classNames);
+    }
+
+    @Override
+    public synchronized void enableResetCache(ClassSelector selector, long byteBudget) {
+	disableResetCache();
+	resetCache = new OriginalClassCache(selector, byteBudget);
+    }
+
+    @Override
+    public synchronized void disableResetCache() {
+	final OriginalClassCache cache = resetCache;
+	if (cache != null) {
+	    resetCache = null;
+	    cache.clear();
+	}
+    }
+
+    @Override
+    public long getResetCacheHits() {
+	final OriginalClassCache cache = resetCache;
+	return cache == null ? 0 : cache.getHits();
+    }
+
+    @Override
+    public long getResetCacheMisses() {
+	final OriginalClassCache cache = resetCache;
+	return cache == null ? 0 : cache.getMisses();
+    }
+
+    @Override
+    public long getResetCacheResidentBytes() {
+	final OriginalClassCache cache = resetCache;
+	return cache == null ? 0 : cache.getResidentBytes();
+    }
+
+    @Override
+    public List<InstanceCount> getInstanceCounts() {
+	return InstanceCounters.getCounts();
+    }
+
+    @Override
+    public List<MethodTiming> getMethodTimings() {
+	return MethodTimers.getTimings();
+    }
+
+    @Override
+    public void setInstanceCountingEnabled(boolean enabled) {
+	InstanceCounters.enabled.set(enabled);
+    }
+
+    @Override
+    public boolean isInstanceCountingEnabled() {
+	return InstanceCounters.enabled.isOn();
+    }
+
+    @Override
+    public void setMethodTimingEnabled(boolean enabled) {
+	MethodTimers.enabled.set(enabled);
+    }
+
+    @Override
+    public boolean isMethodTimingEnabled() {
+	return MethodTimers.enabled.isOn();
+    }
+
+    @Override
+    public long getEmittedEvents() {
+	return Events.channel().getOffered();
+    }
+
+    @Override
+    public long getDroppedEvents() {
+	return Events.channel().getDropped();
+    }
+
+    @Override
+    public synchronized String startTrace(int segmentBytes, int segments) {
+	if (trace == null) {
+	    final File file = new File(PrivateFiles.path("trace"), AgentBootstrap.getPid() + ".trace");
+	    try {
+		PrivateFiles.directory("trace");
+		trace = new TraceWriter(file, Events.channel(), segmentBytes, segments);
+	    } catch (IOException e) {
+		throw new AgentLoadingException(String.format("Unable to write the trace file '%s'.", file), e);
+	    }
+	}
+	return trace.getFile().getAbsolutePath();
+    }
+
+    @Override
+    public synchronized void stopTrace() {
+	if (trace != null) {
+	    trace.close();
+	    trace = null;
+	}
+    }
+
     @Override
     public void retransform(ClassFileTransformer transformer, String... classNames) throws AgentLoadingException {
-	instrumentation.addTransformer(new FilteredClassFileTransformer(transformer, in(classNames)), true);
+	retransformLoadedBy(null, transformer, classNames);
+    }
+
+    @Override
+    public void retransformLoadedBy(String loaderHint, ClassFileTransformer transformer, String... classNames)
+	    throws AgentLoadingException {
+	final TransformerHandle handle = transformers.add(transformer, names(loaderHint, classNames));
 	try {
 	    // Load classes which haven't been loaded. That applies the transformation.
-	    final Set<String> loaded = loadIfUnloaded(classNames);
+	    final List<Class<?>> loaded = loadIfUnloaded(loaderHint, classNames);
 
 	    // Re-transform the remaining
-	    final Set<String> remaining = new LinkedHashSet<>(Arrays.asList(classNames)).stream()
-		    .filter(f -> !loaded.contains(f)).collect(Collectors.toSet());
-
-	    if (!remaining.isEmpty()) {
-		instrumentation.retransformClasses(ClassTools.getClass(remaining.toArray(new String[remaining.size()]))
-			.toArray(new Class[0]));
+	    if (!loaded.isEmpty()) {
+		instrumentation.retransformClasses(loaded.toArray(new Class<?>[loaded.size()]));
 	    }
 	} catch (Exception e) {
 	    throw new AgentLoadingException(String.format(
 		    "All or some of the following classes couldn't be transformed { %s }.", Arrays.asList(classNames)
 			    .toString()), e);
 	} finally {
-	    instrumentation.removeTransformer(transformer);
+	    handle.close();
 	}
     }
 
-    private Set<String> loadIfUnloaded(String[] classNames) throws ClassNotFoundException {
-	final Set<String> allLoadedClasses = Arrays.asList(instrumentation.getAllLoadedClasses()).stream()
-		.map(c -> c.getName()).collect(Collectors.toSet());
+    // Returns the classes which were already loaded, in every class loader matching the hint.
+    private List<Class<?>> loadIfUnloaded(String loaderHint, String[] classNames) throws ClassNotFoundException {
+	final List<Class<?>> loaded = new ArrayList<>();
+	for (String className : new LinkedHashSet<>(Arrays.asList(classNames))) {
+	    final List<Class<?>> classes = loadedClasses.find(className, loaderHint);
+	    if (classes.isEmpty()) {
+		load(className, loaderHint);
+	    } else {
+		loaded.addAll(classes);
+	    }
+	}
+	return loaded;
+    }
 
-	final Set<String> notLoaded = new LinkedHashSet<>(Arrays.asList(classNames)).stream()
-		.filter(f -> !allLoadedClasses.contains(f)).collect(Collectors.toSet());
+    @Override
+    public void redefine(String className, byte[] bytes) throws AgentLoadingException {
+	final RedefineResult result = redefine(Collections.singletonMap(className, bytes));
+	if (!result.isSuccess()) {
+	    final RedefineResult.ClassOutcome outcome = result.getOutcome(className);
+	    throw new AgentLoadingException(String.format("The following class couldn't be redefined { %s }.",
+		    outcome), outcome.getCause());
+	}
+    }
 
-	// load them
-	ClassTools.getClass(notLoaded.toArray(new String[notLoaded.size()]));
-	return notLoaded;
+    @Override
+    public RedefineResult redefine(Map<String, byte[]> definitions) {
+	return redefineLoadedBy(null, definitions);
     }
 
     @Override
-    public void redefine(String className, byte[] bytes) throws AgentLoadingException {
+    public RedefineResult redefineLoadedBy(String loaderHint, Map<String, byte[]> definitions) {
+	final RedefineResult result = new RedefineResult();
+	final List<ClassDefinition> batch = new ArrayList<>();
+	// internal name -> bytes
+	final Map<String, byte[]> unloaded = new LinkedHashMap<>();
+
+	for (Map.Entry<String, byte[]> definition : definitions.entrySet()) {
+	    final List<Class<?>> classes = loadedClasses.find(definition.getKey(), loaderHint);
+	    if (classes.isEmpty()) {
+		unloaded.put(definition.getKey().replace('.', '/'), definition.getValue());
+	    } else {
+		for (Class<?> c : classes) {
+		    batch.add(new ClassDefinition(c, definition.getValue()));
+		}
+	    }
+	}
+
+	// Redefine all loaded classes at once, that's a single safepoint.
+	if (!batch.isEmpty()) {
+	    Throwable error = null;
+	    final long start = System.nanoTime();
+	    try {
+		instrumentation.redefineClasses(batch.toArray(new ClassDefinition[batch.size()]));
+	    } catch (ClassNotFoundException | UnmodifiableClassException | RuntimeException | LinkageError e) {
+		error = e;
+	    }
+	    final long nanos = System.nanoTime() - start;
+	    for (ClassDefinition definition : batch) {
+		result.add(definition.getDefinitionClass().getName(), error, nanos);
+	    }
+	}
+
+	// Load the others with their redefinition.
+	if (!unloaded.isEmpty()) {
+	    final ClassFileTransformer redefinition = (cl, n, c, p, bytes) -> c == null ? unloaded.get(n) : null;
+	    loadWith(redefinition, unloaded.keySet(), loaderHint, result);
+	}
+	return result;
+    }
+
+    // Loads the classes, with the transformer installed for them only.
+    private void loadWith(ClassFileTransformer transformer, Collection<String> internalNames, String loaderHint,
+	    RedefineResult result) {
+	final TransformerHandle handle = transformers.add(transformer, names(loaderHint, internalNames.toArray(
+		new String[internalNames.size()])));
 	try {
-	    redefineClasses(new ClassDefinition(Class.forName(className), bytes));
-	} catch (Exception e) {
-	    throw new AgentLoadingException(String.format("The following class couldn't be redefined { %s }.",
-		    className), e);
+	    for (String internalName : internalNames) {
+		final String className = internalName.replace('/', '.');
+		Throwable error = null;
+		final long start = System.nanoTime();
+		try {
+		    load(className, loaderHint);
+		} catch (ClassNotFoundException | LinkageError e) {
+		    error = e;
+		}
+		result.add(className, error, System.nanoTime() - start);
+	    }
+	} finally {
+	    handle.close();
+	}
+    }
+
+    private static ClassSelector names(String loaderHint, String... classNames) {
+	final ClassSelector names = ClassSelector.names(classNames);
+	return loaderHint == null ? names : names.loadedBy(loaderHint);
+    }
+
+    /**
+     * Loads the class through the class loader matching the hint, or else the system class loader, never through the
+     * agent's own.
+     */
+    private Class<?> load(String className, String loaderHint) throws ClassNotFoundException {
+	final ClassLoader loader;
+	if (loaderHint == null) {
+	    loader = ClassLoader.getSystemClassLoader();
+	} else {
+	    final List<ClassLoader> loaders = loadedClasses.findHintedLoaders(loaderHint);
+	    if (loaders.size() != 1) {
+		throw new ClassNotFoundException(String.format("%s, %d class loaders match the hint '%s'.",
+			className, loaders.size(), loaderHint));
+	    }
+	    loader = loaders.get(0);
 	}
+	return Class.forName(className, true, loader);
     }
 
     @Override
-    public void redefineClasses(ClassDefinition... definitions) throws ClassNotFoundException,
-	    UnmodifiableClassException {
-	for (ClassDefinition definition : definitions) {
-	    retransform(redefine(definition.getDefinitionClassFile()), definition.getDefinitionClass().getName());
+    public RedefineResult retransformParallel(ClassFileTransformer transformer, String... classNames) {
+	final List<Class<?>> loaded = new ArrayList<>();
+	final Set<String> unloaded = new LinkedHashSet<>();
+	for (String className : new LinkedHashSet<>(Arrays.asList(classNames))) {
+	    final List<Class<?>> classes = loadedClasses.find(className);
+	    if (classes.isEmpty()) {
+		unloaded.add(className.replace('.', '/'));
+	    } else {
+		loaded.addAll(classes);
+	    }
+	}
+	return retransformParallel(transformer, loaded, unloaded);
+    }
+
+    @Override
+    public RedefineResult retransformParallel(ClassFileTransformer transformer, ClassSelector selector) {
+	return retransformParallel(transformer, modifiable(select(selector)), Collections.<String> emptySet());
+    }
+
+    private RedefineResult retransformParallel(ClassFileTransformer transformer, List<Class<?>> loaded,
+	    Set<String> unloaded) {
+	final RedefineResult result = new RedefineResult();
+	// Transform outside of any VM operation, on every core.
+	final Map<Class<?>, Object> transformed = new ConcurrentHashMap<>();
+	loaded.parallelStream().forEach(c -> transformed.put(c, precompute(transformer, c)));
+
+	final List<ClassDefinition> batch = new ArrayList<>();
+	for (Class<?> c : loaded) {
+	    final Object outcome = transformed.get(c);
+	    if (outcome instanceof byte[]) {
+		batch.add(new ClassDefinition(c, (byte[]) outcome));
+	    } else {
+		// left unchanged, or failed
+		result.add(c.getName(), outcome == UNCHANGED ? null : (Throwable) outcome, 0);
+	    }
+	}
+
+	// Install them all at once, that's a single safepoint.
+	if (!batch.isEmpty()) {
+	    Throwable error = null;
+	    final long start = System.nanoTime();
+	    try {
+		instrumentation.redefineClasses(batch.toArray(new ClassDefinition[batch.size()]));
+	    } catch (ClassNotFoundException | UnmodifiableClassException | RuntimeException | LinkageError e) {
+		error = e;
+	    }
+	    final long nanos = System.nanoTime() - start;
+	    for (ClassDefinition definition : batch) {
+		result.add(definition.getDefinitionClass().getName(), error, nanos);
+	    }
 	}
+
+	if (!unloaded.isEmpty()) {
+	    loadWith(transformer, unloaded, null, result);
+	}
+	return result;
+    }
+
+    @Override
+    public int retransform(ClassFileTransformer transformer, ClassSelector selector) {
+	final TransformerHandle handle = transformers.add(transformer, selector);
+	try {
+	    return retransformLoaded(selector);
+	} finally {
+	    handle.close();
+	}
+    }
+
+    @Override
+    public int reset(ClassSelector selector) {
+	return retransform(reset, selector);
+    }
+
+    /**
+     * Installs the transformer for the selected classes, and re-transforms those already loaded.
+     */
+    TransformerHandle instrument(ClassFileTransformer transformer, ClassSelector selector) {
+	final TransformerHandle handle = install(transformer, selector);
+	try {
+	    retransformLoaded(selector);
+	} catch (AgentLoadingException e) {
+	    handle.close();
+	    throw e;
+	}
+	return handle;
+    }
+
+    @Override
+    public int instrument(String id, ClassSelector selector) {
+	final ClassFileTransformer transformer = registered.get(id);
+	if (transformer == null) {
+	    return -1;
+	}
+	final TransformerHandle handle = install(transformer, selector);
+	installed(id, handle);
+	try {
+	    return retransformLoaded(selector);
+	} catch (RuntimeException e) {
+	    synchronized (installedById) {
+		final Deque<TransformerHandle> handles = installedById.get(id);
+		if (handles != null) {
+		    handles.remove(handle);
+		}
+	    }
+	    handle.close();
+	    throw e;
+	}
+    }
+
+    @Override
+    public long scheduleRetransform(ClassFileTransformer transformer, ClassSelector selector,
+	    RetransformSchedule schedule) {
+	final long id = scheduleIds.incrementAndGet();
+	final TransformerHandle handle = transformers.add(transformer, selector);
+	final ScheduledRetransform retransform;
+	try {
+	    retransform = new ScheduledRetransform(id, selector.toString(), modifiable(select(selector)),
+		    instrumentation, handle, schedule, ScheduledRetransform::processCpuLoad);
+	} catch (RuntimeException e) {
+	    handle.close();
+	    throw e;
+	}
+	synchronized (scheduled) {
+	    // keep the latest finished ones only
+	    int finished = 0;
+	    for (ScheduledRetransform r : scheduled.values()) {
+		finished += r.isFinished() ? 1 : 0;
+	    }
+	    for (Iterator<ScheduledRetransform> it = scheduled.values().iterator(); finished >= MAX_FINISHED_SCHEDULES
+		    && it.hasNext();) {
+		if (it.next().isFinished()) {
+		    it.remove();
+		    finished--;
+		}
+	    }
+	    scheduled.put(id, retransform);
+	}
+	retransform.start();
+	return id;
     }
 
-    private Predicate<String> in(String[] classNames) {
-	final Set<String> set = Arrays.asList(classNames).stream().map(x -> x.replace('.', '/'))
-		.collect(Collectors.toSet());
-	return cn -> set.contains(cn);
+    @Override
+    public long scheduleRetransform(String id, ClassSelector selector, RetransformSchedule schedule) {
+	final ClassFileTransformer transformer = registered.get(id);
+	return transformer == null ? -1 : scheduleRetransform(transformer, selector, schedule);
+    }
+
+    @Override
+    public RetransformProgress getRetransformProgress(long id) {
+	final ScheduledRetransform retransform;
+	synchronized (scheduled) {
+	    retransform = scheduled.get(id);
+	}
+	return retransform == null ? null : retransform.getProgress();
+    }
+
+    @Override
+    public List<RetransformProgress> getRetransformProgresses() {
+	final List<ScheduledRetransform> retransforms;
+	synchronized (scheduled) {
+	    retransforms = new ArrayList<>(scheduled.values());
+	}
+	final List<RetransformProgress> progresses = new ArrayList<>(retransforms.size());
+	for (ScheduledRetransform retransform : retransforms) {
+	    progresses.add(retransform.getProgress());
+	}
+	return progresses;
+    }
+
+    @Override
+    public boolean cancelRetransform(long id) {
+	final ScheduledRetransform retransform;
+	synchronized (scheduled) {
+	    retransform = scheduled.get(id);
+	}
+	if (retransform == null || retransform.isFinished()) {
+	    return false;
+	}
+	retransform.cancel();
+	return true;
+    }
+
+    // Re-transforms the loaded classes the selector selects, with the transformers routed to them.
+    private int retransformLoaded(ClassSelector selector) {
+	final List<Class<?>> selected = modifiable(select(selector));
+	if (!selected.isEmpty()) {
+	    try {
+		instrumentation.retransformClasses(selected.toArray(new Class<?>[selected.size()]));
+	    } catch (UnmodifiableClassException | RuntimeException | LinkageError e) {
+		throw new AgentLoadingException(String.format(
+			"All or some of the classes selected by { %s } couldn't be transformed.", selector), e);
+	    }
+	}
+	return selected.size();
+    }
+
+    /**
+     * The loaded classes the selector selects. Class loaders are checked in parallel.
+     */
+    List<Class<?>> select(ClassSelector selector) {
+	if (selector.isNamesOnly()) {
+	    // looked up by name, whatever the number of loaded classes
+	    final List<Class<?>> selected = new ArrayList<>();
+	    for (String className : selector.getClassNames()) {
+		selected.addAll(loadedClasses.find(className, selector.getLoaderHint()));
+	    }
+	    return selected;
+	}
+	final Map<ClassLoader, List<Class<?>>> byLoader = new HashMap<>();
+	for (Class<?> c : instrumentation.getAllLoadedClasses()) {
+	    // neither arrays nor hidden classes can be resolved by name
+	    if (!c.isArray() && !c.isPrimitive() && c.getName().indexOf('/') < 0) {
+		byLoader.computeIfAbsent(c.getClassLoader(), k -> new ArrayList<>()).add(c);
+	    }
+	}
+	return byLoader.values().parallelStream().flatMap(classes -> classes.stream().filter(selector::matches))
+		.collect(Collectors.toList());
+    }
+
+    private List<Class<?>> modifiable(List<Class<?>> classes) {
+	final List<Class<?>> modifiable = new ArrayList<>(classes.size());
+	for (Class<?> c : classes) {
+	    if (instrumentation.isModifiableClass(c)) {
+		modifiable.add(c);
+	    }
+	}
+	return modifiable;
+    }
+
+    // the transformed bytes, UNCHANGED or the failure
+    private Object precompute(ClassFileTransformer transformer, Class<?> c) {
+	final String internalName = c.getName().replace('.', '/');
+	try {
+	    final byte[] bytes = originalBytes(c.getClassLoader(), internalName);
+	    final byte[] transformed = transformer.transform(c.getClassLoader(), internalName, c,
+		    c.getProtectionDomain(), bytes);
+	    return transformed == null || transformed == bytes ? UNCHANGED : transformed;
+	} catch (Throwable e) {
+	    return e;
+	}
+    }
+
+    @Override
+    public RedefineResult retransformParallel(String id, String... classNames) {
+	final ClassFileTransformer transformer = registered.get(id);
+	return transformer == null ? null : retransformParallel(transformer, classNames);
+    }
+
+    @Override
+    public RedefineResult retransformParallel(String id, ClassSelector selector) {
+	final ClassFileTransformer transformer = registered.get(id);
+	return transformer == null ? null : retransformParallel(transformer, selector);
+    }
+
+    @Override
+    public void redefineClasses(ClassDefinition... definitions) throws ClassNotFoundException,
+	    UnmodifiableClassException {
+	instrumentation.redefineClasses(definitions);
     }
 
     @Override
     public void addTransformer(ClassFileTransformer transformer, boolean canRetransform) {
-	instrumentation.addTransformer(transformer, canRetransform);
+	install(transformer, canRetransform);
     }
 
     @Override
@@ -185,41 +843,73 @@ public class Instrumentor implements InstrumentorMBean {
 
     @Override
     public void appendToSystemClassLoader(String jarName, byte[] jarBytes) {
-	instrumentation.appendToSystemClassLoaderSearch(getJarFile(jarName, jarBytes));
+	if (jarName != null && jarBytes != null) {
+	    jars.appendToSystemClassLoader(jars.put(jarBytes));
+	}
     }
 
     @Override
     public void appendToBootstrapClassLoader(String jarName, byte[] jarBytes) {
-	instrumentation.appendToBootstrapClassLoaderSearch(getJarFile(jarName, jarBytes));
+	if (jarName != null && jarBytes != null) {
+	    jars.appendToBootstrapClassLoader(jars.put(jarBytes));
+	}
     }
 
-    private static JarFile getJarFile(String jarName, byte[] jarBytes) {
-	if (jarName != null && jarBytes != null) {
-	    File tmp = null;
-	    try {
-		tmp = File.createTempFile(jarName, ".jar");
-		Files.write(Paths.get(tmp.toURI()), jarBytes);
-		return new JarFile(tmp);
-	    } catch (IOException e) {
-		throw new AgentLoadingException(String.format("Unable to load the provided jar { %s }.",
-			jarName.concat(".jar")), e);
-	    } finally {
-		tmp.deleteOnExit();
-	    }
+    @Override
+    public boolean appendJarToSystemClassLoader(String hash) {
+	return jars.appendToSystemClassLoader(hash);
+    }
+
+    @Override
+    public boolean appendJarToBootstrapClassLoader(String hash) {
+	return jars.appendToBootstrapClassLoader(hash);
+    }
+
+    @Override
+    public void writeJarChunk(String hash, long offset, byte[] chunk) {
+	jars.write(hash, offset, chunk);
+    }
+
+    @Override
+    public void writeJar(String hash, Handoff jar) {
+	jars.write(hash, jar);
+    }
+
+    @Override
+    public RedefineResult redefine(Handoff definitions) {
+	try {
+	    return redefine(definitions.readDefinitions());
+	} catch (IOException | RuntimeException e) {
+	    throw new AgentLoadingException(String.format("Unable to read the definitions from { %s }.", definitions), e);
 	}
-	return null;
     }
 
-    private final static ClassFileTransformer reset = (cl, n, c, p, bytes) -> {
+    @Override
+    public void retransform(Handoff transformer, String... classNames) {
+	retransform(read(transformer), classNames);
+    }
+
+    private static ClassFileTransformer read(Handoff transformer) {
+	try {
+	    return (ClassFileTransformer) transformer.readObject();
+	} catch (IOException | ClassNotFoundException | ClassCastException e) {
+	    throw new AgentLoadingException(String.format("Unable to read the transformer from { %s }.", transformer), e);
+	}
+    }
+
+    private final ClassFileTransformer reset = (cl, n, c, p, bytes) -> {
 	try {
-	    return ClassTools.getClassBytes(n);
+	    return originalBytes(cl, n);
 	} catch (Throwable e) {
 	    log.log(Level.FINE, String.format("Unable to revert instrumented changes in the class '%s'.", n), e);
 	}
-	return bytes;
+	return null;
     };
 
-    private final static ClassFileTransformer redefine(final byte[] redefinition) {
-	return (cl, n, c, p, bytes) -> redefinition;
+    // from the reset cache, or the class file
+    byte[] originalBytes(ClassLoader loader, String internalName) throws IOException {
+	final OriginalClassCache cache = resetCache;
+	final byte[] original = cache == null ? null : cache.get(loader, internalName);
+	return original != null ? original : ClassTools.getClassBytes(loader, internalName);
     }
 }
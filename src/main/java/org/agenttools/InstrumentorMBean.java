@@ -23,16 +23,321 @@ package org.agenttools;
 
 import java.lang.instrument.ClassFileTransformer;
 import java.lang.instrument.Instrumentation;
+import java.util.List;
+import java.util.Map;
 
 public interface InstrumentorMBean extends Instrumentation
 {
+    /**
+     * Registers the transformer for the classes chosen by the selector only.
+     * <p>
+     * The transformer is called when the selected classes are loaded, re-transformed or redefined.
+     */
+    void addTransformer(ClassFileTransformer transformer, ClassSelector selector);
+
     void reset(String... classNames) throws AgentLoadingException;
     
     void retransform(ClassFileTransformer transformer, String... classNames) throws AgentLoadingException;
     
     void redefine(String className, byte[] bytes) throws AgentLoadingException;
+
+    /**
+     * Same as {@link #reset(String...)}, for the classes defined by the class loaders matching the hint only (see
+     * {@link ClassSelector#loadedBy(String)}). Classes not loaded yet are loaded by the class loader matching the hint.
+     */
+    void resetLoadedBy(String loaderHint, String... classNames) throws AgentLoadingException;
+
+    /**
+     * Same as {@link #retransform(ClassFileTransformer, String...)}, for the classes defined by the class loaders
+     * matching the hint only. Classes not loaded yet are loaded by the class loader matching the hint.
+     */
+    void retransformLoadedBy(String loaderHint, ClassFileTransformer transformer, String... classNames)
+            throws AgentLoadingException;
+
+    /**
+     * Redefines all loaded classes in a single VM operation, and loads the remaining ones with their redefinition.
+     * 
+     * @param definitions
+     *            class name to .class file bytes
+     */
+    RedefineResult redefine(Map<String, byte[]> definitions);
+
+    /**
+     * Same as {@link #redefine(Map)}, for the classes defined by the class loaders matching the hint only. Classes not
+     * loaded yet are loaded by the class loader matching the hint.
+     */
+    RedefineResult redefineLoadedBy(String loaderHint, Map<String, byte[]> definitions);
     
     void appendToSystemClassLoader(String jarName, byte[] jarBytes) throws AgentLoadingException;
     
     void appendToBootstrapClassLoader(String jarName, byte[] jarBytes) throws AgentLoadingException;
+
+    /**
+     * Appends the jar with the given content hash (SHA-256, lower case hex) to the system class loader, unless it was
+     * appended already.
+     * 
+     * @return false if the jar must be uploaded first, see {@link #writeJarChunk(String, long, byte[])}
+     */
+    boolean appendJarToSystemClassLoader(String hash) throws AgentLoadingException;
+
+    /**
+     * Bootstrap class loader version of {@link #appendJarToSystemClassLoader(String)}.
+     */
+    boolean appendJarToBootstrapClassLoader(String hash) throws AgentLoadingException;
+
+    /**
+     * Uploads a chunk of the jar with the given content hash. The jar can be appended once all its chunks are written.
+     */
+    void writeJarChunk(String hash, long offset, byte[] chunk) throws AgentLoadingException;
+
+    /* ***** FILE HANDOFF (see PayloadTransport) ***** */
+
+    /**
+     * Writes the whole jar with the given content hash from a handoff file.
+     */
+    void writeJar(String hash, Handoff jar) throws AgentLoadingException;
+
+    /**
+     * Same as {@link #redefine(Map)}, reading the definitions from a handoff file.
+     */
+    RedefineResult redefine(Handoff definitions) throws AgentLoadingException;
+
+    /**
+     * Same as {@link #retransform(ClassFileTransformer, String...)}, reading the serialized transformer from a handoff
+     * file.
+     */
+    void retransform(Handoff transformer, String... classNames) throws AgentLoadingException;
+
+    /**
+     * Re-transforms classes by running the transformer on all cores first, then installing all the transformed classes
+     * in a single redefinition. Unlike {@link #retransform(ClassFileTransformer, String...)}, the VM doesn't call the
+     * transformer one class after the other while re-transforming.
+     * <p>
+     * The transformer is given the original class files, from the reset cache if enabled (see
+     * {@link #enableResetCache(ClassSelector, long)}) or from the class loaders. Classes which aren't loaded yet are
+     * loaded with the transformer installed.
+     */
+    RedefineResult retransformParallel(ClassFileTransformer transformer, String... classNames);
+
+    /**
+     * Same as {@link #retransformParallel(ClassFileTransformer, String...)}, using the registered transformer.
+     * 
+     * @return null if there isn't any transformer registered under this id
+     */
+    RedefineResult retransformParallel(String id, String... classNames);
+
+    /**
+     * The class loaders defining a class with the given name, as hints for {@link ClassSelector#loadedBy(String)}:
+     * their name (or else their class name) and identity hash code, i.e. "app@4e25154f". Nothing is loaded.
+     */
+    List<String> getClassLoaders(String className);
+
+    /**
+     * Re-transforms the loaded classes the selector selects, resolved in this VM.
+     * 
+     * @return the number of classes re-transformed
+     */
+    int retransform(ClassFileTransformer transformer, ClassSelector selector) throws AgentLoadingException;
+
+    /**
+     * Removes any instrumentation from the loaded classes the selector selects, see {@link #reset(String...)}.
+     * 
+     * @return the number of classes reset
+     */
+    int reset(ClassSelector selector) throws AgentLoadingException;
+
+    /**
+     * Same as {@link #retransformParallel(ClassFileTransformer, String...)}, for the loaded classes the selector
+     * selects.
+     */
+    RedefineResult retransformParallel(ClassFileTransformer transformer, ClassSelector selector);
+
+    /**
+     * Installs the registered transformer for the selected classes and re-transforms those already loaded, so that
+     * the selector covers the classes loaded both before and after the call.
+     * 
+     * @return the number of classes re-transformed, -1 if there isn't any transformer registered under this id
+     */
+    int instrument(String id, ClassSelector selector) throws AgentLoadingException;
+
+    /**
+     * Re-transforms the loaded classes the selector selects in the background, in chunks paced by the schedule. The
+     * transformer is also applied to the selected classes loading meanwhile.
+     * 
+     * @return the id of the re-transformation, see {@link #getRetransformProgress(long)}
+     */
+    long scheduleRetransform(ClassFileTransformer transformer, ClassSelector selector, RetransformSchedule schedule);
+
+    /**
+     * Same as {@link #scheduleRetransform(ClassFileTransformer, ClassSelector, RetransformSchedule)}, using the
+     * registered transformer.
+     * 
+     * @return the id of the re-transformation, -1 if there isn't any transformer registered under this id
+     */
+    long scheduleRetransform(String id, ClassSelector selector, RetransformSchedule schedule);
+
+    /**
+     * The progress, ETA and pause histogram of a scheduled re-transformation, null if unknown. The latest finished
+     * ones are kept.
+     */
+    RetransformProgress getRetransformProgress(long id);
+
+    List<RetransformProgress> getRetransformProgresses();
+
+    /**
+     * Stops a scheduled re-transformation before its next chunk.
+     * 
+     * @return false if it was unknown or already finished
+     */
+    boolean cancelRetransform(long id);
+
+    /**
+     * Same as {@link #registerTransformer(String, ClassFileTransformer)}, reading the serialized transformer from a
+     * handoff file.
+     */
+    void registerTransformer(String id, Handoff transformer) throws AgentLoadingException;
+
+    /* ***** TRANSFORMERS BY ID ***** */
+
+    /**
+     * Keeps the transformer under the given id, so it can be added, removed and used to re-transform by id without
+     * sending it again. Registering doesn't install it.
+     */
+    void registerTransformer(String id, ClassFileTransformer transformer);
+
+    boolean isTransformerRegistered(String id);
+
+    /**
+     * Removes every installation of the transformer, and forgets it.
+     */
+    void unregisterTransformer(String id);
+
+    /**
+     * Installs the registered transformer, see {@link #addTransformer(ClassFileTransformer)}.
+     * 
+     * @return false if there isn't any transformer registered under this id
+     */
+    boolean addTransformer(String id);
+
+    /**
+     * Installs the registered transformer for the selected classes, see
+     * {@link #addTransformer(ClassFileTransformer, ClassSelector)}.
+     * 
+     * @return false if there isn't any transformer registered under this id
+     */
+    boolean addTransformer(String id, ClassSelector selector);
+
+    /**
+     * Removes the latest installation of the registered transformer.
+     * 
+     * @return false if it isn't installed
+     */
+    boolean removeTransformer(String id);
+
+    /**
+     * Re-transforms classes using the registered transformer, see {@link #retransform(ClassFileTransformer, String...)}.
+     * 
+     * @return false if there isn't any transformer registered under this id
+     */
+    boolean retransform(String id, String... classNames) throws AgentLoadingException;
+
+    /**
+     * Same as {@link #retransformLoadedBy(String, ClassFileTransformer, String...)}, using the registered transformer.
+     * 
+     * @return false if there isn't any transformer registered under this id
+     */
+    boolean retransformLoadedBy(String loaderHint, String id, String... classNames) throws AgentLoadingException;
+
+    /**
+     * Same as {@link #retransform(ClassFileTransformer, ClassSelector)}, using the registered transformer.
+     * 
+     * @return the number of classes re-transformed, -1 if there isn't any transformer registered under this id
+     */
+    int retransform(String id, ClassSelector selector) throws AgentLoadingException;
+
+    /**
+     * Same as {@link #retransformParallel(ClassFileTransformer, ClassSelector)}, using the registered transformer.
+     * 
+     * @return null if there isn't any transformer registered under this id
+     */
+    RedefineResult retransformParallel(String id, ClassSelector selector);
+
+    /**
+     * Runs the steps of the batch in order, see {@link Batch}.
+     */
+    BatchResult execute(Batch batch);
+
+    /**
+     * Same as {@link #execute(Batch)}, reading the batch from a handoff file.
+     */
+    BatchResult execute(Handoff batch) throws AgentLoadingException;
+
+    /**
+     * Number of transformers currently installed through the agent.
+     */
+    int getTransformerCount();
+
+    /**
+     * Records the original bytes of the selected classes from now on, so {@link #reset(String...)} doesn't need to read
+     * their class files.
+     * 
+     * @param selector
+     *            the classes to record
+     * @param byteBudget
+     *            the maximum (compressed) bytes kept, least recently used classes are evicted beyond
+     */
+    void enableResetCache(ClassSelector selector, long byteBudget);
+
+    void disableResetCache();
+
+    long getResetCacheHits();
+
+    long getResetCacheMisses();
+
+    long getResetCacheResidentBytes();
+
+    /**
+     * The instances counted by the classes instrumented by {@link InstanceCountingTransformer}, by class name and class
+     * loader.
+     */
+    List<InstanceCount> getInstanceCounts();
+
+    /**
+     * Pauses or resumes counting instances, without re-transforming any class.
+     */
+    void setInstanceCountingEnabled(boolean enabled);
+
+    boolean isInstanceCountingEnabled();
+
+    /**
+     * The latency histograms of the methods timed by {@link MethodTimingTransformer}.
+     */
+    List<MethodTiming> getMethodTimings();
+
+    /**
+     * Pauses or resumes timing methods, without re-transforming any class.
+     */
+    void setMethodTimingEnabled(boolean enabled);
+
+    boolean isMethodTimingEnabled();
+
+    /**
+     * The events emitted by the probes through {@link Events}.
+     */
+    long getEmittedEvents();
+
+    /**
+     * The events dropped by {@link Events}, its channel being full.
+     */
+    long getDroppedEvents();
+
+    /**
+     * Writes the events emitted through {@link Events} to a trace file, until {@link #stopTrace()}. Does nothing if
+     * tracing already.
+     * 
+     * @return the path of the trace file, see {@link TraceReader}
+     */
+    String startTrace(int segmentBytes, int segments) throws AgentLoadingException;
+
+    void stopTrace();
 }
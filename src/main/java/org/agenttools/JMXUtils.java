@@ -21,41 +21,27 @@
  *******************************************************************************/
 package org.agenttools;
 
-import java.io.File;
 import java.io.IOException;
 
 import javax.management.remote.JMXConnector;
 import javax.management.remote.JMXConnectorFactory;
 import javax.management.remote.JMXServiceURL;
 
-import com.sun.tools.attach.AgentInitializationException;
-import com.sun.tools.attach.AgentLoadException;
 import com.sun.tools.attach.VirtualMachine;
 
 class JMXUtils
 {
-    private static final String JAVA_HOME = "java.home";
-    private static final String JMX_REMOTE = "com.sun.management.jmxremote";
-    private static final String JMX_LOCAL_ADDRESS = JMX_REMOTE + ".localConnectorAddress";
-    private static final String MANAGEMENT_AGENT_JAR = "%s" + File.separator + "lib" + File.separator + "management-agent.jar";
+    private static final String JMX_LOCAL_ADDRESS = "com.sun.management.jmxremote.localConnectorAddress";
 
-    static JMXConnector connect(VirtualMachine vm) throws IOException, AgentLoadException, AgentInitializationException
+    static JMXConnector connect(VirtualMachine vm) throws IOException
     {
-        enableJmx(vm);
-
-        final String lca = vm.getAgentProperties().getProperty(JMX_LOCAL_ADDRESS);
-        return JMXConnectorFactory.connect(new JMXServiceURL(lca));
+        return JMXConnectorFactory.connect(new JMXServiceURL(enableJmx(vm)));
     }
-    
-    private static boolean enableJmx(VirtualMachine vm) throws IOException, AgentLoadException, AgentInitializationException
+
+    // Returns the local connector address, starting the management agent if it isn't running yet.
+    private static String enableJmx(VirtualMachine vm) throws IOException
     {
-        final boolean installed = Boolean.TRUE.equals(vm.getAgentProperties().getProperty(JMX_REMOTE));
-        if (!installed)
-        {
-            final String javaHome = vm.getSystemProperties().getProperty(JAVA_HOME);
-            final String managementAgentPath = new File(String.format(MANAGEMENT_AGENT_JAR, javaHome)).getAbsolutePath();
-            vm.loadAgent(managementAgentPath);
-        }
-        return installed;
+        final String lca = vm.getAgentProperties().getProperty(JMX_LOCAL_ADDRESS);
+        return lca != null ? lca : vm.startLocalManagementAgent();
     }
 }
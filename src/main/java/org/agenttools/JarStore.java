@@ -0,0 +1,272 @@
+/*******************************************************************************
+ * Copyright (c) 2017, Xavier Miret Andres <xavier.mires@gmail.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *******************************************************************************/
+package org.agenttools;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.lang.instrument.Instrumentation;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashSet;
+import java.util.Objects;
+import java.util.Set;
+import java.util.UUID;
+import java.util.jar.JarFile;
+import java.util.regex.Pattern;
+
+/**
+ * Jars appended to the class path, identified by the SHA-256 of their content.
+ * <p>
+ * Jars are written once in a directory shared by every VM of the user (i.e.
+ * &lt;tmp&gt;/agent-tools-&lt;user&gt;/jars/&lt;hash&gt;.jar), private to the user (see {@link PrivateFiles}), and reused
+ * by later loads, in this or any other VM. A jar is hashed again every time it is opened, and never appended twice to
+ * the same class loader.
+ * <p>
+ * Remote jars are uploaded in chunks into a part file private to this VM, which becomes the jar once its content
+ * matches its hash.
+ */
+class JarStore {
+
+    static final int CHUNK_SIZE = 1 << 20;
+
+    private static final Pattern SHA_256 = Pattern.compile("[0-9a-f]{64}");
+
+    private final Instrumentation instrumentation;
+    // null for the default, private, directory
+    private final File directory;
+    private final String partSuffix = "." + UUID.randomUUID() + ".part";
+
+    // guarded by this
+    private final Set<String> uploads = new HashSet<>();
+    private final Set<String> appendedToSystem = new HashSet<>();
+    private final Set<String> appendedToBootstrap = new HashSet<>();
+
+    JarStore(Instrumentation instrumentation) {
+	this(instrumentation, null);
+    }
+
+    JarStore(Instrumentation instrumentation, File directory) {
+	this.instrumentation = instrumentation;
+	this.directory = directory;
+    }
+
+    /**
+     * Stores the jar, unless it is already stored.
+     * 
+     * @return the jar hash
+     */
+    synchronized String put(byte[] jarBytes) {
+	final String hash = hash(jarBytes);
+	if (get(hash) == null) {
+	    write(hash, 0, jarBytes);
+	    if (get(hash) == null) {
+		throw new AgentLoadingException(String.format("Unable to store the jar { %s }.", hash));
+	    }
+	}
+	return hash;
+    }
+
+    /**
+     * Writes a chunk of the jar with the given hash. The jar is available once all chunks are written.
+     */
+    synchronized void write(String hash, long offset, byte[] chunk) {
+	check(hash);
+	try {
+	    final File file = new File(getDirectory(), hash + partSuffix);
+	    try (RandomAccessFile part = new RandomAccessFile(file, "rw")) {
+		PrivateFiles.restrict(file.toPath(), "rw-------");
+		if (uploads.add(hash)) {
+		    part.setLength(0); // a new upload, drop what a previous one left
+		}
+		part.seek(offset);
+		part.write(chunk);
+	    }
+	} catch (IOException e) {
+	    throw new AgentLoadingException(String.format("Unable to write the jar { %s }.", hash), e);
+	}
+    }
+
+    /**
+     * Writes the whole jar with the given hash, copied from the handoff file without going through the heap.
+     */
+    synchronized void write(String hash, Handoff jar) {
+	check(hash);
+	try {
+	    final ByteBuffer payload = jar.map();
+	    final File file = new File(getDirectory(), hash + partSuffix);
+	    try (FileChannel part = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+		    StandardOpenOption.TRUNCATE_EXISTING)) {
+		PrivateFiles.restrict(file.toPath(), "rw-------");
+		while (payload.hasRemaining()) {
+		    part.write(payload);
+		}
+	    }
+	} catch (IOException e) {
+	    throw new AgentLoadingException(String.format("Unable to write the jar { %s }.", hash), e);
+	}
+    }
+
+    /**
+     * @return false if the jar isn't stored (yet)
+     */
+    synchronized boolean appendToSystemClassLoader(String hash) {
+	if (appendedToSystem.contains(hash)) {
+	    return true;
+	}
+	final JarFile jar = open(hash);
+	if (jar == null) {
+	    return false;
+	}
+	instrumentation.appendToSystemClassLoaderSearch(jar);
+	appendedToSystem.add(hash);
+	return true;
+    }
+
+    /**
+     * @return false if the jar isn't stored (yet)
+     */
+    synchronized boolean appendToBootstrapClassLoader(String hash) {
+	if (appendedToBootstrap.contains(hash)) {
+	    return true;
+	}
+	final JarFile jar = open(hash);
+	if (jar == null) {
+	    return false;
+	}
+	instrumentation.appendToBootstrapClassLoaderSearch(jar);
+	appendedToBootstrap.add(hash);
+	return true;
+    }
+
+    // Opened first and hashed after, the same file all along, so that the jar appended is the jar verified.
+    private JarFile open(String hash) {
+	final File file = get(hash);
+	if (file == null) {
+	    return null;
+	}
+	try {
+	    final Object key = fileKey(file);
+	    final JarFile jar = new JarFile(file);
+	    if (!hash.equals(hash(file)) || !Objects.equals(key, fileKey(file))) {
+		jar.close();
+		throw new AgentLoadingException(String.format("The jar { %s } changed while it was opened.", file));
+	    }
+	    return jar;
+	} catch (IOException e) {
+	    throw new AgentLoadingException(String.format("Unable to open the jar { %s }.", file), e);
+	}
+    }
+
+    private static Object fileKey(File file) throws IOException {
+	return Files.readAttributes(file.toPath(), BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS).fileKey();
+    }
+
+    // The jar, promoting a complete part file, if it matches its hash. Null if there's none.
+    private File get(String hash) {
+	check(hash);
+	try {
+	    final File directory = getDirectory();
+	    final File jar = new File(directory, hash + ".jar");
+	    final File part = new File(directory, hash + partSuffix);
+	    if (part.isFile()) {
+		uploads.remove(hash);
+		if (hash.equals(hash(part))) {
+		    Files.move(part.toPath(), jar.toPath(), StandardCopyOption.REPLACE_EXISTING,
+			    StandardCopyOption.ATOMIC_MOVE);
+		    return jar;
+		}
+		Files.delete(part.toPath()); // corrupted or incomplete, start over
+	    }
+
+	    // stored by a previous load, or another VM
+	    if (jar.isFile()) {
+		PrivateFiles.checkPrivate(jar.toPath());
+		if (hash.equals(hash(jar))) {
+		    return jar;
+		}
+	    }
+	    return null;
+	} catch (IOException e) {
+	    throw new AgentLoadingException(String.format("Unable to read the jar { %s }.", hash), e);
+	}
+    }
+
+    private File getDirectory() throws IOException {
+	return directory == null ? PrivateFiles.directory("jars") : PrivateFiles.directory(directory);
+    }
+
+    // the hash names files, never trust it
+    private static void check(String hash) {
+	if (hash == null || !SHA_256.matcher(hash).matches()) {
+	    throw new AgentLoadingException(String.format("Not a jar hash { %s }.", hash));
+	}
+    }
+
+    static String hash(byte[] bytes) {
+	final MessageDigest digest = sha256();
+	digest.update(bytes);
+	return toHex(digest.digest());
+    }
+
+    static String hash(File file) throws IOException {
+	final MessageDigest digest = sha256();
+	try (InputStream in = new FileInputStream(file)) {
+	    final byte[] buffer = new byte[8192];
+	    for (int n; (n = in.read(buffer)) >= 0;) {
+		digest.update(buffer, 0, n);
+	    }
+	}
+	return toHex(digest.digest());
+    }
+
+    static String hash(ByteBuffer bytes) {
+	final MessageDigest digest = sha256();
+	digest.update(bytes.duplicate());
+	return toHex(digest.digest());
+    }
+
+    static MessageDigest sha256() {
+	try {
+	    return MessageDigest.getInstance("SHA-256");
+	} catch (NoSuchAlgorithmException e) {
+	    throw new AgentLoadingException("SHA-256 isn't available.", e);
+	}
+    }
+
+    static String toHex(byte[] bytes) {
+	final StringBuilder sb = new StringBuilder(bytes.length * 2);
+	for (byte b : bytes) {
+	    sb.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+	}
+	return sb.toString();
+    }
+}
@@ -0,0 +1,376 @@
+/*******************************************************************************
+ * Copyright (c) 2017, Xavier Miret Andres <xavier.mires@gmail.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *******************************************************************************/
+package org.agenttools;
+
+import java.lang.instrument.ClassFileTransformer;
+import java.lang.instrument.Instrumentation;
+import java.lang.ref.WeakReference;
+import java.lang.reflect.Method;
+import java.security.ProtectionDomain;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * An index of the classes loaded in the VM, keyed by class name and defining class loader.
+ * <p>
+ * The index is seeded once from {@link Instrumentation#getAllLoadedClasses()} and kept up to date by registering
+ * itself as a (non re-transforming) transformer which records every class definition. It never modifies any class.
+ * <p>
+ * Both class loaders and classes are weakly referenced, so the index never prevents a class from being unloaded.
+ * Unloaded entries are pruned when they are looked up.
+ * <p>
+ * Classes defined after the seeding are registered, with their defining loader, as they are loaded, and resolved on
+ * their first lookup by {@code ClassLoader.findLoadedClass}: a lookup costs the same whatever the number of loaded
+ * classes, and never loads any class. Where that method isn't accessible, and for the bootstrap class loader, they are
+ * resolved from {@link Instrumentation#getInitiatedClasses(ClassLoader)} of their loader instead, all the pending ones
+ * of the loader at once. A class still being defined isn't found until it is, its registration is kept pending until
+ * then. A registration which its live loader still doesn't resolve once its grace period is over is dropped: its
+ * definition failed or was rejected, and it would otherwise be looked up again on every lookup of its name.
+ */
+class LoadedClassIndex implements ClassFileTransformer {
+
+    private static final Registration[] NONE = new Registration[0];
+    // plenty for a class to go through the other transformers and be defined
+    private static final long PENDING_GRACE_NANOS = TimeUnit.SECONDS.toNanos(5);
+    static final String BOOTSTRAP = "bootstrap";
+    // ClassLoader.getName() as of java 9
+    private static final Method getName = loaderGetName();
+
+    private final Instrumentation instrumentation;
+    // internal class name (i.e. java/lang/Object) -> one registration per defining class loader
+    private final ConcurrentMap<String, Registration[]> index = new ConcurrentHashMap<>();
+    private final long pendingGraceNanos;
+    // ClassLoader.findLoadedClass, null if it can't be made accessible
+    private final Method findLoadedClass;
+
+    LoadedClassIndex(Instrumentation instrumentation) {
+	this(instrumentation, PENDING_GRACE_NANOS);
+    }
+
+    // visible for testing
+    LoadedClassIndex(Instrumentation instrumentation, long pendingGraceNanos) {
+	this.instrumentation = instrumentation;
+	this.pendingGraceNanos = pendingGraceNanos;
+	this.findLoadedClass = loaderFindLoadedClass(instrumentation);
+    }
+
+    void install() {
+	// register first, so no class defined while seeding is missed.
+	instrumentation.addTransformer(this, false);
+	for (Class<?> c : instrumentation.getAllLoadedClasses()) {
+	    final String name = c.getName();
+	    // neither arrays nor hidden classes can be resolved by name
+	    if (name.charAt(0) != '[' && name.indexOf('/') < 0) {
+		register(name.replace('.', '/'), c.getClassLoader(), c);
+	    }
+	}
+    }
+
+    void uninstall() {
+	instrumentation.removeTransformer(this);
+	index.clear();
+    }
+
+    @Override
+    public byte[] transform(ClassLoader loader, String className, Class<?> classBeingRedefined,
+	    ProtectionDomain protectionDomain, byte[] classfileBuffer) {
+	if (className != null && classBeingRedefined == null) {
+	    register(className, loader, null);
+	}
+	return null;
+    }
+
+    /**
+     * Returns true if at least one class loader has defined a class with the given name.
+     */
+    boolean isLoaded(String className) {
+	return !find(className).isEmpty();
+    }
+
+    /**
+     * Returns every live class with the given name, one per defining class loader.
+     * <p>
+     * Resolving a registered class never loads anything, see {@link #resolve(Registration)}.
+     */
+    List<Class<?>> find(String className) {
+	return find(className, null);
+    }
+
+    /**
+     * Returns the live classes with the given name defined by the class loaders matching the hint, see
+     * {@link #isHinted(ClassLoader, String)}.
+     * 
+     * @param loaderHint
+     *            null for any class loader
+     */
+    List<Class<?>> find(String className, String loaderHint) {
+	final String internalName = className.replace('.', '/');
+	final Registration[] registrations = index.getOrDefault(internalName, NONE);
+	if (registrations.length == 0) {
+	    return Collections.emptyList();
+	}
+
+	final List<Class<?>> classes = new ArrayList<>(registrations.length);
+	for (Registration registration : registrations) {
+	    if (loaderHint != null && !registration.isHinted(loaderHint)) {
+		continue;
+	    }
+	    final Class<?> c = resolve(internalName, registration);
+	    if (c != null) {
+		classes.add(c);
+	    } else if (registration.isStale() || registration.isAbandoned(pendingGraceNanos)) {
+		unregister(internalName, registration);
+	    }
+	    // else still being defined, kept pending for a later lookup
+	}
+	return classes;
+    }
+
+    /**
+     * The class loaders defining a class with the given name, see {@link #describe(ClassLoader)}.
+     */
+    List<String> findLoaders(String className) {
+	final List<String> loaders = new ArrayList<>();
+	for (Class<?> c : find(className)) {
+	    loaders.add(describe(c.getClassLoader()));
+	}
+	return loaders;
+    }
+
+    /**
+     * The live class loaders matching the hint among those defining an indexed class, see
+     * {@link #isHinted(ClassLoader, String)}. The bootstrap class loader is null.
+     */
+    List<ClassLoader> findHintedLoaders(String loaderHint) {
+	if (BOOTSTRAP.equals(loaderHint)) {
+	    return Collections.singletonList(null);
+	}
+	final Set<ClassLoader> checked = Collections.newSetFromMap(new IdentityHashMap<>());
+	final List<ClassLoader> loaders = new ArrayList<>();
+	for (Registration[] registrations : index.values()) {
+	    for (Registration registration : registrations) {
+		final ClassLoader cl = registration.getLoader();
+		if (cl != null && checked.add(cl) && isHinted(cl, loaderHint)) {
+		    loaders.add(cl);
+		}
+	    }
+	}
+	return loaders;
+    }
+
+    /**
+     * Number of class names currently indexed.
+     */
+    int size() {
+	return index.size();
+    }
+
+    private void register(String internalName, ClassLoader loader, Class<?> clazz) {
+	index.compute(internalName, (k, registrations) -> {
+	    if (registrations == null) {
+		return new Registration[] { new Registration(loader, clazz) };
+	    }
+	    for (Registration registration : registrations) {
+		if (registration.isDefinedBy(loader)) {
+		    // a previous definition failed or the index is being seeded; start afresh.
+		    registration.clazz = clazz == null ? null : new WeakReference<Class<?>>(clazz);
+		    registration.pendingSince = System.nanoTime();
+		    return registrations;
+		}
+	    }
+	    final Registration[] copy = Arrays.copyOf(registrations, registrations.length + 1);
+	    copy[registrations.length] = new Registration(loader, clazz);
+	    return copy;
+	});
+    }
+
+    private void unregister(String internalName, Registration stale) {
+	index.computeIfPresent(internalName, (k, registrations) -> {
+	    final List<Registration> live = new ArrayList<>(registrations.length);
+	    for (Registration registration : registrations) {
+		if (registration != stale) {
+		    live.add(registration);
+		}
+	    }
+	    return live.isEmpty() ? null : live.toArray(new Registration[live.size()]);
+	});
+    }
+
+    // Returns null if the class loader was unloaded, or the class isn't defined (yet).
+    private Class<?> resolve(String internalName, Registration registration) {
+	final Class<?> cached = registration.get();
+	if (cached != null || registration.isUnloaded()) {
+	    return cached;
+	}
+	// the class was registered while being defined
+	final ClassLoader cl = registration.getLoader();
+	if (cl != null && findLoadedClass != null) {
+	    try {
+		final Class<?> c = (Class<?>) findLoadedClass.invoke(cl, internalName.replace('/', '.'));
+		// defined by the loader, not only initiated by it
+		if (c != null && c.getClassLoader() == cl) {
+		    registration.clazz = new WeakReference<Class<?>>(c);
+		}
+		return registration.get();
+	    } catch (ReflectiveOperationException | RuntimeException e) {
+		// scanned below
+	    }
+	}
+	// resolve every pending class of its loader at once
+	for (Class<?> c : instrumentation.getInitiatedClasses(cl)) {
+	    final String name = c.getName();
+	    if (c.getClassLoader() == cl && name.charAt(0) != '[' && name.indexOf('/') < 0) {
+		for (Registration r : index.getOrDefault(name.replace('.', '/'), NONE)) {
+		    if (r.isDefinedBy(cl) && r.get() == null) {
+			r.clazz = new WeakReference<Class<?>>(c);
+		    }
+		}
+	    }
+	}
+	return registration.get();
+    }
+
+    /**
+     * Whether the class loader matches the hint, which is either its name (as of java 9), its class name, its
+     * identity hash code in hexadecimal (optionally prefixed by '@') as shown by heap dumps and
+     * {@link #describe(ClassLoader)}, or "bootstrap" for the bootstrap class loader.
+     */
+    static boolean isHinted(ClassLoader loader, String loaderHint) {
+	if (loader == null) {
+	    return BOOTSTRAP.equals(loaderHint);
+	}
+	final String hash = Integer.toHexString(System.identityHashCode(loader));
+	return loaderHint.equals(hash) || loaderHint.equals("@" + hash) || loaderHint.equals(nameOf(loader))
+		|| loaderHint.equals(loader.getClass().getName()) || loaderHint.equals(describe(loader));
+    }
+
+    /**
+     * The name (or else the class name) and the identity hash code of the class loader, i.e. "app@4e25154f".
+     */
+    static String describe(ClassLoader loader) {
+	if (loader == null) {
+	    return BOOTSTRAP;
+	}
+	final String name = nameOf(loader);
+	return (name == null ? loader.getClass().getName() : name) + "@"
+		+ Integer.toHexString(System.identityHashCode(loader));
+    }
+
+    private static String nameOf(ClassLoader loader) {
+	if (getName != null) {
+	    try {
+		return (String) getName.invoke(loader);
+	    } catch (ReflectiveOperationException | RuntimeException e) {
+		// unnamed
+	    }
+	}
+	return null;
+    }
+
+    private static Method loaderFindLoadedClass(Instrumentation instrumentation) {
+	try {
+	    final Method m = ClassLoader.class.getDeclaredMethod("findLoadedClass", String.class);
+	    try {
+		m.setAccessible(true);
+	    } catch (RuntimeException e) {
+		// InaccessibleObjectException (Java 9+): open java.lang to the agent, then try again
+		openJavaLang(instrumentation);
+		m.setAccessible(true);
+	    }
+	    return m;
+	} catch (ReflectiveOperationException | RuntimeException e) {
+	    return null;
+	}
+    }
+
+    // Not compiled against, modules aren't part of the Java 8 API.
+    private static void openJavaLang(Instrumentation instrumentation) throws ReflectiveOperationException {
+	final Method getModule = Class.class.getMethod("getModule");
+	final Object base = getModule.invoke(ClassLoader.class);
+	final Object agent = getModule.invoke(LoadedClassIndex.class);
+	Instrumentation.class.getMethod("redefineModule", getModule.getReturnType(), Set.class, Map.class, Map.class,
+		Set.class, Map.class).invoke(instrumentation, base, Collections.emptySet(), Collections.emptyMap(),
+			Collections.singletonMap("java.lang", Collections.singleton(agent)), Collections.emptySet(),
+			Collections.emptyMap());
+    }
+
+    private static Method loaderGetName() {
+	try {
+	    return ClassLoader.class.getMethod("getName");
+	} catch (NoSuchMethodException e) {
+	    return null; // java 8
+	}
+    }
+
+    static final class Registration {
+	// null for classes defined by the bootstrap class loader
+	private final WeakReference<ClassLoader> loader;
+	private volatile WeakReference<Class<?>> clazz;
+	// when the class was registered, only meaningful while it is pending
+	private volatile long pendingSince = System.nanoTime();
+
+	Registration(ClassLoader loader, Class<?> clazz) {
+	    this.loader = loader == null ? null : new WeakReference<>(loader);
+	    this.clazz = clazz == null ? null : new WeakReference<Class<?>>(clazz);
+	}
+
+	boolean isDefinedBy(ClassLoader cl) {
+	    return loader == null ? cl == null : loader.get() == cl;
+	}
+
+	boolean isUnloaded() {
+	    return loader != null && loader.get() == null;
+	}
+
+	// the class loader was unloaded, or the class once resolved was
+	boolean isStale() {
+	    final WeakReference<Class<?>> ref = clazz;
+	    return isUnloaded() || ref != null && ref.get() == null;
+	}
+
+	// never resolved, though pending for longer than the grace period
+	boolean isAbandoned(long graceNanos) {
+	    return clazz == null && System.nanoTime() - pendingSince >= graceNanos;
+	}
+
+	boolean isHinted(String loaderHint) {
+	    return !isUnloaded() && LoadedClassIndex.isHinted(getLoader(), loaderHint);
+	}
+
+	ClassLoader getLoader() {
+	    return loader == null ? null : loader.get();
+	}
+
+	Class<?> get() {
+	    final WeakReference<Class<?>> ref = clazz;
+	    return ref == null ? null : ref.get();
+	}
+    }
+}
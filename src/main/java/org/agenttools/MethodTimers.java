@@ -0,0 +1,308 @@
+/*******************************************************************************
+ * Copyright (c) 2017, Xavier Miret Andres <xavier.mires@gmail.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *******************************************************************************/
+package org.agenttools;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * The latency histograms of the methods instrumented by {@link MethodTimingTransformer}.
+ * <p>
+ * Every thread records in its own histograms, so recording takes no lock and allocates nothing (but the first time a
+ * thread calls a timed method). Histograms are log-linear: every power of two is split in {@value #SUB_BUCKETS}
+ * buckets, which bounds the error of any percentile to 1/{@value #SUB_BUCKETS}. Readers merge the histograms of all
+ * threads without stopping them, so they may miss the calls being recorded. The histograms of the threads which ended
+ * are folded in a shared one by readers and a background task, never by the recording threads, so thread churn doesn't
+ * grow the recorders.
+ * <p>
+ * Timing can be paused, which leaves the instrumented methods as good as uninstrumented.
+ */
+public final class MethodTimers {
+
+    static final int SUB_BUCKETS = 8;
+    private static final int SUB_BUCKET_BITS = 3;
+    static final int BUCKETS = (64 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+    // the buckets of a method, and its total nanos
+    private static final int STRIDE = BUCKETS + 1;
+
+    static final ProbeSwitch enabled = new ProbeSwitch(true);
+    private static final MethodHandle guard = enabled.guard();
+
+    // "class.method(descriptor)" -> id
+    private static final Map<String, Integer> ids = new ConcurrentHashMap<>();
+    private static final List<String> methods = new CopyOnWriteArrayList<>();
+    private static final Queue<Recorder> recorders = new ConcurrentLinkedQueue<>();
+    private static final ThreadLocal<Recorder> recorder = ThreadLocal.withInitial(Recorder::new);
+    // the ended threads are looked for in the background every so many new recorders, and on reads
+    static final int RETIRE_EVERY = 64;
+    private static final AtomicInteger created = new AtomicInteger();
+    // whether the background retirement is submitted and not started yet
+    private static final AtomicBoolean retiring = new AtomicBoolean();
+    // taken by readers and the background retirement only
+    private static final Object retirement = new Object();
+    // the histograms of the ended threads, guarded by retirement
+    private static long[] retired = new long[0];
+
+    private MethodTimers() {
+    }
+
+    /**
+     * The id of the method, passed to {@link #exit(int)} by its instrumented code.
+     */
+    static int register(String className, String methodName, String descriptor) {
+	return ids.computeIfAbsent(className + "." + methodName + descriptor, method -> {
+	    synchronized (methods) {
+		methods.add(method);
+		return methods.size() - 1;
+	    }
+	});
+    }
+
+    /**
+     * Called by the instrumented methods when they start.
+     */
+    public static void enter() {
+	if (ProbeSwitch.isOn(guard)) {
+	    recorder.get().enter(System.nanoTime());
+	}
+    }
+
+    /**
+     * Called by the instrumented methods when they complete, either returning or throwing.
+     * 
+     * @param method
+     *            the id of the method
+     */
+    public static void exit(int method) {
+	if (ProbeSwitch.isOn(guard)) {
+	    final long end = System.nanoTime();
+	    recorder.get().exit(method, end);
+	}
+    }
+
+    /**
+     * The histograms of all threads merged, for the methods called at least once.
+     */
+    static List<MethodTiming> getTimings() {
+	final int count = methods.size();
+	final long[] merged = new long[count * STRIDE];
+	synchronized (retirement) {
+	    retire();
+	    for (int i = 0; i < Math.min(merged.length, retired.length); i++) {
+		merged[i] += retired[i];
+	    }
+	    for (Recorder r : recorders) {
+		final AtomicLongArray histograms = r.histograms;
+		final int length = Math.min(merged.length, histograms.length());
+		for (int i = 0; i < length; i++) {
+		    merged[i] += histograms.get(i);
+		}
+	    }
+	}
+	final List<MethodTiming> timings = new ArrayList<>();
+	for (int m = 0; m < count; m++) {
+	    final long[] buckets = new long[BUCKETS];
+	    System.arraycopy(merged, m * STRIDE, buckets, 0, BUCKETS);
+	    final MethodTiming timing = new MethodTiming(methods.get(m), buckets, merged[m * STRIDE + BUCKETS]);
+	    if (timing.getCount() > 0) {
+		timings.add(timing);
+	    }
+	}
+	return timings;
+    }
+
+    /**
+     * Folds the histograms of the ended threads in the retired one, and drops their recorders.
+     */
+    private static void retire() {
+	synchronized (retirement) {
+	    for (Iterator<Recorder> i = recorders.iterator(); i.hasNext();) {
+		final Recorder r = i.next();
+		if (!r.isAlive()) {
+		    // the thread ended, which happens-before isAlive returned false
+		    final AtomicLongArray histograms = r.histograms;
+		    if (retired.length < histograms.length()) {
+			retired = Arrays.copyOf(retired, histograms.length());
+		    }
+		    for (int b = 0; b < histograms.length(); b++) {
+			retired[b] += histograms.get(b);
+		    }
+		    i.remove();
+		}
+	    }
+	}
+    }
+
+    // called by the recording threads, which only submit the retirement
+    private static void retireLater() {
+	if (retiring.compareAndSet(false, true)) {
+	    Retirer.executor.execute(() -> {
+		retiring.set(false);
+		retire();
+	    });
+	}
+    }
+
+    static int getRecorderCount() {
+	return recorders.size();
+    }
+
+    static int bucket(long nanos) {
+	if (nanos < SUB_BUCKETS) {
+	    return nanos < 0 ? 0 : (int) nanos;
+	}
+	final int magnitude = 63 - Long.numberOfLeadingZeros(nanos);
+	final int sub = (int) (nanos >>> (magnitude - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+	return (magnitude - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + sub;
+    }
+
+    /**
+     * The lowest value of the bucket.
+     */
+    static long lowest(int bucket) {
+	if (bucket < SUB_BUCKETS) {
+	    return bucket;
+	}
+	final int magnitude = bucket / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+	return (long) (SUB_BUCKETS + bucket % SUB_BUCKETS) << (magnitude - SUB_BUCKET_BITS);
+    }
+
+    /**
+     * The highest value of the bucket.
+     */
+    static long highest(int bucket) {
+	return bucket == BUCKETS - 1 ? Long.MAX_VALUE : lowest(bucket + 1) - 1;
+    }
+
+    /**
+     * The highest value of the bucket which the given percentage of the recorded values don't exceed, so it is never
+     * below the actual percentile, and above it by 1/{@value #SUB_BUCKETS} at most.
+     * 
+     * @param count
+     *            the sum of the buckets
+     */
+    static long percentile(long[] buckets, long count, double percentile) {
+	if (count == 0) {
+	    return 0;
+	}
+	final long rank = Math.max(1, (long) Math.ceil(count * Math.min(100, Math.max(0, percentile)) / 100));
+	long seen = 0;
+	for (int i = 0; i < buckets.length; i++) {
+	    seen += buckets[i];
+	    if (seen >= rank) {
+		return highest(i);
+	    }
+	}
+	return highest(buckets.length - 1);
+    }
+
+    // started with the first background retirement
+    private static final class Retirer {
+	static final Executor executor = Executors.newSingleThreadExecutor(r -> {
+	    final Thread t = new Thread(r, "agent-tools-timer-retirer");
+	    t.setDaemon(true);
+	    return t;
+	});
+    }
+
+    // Written by its own thread only.
+    private static final class Recorder {
+	private long[] starts = new long[64];
+	private int depth = 0;
+	// calls started before the switch was last flipped are dropped
+	private int flips = enabled.getFlips();
+	// replaced when methods are added, readers may see the former one
+	volatile AtomicLongArray histograms = new AtomicLongArray(0);
+	private final WeakReference<Thread> thread = new WeakReference<>(Thread.currentThread());
+
+	Recorder() {
+	    if (created.incrementAndGet() % RETIRE_EVERY == 0) {
+		retireLater();
+	    }
+	    recorders.add(this);
+	}
+
+	boolean isAlive() {
+	    final Thread t = thread.get();
+	    return t != null && t.isAlive();
+	}
+
+	void enter(long start) {
+	    checkFlips();
+	    if (depth == starts.length) {
+		final long[] grown = new long[depth * 2];
+		System.arraycopy(starts, 0, grown, 0, depth);
+		starts = grown;
+	    }
+	    starts[depth++] = start;
+	}
+
+	void exit(int method, long end) {
+	    checkFlips();
+	    if (depth == 0) {
+		// the method started before it was instrumented
+		return;
+	    }
+	    final long nanos = end - starts[--depth];
+	    AtomicLongArray h = histograms;
+	    final int offset = method * STRIDE;
+	    if (offset + STRIDE > h.length()) {
+		h = grow(offset + STRIDE);
+	    }
+	    final int b = offset + bucket(nanos);
+	    h.lazySet(b, h.get(b) + 1);
+	    h.lazySet(offset + BUCKETS, h.get(offset + BUCKETS) + nanos);
+	}
+
+	private void checkFlips() {
+	    final int f = enabled.getFlips();
+	    if (f != flips) {
+		flips = f;
+		depth = 0;
+	    }
+	}
+
+	private AtomicLongArray grow(int length) {
+	    final AtomicLongArray current = histograms;
+	    final AtomicLongArray grown = new AtomicLongArray(Math.max(length, methods.size() * STRIDE));
+	    for (int i = 0; i < current.length(); i++) {
+		grown.lazySet(i, current.get(i));
+	    }
+	    histograms = grown;
+	    return grown;
+	}
+    }
+}
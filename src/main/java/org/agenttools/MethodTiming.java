@@ -0,0 +1,102 @@
+/*******************************************************************************
+ * Copyright (c) 2017, Xavier Miret Andres <xavier.mires@gmail.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *******************************************************************************/
+package org.agenttools;
+
+import java.io.Serializable;
+
+/**
+ * The latency histogram of a method, see {@link MethodTimingTransformer}.
+ */
+public final class MethodTiming implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    private final String method;
+    private final long[] buckets;
+    private final long totalNanos;
+    private final long count;
+
+    MethodTiming(String method, long[] buckets, long totalNanos) {
+	this.method = method;
+	this.buckets = buckets;
+	this.totalNanos = totalNanos;
+	long count = 0;
+	for (long b : buckets) {
+	    count += b;
+	}
+	this.count = count;
+    }
+
+    /**
+     * The class, name and descriptor of the method, i.e. {@code com.acme.Foo.bar(I)V}.
+     */
+    public String getMethod() {
+	return method;
+    }
+
+    /**
+     * The number of calls completed.
+     */
+    public long getCount() {
+	return count;
+    }
+
+    public long getTotalNanos() {
+	return totalNanos;
+    }
+
+    public long getMeanNanos() {
+	return count == 0 ? 0 : totalNanos / count;
+    }
+
+    /**
+     * The latency which the given percentage of calls don't exceed, within the precision of the histogram: the highest
+     * latency of its bucket, so it may exceed the actual one by 1/8 but is never below it.
+     * 
+     * @param percentile
+     *            from 0 to 100
+     */
+    public long getPercentileNanos(double percentile) {
+	return MethodTimers.percentile(buckets, count, percentile);
+    }
+
+    public long getMedianNanos() {
+	return getPercentileNanos(50);
+    }
+
+    public long getP99Nanos() {
+	return getPercentileNanos(99);
+    }
+
+    /**
+     * The highest latency of the bucket of the slowest call, see {@link #getPercentileNanos(double)}.
+     */
+    public long getMaxNanos() {
+	return getPercentileNanos(100);
+    }
+
+    @Override
+    public String toString() {
+	return "MethodTiming [method=" + method + ", count=" + count + ", mean=" + getMeanNanos() + ", p50="
+		+ getMedianNanos() + ", p99=" + getP99Nanos() + ", max=" + getMaxNanos() + "]";
+    }
+}
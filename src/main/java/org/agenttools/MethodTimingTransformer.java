@@ -0,0 +1,157 @@
+/*******************************************************************************
+ * Copyright (c) 2017, Xavier Miret Andres <xavier.mires@gmail.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *******************************************************************************/
+package org.agenttools;
+
+import java.io.Serializable;
+import java.lang.instrument.ClassFileTransformer;
+import java.security.ProtectionDomain;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.regex.Pattern;
+
+/**
+ * Times the selected methods, so their latency histograms are recorded by {@link MethodTimers}.
+ * <p>
+ * Methods are selected as {@code com.acme.Foo.bar}, where the method name may use {@code *} as a wildcard, i.e.
+ * {@code com.acme.Foo.get*} or {@code com.acme.Foo.*}. Use it to re-transform the classes of the methods, i.e.
+ * {@code Agents.retransform(timing, timing.getClassNames())}, and reset them to stop. Constructors and static
+ * initializers aren't timed, nor classes whose class loader doesn't see the agent.
+ */
+public final class MethodTimingTransformer implements ClassFileTransformer, Serializable {
+
+    private static final long serialVersionUID = 2L;
+
+    private static final Logger log = Logger.getLogger(MethodTimingTransformer.class.getName());
+
+    private static final String TIMERS = MethodTimers.class.getName().replace('.', '/');
+    private static final int ACC_ABSTRACT = 0x0400, ACC_NATIVE = 0x0100;
+    // the handler frame needs a stack map, or no stack map at all
+    private static final int MIN_VERSION = 49;
+
+    // internal class name -> method name globs, strings only, as patterns are refused by the deserialization filter
+    private final Map<String, List<String>> methods = new HashMap<>();
+    // the globs compiled, on first use
+    private transient volatile Map<String, List<Pattern>> patterns;
+
+    /**
+     * @param methods
+     *            the methods to time, as {@code className.methodName}
+     */
+    public MethodTimingTransformer(String... methods) {
+	for (String method : methods) {
+	    final int dot = method.lastIndexOf('.');
+	    if (dot <= 0 || dot == method.length() - 1) {
+		throw new IllegalArgumentException(String.format("Expected 'className.methodName', not '%s'.",
+			method));
+	    }
+	    this.methods.computeIfAbsent(method.substring(0, dot).replace('.', '/'), k -> new ArrayList<>()).add(
+		    method.substring(dot + 1));
+	}
+    }
+
+    /**
+     * The classes declaring the selected methods.
+     */
+    public String[] getClassNames() {
+	final Set<String> classNames = new LinkedHashSet<>();
+	for (String className : methods.keySet()) {
+	    classNames.add(className.replace('/', '.'));
+	}
+	return classNames.toArray(new String[classNames.size()]);
+    }
+
+    @Override
+    public byte[] transform(ClassLoader loader, String className, Class<?> classBeingRedefined,
+	    ProtectionDomain protectionDomain, byte[] classfileBuffer) {
+	final List<Pattern> patterns = className == null ? null : getPatterns().get(className);
+	if (patterns == null || className.startsWith(TIMERS) || !ClassTools.isVisible(MethodTimers.class, loader)
+		|| (classfileBuffer[6] << 8 | classfileBuffer[7] & 0xFF) < MIN_VERSION) {
+	    return null;
+	}
+	try {
+	    final ClassFileEditor editor = new ClassFileEditor(classfileBuffer);
+	    final int enter = editor.addMethodref(TIMERS, "enter", "()V");
+	    final int exit = editor.addMethodref(TIMERS, "exit", "(I)V");
+	    return editor.edit((access, name, descriptor) -> {
+		if ((access & (ACC_ABSTRACT | ACC_NATIVE)) != 0 || name.startsWith("<") || !matches(patterns, name)) {
+		    return null;
+		}
+		final int id = editor.addInteger(MethodTimers.register(className.replace('/', '.'), name,
+			descriptor));
+		// invokestatic enter / ldc_w id, invokestatic exit / the same, athrow
+		final byte[] prologue = { (byte) 0xB8, (byte) (enter >>> 8), (byte) enter };
+		final byte[] epilogue = { 0x13, (byte) (id >>> 8), (byte) id, (byte) 0xB8, (byte) (exit >>> 8),
+			(byte) exit };
+		final byte[] handler = { 0x13, (byte) (id >>> 8), (byte) id, (byte) 0xB8, (byte) (exit >>> 8),
+			(byte) exit, (byte) 0xBF };
+		// the handler pushes the id over the exception
+		return new ClassFileEditor.Injection(prologue, epilogue, handler, 2);
+	    });
+	} catch (RuntimeException e) {
+	    log.log(Level.WARNING, String.format("Unable to time the methods of the class '%s'.", className), e);
+	    return null;
+	}
+    }
+
+    private Map<String, List<Pattern>> getPatterns() {
+	Map<String, List<Pattern>> compiled = patterns;
+	if (compiled == null) {
+	    compiled = new HashMap<>();
+	    for (Map.Entry<String, List<String>> e : methods.entrySet()) {
+		final List<Pattern> globs = new ArrayList<>();
+		for (String glob : e.getValue()) {
+		    globs.add(glob(glob));
+		}
+		compiled.put(e.getKey(), globs);
+	    }
+	    // compiled twice at worst, by threads loading classes at the same time
+	    patterns = compiled;
+	}
+	return compiled;
+    }
+
+    private static boolean matches(List<Pattern> patterns, String name) {
+	for (Pattern pattern : patterns) {
+	    if (pattern.matcher(name).matches()) {
+		return true;
+	    }
+	}
+	return false;
+    }
+
+    private static Pattern glob(String glob) {
+	final StringBuilder regex = new StringBuilder();
+	for (String part : glob.split("\\*", -1)) {
+	    if (regex.length() > 0) {
+		regex.append(".*");
+	    }
+	    regex.append(Pattern.quote(part));
+	}
+	return Pattern.compile(regex.toString());
+    }
+}
@@ -0,0 +1,412 @@
+/*******************************************************************************
+ * Copyright (c) 2017, Xavier Miret Andres <xavier.mires@gmail.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *******************************************************************************/
+package org.agenttools;
+
+import java.lang.instrument.Instrumentation;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Sizes the graph of objects reachable from some roots, i.e. how big a cache is.
+ * <p>
+ * Every reachable object is counted once, with its shallow size as reported by
+ * {@link Instrumentation#getObjectSize(Object)}. Static fields aren't followed, nor are classes, class loaders and
+ * threads, which would reach most of the heap. Further boundaries are set with {@link #withBoundary(ClassSelector)},
+ * {@link #withMaxDepth(int)} and {@link #withMaxBytes(long)}.
+ * <p>
+ * Sizers are immutable, and share the field layouts of the classes they walk.
+ */
+public final class ObjectGraphSizer {
+
+    // beyond this many pending objects, a parallel walk hands half of them to another task
+    private static final int SPLIT_THRESHOLD = 1024;
+
+    private final Instrumentation instrumentation;
+    private final Layouts layouts;
+    private final ClassSelector boundary;
+    private final int maxDepth;
+    private final long maxBytes;
+    private final ForkJoinPool pool;
+
+    ObjectGraphSizer(Instrumentation instrumentation) {
+	this(instrumentation, new Layouts(), null, Integer.MAX_VALUE, Long.MAX_VALUE, null);
+    }
+
+    private ObjectGraphSizer(Instrumentation instrumentation, Layouts layouts, ClassSelector boundary, int maxDepth,
+	    long maxBytes, ForkJoinPool pool) {
+	this.instrumentation = instrumentation;
+	this.layouts = layouts;
+	this.boundary = boundary;
+	this.maxDepth = maxDepth;
+	this.maxBytes = maxBytes;
+	this.pool = pool;
+    }
+
+    /**
+     * Objects of the selected classes are neither counted nor followed.
+     */
+    public ObjectGraphSizer withBoundary(ClassSelector selector) {
+	final ClassSelector b = boundary == null ? selector : boundary.or(selector);
+	return new ObjectGraphSizer(instrumentation, layouts, b, maxDepth, maxBytes, pool);
+    }
+
+    /**
+     * Objects further than the given number of references from the roots aren't counted. Roots are at depth 0.
+     * <p>
+     * The depth of an object is the one of the path it was first reached by, which is the shortest path unless the
+     * walk is parallel.
+     */
+    public ObjectGraphSizer withMaxDepth(int maxDepth) {
+	return new ObjectGraphSizer(instrumentation, layouts, boundary, maxDepth, maxBytes, pool);
+    }
+
+    /**
+     * Stops the walk once the given number of bytes is reached, the size is then {@link GraphSize#isTruncated()
+     * truncated}.
+     */
+    public ObjectGraphSizer withMaxBytes(long maxBytes) {
+	return new ObjectGraphSizer(instrumentation, layouts, boundary, maxDepth, maxBytes, pool);
+    }
+
+    /**
+     * Walks the graph with fork-join tasks in the given pool, for very large graphs.
+     */
+    public ObjectGraphSizer withParallelism(ForkJoinPool pool) {
+	return new ObjectGraphSizer(instrumentation, layouts, boundary, maxDepth, maxBytes, pool);
+    }
+
+    public GraphSize size(Object... roots) {
+	final Frontier frontier = new Frontier(Math.max(16, roots.length));
+	final Walk walk;
+	if (pool == null) {
+	    final IdentitySet visited = new IdentitySet();
+	    walk = new Walk(frontier, visited::add, false);
+	} else {
+	    final StripedIdentitySet visited = new StripedIdentitySet(pool.getParallelism() * 4);
+	    walk = new Walk(frontier, visited::add, true);
+	}
+	for (Object root : roots) {
+	    walk.push(root, 0);
+	}
+	return pool == null ? walk.compute() : pool.invoke(walk);
+    }
+
+    private boolean isBoundary(Class<?> type, Map<Class<?>, Boolean> boundaries) {
+	if (type == Class.class || ClassLoader.class.isAssignableFrom(type) || Thread.class.isAssignableFrom(type)) {
+	    return true;
+	}
+	if (boundary == null) {
+	    return false;
+	}
+	Boolean b = boundaries.get(type);
+	if (b == null) {
+	    b = boundary.matches(type.getName());
+	    boundaries.put(type, b);
+	}
+	return b;
+    }
+
+    private interface Visited {
+	boolean add(Object o);
+    }
+
+    private final class Walk extends RecursiveTask<GraphSize> {
+
+	private static final long serialVersionUID = 1L;
+
+	private final Frontier frontier;
+	private final Visited visited;
+	private final boolean parallel;
+	private final AtomicLong bytes;
+	private final Map<Class<?>, Boolean> boundaries;
+
+	Walk(Frontier frontier, Visited visited, boolean parallel) {
+	    this(frontier, visited, parallel, new AtomicLong(), new ConcurrentHashMap<>());
+	}
+
+	private Walk(Frontier frontier, Visited visited, boolean parallel, AtomicLong bytes,
+		Map<Class<?>, Boolean> boundaries) {
+	    this.frontier = frontier;
+	    this.visited = visited;
+	    this.parallel = parallel;
+	    this.bytes = bytes;
+	    this.boundaries = boundaries;
+	}
+
+	void push(Object o, int depth) {
+	    if (o != null && depth <= maxDepth && !isBoundary(o.getClass(), boundaries) && visited.add(o)) {
+		frontier.add(o, depth);
+	    }
+	}
+
+	@Override
+	protected GraphSize compute() {
+	    final GraphSize size = new GraphSize();
+	    final List<Walk> forked = new ArrayList<>();
+	    while (!frontier.isEmpty()) {
+		if (parallel && frontier.size() > SPLIT_THRESHOLD) {
+		    final Walk w = new Walk(frontier.split(), visited, true, bytes, boundaries);
+		    w.fork();
+		    forked.add(w);
+		}
+
+		final int depth = frontier.peekDepth();
+		final Object o = frontier.poll();
+		final long objectBytes = instrumentation.getObjectSize(o);
+		if (bytes.addAndGet(objectBytes) > maxBytes) {
+		    size.truncate();
+		    break;
+		}
+		size.add(o.getClass(), objectBytes);
+
+		if (depth < maxDepth) {
+		    pushReferences(o, depth + 1);
+		}
+	    }
+	    for (Walk w : forked) {
+		size.addAll(w.join());
+	    }
+	    return size;
+	}
+
+	private void pushReferences(Object o, int depth) {
+	    final Class<?> type = o.getClass();
+	    if (type.isArray()) {
+		if (!type.getComponentType().isPrimitive()) {
+		    for (Object e : (Object[]) o) {
+			push(e, depth);
+		    }
+		}
+		return;
+	    }
+	    final Layout layout = layouts.get(type);
+	    for (Field f : layout.fields) {
+		try {
+		    push(f.get(o), depth);
+		} catch (IllegalAccessException e) {
+		    // not accessible, see Layouts
+		}
+	    }
+	    for (long offset : layout.offsets) {
+		push(Layouts.getObject(o, offset), depth);
+	    }
+	}
+    }
+
+    /**
+     * The instance fields holding references of a class: accessible fields, and the offsets of the others.
+     */
+    private static final class Layout {
+	final Field[] fields;
+	final long[] offsets;
+
+	Layout(Field[] fields, long[] offsets) {
+	    this.fields = fields;
+	    this.offsets = offsets;
+	}
+    }
+
+    /**
+     * The layouts of the classes walked.
+     * <p>
+     * On Java 9+, fields of classes in named modules (i.e. java.util.HashMap) aren't accessible to the agent. Rather
+     * than opening their packages, which would open them VM-wide and for good, such fields are read through their
+     * offsets with sun.misc.Unsafe. Where there's no Unsafe, or it refuses the field, the field isn't followed.
+     */
+    private static final class Layouts extends ClassValue<Layout> {
+
+	// Unsafe.objectFieldOffset(Field) and Unsafe.getObject(Object, long), bound to the Unsafe, or null
+	private static final MethodHandle[] unsafe = unsafe();
+
+	@Override
+	protected Layout computeValue(Class<?> type) {
+	    final List<Field> fields = new ArrayList<>();
+	    final List<Long> offsets = new ArrayList<>();
+	    for (Class<?> c = type; c != null; c = c.getSuperclass()) {
+		for (Field f : c.getDeclaredFields()) {
+		    if (Modifier.isStatic(f.getModifiers()) || f.getType().isPrimitive()) {
+			continue;
+		    }
+		    if (makeAccessible(f)) {
+			fields.add(f);
+		    } else if (unsafe != null) {
+			try {
+			    offsets.add((long) unsafe[0].invokeExact(f));
+			} catch (Throwable e) {
+			    // i.e. records and hidden classes, opaque
+			}
+		    }
+		}
+	    }
+	    final long[] o = new long[offsets.size()];
+	    for (int i = 0; i < o.length; i++) {
+		o[i] = offsets.get(i);
+	    }
+	    return new Layout(fields.toArray(new Field[fields.size()]), o);
+	}
+
+	private static boolean makeAccessible(Field f) {
+	    try {
+		f.setAccessible(true);
+		return true;
+	    } catch (RuntimeException e) {
+		// InaccessibleObjectException (Java 9+)
+		return false;
+	    }
+	}
+
+	static Object getObject(Object o, long offset) {
+	    try {
+		return (Object) unsafe[1].invokeExact(o, offset);
+	    } catch (Throwable e) {
+		throw new IllegalStateException(e); // not thrown by Unsafe.getObject
+	    }
+	}
+
+	// Not compiled against, sun.misc.Unsafe isn't part of the Java 8 API.
+	private static MethodHandle[] unsafe() {
+	    try {
+		final Class<?> type = Class.forName("sun.misc.Unsafe");
+		final Field theUnsafe = type.getDeclaredField("theUnsafe");
+		theUnsafe.setAccessible(true);
+		final Object instance = theUnsafe.get(null);
+		final MethodHandles.Lookup lookup = MethodHandles.publicLookup();
+		return new MethodHandle[] {
+			lookup.findVirtual(type, "objectFieldOffset", MethodType.methodType(long.class, Field.class))
+				.bindTo(instance),
+			lookup.findVirtual(type, "getObject", MethodType.methodType(Object.class, Object.class,
+				long.class)).bindTo(instance) };
+	    } catch (ReflectiveOperationException | RuntimeException e) {
+		return null;
+	    }
+	}
+    }
+
+    /**
+     * A FIFO of pending objects and their depths, in ring buffers.
+     */
+    private static final class Frontier {
+
+	private Object[] objects;
+	private int[] depths;
+	private int head = 0;
+	private int size = 0;
+
+	Frontier(int capacity) {
+	    objects = new Object[capacity];
+	    depths = new int[capacity];
+	}
+
+	boolean isEmpty() {
+	    return size == 0;
+	}
+
+	int size() {
+	    return size;
+	}
+
+	void add(Object o, int depth) {
+	    if (size == objects.length) {
+		grow();
+	    }
+	    final int i = (head + size) % objects.length;
+	    objects[i] = o;
+	    depths[i] = depth;
+	    size++;
+	}
+
+	int peekDepth() {
+	    return depths[head];
+	}
+
+	Object poll() {
+	    final Object o = objects[head];
+	    objects[head] = null;
+	    head = (head + 1) % objects.length;
+	    size--;
+	    return o;
+	}
+
+	// Moves the most recent half to a new frontier.
+	Frontier split() {
+	    final int n = size / 2;
+	    final Frontier other = new Frontier(Math.max(16, n));
+	    for (int k = size - n; k < size; k++) {
+		final int i = (head + k) % objects.length;
+		other.add(objects[i], depths[i]);
+		objects[i] = null;
+	    }
+	    size -= n;
+	    return other;
+	}
+
+	private void grow() {
+	    final Object[] o = new Object[objects.length * 2];
+	    final int[] d = new int[objects.length * 2];
+	    for (int k = 0; k < size; k++) {
+		final int i = (head + k) % objects.length;
+		o[k] = objects[i];
+		d[k] = depths[i];
+	    }
+	    objects = o;
+	    depths = d;
+	    head = 0;
+	}
+    }
+
+    /**
+     * Identity sets guarded by their own lock, the set of an object depends on its identity hash.
+     */
+    private static final class StripedIdentitySet {
+
+	private final IdentitySet[] stripes;
+
+	StripedIdentitySet(int stripes) {
+	    int n = 1;
+	    while (n < stripes) {
+		n <<= 1;
+	    }
+	    this.stripes = new IdentitySet[n];
+	    for (int i = 0; i < n; i++) {
+		this.stripes[i] = new IdentitySet();
+	    }
+	}
+
+	boolean add(Object o) {
+	    // the high bits, the set itself indexes with the low ones
+	    final IdentitySet stripe = stripes[(IdentitySet.hash(o) >>> 24) & (stripes.length - 1)];
+	    synchronized (stripe) {
+		return stripe.add(o);
+	    }
+	}
+    }
+}
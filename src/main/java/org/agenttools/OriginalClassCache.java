@@ -0,0 +1,299 @@
+/*******************************************************************************
+ * Copyright (c) 2017, Xavier Miret Andres <xavier.mires@gmail.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *******************************************************************************/
+package org.agenttools;
+
+import java.lang.instrument.ClassFileTransformer;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.security.ProtectionDomain;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Records the original bytes of the selected classes when they are first loaded, so they can be reset later on
+ * without reading any class file.
+ * <p>
+ * Bytes are kept deflated in direct (off-heap) buffers. The resident bytes are the capacity of the direct buffers held,
+ * a buffer is freed as soon as its class is evicted rather than when it is collected. Once the resident bytes exceed
+ * the budget, the least recently used classes are evicted. Classes whose class loader is unloaded are evicted too.
+ * <p>
+ * The agent installs the cache through a transformer registered before any other of its own (see
+ * {@link Instrumentor#enableResetCache(ClassSelector, long)}), so the bytes recorded are those read by the class
+ * loader, unless another agent transforms them first. Classes loaded before the cache was enabled aren't recorded.
+ */
+class OriginalClassCache implements ClassFileTransformer {
+
+    // Unsafe.invokeCleaner(ByteBuffer) as of java 9, DirectBuffer.cleaner().clean() on java 8
+    private static final Object unsafe = unsafe();
+    private static final Method invokeCleaner = invokeCleaner();
+
+    private final ClassSelector selector;
+    private final long byteBudget;
+
+    // access order
+    private final LinkedHashMap<Key, Entry> entries = new LinkedHashMap<>(64, 0.75f, true);
+    // the keys whose class loader was unloaded
+    private final ReferenceQueue<ClassLoader> unloaded = new ReferenceQueue<>();
+    private long residentBytes = 0;
+    private long hits = 0;
+    private long misses = 0;
+
+    OriginalClassCache(ClassSelector selector, long byteBudget) {
+	this.selector = selector;
+	this.byteBudget = byteBudget;
+    }
+
+    @Override
+    public byte[] transform(ClassLoader loader, String className, Class<?> classBeingRedefined,
+	    ProtectionDomain protectionDomain, byte[] classfileBuffer) {
+	if (className != null && classBeingRedefined == null && selector.matches(className)) {
+	    put(loader, className, classfileBuffer);
+	}
+	return null;
+    }
+
+    /**
+     * The original bytes of the class, or null if they weren't recorded (or were evicted).
+     */
+    byte[] get(ClassLoader loader, String internalName) {
+	final byte[] deflated;
+	final int length;
+	synchronized (this) {
+	    final Entry entry = entries.get(new Key(loader, internalName, null));
+	    if (entry == null) {
+		misses++;
+		return null;
+	    }
+	    hits++;
+	    // copied while held, the buffer is freed once evicted
+	    deflated = new byte[entry.data.capacity()];
+	    ((ByteBuffer) entry.data.duplicate().clear()).get(deflated);
+	    length = entry.length;
+	}
+	return inflate(deflated, length);
+    }
+
+    synchronized long getHits() {
+	return hits;
+    }
+
+    synchronized long getMisses() {
+	return misses;
+    }
+
+    synchronized long getResidentBytes() {
+	return residentBytes;
+    }
+
+    synchronized int size() {
+	return entries.size();
+    }
+
+    /**
+     * Frees every buffer.
+     */
+    synchronized void clear() {
+	for (Entry entry : entries.values()) {
+	    free(entry.data);
+	}
+	entries.clear();
+	residentBytes = 0;
+    }
+
+    private void put(ClassLoader loader, String internalName, byte[] bytes) {
+	final byte[] deflated = deflate(bytes);
+	// checked before anything is allocated off-heap
+	if (deflated == null || deflated.length > byteBudget) {
+	    return;
+	}
+
+	synchronized (this) {
+	    purgeUnloaded();
+	    final ByteBuffer data = ByteBuffer.allocateDirect(deflated.length);
+	    data.put(deflated);
+	    remove(entries.put(new Key(loader, internalName, unloaded), new Entry(data, bytes.length)));
+	    residentBytes += data.capacity();
+
+	    final Iterator<Map.Entry<Key, Entry>> lru = entries.entrySet().iterator();
+	    while (residentBytes > byteBudget && lru.hasNext()) {
+		final Entry evicted = lru.next().getValue();
+		lru.remove();
+		remove(evicted);
+	    }
+	}
+    }
+
+    private void purgeUnloaded() {
+	for (Object ref; (ref = unloaded.poll()) != null;) {
+	    final Key key = ((LoaderRef) ref).key;
+	    if (key != null) {
+		remove(entries.remove(key));
+	    }
+	}
+    }
+
+    private void remove(Entry entry) {
+	if (entry != null) {
+	    residentBytes -= entry.data.capacity();
+	    free(entry.data);
+	}
+    }
+
+    // Null if the bytes don't deflate, not worth caching.
+    private static byte[] deflate(byte[] bytes) {
+	final Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+	try {
+	    deflater.setInput(bytes);
+	    deflater.finish();
+	    final byte[] buffer = new byte[bytes.length + 64];
+	    final int length = deflater.deflate(buffer);
+	    if (!deflater.finished()) {
+		return null;
+	    }
+	    final byte[] deflated = new byte[length];
+	    System.arraycopy(buffer, 0, deflated, 0, length);
+	    return deflated;
+	} finally {
+	    deflater.end();
+	}
+    }
+
+    private static byte[] inflate(byte[] deflated, int length) {
+	final Inflater inflater = new Inflater();
+	try {
+	    inflater.setInput(deflated);
+	    final byte[] bytes = new byte[length];
+	    inflater.inflate(bytes);
+	    return bytes;
+	} catch (DataFormatException e) {
+	    throw new AgentLoadingException("Corrupted class bytes in the original class cache.", e);
+	} finally {
+	    inflater.end();
+	}
+    }
+
+    // Frees the buffer now, or leaves it to the GC if the VM doesn't allow it.
+    private static void free(ByteBuffer buffer) {
+	try {
+	    if (unsafe != null) {
+		invokeCleaner.invoke(unsafe, buffer);
+	    } else if (invokeCleaner != null) {
+		final Object cleaner = invokeCleaner.invoke(buffer);
+		if (cleaner != null) {
+		    cleaner.getClass().getMethod("clean").invoke(cleaner);
+		}
+	    }
+	} catch (ReflectiveOperationException | RuntimeException e) {
+	    // collected later on
+	}
+    }
+
+    private static Object unsafe() {
+	try {
+	    final Class<?> type = Class.forName("sun.misc.Unsafe");
+	    type.getMethod("invokeCleaner", ByteBuffer.class);
+	    final Field theUnsafe = type.getDeclaredField("theUnsafe");
+	    theUnsafe.setAccessible(true);
+	    return theUnsafe.get(null);
+	} catch (ReflectiveOperationException | RuntimeException e) {
+	    return null; // java 8
+	}
+    }
+
+    private static Method invokeCleaner() {
+	try {
+	    if (unsafe != null) {
+		return unsafe.getClass().getMethod("invokeCleaner", ByteBuffer.class);
+	    }
+	    final Method cleaner = ByteBuffer.allocateDirect(1).getClass().getMethod("cleaner");
+	    cleaner.setAccessible(true);
+	    return cleaner;
+	} catch (ReflectiveOperationException | RuntimeException e) {
+	    return null;
+	}
+    }
+
+    private static final class Entry {
+	final ByteBuffer data;
+	final int length;
+
+	Entry(ByteBuffer data, int length) {
+	    this.data = data;
+	    this.length = length;
+	}
+    }
+
+    private static final class LoaderRef extends WeakReference<ClassLoader> {
+	final Key key;
+
+	LoaderRef(ClassLoader loader, ReferenceQueue<ClassLoader> queue, Key key) {
+	    super(loader, queue);
+	    this.key = key;
+	}
+    }
+
+    private static final class Key {
+	final String internalName;
+	// null for the bootstrap class loader
+	final LoaderRef loader;
+	final int hash;
+
+	// queue is null for lookups, which aren't purged
+	Key(ClassLoader loader, String internalName, ReferenceQueue<ClassLoader> queue) {
+	    this.internalName = internalName;
+	    this.loader = loader == null ? null : new LoaderRef(loader, queue, queue == null ? null : this);
+	    this.hash = 31 * internalName.hashCode() + System.identityHashCode(loader);
+	}
+
+	@Override
+	public int hashCode() {
+	    return hash;
+	}
+
+	// A key whose class loader was unloaded only equals itself, never the bootstrap one.
+	@Override
+	public boolean equals(Object obj) {
+	    if (obj == this) {
+		return true;
+	    }
+	    if (!(obj instanceof Key)) {
+		return false;
+	    }
+	    final Key other = (Key) obj;
+	    if (!internalName.equals(other.internalName)) {
+		return false;
+	    }
+	    if (loader == null || other.loader == null) {
+		return loader == other.loader;
+	    }
+	    final ClassLoader cl = loader.get();
+	    return cl != null && cl == other.loader.get();
+	}
+    }
+}
@@ -0,0 +1,127 @@
+/*******************************************************************************
+ * Copyright (c) 2017, Xavier Miret Andres <xavier.mires@gmail.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *******************************************************************************/
+package org.agenttools;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFileAttributeView;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.EnumSet;
+import java.util.Set;
+
+/**
+ * The directory the VMs of a user share their files in (control endpoints, jars, handoffs, traces), under the
+ * temporary directory.
+ * <p>
+ * The temporary directory is shared by every user, so nothing found there is trusted before it is checked: it must not
+ * be a link, it must be owned by the current user and nobody else may access it. On file systems without POSIX
+ * permissions only the owner is checked.
+ */
+final class PrivateFiles {
+
+    private static final Set<PosixFilePermission> SHARED = EnumSet.of(PosixFilePermission.GROUP_READ,
+	    PosixFilePermission.GROUP_WRITE, PosixFilePermission.GROUP_EXECUTE, PosixFilePermission.OTHERS_READ,
+	    PosixFilePermission.OTHERS_WRITE, PosixFilePermission.OTHERS_EXECUTE);
+
+    private PrivateFiles() {
+    }
+
+    /**
+     * The path of a directory of the current user, neither created nor checked.
+     */
+    static File path(String name) {
+	final String user = System.getProperty("user.name", "unknown").replaceAll("[^A-Za-z0-9._-]", "_");
+	return new File(new File(System.getProperty("java.io.tmpdir"), "agent-tools-" + user), name);
+    }
+
+    /**
+     * A directory of the current user, created if needed, and checked.
+     * 
+     * @throws IOException
+     *             if it can't be created, or if it (or its parent) can be accessed by another user
+     */
+    static File directory(String name) throws IOException {
+	final File directory = path(name);
+	createPrivateDirectory(directory.getParentFile().toPath());
+	createPrivateDirectory(directory.toPath());
+	return directory;
+    }
+
+    /**
+     * The given directory, created if needed, and checked. Its parent isn't checked.
+     */
+    static File directory(File directory) throws IOException {
+	createPrivateDirectory(directory.toPath());
+	return directory;
+    }
+
+    private static void createPrivateDirectory(Path directory) throws IOException {
+	if (!Files.exists(directory, LinkOption.NOFOLLOW_LINKS)) {
+	    try {
+		Files.createDirectory(directory);
+		restrict(directory, "rwx------");
+	    } catch (FileAlreadyExistsException e) {
+		// created concurrently, checked below
+	    }
+	}
+	checkPrivate(directory);
+    }
+
+    /**
+     * Checks that only the current user can access the file or directory.
+     * 
+     * @throws IOException
+     *             if it is a link, isn't owned by the current user or is accessible to others
+     */
+    static void checkPrivate(Path path) throws IOException {
+	if (Files.isSymbolicLink(path)) {
+	    throw new IOException(String.format("'%s' is a link, it isn't trusted.", path));
+	}
+	final String owner = Files.getOwner(path, LinkOption.NOFOLLOW_LINKS).getName();
+	final String user = System.getProperty("user.name");
+	// Windows owners are qualified by their domain
+	if (!owner.equals(user) && !owner.endsWith("\\" + user)) {
+	    throw new IOException(String.format("'%s' is owned by %s, it isn't trusted.", path, owner));
+	}
+	if (Files.getFileAttributeView(path, PosixFileAttributeView.class, LinkOption.NOFOLLOW_LINKS) != null) {
+	    final Set<PosixFilePermission> permissions = Files.getPosixFilePermissions(path,
+		    LinkOption.NOFOLLOW_LINKS);
+	    permissions.retainAll(SHARED);
+	    if (!permissions.isEmpty()) {
+		throw new IOException(String.format("'%s' can be accessed by other users, it isn't trusted.", path));
+	    }
+	}
+    }
+
+    static void restrict(Path path, String permissions) throws IOException {
+	try {
+	    Files.setPosixFilePermissions(path, PosixFilePermissions.fromString(permissions));
+	} catch (UnsupportedOperationException e) {
+	    // not a POSIX file system, the default permissions apply
+	}
+    }
+}
@@ -0,0 +1,82 @@
+/*******************************************************************************
+ * Copyright (c) 2017, Xavier Miret Andres <xavier.mires@gmail.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *******************************************************************************/
+package org.agenttools;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MutableCallSite;
+
+/**
+ * Turns probe code on and off without touching the instrumented classes.
+ * <p>
+ * The switch is a call site returning a constant. Probes hold its guard in a static final field, so the JIT compiles
+ * it as that constant, and drops the probe code when it is off. Flipping the switch deoptimizes the compiled code
+ * depending on it, once.
+ */
+final class ProbeSwitch {
+
+    private static final MethodHandle ON = MethodHandles.constant(boolean.class, true);
+    private static final MethodHandle OFF = MethodHandles.constant(boolean.class, false);
+
+    private final MutableCallSite site;
+    private final MethodHandle guard;
+    private volatile int flips = 0;
+
+    ProbeSwitch(boolean on) {
+	this.site = new MutableCallSite(on ? ON : OFF);
+	this.guard = site.dynamicInvoker();
+    }
+
+    /**
+     * To keep in a static final field, and test with {@link #isOn(MethodHandle)}.
+     */
+    MethodHandle guard() {
+	return guard;
+    }
+
+    static boolean isOn(MethodHandle guard) {
+	try {
+	    return (boolean) guard.invokeExact();
+	} catch (Throwable e) {
+	    throw new IllegalStateException(e);
+	}
+    }
+
+    boolean isOn() {
+	return site.getTarget() == ON;
+    }
+
+    synchronized void set(boolean on) {
+	if (isOn() != on) {
+	    site.setTarget(on ? ON : OFF);
+	    MutableCallSite.syncAll(new MutableCallSite[] { site });
+	    flips++;
+	}
+    }
+
+    /**
+     * The times the switch was flipped, so probes can drop what they recorded before.
+     */
+    int getFlips() {
+	return flips;
+    }
+}
@@ -0,0 +1,131 @@
+/*******************************************************************************
+ * Copyright (c) 2017, Xavier Miret Andres <xavier.mires@gmail.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *******************************************************************************/
+package org.agenttools;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The outcome of a bulk redefinition, per class.
+ * <p>
+ * Loaded classes are redefined all at once: either all of them are redefined or none is, and they all share the same
+ * timing. Classes which weren't loaded yet are loaded with their redefinition, one by one.
+ */
+public final class RedefineResult implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    private final Map<String, ClassOutcome> outcomes = new LinkedHashMap<>();
+
+    void add(String className, Throwable error, long nanos) {
+	// the same class may be defined by several class loaders, keep the first failure
+	final ClassOutcome previous = outcomes.get(className);
+	if (previous == null || previous.isSuccess()) {
+	    outcomes.put(className, new ClassOutcome(className, error, nanos));
+	}
+    }
+
+    /**
+     * True if every class was redefined.
+     */
+    public boolean isSuccess() {
+	for (ClassOutcome outcome : outcomes.values()) {
+	    if (!outcome.isSuccess()) {
+		return false;
+	    }
+	}
+	return true;
+    }
+
+    public List<ClassOutcome> getOutcomes() {
+	return Collections.unmodifiableList(new ArrayList<>(outcomes.values()));
+    }
+
+    /**
+     * @param className
+     *            a class name, either binary (java.lang.Object) or internal (java/lang/Object)
+     */
+    public ClassOutcome getOutcome(String className) {
+	return outcomes.get(className.replace('/', '.'));
+    }
+
+    @Override
+    public String toString() {
+	return "RedefineResult " + outcomes.values();
+    }
+
+    public static final class ClassOutcome implements Serializable {
+
+	private static final long serialVersionUID = 1L;
+
+	private final String className;
+	private final String error;
+	private final long nanos;
+	// in the VM which redefined the class only, its classes may not resolve elsewhere
+	private final transient Throwable cause;
+
+	ClassOutcome(String className, Throwable cause, long nanos) {
+	    this.className = className;
+	    this.error = cause == null ? null : cause.toString();
+	    this.nanos = nanos;
+	    this.cause = cause;
+	}
+
+	public String getClassName() {
+	    return className;
+	}
+
+	public boolean isSuccess() {
+	    return error == null;
+	}
+
+	/**
+	 * The failure description, or null if the class was redefined.
+	 */
+	public String getError() {
+	    return error;
+	}
+
+	/**
+	 * The failure, null if the class was redefined or once the outcome is serialized.
+	 */
+	Throwable getCause() {
+	    return cause;
+	}
+
+	/**
+	 * Time spent redefining (or loading) the class, shared by all classes redefined together.
+	 */
+	public long getNanos() {
+	    return nanos;
+	}
+
+	@Override
+	public String toString() {
+	    return className + (error == null ? " redefined" : " failed (" + error + ")") + " in " + nanos + "ns";
+	}
+    }
+}
@@ -0,0 +1,165 @@
+/*******************************************************************************
+ * Copyright (c) 2017, Xavier Miret Andres <xavier.mires@gmail.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *******************************************************************************/
+package org.agenttools;
+
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.agenttools.AgentBootstrap.ProxyConnection;
+
+/**
+ * A reusable connection to the agent of a remote VM.
+ * <p>
+ * The remote VM is attached (and the agent started) once, then the JMX connection is kept open and shared by every
+ * operation. A session which has been idle for a while is checked before being reused, and it reconnects by itself
+ * if the connection was lost.
+ * <p>
+ * Sessions are thread safe. Get them from {@link RemoteSessions#get(int)}. Once the pool has dropped a session, the
+ * session goes through the pool rather than reconnecting by itself, so the pool bounds every connection.
+ */
+public final class RemoteSession implements AutoCloseable {
+
+    private static final Logger log = Logger.getLogger(RemoteSession.class.getName());
+
+    // don't check sessions used more recently than that
+    private static final long HEALTH_CHECK_INTERVAL = TimeUnit.SECONDS.toNanos(1);
+
+    private final int pid;
+
+    // guarded by this
+    private ProxyConnection<InstrumentorMBean> connection = null;
+    private volatile long lastUsed = System.nanoTime();
+    // dropped by the pool
+    private volatile boolean evicted = false;
+    // guarded by this, the operations in flight
+    private int users = 0;
+
+    RemoteSession(int pid) {
+	this.pid = pid;
+    }
+
+    public int getPid() {
+	return pid;
+    }
+
+    /**
+     * The remote agent, connecting (or reconnecting) if needed. A session dropped by the pool returns the agent of
+     * the pooled session of the process instead, unless operations are still in flight.
+     */
+    public InstrumentorMBean getInstrumentor() throws AgentLoadingException {
+	synchronized (this) {
+	    if (!evicted || users > 0) {
+		final long now = System.nanoTime();
+		if (connection != null && now - lastUsed > HEALTH_CHECK_INTERVAL && !isHealthy()) {
+		    log.log(Level.FINE, "Lost the connection to pid ''{0}'', reconnecting.", pid);
+		    disconnect();
+		}
+		if (connection == null) {
+		    connection = AgentBootstrap.getInstrumentorProxy(pid);
+		}
+		lastUsed = now;
+		return connection.proxy;
+	    }
+	}
+	// never holding this, the pool locks itself first
+	return RemoteSessions.get(pid).getInstrumentor();
+    }
+
+    public synchronized boolean isConnected() {
+	return connection != null;
+    }
+
+    long getIdleNanos() {
+	return System.nanoTime() - lastUsed;
+    }
+
+    /**
+     * Marks the session as dropped by the pool, which disconnects it next. Doesn't block.
+     */
+    void evict() {
+	evicted = true;
+    }
+
+    boolean isEvicted() {
+	return evicted;
+    }
+
+    // guarded by the pool, which doesn't drop the session in between
+    synchronized void acquire() {
+	users++;
+    }
+
+    /**
+     * Ends an operation started by {@link RemoteSessions#acquire(int)}, the last one disconnects the session if the
+     * pool dropped it meanwhile.
+     */
+    synchronized void release() {
+	if (--users == 0 && evicted) {
+	    disconnect();
+	}
+    }
+
+    /**
+     * Disconnects the session dropped by the pool, unless operations are in flight: the last one disconnects it.
+     */
+    synchronized void retire() {
+	if (users == 0) {
+	    disconnect();
+	}
+    }
+
+    /**
+     * Drops the connection, the next operation reconnects.
+     */
+    synchronized void disconnect() {
+	if (connection != null) {
+	    try {
+		connection.close();
+	    } catch (AgentLoadingException e) {
+		log.log(Level.FINE, String.format("Unable to close the connection to pid '%s'.", pid), e);
+	    }
+	    connection = null;
+	}
+    }
+
+    @Override
+    public void close() {
+	RemoteSessions.remove(this);
+	evict();
+	disconnect();
+    }
+
+    private boolean isHealthy() {
+	try {
+	    connection.proxy.getTransformerCount();
+	    return true;
+	} catch (RuntimeException e) {
+	    return false;
+	}
+    }
+
+    @Override
+    public String toString() {
+	return "RemoteSession [pid=" + pid + ", connected=" + isConnected() + "]";
+    }
+}
@@ -0,0 +1,187 @@
+/*******************************************************************************
+ * Copyright (c) 2017, Xavier Miret Andres <xavier.mires@gmail.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *******************************************************************************/
+package org.agenttools;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A bounded pool of {@link RemoteSession}, one per remote process.
+ * <p>
+ * Every remote operation in {@link Agents} goes through this pool. Beyond the maximum number of sessions, the least
+ * recently used one is closed. Sessions idle for longer than the idle timeout are closed in the background. A session
+ * dropped while operations of {@link Agents} are in flight is closed once the last of them returns.
+ */
+public class RemoteSessions {
+
+    private static int maxSessions = 16;
+    private static long idleTimeoutNanos = TimeUnit.MINUTES.toNanos(5);
+
+    // access order, guarded by the class
+    private static final LinkedHashMap<Integer, RemoteSession> sessions = new LinkedHashMap<>(16, 0.75f, true);
+
+    private static ScheduledExecutorService evictor = null;
+    private static ScheduledFuture<?> eviction = null;
+
+    private RemoteSessions() {
+    }
+
+    /**
+     * The session of the given process, created if there isn't any. Connecting is deferred to its first use.
+     */
+    public static RemoteSession get(int pid) {
+	return get(pid, false);
+    }
+
+    /**
+     * The session of the given process, in use until {@link RemoteSession#release() released}. A session dropped by
+     * the pool while in use is disconnected once released by its last user.
+     */
+    static RemoteSession acquire(int pid) {
+	return get(pid, true);
+    }
+
+    private static RemoteSession get(int pid, boolean acquire) {
+	final List<RemoteSession> evicted;
+	final RemoteSession session;
+	synchronized (RemoteSessions.class) {
+	    RemoteSession s = sessions.get(pid);
+	    if (s == null) {
+		s = new RemoteSession(pid);
+		sessions.put(pid, s);
+		scheduleEviction();
+	    }
+	    if (acquire) {
+		s.acquire();
+	    }
+	    session = s;
+	    evicted = trim();
+	}
+	retire(evicted);
+	return session;
+    }
+
+    /**
+     * Sets the maximum number of sessions kept open at once, the least recently used ones beyond are closed now.
+     */
+    public static void setMaxSessions(int max) {
+	if (max < 1) {
+	    throw new IllegalArgumentException("At least a session is required.");
+	}
+	final List<RemoteSession> evicted;
+	synchronized (RemoteSessions.class) {
+	    maxSessions = max;
+	    evicted = trim();
+	}
+	retire(evicted);
+    }
+
+    /**
+     * Sets the time after which an unused session is closed.
+     */
+    public static synchronized void setIdleTimeout(long timeout, TimeUnit unit) {
+	idleTimeoutNanos = unit.toNanos(timeout);
+	if (eviction != null) {
+	    eviction.cancel(false);
+	    eviction = null;
+	    scheduleEviction();
+	}
+    }
+
+    /**
+     * Closes every session.
+     */
+    public static void closeAll() {
+	final List<RemoteSession> all;
+	synchronized (RemoteSessions.class) {
+	    all = new ArrayList<>(sessions.values());
+	    all.forEach(RemoteSession::evict);
+	    sessions.clear();
+	}
+	retire(all);
+    }
+
+    static synchronized int size() {
+	return sessions.size();
+    }
+
+    static synchronized void remove(RemoteSession session) {
+	sessions.remove(session.getPid(), session);
+    }
+
+    static void evictIdle() {
+	final List<RemoteSession> idle = new ArrayList<>();
+	synchronized (RemoteSessions.class) {
+	    for (Iterator<Map.Entry<Integer, RemoteSession>> it = sessions.entrySet().iterator(); it.hasNext();) {
+		final RemoteSession session = it.next().getValue();
+		if (session.getIdleNanos() > idleTimeoutNanos) {
+		    session.evict();
+		    idle.add(session);
+		    it.remove();
+		}
+	    }
+	}
+	retire(idle);
+    }
+
+    // guarded by the class, drops the least recently used sessions beyond the maximum
+    private static List<RemoteSession> trim() {
+	final List<RemoteSession> evicted = new ArrayList<>();
+	final Iterator<RemoteSession> lru = sessions.values().iterator();
+	while (sessions.size() > maxSessions && lru.hasNext()) {
+	    final RemoteSession eldest = lru.next();
+	    eldest.evict();
+	    evicted.add(eldest);
+	    lru.remove();
+	}
+	return evicted;
+    }
+
+    // closing may block, never do it holding the pool
+    private static void retire(List<RemoteSession> evicted) {
+	for (RemoteSession session : evicted) {
+	    session.retire();
+	}
+    }
+
+    // guarded by the class
+    private static void scheduleEviction() {
+	if (evictor == null) {
+	    evictor = Executors.newSingleThreadScheduledExecutor(r -> {
+		final Thread t = new Thread(r, "agent-tools-session-evictor");
+		t.setDaemon(true);
+		return t;
+	    });
+	}
+	if (eviction == null) {
+	    final long period = Math.max(TimeUnit.SECONDS.toNanos(1), idleTimeoutNanos / 2);
+	    eviction = evictor.scheduleAtFixedRate(RemoteSessions::evictIdle, period, period, TimeUnit.NANOSECONDS);
+	}
+    }
+}
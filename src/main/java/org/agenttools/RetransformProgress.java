@@ -0,0 +1,200 @@
+/*******************************************************************************
+ * Copyright (c) 2017, Xavier Miret Andres <xavier.mires@gmail.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *******************************************************************************/
+package org.agenttools;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A snapshot of a scheduled re-transformation, see {@link RetransformSchedule}.
+ * <p>
+ * Every chunk is re-transformed in a single safepoint, whose duration is recorded in the pause histogram. A chunk
+ * which fails is retried class by class, so that a single class can't fail the others.
+ */
+public final class RetransformProgress implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    public enum State {
+	RUNNING, WAITING_FOR_LOW_LOAD, DONE, CANCELLED
+    }
+
+    private final long id;
+    private final String description;
+    private final State state;
+    private final int totalClasses;
+    private final int transformedClasses;
+    private final List<String> failedClasses;
+    private final int chunks;
+    private final int chunkSize;
+    private final long elapsedNanos;
+    private final long loadWaitNanos;
+    private final long[] pauseBuckets;
+    private final long pauseCount;
+    private final long pauseTotalNanos;
+
+    RetransformProgress(long id, String description, State state, int totalClasses, int transformedClasses,
+	    List<String> failedClasses, int chunks, int chunkSize, long elapsedNanos, long loadWaitNanos,
+	    long[] pauseBuckets, long pauseTotalNanos) {
+	this.id = id;
+	this.description = description;
+	this.state = state;
+	this.totalClasses = totalClasses;
+	this.transformedClasses = transformedClasses;
+	this.failedClasses = new ArrayList<>(failedClasses);
+	this.chunks = chunks;
+	this.chunkSize = chunkSize;
+	this.elapsedNanos = elapsedNanos;
+	this.loadWaitNanos = loadWaitNanos;
+	this.pauseBuckets = pauseBuckets;
+	this.pauseTotalNanos = pauseTotalNanos;
+	long count = 0;
+	for (long b : pauseBuckets) {
+	    count += b;
+	}
+	this.pauseCount = count;
+    }
+
+    public long getId() {
+	return id;
+    }
+
+    /**
+     * The selector of the classes re-transformed.
+     */
+    public String getDescription() {
+	return description;
+    }
+
+    public State getState() {
+	return state;
+    }
+
+    public boolean isFinished() {
+	return state == State.DONE || state == State.CANCELLED;
+    }
+
+    /**
+     * The number of classes selected when the re-transformation was scheduled.
+     */
+    public int getTotalClasses() {
+	return totalClasses;
+    }
+
+    /**
+     * The number of classes re-transformed so far.
+     */
+    public int getTransformedClasses() {
+	return transformedClasses;
+    }
+
+    public List<String> getFailedClasses() {
+	return Collections.unmodifiableList(failedClasses);
+    }
+
+    /**
+     * The number of classes either re-transformed or failed, from 0 to 100.
+     */
+    public double getPercentComplete() {
+	return totalClasses == 0 ? 100 : 100.0 * getCompletedClasses() / totalClasses;
+    }
+
+    /**
+     * The estimated time to complete, at the pace seen so far (waits and intervals included), -1 if unknown yet.
+     */
+    public long getEtaNanos() {
+	final int completed = getCompletedClasses();
+	if (isFinished() || completed == totalClasses) {
+	    return 0;
+	}
+	return completed == 0 ? -1 : (long) ((double) elapsedNanos / completed * (totalClasses - completed));
+    }
+
+    public int getChunks() {
+	return chunks;
+    }
+
+    /**
+     * The size of the next chunk, as adapted to the pauses measured.
+     */
+    public int getChunkSize() {
+	return chunkSize;
+    }
+
+    public long getElapsedNanos() {
+	return elapsedNanos;
+    }
+
+    /**
+     * The time spent waiting for the CPU load to lower.
+     */
+    public long getLoadWaitNanos() {
+	return loadWaitNanos;
+    }
+
+    /**
+     * The number of safepoints, one per chunk plus one per class of the failed chunks.
+     */
+    public long getPauseCount() {
+	return pauseCount;
+    }
+
+    public long getPauseTotalNanos() {
+	return pauseTotalNanos;
+    }
+
+    /**
+     * The pause which the given percentage of safepoints don't exceed, within the precision of the histogram.
+     * 
+     * @param percentile
+     *            from 0 to 100
+     */
+    public long getPausePercentileNanos(double percentile) {
+	return MethodTimers.percentile(pauseBuckets, pauseCount, percentile);
+    }
+
+    public long getMedianPauseNanos() {
+	return getPausePercentileNanos(50);
+    }
+
+    public long getP99PauseNanos() {
+	return getPausePercentileNanos(99);
+    }
+
+    public long getMaxPauseNanos() {
+	return getPausePercentileNanos(100);
+    }
+
+    private int getCompletedClasses() {
+	return transformedClasses + failedClasses.size();
+    }
+
+    @Override
+    public String toString() {
+	return "RetransformProgress [id=" + id + ", state=" + state + ", classes=" + getCompletedClasses() + "/"
+		+ totalClasses + ", failed=" + failedClasses.size() + ", chunks=" + chunks + ", chunkSize="
+		+ chunkSize + ", eta=" + getEtaNanos() + ", p50=" + getMedianPauseNanos() + ", p99="
+		+ getP99PauseNanos() + ", max=" + getMaxPauseNanos() + "]";
+    }
+}
@@ -0,0 +1,143 @@
+/*******************************************************************************
+ * Copyright (c) 2017, Xavier Miret Andres <xavier.mires@gmail.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *******************************************************************************/
+package org.agenttools;
+
+import java.io.Serializable;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * How a scheduled re-transformation paces itself, see
+ * {@link Agents#scheduleRetransform(java.lang.instrument.ClassFileTransformer, ClassSelector, RetransformSchedule)}.
+ * 
+ * <pre>
+ * final long id = Agents.scheduleRetransform(pid, tracer, selector, new RetransformSchedule() //
+ *         .pauseBudget(2, TimeUnit.MILLISECONDS) //
+ *         .interval(100, TimeUnit.MILLISECONDS) //
+ *         .waitForCpuLoadBelow(0.5, 1, TimeUnit.MINUTES));
+ * </pre>
+ * 
+ * Classes are re-transformed in chunks, each of them in its own safepoint. The chunk size adapts to the measured pause
+ * per class so that a chunk pauses the application for about the pause budget, see {@link RetransformProgress}.
+ */
+public final class RetransformSchedule implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    private long pauseBudgetNanos = TimeUnit.MILLISECONDS.toNanos(5);
+    private int initialChunkSize = 16;
+    private int maxChunkSize = 1024;
+    private long intervalNanos = TimeUnit.MILLISECONDS.toNanos(50);
+    private double maxCpuLoad = 1;
+    private long maxLoadWaitNanos = 0;
+
+    /**
+     * The pause each chunk should not exceed. 5 ms by default.
+     */
+    public RetransformSchedule pauseBudget(long duration, TimeUnit unit) {
+	if (duration <= 0) {
+	    throw new IllegalArgumentException("The pause budget must be positive.");
+	}
+	pauseBudgetNanos = unit.toNanos(duration);
+	return this;
+    }
+
+    /**
+     * The size of the first chunk, before any pause is measured. 16 by default.
+     */
+    public RetransformSchedule initialChunkSize(int classes) {
+	if (classes <= 0) {
+	    throw new IllegalArgumentException("The chunk size must be positive.");
+	}
+	initialChunkSize = classes;
+	return this;
+    }
+
+    /**
+     * The largest chunk, however short the pauses. 1024 by default.
+     */
+    public RetransformSchedule maxChunkSize(int classes) {
+	if (classes <= 0) {
+	    throw new IllegalArgumentException("The chunk size must be positive.");
+	}
+	maxChunkSize = classes;
+	return this;
+    }
+
+    /**
+     * The time between two chunks, which lets the application recover from the deoptimizations of the previous one.
+     * 50 ms by default.
+     */
+    public RetransformSchedule interval(long duration, TimeUnit unit) {
+	if (duration < 0) {
+	    throw new IllegalArgumentException("The interval can't be negative.");
+	}
+	intervalNanos = unit.toNanos(duration);
+	return this;
+    }
+
+    /**
+     * Waits before every chunk until the CPU load of the process is below the given one, for up to the given time:
+     * after that the chunk is run anyway, so that the re-transformation always completes. Not waiting by default.
+     * 
+     * @param load
+     *            the CPU load of the process over all cores, from 0 to 1
+     */
+    public RetransformSchedule waitForCpuLoadBelow(double load, long maxWait, TimeUnit unit) {
+	if (load <= 0 || maxWait < 0) {
+	    throw new IllegalArgumentException("The load must be positive and the wait can't be negative.");
+	}
+	maxCpuLoad = load;
+	maxLoadWaitNanos = unit.toNanos(maxWait);
+	return this;
+    }
+
+    long getPauseBudgetNanos() {
+	return pauseBudgetNanos;
+    }
+
+    int getInitialChunkSize() {
+	return Math.min(initialChunkSize, maxChunkSize);
+    }
+
+    int getMaxChunkSize() {
+	return maxChunkSize;
+    }
+
+    long getIntervalNanos() {
+	return intervalNanos;
+    }
+
+    double getMaxCpuLoad() {
+	return maxCpuLoad;
+    }
+
+    long getMaxLoadWaitNanos() {
+	return maxLoadWaitNanos;
+    }
+
+    @Override
+    public String toString() {
+	return "RetransformSchedule [pauseBudgetNanos=" + pauseBudgetNanos + ", initialChunkSize=" + initialChunkSize
+		+ ", maxChunkSize=" + maxChunkSize + ", intervalNanos=" + intervalNanos + ", maxCpuLoad="
+		+ maxCpuLoad + ", maxLoadWaitNanos=" + maxLoadWaitNanos + "]";
+    }
+}
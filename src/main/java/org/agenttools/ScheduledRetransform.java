@@ -0,0 +1,224 @@
+/*******************************************************************************
+ * Copyright (c) 2017, Xavier Miret Andres <xavier.mires@gmail.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *******************************************************************************/
+package org.agenttools;
+
+import java.lang.instrument.Instrumentation;
+import java.lang.instrument.UnmodifiableClassException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.function.DoubleSupplier;
+
+import org.agenttools.RetransformProgress.State;
+
+/**
+ * Re-transforms classes in chunks from its own thread, see {@link RetransformSchedule}.
+ * <p>
+ * The pause of a chunk is mostly proportional to its classes, so the pause per class is averaged over the chunks and
+ * the next chunk is sized to fit the budget. Chunks grow at most twice from one to the next, in case the first ones
+ * were cheaper than the rest.
+ */
+final class ScheduledRetransform {
+
+    private static final long LOAD_POLL_MILLIS = 100;
+    // failed classes are reported up to this many
+    private static final int MAX_FAILURES = 1000;
+
+    private final long id;
+    private final String description;
+    // dropped once finished, not to keep the class loaders of the classes (the schedules are kept for a while)
+    private List<Class<?>> classes;
+    private final int total;
+    private final Instrumentation instrumentation;
+    // removed when the re-transformation completes
+    private final TransformerHandle handle;
+    private final RetransformSchedule schedule;
+    private final DoubleSupplier cpuLoad;
+    private final Thread worker;
+    private final long start = System.nanoTime();
+
+    // guarded by this
+    private State state = State.RUNNING;
+    private int transformed = 0;
+    private final List<String> failed = new ArrayList<>();
+    private int chunks = 0;
+    private int chunkSize;
+    private long end = -1;
+    private long loadWaitNanos = 0;
+    private final long[] pauseBuckets = new long[MethodTimers.BUCKETS];
+    private long pauseTotalNanos = 0;
+
+    private volatile boolean cancelled = false;
+    // the average pause per class, written by the worker only
+    private double nanosPerClass = 0;
+
+    ScheduledRetransform(long id, String description, List<Class<?>> classes, Instrumentation instrumentation,
+	    TransformerHandle handle, RetransformSchedule schedule, DoubleSupplier cpuLoad) {
+	this.id = id;
+	this.description = description;
+	this.classes = classes;
+	this.total = classes.size();
+	this.instrumentation = instrumentation;
+	this.handle = handle;
+	this.schedule = schedule;
+	this.cpuLoad = cpuLoad;
+	this.chunkSize = schedule.getInitialChunkSize();
+	this.worker = new Thread(this::run, "agent-tools-retransform-" + id);
+	worker.setDaemon(true);
+    }
+
+    void start() {
+	worker.start();
+    }
+
+    /**
+     * Stops before the next chunk. The classes already re-transformed remain so.
+     */
+    void cancel() {
+	cancelled = true;
+	worker.interrupt();
+    }
+
+    synchronized boolean isFinished() {
+	return end >= 0;
+    }
+
+    synchronized RetransformProgress getProgress() {
+	return new RetransformProgress(id, description, state, total, transformed, failed, chunks,
+		chunkSize, (end < 0 ? System.nanoTime() : end) - start, loadWaitNanos, pauseBuckets.clone(),
+		pauseTotalNanos);
+    }
+
+    private void run() {
+	try {
+	    int next = 0;
+	    while (next < classes.size() && !cancelled) {
+		awaitLowLoad();
+		if (cancelled) {
+		    break;
+		}
+		final int size = Math.min(chunkSize(), classes.size() - next);
+		final List<Class<?>> chunk = classes.subList(next, next + size);
+		final long pause = retransform(chunk);
+		if (pause < 0) {
+		    // find out which classes fail, each one in its own pause
+		    for (Class<?> c : chunk) {
+			if (retransform(Collections.<Class<?>> singletonList(c)) < 0) {
+			    failed(c);
+			}
+		    }
+		} else {
+		    adapt(size, pause);
+		}
+		next += size;
+		synchronized (this) {
+		    chunks++;
+		}
+		if (next < classes.size()) {
+		    TimeUnit.NANOSECONDS.sleep(schedule.getIntervalNanos());
+		}
+	    }
+	} catch (InterruptedException e) {
+	    // cancelled
+	} finally {
+	    handle.close();
+	    classes = Collections.emptyList();
+	    synchronized (this) {
+		state = cancelled ? State.CANCELLED : State.DONE;
+		end = System.nanoTime();
+	    }
+	}
+    }
+
+    // Returns the pause, or -1 if any class couldn't be re-transformed.
+    private long retransform(List<Class<?>> chunk) {
+	final long start = System.nanoTime();
+	boolean success = true;
+	try {
+	    instrumentation.retransformClasses(chunk.toArray(new Class<?>[chunk.size()]));
+	} catch (UnmodifiableClassException | RuntimeException | LinkageError e) {
+	    success = false;
+	}
+	final long pause = System.nanoTime() - start;
+	synchronized (this) {
+	    pauseBuckets[MethodTimers.bucket(pause)]++;
+	    pauseTotalNanos += pause;
+	    if (success) {
+		transformed += chunk.size();
+	    }
+	}
+	return success ? pause : -1;
+    }
+
+    private synchronized void failed(Class<?> c) {
+	if (failed.size() < MAX_FAILURES) {
+	    failed.add(c.getName());
+	}
+    }
+
+    private synchronized int chunkSize() {
+	return chunkSize;
+    }
+
+    private void adapt(int size, long pause) {
+	final double measured = Math.max(1, pause) / (double) size;
+	nanosPerClass = nanosPerClass == 0 ? measured : (nanosPerClass + measured) / 2;
+	final long fitting = (long) (schedule.getPauseBudgetNanos() / nanosPerClass);
+	final long next = Math.max(1, Math.min(Math.min(schedule.getMaxChunkSize(), 2L * size), fitting));
+	synchronized (this) {
+	    chunkSize = (int) next;
+	}
+    }
+
+    private void awaitLowLoad() throws InterruptedException {
+	if (schedule.getMaxCpuLoad() >= 1) {
+	    return;
+	}
+	final long from = System.nanoTime();
+	final long deadline = from + schedule.getMaxLoadWaitNanos();
+	// an unknown (negative) load doesn't wait
+	while (!cancelled && cpuLoad.getAsDouble() > schedule.getMaxCpuLoad() && System.nanoTime() - deadline < 0) {
+	    synchronized (this) {
+		state = State.WAITING_FOR_LOW_LOAD;
+	    }
+	    Thread.sleep(LOAD_POLL_MILLIS);
+	}
+	synchronized (this) {
+	    state = State.RUNNING;
+	    loadWaitNanos += System.nanoTime() - from;
+	}
+    }
+
+    /**
+     * The recent CPU load of this process over all cores, from 0 to 1, or negative if the VM doesn't report it.
+     */
+    static double processCpuLoad() {
+	final OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+	if (os instanceof com.sun.management.OperatingSystemMXBean) {
+	    return ((com.sun.management.OperatingSystemMXBean) os).getProcessCpuLoad();
+	}
+	return -1;
+    }
+}
@@ -0,0 +1,107 @@
+/*******************************************************************************
+ * Copyright (c) 2017, Xavier Miret Andres <xavier.mires@gmail.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *******************************************************************************/
+package org.agenttools;
+
+import java.nio.ByteBuffer;
+
+/**
+ * The binary layout of trace files, written by the target VM and read by the controller on the same host.
+ * <p>
+ * All numbers are little-endian. The file is a header followed by a ring of segments:
+ * 
+ * <pre>
+ * header (64 bytes)
+ *   0  int   magic, 0x41544631
+ *   4  int   version, 1
+ *   8  int   segment size in bytes, its header included
+ *   12 int   number of segments
+ *   16 int   record size in bytes
+ *   20 int   reserved
+ *   24 long  the sequence of the segment being written, 0 before the first one
+ *   32 long  the events offered to the channel, at the last write
+ *   40 long  the events dropped by the channel, at the last write
+ *   48 long  1 once the writer has stopped
+ *   56 long  reserved
+ * segment (at 64 + ((sequence - 1) % segments) * segment size)
+ *   0  long  the sequence of the segment, starting at 1, 0 if never written
+ *   8  int   the records committed in the segment
+ *   12 int   reserved
+ *   16       records
+ * record (40 bytes)
+ *   0  long  the System.nanoTime() of the event
+ *   8  long  the id of the thread emitting it
+ *   16 int   type
+ *   20 int   reserved
+ *   24 long  first value
+ *   32 long  second value
+ * </pre>
+ * 
+ * Segments are append-only: the writer commits records by updating the count once they are written, and moves to the
+ * next sequence once the segment is full, overwriting the oldest one. A reader detects it was overtaken when the
+ * sequence of the segment it reads changes.
+ */
+final class TraceLayout {
+
+    static final int MAGIC = 0x41544631;
+    static final int VERSION = 1;
+
+    static final int HEADER_BYTES = 64;
+    static final int SEGMENT_BYTES = 8;
+    static final int SEGMENTS = 12;
+    static final int RECORD_BYTES = 16;
+    static final int CURRENT_SEGMENT = 24;
+    static final int OFFERED = 32;
+    static final int DROPPED = 40;
+    static final int CLOSED = 48;
+
+    static final int SEGMENT_HEADER_BYTES = 16;
+    static final int SEGMENT_SEQUENCE = 0;
+    static final int SEGMENT_COUNT = 8;
+
+    static final int RECORD = 40;
+    static final int TIMESTAMP = 0;
+    static final int THREAD = 8;
+    static final int TYPE = 16;
+    static final int FIRST = 24;
+    static final int SECOND = 32;
+
+    private TraceLayout() {
+    }
+
+    static int segmentOffset(long sequence, int segmentBytes, int segments) {
+	return HEADER_BYTES + (int) ((sequence - 1) % segments) * segmentBytes;
+    }
+
+    static int recordsPerSegment(int segmentBytes) {
+	return (segmentBytes - SEGMENT_HEADER_BYTES) / RECORD;
+    }
+
+    static long fileBytes(int segmentBytes, int segments) {
+	return HEADER_BYTES + (long) segmentBytes * segments;
+    }
+
+    static void checkHeader(ByteBuffer file) {
+	if (file.getInt(0) != MAGIC || file.getInt(4) != VERSION || file.getInt(RECORD_BYTES) != RECORD) {
+	    throw new IllegalArgumentException("Not a trace file, or of another version.");
+	}
+    }
+}
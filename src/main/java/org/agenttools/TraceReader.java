@@ -0,0 +1,179 @@
+/*******************************************************************************
+ * Copyright (c) 2017, Xavier Miret Andres <xavier.mires@gmail.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *******************************************************************************/
+package org.agenttools;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.StandardOpenOption;
+import java.util.function.Consumer;
+
+/**
+ * Tails a trace file written by a VM of the same host, see {@link Agents#trace(int)}.
+ * <p>
+ * The file is mapped and records are read from it, nothing goes through JMX. Reading starts at the oldest segment
+ * still in the file. A reader which doesn't keep up with the writer is overtaken: the records overwritten before it
+ * read them are counted as lost, and it goes on with the oldest segment left. A record is copied, then handed out
+ * only if its segment wasn't overwritten meanwhile, so a torn record is never seen.
+ * 
+ * <pre>
+ * try (TraceReader trace = Agents.trace(pid)) {
+ *     while (running) {
+ *         if (trace.poll(record -&gt; histogram.record(record.getFirst())) == 0) {
+ *             Thread.sleep(10);
+ *         }
+ *     }
+ * }
+ * </pre>
+ * 
+ * @see TraceLayout
+ */
+public final class TraceReader implements AutoCloseable {
+
+    private final Runnable onClose;
+    private final MappedByteBuffer buffer;
+    private final TraceRecord record;
+    private final int segmentBytes;
+    private final int segments;
+    private final int perSegment;
+
+    private long sequence;
+    private int index = 0;
+    private long lost = 0;
+
+    /**
+     * Reads the trace file from its oldest segment.
+     */
+    public TraceReader(File file) throws IOException {
+	this(file, null);
+    }
+
+    TraceReader(File file, Runnable onClose) throws IOException {
+	this.onClose = onClose;
+	try (FileChannel fc = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+	    buffer = fc.map(MapMode.READ_ONLY, 0, fc.size());
+	}
+	buffer.order(ByteOrder.LITTLE_ENDIAN);
+	TraceLayout.checkHeader(buffer);
+	MappedFiles.fence();
+	this.segmentBytes = buffer.getInt(TraceLayout.SEGMENT_BYTES);
+	this.segments = buffer.getInt(TraceLayout.SEGMENTS);
+	this.perSegment = TraceLayout.recordsPerSegment(segmentBytes);
+	this.record = new TraceRecord();
+	this.sequence = oldest();
+    }
+
+    /**
+     * Hands the records written since the last poll to the consumer, in order.
+     * 
+     * @return the number of records read
+     */
+    public int poll(Consumer<TraceRecord> consumer) {
+	int read = 0;
+	while (true) {
+	    final int offset = TraceLayout.segmentOffset(sequence, segmentBytes, segments);
+	    final long written = buffer.getLong(offset + TraceLayout.SEGMENT_SEQUENCE);
+	    if (written < sequence) {
+		// not written yet
+		return read;
+	    }
+	    if (written > sequence) {
+		overtaken();
+		continue;
+	    }
+	    MappedFiles.fence();
+	    final int count = buffer.getInt(offset + TraceLayout.SEGMENT_COUNT);
+	    MappedFiles.fence();
+	    for (; index < count; index++) {
+		record.read(buffer, offset + TraceLayout.SEGMENT_HEADER_BYTES + index * TraceLayout.RECORD);
+		MappedFiles.fence();
+		if (buffer.getLong(offset + TraceLayout.SEGMENT_SEQUENCE) != sequence) {
+		    break; // the copy may be torn, overtaken below
+		}
+		consumer.accept(record);
+		read++;
+	    }
+	    MappedFiles.fence();
+	    if (buffer.getLong(offset + TraceLayout.SEGMENT_SEQUENCE) != sequence) {
+		overtaken();
+	    } else if (index == perSegment) {
+		sequence++;
+		index = 0;
+	    } else {
+		return read;
+	    }
+	}
+    }
+
+    // Skips to the oldest segment left.
+    private void overtaken() {
+	final long oldest = Math.max(sequence + 1, oldest());
+	lost += perSegment - index + (oldest - sequence - 1) * perSegment;
+	sequence = oldest;
+	index = 0;
+    }
+
+    private long oldest() {
+	return Math.max(1, buffer.getLong(TraceLayout.CURRENT_SEGMENT) - segments + 1);
+    }
+
+    /**
+     * The records overwritten before this reader read them.
+     */
+    public long getLost() {
+	return lost;
+    }
+
+    /**
+     * The events offered to the channel of the writer, as of its last write.
+     */
+    public long getOffered() {
+	return buffer.getLong(TraceLayout.OFFERED);
+    }
+
+    /**
+     * The events dropped by the channel of the writer, as of its last write.
+     */
+    public long getDropped() {
+	return buffer.getLong(TraceLayout.DROPPED);
+    }
+
+    /**
+     * Whether the writer has stopped, so nothing will be written after what is in the file.
+     */
+    public boolean isClosed() {
+	return buffer.getLong(TraceLayout.CLOSED) != 0;
+    }
+
+    /**
+     * Stops reading, and the writer if the reader started it.
+     */
+    @Override
+    public void close() {
+	if (onClose != null) {
+	    onClose.run();
+	}
+    }
+}
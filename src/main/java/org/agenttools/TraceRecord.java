@@ -0,0 +1,73 @@
+/*******************************************************************************
+ * Copyright (c) 2017, Xavier Miret Andres <xavier.mires@gmail.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *******************************************************************************/
+package org.agenttools;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A record of a trace file, copied out of the file before it is handed out: the same instance is reused as the reader
+ * moves on, so it must not be kept.
+ * 
+ * @see TraceReader
+ */
+public final class TraceRecord {
+
+    private long timestamp;
+    private long threadId;
+    private int type;
+    private long first;
+    private long second;
+
+    void read(ByteBuffer buffer, int offset) {
+	timestamp = buffer.getLong(offset + TraceLayout.TIMESTAMP);
+	threadId = buffer.getLong(offset + TraceLayout.THREAD);
+	type = buffer.getInt(offset + TraceLayout.TYPE);
+	first = buffer.getLong(offset + TraceLayout.FIRST);
+	second = buffer.getLong(offset + TraceLayout.SECOND);
+    }
+
+    public long getTimestamp() {
+	return timestamp;
+    }
+
+    public long getThreadId() {
+	return threadId;
+    }
+
+    public int getType() {
+	return type;
+    }
+
+    public long getFirst() {
+	return first;
+    }
+
+    public long getSecond() {
+	return second;
+    }
+
+    @Override
+    public String toString() {
+	return "TraceRecord [timestamp=" + timestamp + ", threadId=" + threadId + ", type=" + type + ", first="
+		+ first + ", second=" + second + "]";
+    }
+}
@@ -0,0 +1,139 @@
+/*******************************************************************************
+ * Copyright (c) 2017, Xavier Miret Andres <xavier.mires@gmail.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *******************************************************************************/
+package org.agenttools;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Writes the events of a channel to a trace file, see {@link TraceLayout}.
+ */
+final class TraceWriter implements EventSink, AutoCloseable {
+
+    private final File file;
+    private final EventChannel channel;
+    private final MappedByteBuffer buffer;
+    private final int segmentBytes;
+    private final int segments;
+    private final int perSegment;
+
+    private long sequence = 0;
+    private int count = 0;
+    private int offset = 0;
+
+    TraceWriter(File file, EventChannel channel, int segmentBytes, int segments) throws IOException {
+	if (TraceLayout.recordsPerSegment(segmentBytes) < 1 || segments < 2
+		|| TraceLayout.fileBytes(segmentBytes, segments) > Integer.MAX_VALUE) {
+	    throw new IllegalArgumentException(String.format("Invalid trace of %d segments of %d bytes.", segments,
+		    segmentBytes));
+	}
+	this.file = file;
+	this.channel = channel;
+	this.segmentBytes = segmentBytes;
+	this.segments = segments;
+	this.perSegment = TraceLayout.recordsPerSegment(segmentBytes);
+
+	Files.createDirectories(file.getAbsoluteFile().getParentFile().toPath());
+	// a file left by a former VM of the same pid is replaced, never written through if it is a link
+	Files.deleteIfExists(file.toPath());
+	try (FileChannel fc = FileChannel.open(file.toPath(), StandardOpenOption.CREATE_NEW, StandardOpenOption.READ,
+		StandardOpenOption.WRITE)) {
+	    PrivateFiles.restrict(file.toPath(), "rw-------");
+	    buffer = fc.map(MapMode.READ_WRITE, 0, TraceLayout.fileBytes(segmentBytes, segments));
+	}
+	buffer.order(ByteOrder.LITTLE_ENDIAN);
+	buffer.putInt(TraceLayout.SEGMENT_BYTES, segmentBytes);
+	buffer.putInt(TraceLayout.SEGMENTS, segments);
+	buffer.putInt(TraceLayout.RECORD_BYTES, TraceLayout.RECORD);
+	buffer.putInt(4, TraceLayout.VERSION);
+	MappedFiles.fence();
+	// readers check the magic last
+	buffer.putInt(0, TraceLayout.MAGIC);
+	channel.addSink(this);
+    }
+
+    File getFile() {
+	return file;
+    }
+
+    @Override
+    public synchronized void accept(EventBatch events) {
+	for (int i = 0; i < events.size(); i++) {
+	    if (sequence == 0 || count == perSegment) {
+		nextSegment();
+	    }
+	    final int r = offset + TraceLayout.SEGMENT_HEADER_BYTES + count * TraceLayout.RECORD;
+	    buffer.putLong(r + TraceLayout.TIMESTAMP, events.timestamps[i]);
+	    buffer.putLong(r + TraceLayout.THREAD, events.threads[i]);
+	    buffer.putInt(r + TraceLayout.TYPE, events.types[i]);
+	    buffer.putLong(r + TraceLayout.FIRST, events.firsts[i]);
+	    buffer.putLong(r + TraceLayout.SECOND, events.seconds[i]);
+	    count++;
+	}
+	commit();
+    }
+
+    // Publishes the records written so far, and the counters.
+    private void commit() {
+	MappedFiles.fence();
+	if (sequence > 0) {
+	    buffer.putInt(offset + TraceLayout.SEGMENT_COUNT, count);
+	}
+	buffer.putLong(TraceLayout.OFFERED, channel.getOffered());
+	buffer.putLong(TraceLayout.DROPPED, channel.getDropped());
+    }
+
+    private void nextSegment() {
+	if (sequence > 0) {
+	    commit();
+	}
+	sequence++;
+	count = 0;
+	offset = TraceLayout.segmentOffset(sequence, segmentBytes, segments);
+	// emptied first, so readers seeing the new sequence don't see the records of the former one
+	buffer.putInt(offset + TraceLayout.SEGMENT_COUNT, 0);
+	MappedFiles.fence();
+	buffer.putLong(offset + TraceLayout.SEGMENT_SEQUENCE, sequence);
+	MappedFiles.fence();
+	buffer.putLong(TraceLayout.CURRENT_SEGMENT, sequence);
+    }
+
+    /**
+     * Stops writing and deletes the file, readers which mapped it keep reading what was written.
+     */
+    @Override
+    public void close() {
+	channel.removeSink(this);
+	channel.flush();
+	synchronized (this) {
+	    commit();
+	    buffer.putLong(TraceLayout.CLOSED, 1);
+	}
+	file.delete();
+    }
+}
@@ -0,0 +1,490 @@
+/*******************************************************************************
+ * Copyright (c) 2017, Xavier Miret Andres <xavier.mires@gmail.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *******************************************************************************/
+package org.agenttools;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.instrument.ClassFileTransformer;
+import java.lang.instrument.IllegalClassFormatException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.ProtectionDomain;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.StampedLock;
+import java.util.zip.CRC32;
+
+/**
+ * Keeps the bytes produced by transformers in a file, so that later runs get them back without running the
+ * transformers again. Transformers are cached through a wrapper, see {@link #wrap(ClassFileTransformer, String)}.
+ * <p>
+ * Entries are keyed by the SHA-256 of the transformer class name, its version and the bytes it is given: a cached
+ * transformer must produce the same bytes for the same input whatever the class loader, and its version must change
+ * whenever its output does. It must not have side effects either, as hits don't run it: a transformer registering
+ * the classes or methods it instruments, or depending on the class loader, can't be cached.
+ * <p>
+ * The file is mapped and holds a ring of append-only segments. All numbers are little-endian:
+ * 
+ * <pre>
+ * header (64 bytes)
+ *   0  int   magic, 0x41544331
+ *   4  int   version, 1
+ *   8  int   segment size in bytes, its header included
+ *   12 int   number of segments
+ *   16 long  the sequence of the segment being written, 0 before the first one
+ *   24       reserved
+ * segment (at 64 + ((sequence - 1) % segments) * segment size)
+ *   0  long  the sequence of the segment, starting at 1, 0 if never written
+ *   8  int   the bytes of the records committed in the segment
+ *   12 int   reserved
+ *   16       records
+ * record (40 bytes and the transformed bytes)
+ *   0  byte[32] key
+ *   32 int      the length of the transformed bytes, -1 if the transformer left the class unchanged
+ *   36 int      the CRC-32 of the transformed bytes
+ *   40          the transformed bytes
+ * </pre>
+ * 
+ * The index of the records is kept in memory, and rebuilt from the segments when the file is opened. Once the last
+ * segment is full, the oldest one is evicted and overwritten, so the file never grows past its size.
+ * <p>
+ * A single VM writes to the file at a time. Other VMs opening the file while it is locked only read the records
+ * present at that time.
+ */
+public final class TransformCache implements AutoCloseable {
+
+    static final int MAGIC = 0x41544331;
+    static final int VERSION = 1;
+
+    static final int HEADER_BYTES = 64;
+    static final int SEGMENT_BYTES = 8;
+    static final int SEGMENTS = 12;
+    static final int CURRENT_SEGMENT = 16;
+
+    static final int SEGMENT_HEADER_BYTES = 16;
+    static final int SEGMENT_SEQUENCE = 0;
+    static final int SEGMENT_USED = 8;
+
+    static final int KEY_BYTES = 32;
+    static final int RECORD_HEADER_BYTES = 40;
+    static final int LENGTH = 32;
+    static final int CRC = 36;
+
+    // a cached transformer that left the class unchanged
+    private static final byte[] UNCHANGED = new byte[0];
+
+    private static final ThreadLocal<MessageDigest> sha256 = ThreadLocal.withInitial(() -> {
+	try {
+	    return MessageDigest.getInstance("SHA-256");
+	} catch (NoSuchAlgorithmException e) {
+	    throw new IllegalStateException(e);
+	}
+    });
+
+    private final File file;
+    private final FileChannel channel;
+    private final FileLock lock;
+    private final MappedByteBuffer buffer;
+    private final int segmentBytes;
+    private final int segments;
+
+    // record offsets in the file
+    private final Map<Key, Integer> index = new ConcurrentHashMap<>();
+    // only taken to overwrite a segment, lookups are optimistic
+    private final StampedLock eviction = new StampedLock();
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+
+    // guarded by this
+    private long sequence = 0;
+    private int segmentOffset = 0;
+    private int used = 0;
+    private long stores = 0;
+    private long evictions = 0;
+    private volatile boolean closed = false;
+
+    /**
+     * Opens the cache file, of 64 segments of 1 MB.
+     */
+    public TransformCache(File file) throws IOException {
+	this(file, 1 << 20, 64);
+    }
+
+    /**
+     * Opens the cache file, creating it if needed. A file created with another size is emptied.
+     */
+    public TransformCache(File file, int segmentBytes, int segments) throws IOException {
+	if (segmentBytes <= SEGMENT_HEADER_BYTES + RECORD_HEADER_BYTES || segments < 2
+		|| HEADER_BYTES + (long) segmentBytes * segments > Integer.MAX_VALUE) {
+	    throw new IllegalArgumentException(String.format("Invalid cache of %d segments of %d bytes.", segments,
+		    segmentBytes));
+	}
+	this.file = file;
+	this.segmentBytes = segmentBytes;
+	this.segments = segments;
+
+	Files.createDirectories(file.getAbsoluteFile().getParentFile().toPath());
+	channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ,
+		StandardOpenOption.WRITE);
+	try {
+	    lock = tryLock(channel);
+	    final long size = HEADER_BYTES + (long) segmentBytes * segments;
+	    if (lock == null && channel.size() < size) {
+		// being created by another VM
+		buffer = null;
+		return;
+	    }
+	    buffer = channel.map(lock == null ? MapMode.READ_ONLY : MapMode.READ_WRITE, 0, size);
+	    buffer.order(ByteOrder.LITTLE_ENDIAN);
+	    if (buffer.getInt(0) == MAGIC && buffer.getInt(4) == VERSION && buffer.getInt(SEGMENT_BYTES) == segmentBytes
+		    && buffer.getInt(SEGMENTS) == segments) {
+		load();
+	    } else if (lock != null) {
+		format();
+	    }
+	} catch (IOException | RuntimeException e) {
+	    channel.close();
+	    throw e;
+	}
+    }
+
+    private static FileLock tryLock(FileChannel channel) throws IOException {
+	try {
+	    return channel.tryLock();
+	} catch (OverlappingFileLockException e) {
+	    // locked by this VM
+	    return null;
+	}
+    }
+
+    private void format() {
+	for (int i = 0; i < HEADER_BYTES; i += 8) {
+	    buffer.putLong(i, 0);
+	}
+	for (int i = 0; i < segments; i++) {
+	    buffer.putLong(HEADER_BYTES + i * segmentBytes + SEGMENT_SEQUENCE, 0);
+	}
+	buffer.putInt(SEGMENT_BYTES, segmentBytes);
+	buffer.putInt(SEGMENTS, segments);
+	buffer.putInt(4, VERSION);
+	MappedFiles.fence();
+	// a file with a magic is formatted
+	buffer.putInt(0, MAGIC);
+    }
+
+    private void load() {
+	final List<Integer> written = new ArrayList<>();
+	for (int i = 0; i < segments; i++) {
+	    if (buffer.getLong(HEADER_BYTES + i * segmentBytes + SEGMENT_SEQUENCE) != 0) {
+		written.add(HEADER_BYTES + i * segmentBytes);
+	    }
+	}
+	// later records replace earlier ones
+	written.sort(Comparator.comparingLong(offset -> buffer.getLong(offset + SEGMENT_SEQUENCE)));
+	for (int offset : written) {
+	    forEachRecord(offset, (key, record) -> index.put(key, record));
+	}
+
+	sequence = buffer.getLong(CURRENT_SEGMENT);
+	if (sequence > 0) {
+	    segmentOffset = segmentOffset(sequence);
+	    used = buffer.getInt(segmentOffset + SEGMENT_USED);
+	}
+    }
+
+    private void forEachRecord(int offset, RecordVisitor visitor) {
+	final int used = buffer.getInt(offset + SEGMENT_USED);
+	final int end = offset + SEGMENT_HEADER_BYTES + Math.min(Math.max(used, 0), segmentBytes
+		- SEGMENT_HEADER_BYTES);
+	for (int record = offset + SEGMENT_HEADER_BYTES; record + RECORD_HEADER_BYTES <= end;) {
+	    final int length = buffer.getInt(record + LENGTH);
+	    if (length < -1 || length > end - record - RECORD_HEADER_BYTES) {
+		// corrupt, the rest of the segment is lost
+		return;
+	    }
+	    final byte[] key = new byte[KEY_BYTES];
+	    for (int i = 0; i < KEY_BYTES; i++) {
+		key[i] = buffer.get(record + i);
+	    }
+	    visitor.visit(new Key(key), record);
+	    record += RECORD_HEADER_BYTES + Math.max(length, 0);
+	}
+    }
+
+    private int segmentOffset(long sequence) {
+	return HEADER_BYTES + (int) ((sequence - 1) % segments) * segmentBytes;
+    }
+
+    /**
+     * Wraps the transformer, so that it is only invoked for the classes it hasn't transformed yet. Only for pure
+     * transformers, whose output depends on the given bytes only and which have no side effects, as the class loader
+     * isn't part of the key and cached classes don't reach the transformer.
+     * 
+     * @param version
+     *            identifies the output of the transformer, along with its class name
+     */
+    public ClassFileTransformer wrap(ClassFileTransformer transformer, String version) {
+	return new CachedTransformer(this, transformer, transformer.getClass().getName() + "@" + version);
+    }
+
+    static Key key(String transformerId, byte[] classfileBuffer) {
+	final MessageDigest digest = sha256.get();
+	digest.update(transformerId.getBytes(StandardCharsets.UTF_8));
+	digest.update((byte) 0);
+	return new Key(digest.digest(classfileBuffer));
+    }
+
+    /**
+     * The cached bytes, {@link #UNCHANGED} if the class was left unchanged, or null if they aren't cached.
+     */
+    byte[] get(Key key) {
+	final Integer record = closed || buffer == null ? null : index.get(key);
+	if (record != null) {
+	    final long stamp = eviction.tryOptimisticRead();
+	    final byte[] bytes = read(record, key);
+	    if (bytes != null && eviction.validate(stamp)) {
+		hits.increment();
+		return bytes;
+	    }
+	}
+	misses.increment();
+	return null;
+    }
+
+    // null if the record isn't there, or was overwritten while reading it
+    private byte[] read(int record, Key key) {
+	final ByteBuffer view = buffer.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+	final int length = view.getInt(record + LENGTH);
+	final int crc = view.getInt(record + CRC);
+	// records don't cross segments, a longer one is corrupt or being overwritten
+	final int segmentEnd = record - (record - HEADER_BYTES) % segmentBytes + segmentBytes;
+	if (length < -1 || length > segmentEnd - record - RECORD_HEADER_BYTES) {
+	    return null;
+	}
+
+	final byte[] bytes;
+	if (length == -1) {
+	    bytes = UNCHANGED;
+	} else {
+	    bytes = new byte[length];
+	    view.position(record + RECORD_HEADER_BYTES);
+	    view.get(bytes);
+	}
+	for (int i = 0; i < KEY_BYTES; i++) {
+	    if (view.get(record + i) != key.bytes[i]) {
+		return null;
+	    }
+	}
+	return crc == crc(bytes) ? bytes : null;
+    }
+
+    /**
+     * Caches the bytes produced by a transformer, null if it left the class unchanged.
+     */
+    synchronized void put(Key key, byte[] bytes) {
+	if (closed || lock == null) {
+	    return;
+	}
+	final int length = bytes == null ? -1 : bytes.length;
+	final int recordBytes = RECORD_HEADER_BYTES + Math.max(length, 0);
+	if (recordBytes > segmentBytes - SEGMENT_HEADER_BYTES) {
+	    return;
+	}
+	if (sequence == 0 || SEGMENT_HEADER_BYTES + used + recordBytes > segmentBytes) {
+	    next();
+	}
+
+	final int record = segmentOffset + SEGMENT_HEADER_BYTES + used;
+	final ByteBuffer view = buffer.duplicate();
+	view.position(record);
+	view.put(key.bytes);
+	buffer.putInt(record + LENGTH, length);
+	buffer.putInt(record + CRC, crc(bytes == null ? UNCHANGED : bytes));
+	if (bytes != null) {
+	    view.position(record + RECORD_HEADER_BYTES);
+	    view.put(bytes);
+	}
+	used += recordBytes;
+	MappedFiles.fence();
+	buffer.putInt(segmentOffset + SEGMENT_USED, used);
+
+	index.put(key, record);
+	stores++;
+    }
+
+    // moves to the next segment, evicting the records it holds
+    private void next() {
+	final long stamp = eviction.writeLock();
+	try {
+	    sequence++;
+	    segmentOffset = segmentOffset(sequence);
+	    if (buffer.getLong(segmentOffset + SEGMENT_SEQUENCE) != 0) {
+		forEachRecord(segmentOffset, (key, record) -> {
+		    if (index.remove(key, record)) {
+			evictions++;
+		    }
+		});
+	    }
+	    buffer.putLong(segmentOffset + SEGMENT_SEQUENCE, 0);
+	    buffer.putInt(segmentOffset + SEGMENT_USED, 0);
+	    MappedFiles.fence();
+	    buffer.putLong(segmentOffset + SEGMENT_SEQUENCE, sequence);
+	    buffer.putLong(CURRENT_SEGMENT, sequence);
+	    used = 0;
+	} finally {
+	    eviction.unlockWrite(stamp);
+	}
+    }
+
+    private static int crc(byte[] bytes) {
+	final CRC32 crc = new CRC32();
+	crc.update(bytes);
+	return (int) crc.getValue();
+    }
+
+    public File getFile() {
+	return file;
+    }
+
+    /**
+     * Whether this VM writes to the file, false if another one does.
+     */
+    public boolean isWritable() {
+	return lock != null;
+    }
+
+    /**
+     * The number of cached classes.
+     */
+    public int size() {
+	return index.size();
+    }
+
+    public long getHits() {
+	return hits.sum();
+    }
+
+    public long getMisses() {
+	return misses.sum();
+    }
+
+    public synchronized long getStores() {
+	return stores;
+    }
+
+    public synchronized long getEvictions() {
+	return evictions;
+    }
+
+    /**
+     * Flushes and releases the file. Wrapped transformers keep working, without the cache.
+     */
+    @Override
+    public synchronized void close() throws IOException {
+	if (closed) {
+	    return;
+	}
+	closed = true;
+	try {
+	    if (buffer != null && lock != null) {
+		buffer.force();
+	    }
+	    if (lock != null) {
+		lock.release();
+	    }
+	} finally {
+	    channel.close();
+	}
+    }
+
+    private interface RecordVisitor {
+	void visit(Key key, int record);
+    }
+
+    static final class Key {
+	final byte[] bytes;
+	private final int hash;
+
+	Key(byte[] bytes) {
+	    this.bytes = bytes;
+	    this.hash = Arrays.hashCode(bytes);
+	}
+
+	@Override
+	public int hashCode() {
+	    return hash;
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+	    return obj instanceof Key && Arrays.equals(bytes, ((Key) obj).bytes);
+	}
+    }
+
+    private static final class CachedTransformer implements ClassFileTransformer {
+	private final TransformCache cache;
+	private final ClassFileTransformer transformer;
+	private final String id;
+
+	CachedTransformer(TransformCache cache, ClassFileTransformer transformer, String id) {
+	    this.cache = cache;
+	    this.transformer = transformer;
+	    this.id = id;
+	}
+
+	@Override
+	public byte[] transform(ClassLoader loader, String className, Class<?> classBeingRedefined,
+		ProtectionDomain protectionDomain, byte[] classfileBuffer) throws IllegalClassFormatException {
+	    final Key key = key(id, classfileBuffer);
+	    final byte[] cached = cache.get(key);
+	    if (cached != null) {
+		return cached == UNCHANGED ? null : cached;
+	    }
+
+	    final byte[] transformed = transformer.transform(loader, className, classBeingRedefined,
+		    protectionDomain, classfileBuffer);
+	    cache.put(key, transformed == classfileBuffer ? null : transformed);
+	    return transformed;
+	}
+
+	@Override
+	public String toString() {
+	    return "CachedTransformer [" + id + "]";
+	}
+    }
+}
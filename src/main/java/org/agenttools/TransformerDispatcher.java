@@ -0,0 +1,234 @@
+/*******************************************************************************
+ * Copyright (c) 2017, Xavier Miret Andres <xavier.mires@gmail.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *******************************************************************************/
+package org.agenttools;
+
+import java.lang.instrument.ClassFileTransformer;
+import java.security.ProtectionDomain;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * The single transformer installed in the VM on behalf of every transformer registered with a {@link ClassSelector}.
+ * <p>
+ * Selectors are indexed by exact class name and by package (a trie of package segments), so a class load costs one
+ * hash lookup plus one step per package segment. Selectors with patterns, super types, annotations or a class loader
+ * hint are checked one after the other on top of that, with the names and packages they select. Classes which no transformer selects are left untouched (the dispatcher
+ * returns null without copying anything).
+ */
+class TransformerDispatcher implements ClassFileTransformer {
+
+    private static final Logger log = Logger.getLogger(TransformerDispatcher.class.getName());
+
+    private static final Route[] NONE = new Route[0];
+
+    // registration order
+    private final Map<TransformerHandle, Route> routes = new LinkedHashMap<>();
+    private long sequence = 0;
+
+    // rebuilt on every change, read without locking on every class load
+    private volatile Index index = new Index(Collections.<Route> emptyList());
+
+    synchronized void add(TransformerHandle handle, ClassSelector selector) {
+	routes.put(handle, new Route(sequence++, handle.getTransformer(), selector));
+	index = new Index(routes.values());
+    }
+
+    synchronized boolean remove(TransformerHandle handle) {
+	if (routes.remove(handle) != null) {
+	    index = new Index(routes.values());
+	    return true;
+	}
+	return false;
+    }
+
+    int size() {
+	return index.size;
+    }
+
+    @Override
+    public byte[] transform(ClassLoader loader, String className, Class<?> classBeingRedefined,
+	    ProtectionDomain protectionDomain, byte[] classfileBuffer) {
+	if (className == null) {
+	    return null;
+	}
+
+	final Route[] matching = index.match(loader, className, classfileBuffer);
+	if (matching.length == 0) {
+	    return null;
+	}
+
+	byte[] current = classfileBuffer;
+	for (Route route : matching) {
+	    try {
+		final byte[] transformed = route.transformer.transform(loader, className, classBeingRedefined,
+			protectionDomain, current);
+		if (transformed != null) {
+		    current = transformed;
+		}
+	    } catch (Throwable e) {
+		// same as the VM does, ignore the failing transformer and go on with the others
+		log.log(Level.FINE, String.format("Unable to transform the class '%s'.", className), e);
+	    }
+	}
+	return current == classfileBuffer ? null : current;
+    }
+
+    private static final class Route {
+	final long sequence;
+	final ClassFileTransformer transformer;
+	final ClassSelector selector;
+
+	Route(long sequence, ClassFileTransformer transformer, ClassSelector selector) {
+	    this.sequence = sequence;
+	    this.transformer = transformer;
+	    this.selector = selector;
+	}
+    }
+
+    private static final Comparator<Route> BY_SEQUENCE = (r1, r2) -> Long.compare(r1.sequence, r2.sequence);
+
+    private static final class Index {
+	final int size;
+	final Map<String, Route[]> byName = new HashMap<>();
+	final Node byPackage = new Node(null);
+	// the routes checking every class, see ClassSelector#isIndexed()
+	final Route[] scanned;
+
+	Index(Iterable<Route> routes) {
+	    int count = 0;
+	    final List<Route> unindexed = new ArrayList<>();
+	    for (Route route : routes) {
+		count++;
+		if (!route.selector.isIndexed()) {
+		    // the names and packages are checked along with the rest, i.e. the class loader
+		    unindexed.add(route);
+		    continue;
+		}
+		for (String className : route.selector.getClassNames()) {
+		    final Route[] rs = byName.getOrDefault(className, NONE);
+		    final Route[] copy = Arrays.copyOf(rs, rs.length + 1);
+		    copy[rs.length] = route;
+		    byName.put(className, copy);
+		}
+		for (String packageName : route.selector.getPackageNames()) {
+		    byPackage.add(packageName, 0).addRoute(route);
+		}
+	    }
+	    size = count;
+	    scanned = unindexed.toArray(new Route[unindexed.size()]);
+	}
+
+	Route[] match(ClassLoader loader, String className, byte[] classfileBuffer) {
+	    final Route[] named = byName.getOrDefault(className, NONE);
+
+	    List<Route> matching = null;
+	    for (Route route : scanned) {
+		if (route.selector.matches(loader, className, classfileBuffer)) {
+		    if (matching == null) {
+			matching = new ArrayList<>();
+		    }
+		    matching.add(route);
+		}
+	    }
+
+	    // walk the package segments of the class name, collecting every package route on the way
+	    Node node = byPackage;
+	    int start = 0;
+	    int end = className.indexOf('/');
+	    while (end > 0 && (node = node.child(className, start, end)) != null) {
+		if (node.routes.length > 0) {
+		    if (matching == null) {
+			matching = new ArrayList<>();
+		    }
+		    matching.addAll(Arrays.asList(node.routes));
+		}
+		start = end + 1;
+		end = className.indexOf('/', start);
+	    }
+
+	    if (matching == null) {
+		return named;
+	    }
+
+	    // a route may select the class in several ways
+	    matching.addAll(Arrays.asList(named));
+	    matching.sort(BY_SEQUENCE);
+	    final List<Route> distinct = new ArrayList<>(matching.size());
+	    for (Route route : matching) {
+		if (distinct.isEmpty() || distinct.get(distinct.size() - 1) != route) {
+		    distinct.add(route);
+		}
+	    }
+	    return distinct.toArray(new Route[distinct.size()]);
+	}
+    }
+
+    // A package segment. Children are few, a linear scan avoids allocating a substring per segment.
+    private static final class Node {
+	final String segment;
+	Node[] children = new Node[0];
+	Route[] routes = NONE;
+
+	Node(String segment) {
+	    this.segment = segment;
+	}
+
+	Node add(String packageName, int start) {
+	    if (start >= packageName.length()) {
+		return this;
+	    }
+	    int end = packageName.indexOf('/', start);
+	    end = end < 0 ? packageName.length() : end;
+
+	    Node child = child(packageName, start, end);
+	    if (child == null) {
+		child = new Node(packageName.substring(start, end));
+		children = Arrays.copyOf(children, children.length + 1);
+		children[children.length - 1] = child;
+	    }
+	    return child.add(packageName, end + 1);
+	}
+
+	void addRoute(Route route) {
+	    routes = Arrays.copyOf(routes, routes.length + 1);
+	    routes[routes.length - 1] = route;
+	}
+
+	Node child(String name, int start, int end) {
+	    final int length = end - start;
+	    for (Node child : children) {
+		if (child.segment.length() == length && name.regionMatches(start, child.segment, 0, length)) {
+		    return child;
+		}
+	    }
+	    return null;
+	}
+    }
+}
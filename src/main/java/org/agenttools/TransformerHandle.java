@@ -0,0 +1,67 @@
+/*******************************************************************************
+ * Copyright (c) 2017, Xavier Miret Andres <xavier.mires@gmail.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *******************************************************************************/
+package org.agenttools;
+
+import java.lang.instrument.ClassFileTransformer;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * A transformer installed in the VM.
+ * <p>
+ * Closing the handle removes exactly what was installed, whether that is the transformer itself or any wrapper built
+ * around it. Closing it twice has no effect.
+ */
+public final class TransformerHandle implements AutoCloseable {
+
+    private final TransformerRegistry registry;
+    private final ClassFileTransformer transformer;
+    private final ClassFileTransformer installed;
+    private final AtomicBoolean closed = new AtomicBoolean();
+
+    TransformerHandle(TransformerRegistry registry, ClassFileTransformer transformer, ClassFileTransformer installed) {
+	this.registry = registry;
+	this.transformer = transformer;
+	this.installed = installed;
+    }
+
+    /**
+     * The transformer as provided by the caller.
+     */
+    public ClassFileTransformer getTransformer() {
+	return transformer;
+    }
+
+    ClassFileTransformer getInstalled() {
+	return installed;
+    }
+
+    public boolean isInstalled() {
+	return !closed.get();
+    }
+
+    @Override
+    public void close() {
+	if (closed.compareAndSet(false, true)) {
+	    registry.release(this);
+	}
+    }
+}
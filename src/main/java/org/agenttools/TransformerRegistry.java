@@ -0,0 +1,100 @@
+/*******************************************************************************
+ * Copyright (c) 2017, Xavier Miret Andres <xavier.mires@gmail.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *******************************************************************************/
+package org.agenttools;
+
+import java.lang.instrument.ClassFileTransformer;
+import java.lang.instrument.Instrumentation;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Keeps track of every transformer installed through the agent, so each one can be removed exactly as it was
+ * installed.
+ */
+class TransformerRegistry {
+
+    private final Instrumentation instrumentation;
+    private final TransformerDispatcher dispatcher;
+    private final List<TransformerHandle> handles = new CopyOnWriteArrayList<>();
+
+    TransformerRegistry(Instrumentation instrumentation, TransformerDispatcher dispatcher) {
+	this.instrumentation = instrumentation;
+	this.dispatcher = dispatcher;
+    }
+
+    TransformerHandle add(ClassFileTransformer transformer, boolean canRetransform) {
+	return add(transformer, transformer, canRetransform);
+    }
+
+    /**
+     * Installs {@code installed} on behalf of {@code transformer}. Usually {@code installed} wraps {@code transformer}.
+     */
+    TransformerHandle add(ClassFileTransformer transformer, ClassFileTransformer installed, boolean canRetransform) {
+	final TransformerHandle handle = new TransformerHandle(this, transformer, installed);
+	// registered once installed, a failure leaves nothing behind
+	instrumentation.addTransformer(installed, canRetransform);
+	handles.add(handle);
+	return handle;
+    }
+
+    /**
+     * Routes the classes chosen by the selector to the transformer, through the dispatcher. The transformer is
+     * called when classes are loaded, re-transformed and redefined.
+     */
+    TransformerHandle add(ClassFileTransformer transformer, ClassSelector selector) {
+	final TransformerHandle handle = new TransformerHandle(this, transformer, transformer);
+	dispatcher.add(handle, selector);
+	handles.add(handle);
+	return handle;
+    }
+
+    /**
+     * Removes the last installation of the given transformer.
+     * 
+     * @return true if the transformer was installed
+     */
+    boolean remove(ClassFileTransformer transformer) {
+	final TransformerHandle[] snapshot = handles.toArray(new TransformerHandle[0]);
+	for (int i = snapshot.length - 1; i >= 0; i--) {
+	    final TransformerHandle handle = snapshot[i];
+	    if (handle.getTransformer().equals(transformer)) {
+		handle.close();
+		return true;
+	    }
+	}
+	return false;
+    }
+
+    /**
+     * Number of transformers currently installed.
+     */
+    int size() {
+	return handles.size();
+    }
+
+    void release(TransformerHandle handle) {
+	if (!dispatcher.remove(handle)) {
+	    instrumentation.removeTransformer(handle.getInstalled());
+	}
+	handles.remove(handle);
+    }
+}
@@ -21,12 +21,22 @@
  *******************************************************************************/
 package org.agenttools;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
 import java.io.File;
 import java.io.IOException;
+import java.lang.instrument.ClassFileTransformer;
 import java.lang.instrument.IllegalClassFormatException;
 import java.net.URISyntaxException;
 import java.nio.file.Files;
 import java.nio.file.Paths;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.jar.Attributes;
 import java.util.jar.Manifest;
 
@@ -109,6 +119,84 @@ public class AgentTest
         cat.meow(); // marrameu (Catalan)
     }
 
+    @Test
+    public void testRedefineMany() throws IOException
+    {
+        new Cat();
+        new Dog();
+
+        final Map<String, byte[]> definitions = new LinkedHashMap<>();
+        definitions.put(Cat.class.getName(), ClassTools.getClassBytes(Cat.class.getName()));
+        definitions.put(Dog.class.getName(), ClassTools.getClassBytes(Dog.class.getName()));
+
+        final RedefineResult redefined = Agents.redefine(definitions);
+        assertTrue(redefined.toString(), redefined.isSuccess());
+        assertEquals(2, redefined.getOutcomes().size());
+
+        // all or nothing
+        definitions.put(Dog.class.getName(), ClassTools.getClassBytes(Cat.class.getName()));
+
+        final RedefineResult failed = Agents.redefine(definitions);
+        assertFalse(failed.getOutcome(Cat.class.getName()).isSuccess());
+        assertFalse(failed.getOutcome(Dog.class.getName().replace('.', '/')).isSuccess());
+    }
+
+    @Test
+    public void testRedefineFailureKeepsItsCause() throws IOException
+    {
+        new Dog();
+        try
+        {
+            Agents.redefine(Dog.class.getName().replace('.', '/'), ClassTools.getClassBytes(Cat.class.getName()));
+            fail();
+        }
+        catch (AgentLoadingException e)
+        {
+            assertNotNull(e.getCause());
+        }
+    }
+
+    @Test
+    public void testRetransformDoesNotLeakTransformers()
+    {
+        final Instrumentor instrumentor = AgentBootstrap.getInstrumentor();
+        final int installed = instrumentor.getTransformerCount();
+
+        final AtomicInteger calls = new AtomicInteger();
+        final ClassFileTransformer counting = (l, n, c, p, b) ->
+        {
+            calls.incrementAndGet();
+            return null;
+        };
+
+        for (int i = 0; i < 2000; i++)
+        {
+            Agents.retransform(counting, Dog.class.getName());
+        }
+        assertEquals(installed, instrumentor.getTransformerCount());
+
+        // any leftover would be called again
+        calls.set(0);
+        Agents.retransform((l, n, c, p, b) -> null, Dog.class.getName());
+        assertEquals(0, calls.get());
+        // the class load cost after many retransforms is measured by ClassLoadBenchmark
+    }
+
+    @Test
+    public void testRemoveHandle()
+    {
+        final Instrumentor instrumentor = AgentBootstrap.getInstrumentor();
+        final int installed = instrumentor.getTransformerCount();
+
+        final TransformerHandle handle = Agents.add(new Onomatopoeia("meow", "org/agenttools/Cat"));
+        assertEquals(installed + 1, instrumentor.getTransformerCount());
+
+        handle.close();
+        handle.close();
+        assertFalse(handle.isInstalled());
+        assertEquals(installed, instrumentor.getTransformerCount());
+    }
+
     @Test
     @Ignore
     // white test only.
@@ -0,0 +1,179 @@
+/*******************************************************************************
+ * Copyright (c) 2017, Xavier Miret Andres <xavier.mires@gmail.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *******************************************************************************/
+package org.agenttools;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.agenttools.RemoteTransformerTest.Identity;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+public class AsyncAgentsTest
+{
+    private static RemoteProcess remote;
+
+    @BeforeClass
+    public static void startRemote() throws IOException
+    {
+        remote = new RemoteProcess();
+    }
+
+    @AfterClass
+    public static void stopRemote()
+    {
+        RemoteSessions.closeAll();
+        remote.close();
+    }
+
+    @After
+    public void restoreExecutor()
+    {
+        AsyncAgents.setExecutor(Executors.newCachedThreadPool());
+    }
+
+    @Test
+    public void testQueuedPerProcess() throws InterruptedException, ExecutionException
+    {
+        final InstrumentorMBean instrumentor = Agents.session(remote.getPid()).getInstrumentor();
+        final int count = instrumentor.getTransformerCount();
+        final Identity transformer = new Identity();
+
+        final List<CompletableFuture<Void>> adds = new ArrayList<>();
+        for (int i = 0; i < 10; i++)
+        {
+            adds.add(AsyncAgents.add(remote.getPid(), transformer));
+        }
+        CompletableFuture.allOf(adds.toArray(new CompletableFuture<?>[adds.size()])).get();
+        assertEquals(count + 10, instrumentor.getTransformerCount());
+
+        final String id = AsyncAgents.register(remote.getPid(), transformer).get();
+        AsyncAgents.unregister(remote.getPid(), id).get();
+        assertEquals(count, instrumentor.getTransformerCount());
+    }
+
+    @Test
+    public void testCancelledBeforeStart()
+    {
+        final List<Runnable> pending = new ArrayList<>();
+        AsyncAgents.setExecutor(pending::add);
+
+        final InstrumentorMBean instrumentor = Agents.session(remote.getPid()).getInstrumentor();
+        final int count = instrumentor.getTransformerCount();
+
+        final CompletableFuture<Void> add = AsyncAgents.add(remote.getPid(), new Identity());
+        add.cancel(false);
+        pending.forEach(Runnable::run);
+
+        assertTrue(add.isCancelled());
+        assertEquals(count, instrumentor.getTransformerCount());
+    }
+
+    @Test
+    public void testRejectedOperationsFail() throws Exception
+    {
+        final ExecutorService shutDown = Executors.newSingleThreadExecutor();
+        shutDown.shutdown();
+        AsyncAgents.setExecutor(shutDown);
+
+        final CompletableFuture<Void> reset = AsyncAgents.reset(remote.getPid(), "org.testremote.Dog");
+        assertTrue(reset.isCompletedExceptionally());
+        assertTrue(AsyncAgents.reset("org.testremote.Dog").isCompletedExceptionally());
+
+        // the operations on the process aren't queued behind the rejected one
+        AsyncAgents.setExecutor(Executors.newCachedThreadPool());
+        AsyncAgents.reset(remote.getPid(), "org.testremote.Dog").get(30, TimeUnit.SECONDS);
+    }
+
+    @Test
+    public void testDeadline() throws InterruptedException
+    {
+        final List<Runnable> pending = new ArrayList<>();
+        AsyncAgents.setExecutor(pending::add);
+
+        final CompletableFuture<Void> reset = AsyncAgents.deadline(AsyncAgents.reset(remote.getPid(), "org.testremote.Dog"), 10, TimeUnit.MILLISECONDS);
+        try
+        {
+            reset.get();
+        }
+        catch (ExecutionException e)
+        {
+            assertTrue(e.getCause() instanceof TimeoutException);
+        }
+        assertTrue(reset.isCompletedExceptionally());
+        pending.forEach(Runnable::run);
+    }
+
+    static class Slow
+    {
+    }
+
+    @Test
+    public void testTimedOutOperationIsNotInterrupted() throws InterruptedException
+    {
+        final AtomicBoolean interrupted = new AtomicBoolean();
+        final CountDownLatch done = new CountDownLatch(1);
+        final CompletableFuture<Void> retransform = AsyncAgents.deadline(AsyncAgents.retransform((l, n, c, p, b) ->
+        {
+            try
+            {
+                Thread.sleep(200);
+            }
+            catch (InterruptedException e)
+            {
+                interrupted.set(true);
+            }
+            done.countDown();
+            return null;
+        }, new Slow().getClass().getName()), 10, TimeUnit.MILLISECONDS);
+
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        assertTrue(retransform.isCompletedExceptionally());
+        assertFalse(interrupted.get());
+    }
+
+    @Test
+    public void testDeadlinesAreDroppedOnCompletion()
+    {
+        final int pending = AsyncAgents.getPendingDeadlines();
+        for (int i = 0; i < 100; i++)
+        {
+            AsyncAgents.deadline(new CompletableFuture<Void>(), 1, TimeUnit.HOURS).complete(null);
+        }
+        assertEquals(pending, AsyncAgents.getPendingDeadlines());
+    }
+}
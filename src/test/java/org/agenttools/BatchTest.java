@@ -0,0 +1,191 @@
+/*******************************************************************************
+ * Copyright (c) 2017, Xavier Miret Andres <xavier.mires@gmail.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *******************************************************************************/
+package org.agenttools;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.lang.reflect.Proxy;
+import java.net.URISyntaxException;
+import java.nio.file.Files;
+import java.util.UUID;
+import java.util.jar.Attributes;
+import java.util.jar.Manifest;
+
+import org.agenttools.RemoteTransformerTest.Identity;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+public class BatchTest
+{
+    private static RemoteProcess remote;
+
+    @BeforeClass
+    public static void startRemote() throws IOException
+    {
+        remote = new RemoteProcess();
+    }
+
+    @AfterClass
+    public static void stopRemote()
+    {
+        RemoteSessions.closeAll();
+        remote.close();
+    }
+
+    @After
+    public void restoreTransport()
+    {
+        Agents.setPayloadTransport(PayloadTransport.INLINE);
+    }
+
+    @Test
+    public void testRollout()
+    {
+        final int count = Agents.session(remote.getPid()).getInstrumentor().getTransformerCount();
+        final Identity transformer = new Identity();
+
+        final BatchResult result = Agents.execute(remote.getPid(), new Batch() //
+                .register(transformer) //
+                .add(transformer, ClassSelector.names("org.testremote.Dog")) //
+                .retransform(transformer, "org.testremote.Dog") //
+                .getTransformerCount() //
+                .remove(transformer) //
+                .getTransformerCount());
+
+        assertTrue(result.toString(), result.isSuccess());
+        assertEquals(count + 1, result.getOutcome(3).getValue());
+        assertEquals(Boolean.TRUE, result.getOutcome(4).getValue());
+        assertEquals(count, result.getOutcome(5).getValue());
+    }
+
+    @Test
+    public void testJarSentAlong() throws IOException, ClassNotFoundException, URISyntaxException
+    {
+        final Manifest manifest = new Manifest();
+        manifest.getMainAttributes().putIfAbsent(Attributes.Name.MANIFEST_VERSION, "1.0");
+        // a jar the remote VM doesn't store yet
+        manifest.getMainAttributes().putValue("Batch-Test", UUID.randomUUID().toString());
+        final File jar = ClassTools.createTemporaryJar("batchTest", manifest, TestLoadRemoteJarClass.class.getName());
+        jar.deleteOnExit();
+        final byte[] jarBytes = Files.readAllBytes(jar.toPath());
+        final String hash = JarStore.hash(jarBytes);
+
+        assertFalse(Agents.execute(remote.getPid(), new Batch().appendJarToSystemClassLoader(hash)).isSuccess());
+
+        final BatchResult result = Agents.execute(remote.getPid(), new Batch() //
+                .appendJarToSystemClassLoader(jarBytes) //
+                .getTransformerCount());
+        assertTrue(result.toString(), result.isSuccess());
+        // stored by the first batch
+        assertTrue(Agents.execute(remote.getPid(), new Batch().appendJarToSystemClassLoader(hash)).isSuccess());
+    }
+
+    @Test
+    public void testStopOnFailure()
+    {
+        final Identity unregistered = new Identity();
+
+        final BatchResult result = Agents.execute(remote.getPid(), new Batch() //
+                .getTransformerCount() //
+                .add(unregistered) //
+                .getTransformerCount());
+
+        assertFalse(result.isSuccess());
+        assertTrue(result.getOutcome(0).isSuccess());
+        assertFalse(result.getOutcome(1).isSuccess());
+        assertFalse(result.getOutcome(1).isSkipped());
+        assertTrue(result.getOutcome(2).isSkipped());
+    }
+
+    @Test
+    public void testContinueOnFailure()
+    {
+        Agents.setPayloadTransport(PayloadTransport.FILE_HANDOFF);
+
+        final BatchResult result = Agents.execute(remote.getPid(), new Batch().continueOnFailure() //
+                .add(new Identity()) //
+                .getTransformerCount());
+
+        assertFalse(result.getOutcome(0).isSuccess());
+        assertTrue(result.getOutcome(1).isSuccess());
+    }
+
+    @Test
+    public void testLocal()
+    {
+        final Identity transformer = new Identity();
+
+        final BatchResult result = Agents.execute(new Batch() //
+                .register(transformer) //
+                .add(transformer) //
+                .unregister(transformer));
+
+        assertTrue(result.toString(), result.isSuccess());
+        assertEquals(3, result.getOutcomes().size());
+    }
+
+    @Test
+    public void testErrorIsRecorded()
+    {
+        final InstrumentorMBean failing = (InstrumentorMBean) Proxy.newProxyInstance(getClass().getClassLoader(),
+                new Class<?>[] { InstrumentorMBean.class }, (proxy, method, args) ->
+                {
+                    throw new NoClassDefFoundError("org/agenttools/Missing");
+                });
+
+        final BatchResult result = new Batch().getTransformerCount().disableResetCache().execute(failing);
+
+        assertTrue(result.getOutcome(0).getError().contains("NoClassDefFoundError"));
+        assertTrue(result.getOutcome(1).isSkipped());
+    }
+
+    @Test
+    public void testNoCodeIsSent() throws IOException, ClassNotFoundException
+    {
+        final Batch batch = new Batch() //
+                .appendJarToSystemClassLoader("0") //
+                .reset("org.agenttools.Cat") //
+                .enableResetCache(ClassSelector.packages("org.agenttools"), 1024) //
+                .getTransformerCount();
+
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ObjectOutputStream out = new ObjectOutputStream(bytes))
+        {
+            out.writeObject(batch);
+        }
+        // plain values and agent classes only, i.e. no lambda
+        try (FilteredObjectInputStream in = new FilteredObjectInputStream(new ByteArrayInputStream(bytes.toByteArray()),
+                FilteredObjectInputStream.REPLIES))
+        {
+            assertEquals(4, ((Batch) in.readObject()).size());
+        }
+    }
+}
@@ -0,0 +1,176 @@
+/*******************************************************************************
+ * Copyright (c) 2017, Xavier Miret Andres <xavier.mires@gmail.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *******************************************************************************/
+package org.agenttools;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.nio.file.Files;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.Arrays;
+import java.util.jar.Attributes;
+import java.util.jar.JarFile;
+import java.util.jar.Manifest;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class BootstrapJarCacheTest
+{
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testBuiltOnce() throws IOException, URISyntaxException, ClassNotFoundException
+    {
+        final BootstrapJarCache cache = new BootstrapJarCache(directory());
+
+        final File jar = cache.get("test", manifest(), Cat.class.getName());
+        assertSame(jar, cache.get("test", manifest(), Cat.class.getName()));
+        assertTrue(jar.getName().endsWith("-" + JarStore.hash(jar) + ".jar"));
+    }
+
+    @Test
+    public void testClassesChangeTheJar() throws IOException, URISyntaxException, ClassNotFoundException
+    {
+        final File cat = new BootstrapJarCache(directory()).get("test", manifest(), Cat.class.getName());
+        final File catAndDog = new BootstrapJarCache(directory()).get("test", manifest(), Cat.class.getName(),
+                Dog.class.getName());
+        assertNotEquals(cat, catAndDog);
+        assertNotEquals(cat.getName().substring(0, cat.getName().indexOf('-')),
+                catAndDog.getName().substring(0, catAndDog.getName().indexOf('-')));
+    }
+
+    @Test
+    public void testReusedAcrossVMs() throws IOException, URISyntaxException, ClassNotFoundException
+    {
+        final File jar = new BootstrapJarCache(directory()).get("test", manifest(), Cat.class.getName());
+        final long lastModified = jar.lastModified();
+
+        // a new cache stands for a restarted controller
+        assertEquals(jar, new BootstrapJarCache(directory()).get("test", manifest(), Cat.class.getName()));
+        assertEquals(lastModified, jar.lastModified());
+        assertEquals(Arrays.asList(jar.getName()), Arrays.asList(directory().list()));
+    }
+
+    @Test
+    public void testCorruptedJarIsRewritten() throws IOException, URISyntaxException, ClassNotFoundException
+    {
+        final File jar = new BootstrapJarCache(directory()).get("test", manifest(), Cat.class.getName());
+        final byte[] jarBytes = Files.readAllBytes(jar.toPath());
+        Files.write(jar.toPath(), new byte[] { 1, 2, 3 });
+
+        new BootstrapJarCache(directory()).get("test", manifest(), Cat.class.getName());
+        assertArrayEquals(jarBytes, Files.readAllBytes(jar.toPath()));
+    }
+
+    @Test
+    public void testVerifiedOncePerVM() throws IOException, URISyntaxException, ClassNotFoundException
+    {
+        final BootstrapJarCache cache = new BootstrapJarCache(directory());
+        final File jar = cache.get("test", manifest(), Cat.class.getName());
+        final byte[] jarBytes = Files.readAllBytes(jar.toPath());
+        Files.write(jar.toPath(), new byte[] { 1, 2, 3 });
+
+        // not hashed again by the VM which checked it
+        assertSame(jar, cache.get("test", manifest(), Cat.class.getName()));
+        assertArrayEquals(new byte[] { 1, 2, 3 }, Files.readAllBytes(jar.toPath()));
+
+        // but by any other
+        assertEquals(jar, new BootstrapJarCache(directory()).get("test", manifest(), Cat.class.getName()));
+        assertArrayEquals(jarBytes, Files.readAllBytes(jar.toPath()));
+    }
+
+    @Test
+    public void testSharedDirectoryIsRefused() throws IOException, URISyntaxException, ClassNotFoundException
+    {
+        try
+        {
+            Files.setPosixFilePermissions(directory().toPath(), PosixFilePermissions.fromString("rwxrwxrwx"));
+        }
+        catch (UnsupportedOperationException e)
+        {
+            return; // not a POSIX file system
+        }
+        try
+        {
+            new BootstrapJarCache(directory()).get("test", manifest(), Cat.class.getName());
+            fail();
+        }
+        catch (IOException e)
+        {
+            assertTrue(e.getMessage().contains("other users"));
+        }
+    }
+
+    @Test
+    public void testPacksNestedClasses() throws IOException, URISyntaxException, ClassNotFoundException
+    {
+        final Runnable anonymous = new Runnable()
+        {
+            @Override
+            public void run()
+            {
+            }
+        };
+        final String[] classNames = ClassTools.withNestedClasses(BootstrapJarCacheTest.class);
+        assertTrue(Arrays.asList(classNames).contains(anonymous.getClass().getName()));
+        assertTrue(Arrays.asList(classNames).contains(Nested.class.getName()));
+
+        final File jar = new BootstrapJarCache(directory()).get("test", manifest(), classNames);
+        try (JarFile jarFile = new JarFile(jar))
+        {
+            assertNotNull(jarFile.getEntry(anonymous.getClass().getName().replace('.', '/') + ".class"));
+            assertNotNull(jarFile.getEntry(Nested.class.getName().replace('.', '/') + ".class"));
+        }
+    }
+
+    private static final class Nested
+    {
+    }
+
+    private File directory() throws IOException
+    {
+        final File directory = new File(folder.getRoot(), "bootstrap");
+        if (!directory.exists())
+        {
+            PrivateFiles.directory(directory);
+        }
+        return directory;
+    }
+
+    private static Manifest manifest()
+    {
+        final Manifest manifest = new Manifest();
+        manifest.getMainAttributes().putIfAbsent(Attributes.Name.MANIFEST_VERSION, "1.0");
+        return manifest;
+    }
+}
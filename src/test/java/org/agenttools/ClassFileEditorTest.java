@@ -0,0 +1,211 @@
+/*******************************************************************************
+ * Copyright (c) 2017, Xavier Miret Andres <xavier.mires@gmail.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *******************************************************************************/
+package org.agenttools;
+
+import static org.junit.Assert.assertEquals;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+public class ClassFileEditorTest
+{
+    private static int handled;
+
+    public static void handle()
+    {
+        handled++;
+    }
+
+    @Retention(RetentionPolicy.RUNTIME)
+    @Target(ElementType.TYPE_USE)
+    @interface Tagged
+    {
+    }
+
+    public static class Annotated
+    {
+        public int call(Object value)
+        {
+            final String string = String.valueOf(value);
+            return new @Tagged StringBuilder(string).length();
+        }
+    }
+
+    @Test
+    public void testTypeAnnotationsAreMoved() throws Exception
+    {
+        final String name = Annotated.class.getName();
+        final byte[] original = ClassTools.getClassBytes(name);
+        final ClassFileEditor editor = new ClassFileEditor(original);
+        final int handle = editor.addMethodref(ClassFileEditorTest.class.getName().replace('.', '/'), "handle",
+                "()V");
+        // the prologue is 4 bytes, so the code isn't padded
+        final byte[] edited = editor.edit((access, method, descriptor) -> !"call".equals(method) ? null
+                : new ClassFileEditor.Injection(new byte[] { (byte) 0xB8, (byte) (handle >>> 8), (byte) handle, 0 },
+                        null, null, 0));
+
+        final Code before = Code.of(original, "call");
+        final Code after = Code.of(edited, "call");
+        assertEquals(1, before.typeAnnotations.size());
+        assertEquals(1, after.typeAnnotations.size());
+        // the annotation still targets the new instruction, moved past the prologue
+        final int created = before.typeAnnotations.get(0);
+        assertEquals(0xBB, before.code[created] & 0xFF);
+        assertEquals(created + 4, (int) after.typeAnnotations.get(0));
+        assertEquals(0xBB, after.code[created + 4] & 0xFF);
+
+        final Class<?> annotated = new ClassLoader(getClass().getClassLoader())
+        {
+            Class<?> define()
+            {
+                return defineClass(name, edited, 0, edited.length);
+            }
+        }.define();
+        handled = 0;
+        assertEquals(3, annotated.getMethod("call", Object.class).invoke(annotated.getConstructor().newInstance(),
+                "abc"));
+        assertEquals(1, handled);
+    }
+
+    // The code of a method, and the offsets targeted by its RuntimeVisibleTypeAnnotations.
+    private static final class Code
+    {
+        byte[] code;
+        final List<Integer> typeAnnotations = new ArrayList<>();
+
+        static Code of(byte[] classFile, String methodName)
+        {
+            final ByteBuffer in = ByteBuffer.wrap(classFile);
+            in.position(8);
+            final int constants = in.getShort() & 0xFFFF;
+            final String[] utf8 = new String[constants];
+            for (int i = 1; i < constants; i++)
+            {
+                final int tag = in.get();
+                switch (tag)
+                {
+                case 1:
+                    final byte[] bytes = new byte[in.getShort() & 0xFFFF];
+                    in.get(bytes);
+                    utf8[i] = new String(bytes, StandardCharsets.UTF_8);
+                    break;
+                case 5:
+                case 6:
+                    in.position(in.position() + 8);
+                    i++;
+                    break;
+                case 15:
+                    in.position(in.position() + 3);
+                    break;
+                case 7:
+                case 8:
+                case 16:
+                case 19:
+                case 20:
+                    in.position(in.position() + 2);
+                    break;
+                default:
+                    in.position(in.position() + 4);
+                }
+            }
+            in.position(in.position() + 6);
+            final int interfaces = in.getShort() & 0xFFFF;
+            in.position(in.position() + 2 * interfaces);
+            // fields
+            for (int f = in.getShort() & 0xFFFF; f > 0; f--)
+            {
+                in.position(in.position() + 6);
+                skipAttributes(in);
+            }
+            for (int m = in.getShort() & 0xFFFF; m > 0; m--)
+            {
+                in.getShort();
+                final String name = utf8[in.getShort() & 0xFFFF];
+                in.getShort();
+                for (int a = in.getShort() & 0xFFFF; a > 0; a--)
+                {
+                    final String attribute = utf8[in.getShort() & 0xFFFF];
+                    final int length = in.getInt();
+                    if (name.equals(methodName) && "Code".equals(attribute))
+                    {
+                        return read(in, utf8);
+                    }
+                    in.position(in.position() + length);
+                }
+            }
+            throw new AssertionError("No code for " + methodName);
+        }
+
+        private static Code read(ByteBuffer in, String[] utf8)
+        {
+            final Code code = new Code();
+            in.position(in.position() + 4);
+            code.code = new byte[in.getInt()];
+            in.get(code.code);
+            final int exceptions = in.getShort() & 0xFFFF;
+            in.position(in.position() + 8 * exceptions);
+            for (int a = in.getShort() & 0xFFFF; a > 0; a--)
+            {
+                final String attribute = utf8[in.getShort() & 0xFFFF];
+                final int length = in.getInt();
+                final int end = in.position() + length;
+                if ("RuntimeVisibleTypeAnnotations".equals(attribute))
+                {
+                    for (int t = in.getShort() & 0xFFFF; t > 0; t--)
+                    {
+                        final int target = in.get() & 0xFF;
+                        // instructions only, the annotation of this test targets a new
+                        if (target < 0x43 || target > 0x4B)
+                        {
+                            throw new AssertionError("Unexpected target " + target);
+                        }
+                        code.typeAnnotations.add(in.getShort() & 0xFFFF);
+                        in.position(in.position() + (target >= 0x47 ? 1 : 0));
+                        in.position(in.position() + 1 + 2 * (in.get(in.position()) & 0xFF));
+                        // the annotations this test uses have no elements
+                        in.position(in.position() + 4);
+                    }
+                }
+                in.position(end);
+            }
+            return code;
+        }
+
+        private static void skipAttributes(ByteBuffer in)
+        {
+            for (int a = in.getShort() & 0xFFFF; a > 0; a--)
+            {
+                in.getShort();
+                final int length = in.getInt();
+                in.position(in.position() + length);
+            }
+        }
+    }
+}
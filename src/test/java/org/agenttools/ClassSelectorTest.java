@@ -0,0 +1,274 @@
+/*******************************************************************************
+ * Copyright (c) 2017, Xavier Miret Andres <xavier.mires@gmail.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *******************************************************************************/
+package org.agenttools;
+
+import static org.agenttools.Timings.find;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.instrument.ClassFileTransformer;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.junit.Test;
+
+public class ClassSelectorTest
+{
+    private static final String REMOTE_CAT = "org.testremote.Cat";
+
+    @Retention(RetentionPolicy.RUNTIME)
+    @interface Tagged
+    {
+    }
+
+    interface Animal
+    {
+    }
+
+    static class Feline implements Animal
+    {
+    }
+
+    @Tagged
+    static class Tabby extends Feline
+    {
+        int purr()
+        {
+            return 1;
+        }
+    }
+
+    static class Tiger extends Feline
+    {
+        int roar()
+        {
+            return 2;
+        }
+    }
+
+    @Test
+    public void testGlobs()
+    {
+        final ClassSelector selector = ClassSelector.globs("com.acme.*Service", "org.acme.**", "net.acme.Cat?");
+
+        assertTrue(selector.matches("com.acme.OrderService"));
+        assertTrue(selector.matches("com/acme/Service"));
+        assertFalse(selector.matches("com.acme.sub.OrderService"));
+        assertFalse(selector.matches("com.acme.OrderServiceImpl"));
+        assertTrue(selector.matches("org.acme.Order"));
+        assertTrue(selector.matches("org.acme.sub.Order"));
+        assertFalse(selector.matches("org.acmeX.Order"));
+        assertTrue(selector.matches("net.acme.Cats"));
+        assertFalse(selector.matches("net.acme.Cat"));
+        assertFalse(selector.matches("net.acme.Cat.s"));
+        // wildcard free globs are names, trailing ** packages
+        assertFalse(selector.or(ClassSelector.globs("a.B", "c.**")).isIndexed());
+        assertTrue(ClassSelector.globs("a.B", "c.**").isIndexed());
+        assertTrue(ClassSelector.globs("a.B$C").matches("a.B$C"));
+        assertTrue(ClassSelector.globs("a.B$*").matches("a.B$C"));
+        assertFalse(ClassSelector.globs("a.B$*").matches("a.BC"));
+    }
+
+    @Test
+    public void testRegex()
+    {
+        final ClassSelector selector = ClassSelector.regex("com\\.acme\\.(Order|Invoice)Service");
+
+        assertTrue(selector.matches("com.acme.OrderService"));
+        assertTrue(selector.matches("com/acme/InvoiceService"));
+        assertFalse(selector.matches("com.acme.PaymentService"));
+    }
+
+    @Test
+    public void testSubtypesAndAnnotationsOfLoadedClasses()
+    {
+        final ClassSelector subtypes = ClassSelector.subtypesOf(Animal.class.getName());
+        assertTrue(subtypes.matches(Feline.class));
+        assertTrue(subtypes.matches(Tabby.class));
+        assertFalse(subtypes.matches(Animal.class));
+        assertFalse(subtypes.matches(ClassSelectorTest.class));
+
+        final ClassSelector annotated = ClassSelector.annotatedWith(Tagged.class.getName());
+        assertTrue(annotated.matches(Tabby.class));
+        assertFalse(annotated.matches(Tiger.class));
+        assertFalse(annotated.matches(Tabby.class.getName()));
+    }
+
+    @Test
+    public void testSubtypesAndAnnotationsOfClassFiles() throws IOException
+    {
+        final ClassLoader loader = getClass().getClassLoader();
+        final ClassSelector subtypes = ClassSelector.subtypesOf(Animal.class.getName());
+        assertTrue(matches(subtypes, Tabby.class));
+        assertTrue(matches(subtypes, Tiger.class));
+        assertFalse(matches(subtypes, Animal.class));
+        assertFalse(matches(subtypes, ClassSelectorTest.class));
+        assertFalse(matches(ClassSelector.subtypesOf("java.lang.Runnable"), Tabby.class));
+        assertTrue(matches(ClassSelector.subtypesOf("java.lang.Object"), Tabby.class));
+
+        final ClassSelector annotated = ClassSelector.annotatedWith(Tagged.class.getName());
+        assertTrue(matches(annotated, Tabby.class));
+        assertFalse(matches(annotated, Tiger.class));
+        assertFalse(annotated.matches(loader, "not/a/Class", new byte[] { 1, 2, 3 }));
+    }
+
+    @Test
+    public void testHierarchyIsReadPerClassLoader() throws IOException
+    {
+        final ClassSelector subtypes = ClassSelector.subtypesOf(Animal.class.getName());
+        assertTrue(matches(subtypes, Tabby.class));
+
+        // the same names, but a Feline which isn't an Animal
+        final String feline = Feline.class.getName().replace('.', '/') + ".class";
+        final ClassLoader other = new ClassLoader(getClass().getClassLoader())
+        {
+            @Override
+            public InputStream getResourceAsStream(String name)
+            {
+                return super.getResourceAsStream(feline.equals(name) ? "java/lang/Object.class" : name);
+            }
+        };
+        assertFalse(subtypes.matches(other, Tabby.class.getName().replace('.', '/'), ClassTools.getClassBytes(
+                Tabby.class.getName())));
+    }
+
+    @Test
+    public void testFailedInstrumentIsRemoved()
+    {
+        assertEquals(2, new Tiger().roar());
+        final Instrumentor instrumentor = AgentBootstrap.getInstrumentor();
+        final int installed = instrumentor.getTransformerCount();
+        instrumentor.registerTransformer("broken", (l, n, c, p, b) -> new byte[] { 1, 2, 3 });
+        try
+        {
+            instrumentor.instrument("broken", ClassSelector.names(Tiger.class.getName()));
+            fail();
+        }
+        catch (AgentLoadingException e)
+        {
+            // expected
+        }
+        finally
+        {
+            instrumentor.unregisterTransformer("broken");
+        }
+        assertEquals(installed, instrumentor.getTransformerCount());
+        assertFalse(instrumentor.removeTransformer("broken"));
+    }
+
+    @Test
+    public void testLoadedBy()
+    {
+        final ClassSelector bootstrap = ClassSelector.packages("java.lang").loadedBy(LoadedClassIndex.BOOTSTRAP);
+        assertTrue(bootstrap.matches(String.class));
+        assertFalse(bootstrap.isIndexed());
+
+        final ClassLoader loader = Tabby.class.getClassLoader();
+        final ClassSelector app = ClassSelector.names(Tabby.class.getName()).loadedBy(LoadedClassIndex.describe(
+                loader));
+        assertTrue(app.matches(Tabby.class));
+        assertFalse(app.matches(null, Tabby.class.getName().replace('.', '/'), new byte[0]));
+        assertFalse(ClassSelector.names(Tabby.class.getName()).loadedBy(LoadedClassIndex.BOOTSTRAP).matches(
+                Tabby.class));
+        assertEquals(1, AgentBootstrap.getInstrumentor().select(app).size());
+        try
+        {
+            app.or(bootstrap);
+            fail();
+        }
+        catch (IllegalArgumentException e)
+        {
+            // expected
+        }
+    }
+
+    @Test
+    public void testDispatcherRoutesPatterns()
+    {
+        final TransformerDispatcher dispatcher = new TransformerDispatcher();
+        final ClassFileTransformer transformer = (l, n, c, p, b) -> "service".getBytes();
+        final TransformerHandle handle = new TransformerHandle(null, transformer, transformer);
+        dispatcher.add(handle, ClassSelector.globs("com.acme.*Service"));
+
+        assertArrayEquals("service".getBytes(), dispatcher.transform(null, "com/acme/OrderService", null, null,
+                new byte[0]));
+        assertNull(dispatcher.transform(null, "com/acme/Order", null, null, new byte[0]));
+    }
+
+    @Test
+    public void testRetransformSelected()
+    {
+        assertEquals(3, new Tabby().purr() + new Tiger().roar());
+
+        final Set<String> transformed = new HashSet<>();
+        final int count = Agents.retransform((l, n, c, p, b) ->
+        {
+            transformed.add(n);
+            return null;
+        }, ClassSelector.globs(ClassSelectorTest.class.getName() + "$T*"));
+
+        assertEquals(2, count);
+        assertEquals(2, transformed.size());
+        assertTrue(transformed.contains(Tabby.class.getName().replace('.', '/')));
+        assertTrue(transformed.contains(Tiger.class.getName().replace('.', '/')));
+
+        assertEquals(2, Agents.reset(ClassSelector.subtypesOf(Feline.class.getName())));
+    }
+
+    @Test
+    public void testRemoteInstrument() throws Exception
+    {
+        try (RemoteProcess remote = new RemoteProcess())
+        {
+            final int count = Agents.instrument(remote.getPid(), new MethodTimingTransformer(REMOTE_CAT + ".meow"),
+                    ClassSelector.globs("org.testremote.*"));
+            assertTrue(count > 0);
+
+            MethodTiming meow = null;
+            for (int i = 0; i < 100 && meow == null; i++)
+            {
+                Thread.sleep(50);
+                meow = find(Agents.getMethodTimings(remote.getPid()), REMOTE_CAT + ".meow()V");
+            }
+            assertNotNull(meow);
+        }
+        finally
+        {
+            RemoteSessions.closeAll();
+        }
+    }
+
+    private static boolean matches(ClassSelector selector, Class<?> clazz) throws IOException
+    {
+        return selector.matches(clazz.getClassLoader(), clazz.getName().replace('.', '/'), ClassTools.getClassBytes(
+                clazz.getName()));
+    }
+}
@@ -0,0 +1,94 @@
+/*******************************************************************************
+ * Copyright (c) 2017, Xavier Miret Andres <xavier.mires@gmail.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *******************************************************************************/
+package org.agenttools;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Latency of a remote operation on a reused session, over JMX against the binary control socket.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ControlBenchmark
+{
+    @Param({ "JMX", "SOCKET" })
+    private ControlTransport transport;
+
+    private RemoteProcess remote;
+    private InstrumentorMBean instrumentor;
+    private final byte[] chunk = new byte[64 * 1024];
+    private final String hash = JarStore.hash(chunk);
+
+    @Setup
+    public void setUp() throws IOException
+    {
+        Agents.setControlTransport(transport);
+        remote = new RemoteProcess();
+        instrumentor = Agents.session(remote.getPid()).getInstrumentor();
+    }
+
+    @TearDown
+    public void tearDown()
+    {
+        RemoteSessions.closeAll();
+        remote.close();
+        Agents.setControlTransport(ControlTransport.JMX);
+    }
+
+    @Benchmark
+    public int roundTrip()
+    {
+        return instrumentor.getTransformerCount();
+    }
+
+    @Benchmark
+    public void chunk64k()
+    {
+        instrumentor.writeJarChunk(hash, 0, chunk);
+    }
+
+    public static void main(String... args) throws RunnerException
+    {
+        new Runner(new OptionsBuilder().include(ControlBenchmark.class.getSimpleName()).build()).run();
+    }
+}
@@ -0,0 +1,339 @@
+/*******************************************************************************
+ * Copyright (c) 2017, Xavier Miret Andres <xavier.mires@gmail.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *******************************************************************************/
+package org.agenttools;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InvalidClassException;
+import java.io.Serializable;
+import java.lang.instrument.ClassFileTransformer;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.agenttools.AgentBootstrap.ProxyConnection;
+import org.agenttools.RemoteTransformerTest.Identity;
+import org.junit.After;
+import org.junit.Test;
+
+public class ControlProtocolTest
+{
+    @After
+    public void tearDown()
+    {
+        Agents.setControlTransport(ControlTransport.JMX);
+    }
+
+    @Test
+    public void testCodec() throws IOException
+    {
+        final Map<String, byte[]> definitions = new LinkedHashMap<>();
+        definitions.put("a.B", new byte[] { 1, 2, 3 });
+        definitions.put("c.D", new byte[0]);
+
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final DataOutputStream out = new DataOutputStream(bytes);
+        ControlProtocol.writeValue(out, null);
+        ControlProtocol.writeValue(out, true);
+        ControlProtocol.writeValue(out, 42);
+        ControlProtocol.writeValue(out, Long.MIN_VALUE);
+        ControlProtocol.writeValue(out, "meow");
+        ControlProtocol.writeValue(out, new byte[] { -1, 0, 1 });
+        ControlProtocol.writeValue(out, new String[] { "cat", "dog" });
+        ControlProtocol.writeValue(out, definitions);
+        ControlProtocol.writeValue(out, (Serializable) Collections.singletonList("serialized"));
+        out.flush();
+
+        final DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes.toByteArray()));
+        assertNull(read(in));
+        assertEquals(true, read(in));
+        assertEquals(42, read(in));
+        assertEquals(Long.MIN_VALUE, read(in));
+        assertEquals("meow", read(in));
+        assertArrayEquals(new byte[] { -1, 0, 1 }, (byte[]) read(in));
+        assertArrayEquals(new String[] { "cat", "dog" }, (String[]) read(in));
+        @SuppressWarnings("unchecked")
+        final Map<String, byte[]> read = (Map<String, byte[]>) read(in);
+        assertEquals(definitions.keySet(), read.keySet());
+        assertArrayEquals(new byte[] { 1, 2, 3 }, read.get("a.B"));
+        assertEquals(Collections.singletonList("serialized"), read(in));
+        assertEquals(-1, in.read());
+    }
+
+    private static Object read(DataInputStream in) throws IOException
+    {
+        return ControlProtocol.readValue(in, FilteredObjectInputStream.REPLIES);
+    }
+
+    @Test
+    public void testRepliesAreFiltered() throws IOException
+    {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final DataOutputStream out = new DataOutputStream(bytes);
+        ControlProtocol.writeValue(out, new RedefineResult());
+        ControlProtocol.writeValue(out, new IllegalStateException("meow"));
+        ControlProtocol.writeValue(out, new java.util.Date());
+        out.flush();
+
+        final DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes.toByteArray()));
+        assertTrue(ControlProtocol.readValue(in, FilteredObjectInputStream.REPLIES) instanceof RedefineResult);
+        assertTrue(ControlProtocol.readValue(in, FilteredObjectInputStream.REPLIES) instanceof IllegalStateException);
+        try
+        {
+            ControlProtocol.readValue(in, FilteredObjectInputStream.REPLIES);
+            fail();
+        }
+        catch (InvalidClassException e)
+        {
+            assertTrue(e.getMessage().contains("java.util.Date"));
+        }
+    }
+
+    @Test
+    public void testArgumentsAreFiltered() throws IOException
+    {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final DataOutputStream out = new DataOutputStream(bytes);
+        ControlProtocol.writeValue(out, new Identity());
+        ControlProtocol.writeValue(out, new Identity());
+        ControlProtocol.writeValue(out, new java.util.Date());
+        out.flush();
+
+        final DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes.toByteArray()));
+        // the caller's classes are only accepted where they may be needed
+        assertTrue(ControlProtocol.readValue(in, FilteredObjectInputStream.arguments(ClassFileTransformer.class)) instanceof Identity);
+        try
+        {
+            ControlProtocol.readValue(in, FilteredObjectInputStream.arguments(String.class));
+            fail();
+        }
+        catch (InvalidClassException e)
+        {
+            assertTrue(e.getMessage().contains(Identity.class.getName()));
+        }
+        try
+        {
+            ControlProtocol.readValue(in, FilteredObjectInputStream.arguments(Object.class));
+            fail();
+        }
+        catch (InvalidClassException e)
+        {
+            assertTrue(e.getMessage().contains("java.util.Date"));
+        }
+    }
+
+    @Test
+    public void testRefusesSharedEndpoint() throws IOException
+    {
+        final String pid = "test-shared-" + System.nanoTime();
+        final Path endpoint = PrivateFiles.directory("control").toPath().resolve(pid + ".endpoint");
+        Files.write(endpoint, "tcp 1 token".getBytes(StandardCharsets.UTF_8));
+        try
+        {
+            Files.setPosixFilePermissions(endpoint, PosixFilePermissions.fromString("rw-rw-rw-"));
+            ControlClient.connect(pid);
+            fail();
+        }
+        catch (UnsupportedOperationException e)
+        {
+            // not a POSIX file system
+        }
+        catch (IOException e)
+        {
+            assertTrue(e.getMessage().contains("other users"));
+        }
+        finally
+        {
+            Files.delete(endpoint);
+        }
+    }
+
+    @Test
+    public void testLocalUnixSocket() throws IOException
+    {
+        if (ControlProtocol.unixAddress(ControlProtocol.getDirectory().toPath()) != null)
+        {
+            final String pid = "test-unix-" + System.nanoTime();
+            testLocal(pid, ControlProtocol.getDirectory().toPath().resolve(pid + ".sock"));
+        }
+    }
+
+    @Test
+    public void testLocalTcpSocket() throws IOException
+    {
+        testLocal("test-tcp-" + System.nanoTime(), null);
+    }
+
+    @SuppressWarnings("try")
+    private static void testLocal(String pid, Path socket) throws IOException
+    {
+        final Instrumentor instrumentor = AgentBootstrap.getInstrumentor();
+        try (ControlServer server = new ControlServer(instrumentor, pid, socket);
+                ProxyConnection<InstrumentorMBean> connection = ControlClient.connect(pid))
+        {
+            assertEquals(instrumentor.getTransformerCount(), connection.proxy.getTransformerCount());
+            assertEquals(instrumentor.isMethodTimingEnabled(), connection.proxy.isMethodTimingEnabled());
+            try
+            {
+                connection.proxy.appendJarToSystemClassLoader("not-a-hash");
+                fail();
+            }
+            catch (AgentLoadingException e)
+            {
+                assertTrue(e.getMessage().contains("not-a-hash"));
+            }
+            // the connection is still usable
+            assertEquals(instrumentor.getTransformerCount(), connection.proxy.getTransformerCount());
+        }
+        assertFalse(ControlProtocol.getEndpointFile(pid).exists());
+    }
+
+    @Test
+    @SuppressWarnings("try")
+    public void testRefusesOversizedHello() throws IOException
+    {
+        final String pid = "test-hello-" + System.nanoTime();
+        try (ControlServer server = new ControlServer(AgentBootstrap.getInstrumentor(), pid, null))
+        {
+            final String[] fields = new String(Files.readAllBytes(ControlProtocol.getEndpointFile(pid).toPath()),
+                    StandardCharsets.UTF_8).split(" ");
+            // a large frame is refused from its length, before it is sent
+            try (SocketChannel channel = SocketChannel.open(ControlProtocol.loopbackAddress(Integer.parseInt(
+                    fields[1]))))
+            {
+                final ByteBuffer length = ByteBuffer.allocate(4).putInt(ControlProtocol.MAX_FRAME);
+                length.flip();
+                channel.write(length);
+                assertEquals(-1, channel.read(ByteBuffer.allocate(1)));
+            }
+            // so is a small one announcing a large token
+            try (SocketChannel channel = SocketChannel.open(ControlProtocol.loopbackAddress(Integer.parseInt(
+                    fields[1]))))
+            {
+                final ByteArrayOutputStream hello = new ByteArrayOutputStream();
+                final DataOutputStream out = new DataOutputStream(hello);
+                out.writeInt(ControlProtocol.VERSION);
+                out.writeInt(ControlProtocol.methodsHash);
+                out.writeInt(Integer.MAX_VALUE);
+                out.flush();
+                ControlProtocol.writeFrame(channel, hello);
+                assertEquals(-1, channel.read(ByteBuffer.allocate(1)));
+            }
+        }
+    }
+
+    @Test
+    @SuppressWarnings("try")
+    public void testUnknownOperation() throws IOException
+    {
+        final String pid = "test-operation-" + System.nanoTime();
+        try (ControlServer server = new ControlServer(AgentBootstrap.getInstrumentor(), pid, null))
+        {
+            final String[] fields = new String(Files.readAllBytes(ControlProtocol.getEndpointFile(pid).toPath()),
+                    StandardCharsets.UTF_8).split(" ");
+            try (SocketChannel channel = SocketChannel.open(ControlProtocol.loopbackAddress(Integer.parseInt(
+                    fields[1]))))
+            {
+                final ByteArrayOutputStream hello = new ByteArrayOutputStream();
+                final DataOutputStream out = new DataOutputStream(hello);
+                out.writeInt(ControlProtocol.VERSION);
+                out.writeInt(ControlProtocol.methodsHash);
+                ControlProtocol.writeString(out, fields[2]);
+                out.flush();
+                ControlProtocol.writeFrame(channel, hello);
+                assertEquals(ControlProtocol.OK, ControlProtocol.readFrame(channel).readByte());
+
+                for (short index : new short[] { -1, Short.MAX_VALUE })
+                {
+                    final ByteArrayOutputStream request = new ByteArrayOutputStream();
+                    new DataOutputStream(request).writeShort(index);
+                    ControlProtocol.writeFrame(channel, request);
+                    final DataInputStream response = ControlProtocol.readFrame(channel);
+                    assertEquals(ControlProtocol.ERROR, response.readByte());
+                    assertTrue(ControlProtocol.readValue(response, FilteredObjectInputStream.REPLIES) instanceof AgentLoadingException);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testRemote() throws IOException
+    {
+        Agents.setControlTransport(ControlTransport.SOCKET);
+        try (RemoteProcess remote = new RemoteProcess())
+        {
+            final InstrumentorMBean instrumentor = Agents.session(remote.getPid()).getInstrumentor();
+            assertEquals(0, instrumentor.getTransformerCount());
+            assertTrue(ControlProtocol.getEndpointFile(String.valueOf(remote.getPid())).exists());
+
+            instrumentor.setMethodTimingEnabled(false);
+            assertFalse(instrumentor.isMethodTimingEnabled());
+
+            // remote exceptions are thrown as they are
+            final Handoff missing = Handoff.ofBytes(new byte[] { 1 });
+            missing.delete();
+            try
+            {
+                instrumentor.redefine(missing);
+                fail();
+            }
+            catch (AgentLoadingException e)
+            {
+                assertTrue(e.getMessage().contains("Unable to read the definitions"));
+            }
+        }
+        finally
+        {
+            RemoteSessions.closeAll();
+        }
+    }
+
+    @Test
+    public void testJmxOpensNoEndpoint() throws IOException
+    {
+        try (RemoteProcess remote = new RemoteProcess())
+        {
+            assertEquals(0, Agents.session(remote.getPid()).getInstrumentor().getTransformerCount());
+            assertFalse(ControlProtocol.getEndpointFile(String.valueOf(remote.getPid())).exists());
+        }
+        finally
+        {
+            RemoteSessions.closeAll();
+        }
+    }
+}
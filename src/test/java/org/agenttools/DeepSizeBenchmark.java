@@ -0,0 +1,136 @@
+/*******************************************************************************
+ * Copyright (c) 2017, Xavier Miret Andres <xavier.mires@gmail.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *******************************************************************************/
+package org.agenttools;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Deep sizing of a graph of a few million objects (a map of small objects).
+ * <p>
+ * {@link #sequential()} and {@link #parallel()} size the whole graph, the parallel walk only pays off with several
+ * cores. {@link #identitySet()} and {@link #identityHashMap()} only track the visited objects, which is the bulk of the
+ * walk.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = { "-Djdk.attach.allowAttachSelf=true", "-Xmx4g" })
+public class DeepSizeBenchmark
+{
+    @Param({ "1000000" })
+    int entries;
+
+    private Map<Integer, ObjectGraphSizerTest.Node> graph;
+    private List<Object> objects;
+
+    private ObjectGraphSizer sizer;
+    private ObjectGraphSizer parallelSizer;
+
+    @Setup
+    public void setUp()
+    {
+        graph = new HashMap<>();
+        for (int i = 0; i < entries; i++)
+        {
+            final ObjectGraphSizerTest.Node node = new ObjectGraphSizerTest.Node();
+            node.payload = new long[4];
+            graph.put(i, node);
+        }
+
+        sizer = Agents.getObjectGraphSizer();
+        parallelSizer = sizer.withParallelism(ForkJoinPool.commonPool());
+
+        objects = new ArrayList<>();
+        for (Map.Entry<Integer, ObjectGraphSizerTest.Node> e : graph.entrySet())
+        {
+            objects.add(e);
+            objects.add(e.getKey());
+            objects.add(e.getValue());
+            objects.add(e.getValue().payload);
+        }
+        Collections.shuffle(objects);
+    }
+
+    @Benchmark
+    public GraphSize sequential()
+    {
+        return sizer.size(graph);
+    }
+
+    @Benchmark
+    public GraphSize parallel()
+    {
+        return parallelSizer.size(graph);
+    }
+
+    @Benchmark
+    public int identitySet()
+    {
+        final IdentitySet visited = new IdentitySet();
+        for (Object o : objects)
+        {
+            visited.add(o);
+        }
+        return visited.size();
+    }
+
+    @Benchmark
+    public int identityHashMap()
+    {
+        final Set<Object> visited = Collections.newSetFromMap(new IdentityHashMap<>());
+        for (Object o : objects)
+        {
+            visited.add(o);
+        }
+        return visited.size();
+    }
+
+    public static void main(String[] args) throws RunnerException
+    {
+        new Runner(new OptionsBuilder().include(DeepSizeBenchmark.class.getSimpleName()).build()).run();
+    }
+}
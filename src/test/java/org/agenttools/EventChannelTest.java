@@ -0,0 +1,181 @@
+/*******************************************************************************
+ * Copyright (c) 2017, Xavier Miret Andres <xavier.mires@gmail.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *******************************************************************************/
+package org.agenttools;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class EventChannelTest
+{
+    @Test
+    public void testDeliversInOrder()
+    {
+        final List<Long> received = new ArrayList<>();
+        final long producer = Thread.currentThread().getId();
+        try (EventChannel channel = new EventChannel(4, 1024))
+        {
+            channel.addSink(events ->
+            {
+                for (int i = 0; i < events.size(); i++)
+                {
+                    assertEquals(7, events.getType(i));
+                    assertEquals(producer, events.getThreadId(i));
+                    received.add(events.getFirst(i) + events.getSecond(i));
+                }
+            });
+            for (int i = 0; i < 500; i++)
+            {
+                assertTrue(channel.offer(7, i, 0));
+            }
+            // the drainer hands over through the flush
+            channel.flush();
+            assertEquals(500, received.size());
+            for (int i = 0; i < 500; i++)
+            {
+                assertEquals(i, received.get(i).longValue());
+            }
+            assertEquals(500, channel.getDelivered());
+            assertEquals(0, channel.getDropped());
+        }
+    }
+
+    @Test
+    public void testDropsWhenFull() throws InterruptedException
+    {
+        final CountDownLatch draining = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        try (EventChannel channel = new EventChannel(1, 16))
+        {
+            channel.addSink(events ->
+            {
+                draining.countDown();
+                try
+                {
+                    release.await();
+                }
+                catch (InterruptedException e)
+                {
+                    Thread.currentThread().interrupt();
+                }
+            });
+            // the drainer blocks in the sink, holding the first event
+            channel.offer(0, 0, 0);
+            assertTrue(draining.await(10, TimeUnit.SECONDS));
+
+            int accepted = 0;
+            for (int i = 0; i < 100; i++)
+            {
+                accepted += channel.offer(0, i, 0) ? 1 : 0;
+            }
+            assertEquals(16, accepted);
+            assertEquals(84, channel.getDropped());
+            assertFalse(channel.offer(0, 0, 0));
+            release.countDown();
+        }
+    }
+
+    @Test
+    public void testManyProducers() throws InterruptedException
+    {
+        final int producers = 4;
+        final int events = 200_000;
+        // thread -> last value seen
+        final Map<Long, Long> last = new HashMap<>();
+        final long[] received = new long[1];
+        try (EventChannel channel = new EventChannel(2, 256))
+        {
+            channel.addSink(batch ->
+            {
+                for (int i = 0; i < batch.size(); i++)
+                {
+                    final Long previous = last.put(batch.getThreadId(i), batch.getFirst(i));
+                    assertTrue(previous == null || previous < batch.getFirst(i));
+                }
+                received[0] += batch.size();
+            });
+
+            final List<Thread> threads = new ArrayList<>();
+            for (int p = 0; p < producers; p++)
+            {
+                final Thread t = new Thread(() ->
+                {
+                    for (int i = 0; i < events; i++)
+                    {
+                        channel.offer(1, i, 0);
+                    }
+                });
+                threads.add(t);
+                t.start();
+            }
+            for (Thread t : threads)
+            {
+                t.join();
+            }
+            channel.flush();
+
+            assertEquals(producers * events, channel.getOffered());
+            assertEquals(channel.getOffered(), channel.getDelivered() + channel.getDropped());
+            assertEquals(channel.getDelivered(), received[0]);
+        }
+    }
+
+    @Test
+    public void testAgentChannel()
+    {
+        final long[] received = new long[1];
+        final EventSink sink = events ->
+        {
+            for (int i = 0; i < events.size(); i++)
+            {
+                if (events.getType(i) == 42)
+                {
+                    received[0]++;
+                }
+            }
+        };
+        Agents.getEventChannel().addSink(sink);
+        try
+        {
+            for (int i = 0; i < 10; i++)
+            {
+                Events.emit(42, i, i);
+            }
+            Agents.getEventChannel().flush();
+            assertEquals(10, received[0]);
+            assertTrue(AgentBootstrap.getInstrumentor().getEmittedEvents() >= 10);
+        }
+        finally
+        {
+            Agents.getEventChannel().removeSink(sink);
+        }
+    }
+}
@@ -0,0 +1,159 @@
+/*******************************************************************************
+ * Copyright (c) 2017, Xavier Miret Andres <xavier.mires@gmail.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *******************************************************************************/
+package org.agenttools;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.testremote.Main;
+
+public class FleetTest
+{
+    private static RemoteProcess tagged;
+    private static RemoteProcess untagged;
+
+    @BeforeClass
+    public static void startRemotes() throws IOException
+    {
+        tagged = new RemoteProcess("-Dagenttools.fleet=test");
+        untagged = new RemoteProcess();
+    }
+
+    @AfterClass
+    public static void stopRemotes()
+    {
+        tagged.close();
+        untagged.close();
+    }
+
+    @Test
+    public void testDiscover()
+    {
+        final Fleet fleet = Fleet.discover().withMainClass(Main.class.getName());
+        assertEquals(new HashSet<>(Arrays.asList(tagged.getPid(), untagged.getPid())), new HashSet<>(fleet.getPids()));
+
+        assertEquals(Arrays.asList(tagged.getPid()), fleet.withSystemProperty("agenttools.fleet", "test").getPids());
+    }
+
+    @Test
+    public void testRun()
+    {
+        final FleetResult<Integer> result = Fleet.discover().withMainClass(Main.class.getName())
+                .call(pid -> Agents.session(pid).getInstrumentor().getTransformerCount());
+
+        assertTrue(result.isSuccess());
+        assertEquals(2, result.getOutcomes().size());
+        assertEquals(Integer.valueOf(0), result.getOutcome(tagged.getPid()).getValue());
+    }
+
+    @Test
+    public void testTimedOutOperationFreesItsSlot()
+    {
+        final int hung = tagged.getPid();
+        final CountDownLatch release = new CountDownLatch(1);
+        final AtomicBoolean hungReturned = new AtomicBoolean();
+        final AtomicBoolean ranWhileHung = new AtomicBoolean();
+        final FleetResult<Void> result;
+        try
+        {
+            result = Fleet.discover().withMainClass(Main.class.getName()).withParallelism(1)
+                    .withTimeout(200, TimeUnit.MILLISECONDS).run(pid ->
+                    {
+                        if (pid == hung)
+                        {
+                            await(release);
+                            hungReturned.set(true);
+                        }
+                        else
+                        {
+                            ranWhileHung.set(!hungReturned.get());
+                            throw new IllegalStateException("failed");
+                        }
+                    });
+        }
+        finally
+        {
+            release.countDown();
+        }
+
+        // with a single slot, the other process still ran while the hung one was blocked
+        assertFalse(result.isSuccess());
+        assertTrue(result.getOutcome(hung).isTimedOut());
+        assertTrue(result.getOutcome(untagged.getPid()).getError() instanceof IllegalStateException);
+        assertEquals(2, result.getFailures().size());
+        assertTrue(ranWhileHung.get());
+    }
+
+    @Test
+    public void testFailsFastBeyondTheTimedOutOperations()
+    {
+        final CountDownLatch release = new CountDownLatch(1);
+        final AtomicInteger started = new AtomicInteger();
+        final FleetResult<Void> result;
+        try
+        {
+            result = Fleet.discover().withMainClass(Main.class.getName()).withParallelism(1)
+                    .withTimeout(200, TimeUnit.MILLISECONDS).run(pid ->
+                    {
+                        started.incrementAndGet();
+                        await(release);
+                    });
+        }
+        finally
+        {
+            release.countDown();
+        }
+
+        // the first one still runs, so the second one doesn't start
+        assertEquals(1, started.get());
+        assertEquals(2, result.getFailures().size());
+        final FleetResult.TargetOutcome<Void> first = result.getOutcomes().get(0);
+        final FleetResult.TargetOutcome<Void> second = result.getOutcomes().get(1);
+        assertTrue(first.isTimedOut());
+        assertFalse(second.isTimedOut());
+        assertTrue(second.getError() instanceof AgentLoadingException);
+    }
+
+    private static void await(CountDownLatch latch)
+    {
+        try
+        {
+            latch.await(30, TimeUnit.SECONDS);
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
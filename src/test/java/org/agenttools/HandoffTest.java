@@ -0,0 +1,170 @@
+/*******************************************************************************
+ * Copyright (c) 2017, Xavier Miret Andres <xavier.mires@gmail.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *******************************************************************************/
+package org.agenttools;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InvalidClassException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Field;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.junit.Test;
+
+public class HandoffTest
+{
+    @Test
+    public void testBytes() throws IOException
+    {
+        final byte[] bytes = { 1, 2, 3, 4, 5 };
+        final Handoff handoff = Handoff.ofBytes(bytes);
+        try
+        {
+            final ByteBuffer payload = handoff.map();
+            final byte[] read = new byte[payload.remaining()];
+            payload.get(read);
+            assertArrayEquals(bytes, read);
+        }
+        finally
+        {
+            handoff.delete();
+        }
+        assertFalse(new File(path(handoff)).exists());
+    }
+
+    @Test
+    public void testDefinitions() throws IOException
+    {
+        final Map<String, byte[]> definitions = new LinkedHashMap<>();
+        definitions.put("org.agenttools.Cat", new byte[] { 1, 2 });
+        definitions.put("org.agenttools.Dog", new byte[] { 3 });
+
+        final Handoff handoff = Handoff.ofDefinitions(definitions);
+        try
+        {
+            final Map<String, byte[]> read = handoff.readDefinitions();
+            assertEquals(definitions.keySet(), read.keySet());
+            assertArrayEquals(definitions.get("org.agenttools.Cat"), read.get("org.agenttools.Cat"));
+            assertArrayEquals(definitions.get("org.agenttools.Dog"), read.get("org.agenttools.Dog"));
+        }
+        finally
+        {
+            handoff.delete();
+        }
+    }
+
+    @Test
+    public void testObject() throws IOException, ClassNotFoundException
+    {
+        final Handoff handoff = Handoff.ofObject(ClassSelector.packages("org.agenttools"));
+        try
+        {
+            final ClassSelector selector = (ClassSelector) handoff.readObject();
+            assertTrue(selector.matches("org/agenttools/Cat"));
+        }
+        finally
+        {
+            handoff.delete();
+        }
+    }
+
+    @Test(expected = InvalidClassException.class)
+    public void testJdkObjectIsRefused() throws IOException, ClassNotFoundException
+    {
+        final Handoff handoff = Handoff.ofObject(new Date());
+        try
+        {
+            handoff.readObject();
+        }
+        finally
+        {
+            handoff.delete();
+        }
+    }
+
+    @Test
+    public void testHandoffIsPrivate() throws IOException
+    {
+        final Handoff handoff = Handoff.ofBytes(new byte[] { 1 });
+        try
+        {
+            final Path file = new File(path(handoff)).toPath();
+            PrivateFiles.checkPrivate(file.getParent());
+            PrivateFiles.checkPrivate(file);
+        }
+        finally
+        {
+            handoff.delete();
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void testChecksumMismatch() throws IOException
+    {
+        final Handoff handoff = Handoff.ofBytes(new byte[] { 1, 2, 3 });
+        try
+        {
+            try (RandomAccessFile file = new RandomAccessFile(path(handoff), "rw"))
+            {
+                file.write(9);
+            }
+            handoff.map();
+        }
+        finally
+        {
+            handoff.delete();
+        }
+    }
+
+    @Test
+    public void testCallerFileIsKept() throws IOException
+    {
+        final File file = File.createTempFile("handoffTest", ".bin");
+        file.deleteOnExit();
+        final Handoff handoff = Handoff.of(file);
+        handoff.delete();
+        assertTrue(file.exists());
+    }
+
+    private static String path(Handoff handoff)
+    {
+        try
+        {
+            final Field path = Handoff.class.getDeclaredField("path");
+            path.setAccessible(true);
+            return (String) path.get(handoff);
+        }
+        catch (ReflectiveOperationException e)
+        {
+            throw new IllegalStateException(e);
+        }
+    }
+}
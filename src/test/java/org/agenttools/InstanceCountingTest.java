@@ -0,0 +1,266 @@
+/*******************************************************************************
+ * Copyright (c) 2017, Xavier Miret Andres <xavier.mires@gmail.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *******************************************************************************/
+package org.agenttools;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.reflect.Constructor;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+public class InstanceCountingTest
+{
+    private static final String REMOTE_CAT = "org.testremote.Cat";
+
+    static class Counted
+    {
+        final int value;
+
+        Counted(int value)
+        {
+            // branches, a switch and a handler, moved along the injected code
+            int v;
+            switch (value)
+            {
+            case 0:
+                v = 10;
+                break;
+            case 1:
+                v = 20;
+                break;
+            case 2:
+                v = 30;
+                break;
+            default:
+                v = value;
+            }
+            try
+            {
+                v = Integer.parseInt(String.valueOf(v));
+            }
+            catch (NumberFormatException e)
+            {
+                v = -1;
+            }
+            if (v < 0)
+            {
+                this.value = 0;
+                return;
+            }
+            this.value = v;
+        }
+
+        Counted()
+        {
+            this(5);
+        }
+    }
+
+    static class SubCounted extends Counted
+    {
+        SubCounted()
+        {
+            super(7);
+        }
+    }
+
+    static class Dying
+    {
+        final long[] payload = new long[16];
+    }
+
+    static class Paused
+    {
+    }
+
+    @Test
+    public void testCountsConstructedInstances()
+    {
+        // loaded before counting, so re-transformed
+        new Counted(1);
+        Agents.countInstances(Counted.class.getName(), SubCounted.class.getName());
+
+        final List<Counted> alive = new ArrayList<>();
+        for (int i = 0; i < 10; i++)
+        {
+            alive.add(new Counted(i));
+        }
+        for (int i = 0; i < 5; i++)
+        {
+            alive.add(new Counted());
+            alive.add(new SubCounted());
+        }
+        assertEquals(30, alive.get(2).value);
+        assertEquals(3, alive.get(3).value);
+        assertEquals(5, alive.get(10).value);
+
+        final InstanceCount counted = find(Counted.class);
+        assertEquals(15, counted.getAllocated());
+        assertEquals(15 * Agents.getObjectSize(alive.get(0)), counted.getAllocatedBytes());
+        assertTrue(counted.getLive() >= 15);
+        assertEquals(5, find(SubCounted.class).getAllocated());
+
+        Agents.reset(Counted.class.getName(), SubCounted.class.getName());
+        new Counted(1);
+        assertEquals(15, find(Counted.class).getAllocated());
+    }
+
+    static class Twin
+    {
+    }
+
+    @Test
+    public void testSameNamesAreCountedPerClassLoader() throws Exception
+    {
+        final String name = Twin.class.getName();
+        final byte[] counting = new InstanceCountingTransformer().transform(getClass().getClassLoader(),
+                name.replace('.', '/'), null, null, ClassTools.getClassBytes(name));
+        final Class<?> first = define(name, counting);
+        final Class<?> second = define(name, counting);
+        for (int i = 0; i < 5; i++)
+        {
+            construct(i < 2 ? first : second);
+        }
+
+        final List<InstanceCount> twins = new ArrayList<>();
+        for (InstanceCount count : Agents.getInstanceCounts())
+        {
+            if (count.getClassName().equals(name))
+            {
+                twins.add(count);
+            }
+        }
+        assertEquals(2, twins.size());
+        assertEquals(5, twins.get(0).getAllocated() + twins.get(1).getAllocated());
+        assertEquals(2, Math.min(twins.get(0).getAllocated(), twins.get(1).getAllocated()));
+        assertFalse(twins.get(0).getClassLoader().equals(twins.get(1).getClassLoader()));
+    }
+
+    private Class<?> define(String name, byte[] bytes)
+    {
+        return new ClassLoader(getClass().getClassLoader())
+        {
+            Class<?> define()
+            {
+                return defineClass(name, bytes, 0, bytes.length);
+            }
+        }.define();
+    }
+
+    private static void construct(Class<?> type) throws ReflectiveOperationException
+    {
+        final Constructor<?> constructor = type.getDeclaredConstructor();
+        constructor.setAccessible(true);
+        constructor.newInstance();
+    }
+
+    @Test
+    public void testCountsDeaths() throws InterruptedException
+    {
+        Agents.countInstances(Dying.class.getName());
+        List<Dying> dying = new ArrayList<>();
+        for (int i = 0; i < 1000; i++)
+        {
+            dying.add(new Dying());
+        }
+        assertEquals(1000, find(Dying.class).getLive());
+        assertEquals(1000 * Agents.getObjectSize(dying.get(0)), find(Dying.class).getLiveBytes());
+
+        dying = null;
+        for (int i = 0; i < 100 && find(Dying.class).getLive() > 0; i++)
+        {
+            System.gc();
+            Thread.sleep(50);
+        }
+        assertEquals(0, find(Dying.class).getLive());
+        assertEquals(0, find(Dying.class).getLiveBytes());
+        assertEquals(1000, find(Dying.class).getAllocated());
+        Agents.reset(Dying.class.getName());
+    }
+
+    @Test
+    public void testPauseAndResume()
+    {
+        Agents.countInstances(Paused.class.getName());
+        new Paused();
+        try
+        {
+            Agents.setInstanceCountingEnabled(false);
+            assertFalse(AgentBootstrap.getInstrumentor().isInstanceCountingEnabled());
+            for (int i = 0; i < 10; i++)
+            {
+                new Paused();
+            }
+            assertEquals(1, find(Paused.class).getAllocated());
+        }
+        finally
+        {
+            Agents.setInstanceCountingEnabled(true);
+        }
+        new Paused();
+        assertEquals(2, find(Paused.class).getAllocated());
+        Agents.reset(Paused.class.getName());
+    }
+
+    @Test
+    public void testRemoteCounts() throws Exception
+    {
+        try (RemoteProcess remote = new RemoteProcess())
+        {
+            // the remote process keeps constructing cats
+            Agents.countInstances(remote.getPid(), REMOTE_CAT);
+            InstanceCount cats = null;
+            for (int i = 0; i < 100 && cats == null; i++)
+            {
+                Thread.sleep(50);
+                cats = find(Agents.getInstanceCounts(remote.getPid()), REMOTE_CAT);
+            }
+            assertTrue(cats.getAllocated() > 0);
+            assertTrue(cats.getAllocatedBytes() > 0);
+        }
+        finally
+        {
+            RemoteSessions.closeAll();
+        }
+    }
+
+    private static InstanceCount find(Class<?> type)
+    {
+        return find(Agents.getInstanceCounts(), type.getName());
+    }
+
+    private static InstanceCount find(List<InstanceCount> counts, String className)
+    {
+        for (InstanceCount count : counts)
+        {
+            if (count.getClassName().equals(className))
+            {
+                return count;
+            }
+        }
+        return null;
+    }
+}
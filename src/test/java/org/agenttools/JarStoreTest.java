@@ -0,0 +1,158 @@
+/*******************************************************************************
+ * Copyright (c) 2017, Xavier Miret Andres <xavier.mires@gmail.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *******************************************************************************/
+package org.agenttools;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.instrument.Instrumentation;
+import java.lang.reflect.Proxy;
+import java.net.URISyntaxException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.jar.Attributes;
+import java.util.jar.Manifest;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class JarStoreTest
+{
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final List<String> appended = new ArrayList<>();
+    private byte[] jarBytes;
+
+    @Before
+    public void createJar() throws IOException, ClassNotFoundException, URISyntaxException
+    {
+        final Manifest manifest = new Manifest();
+        manifest.getMainAttributes().putIfAbsent(Attributes.Name.MANIFEST_VERSION, "1.0");
+        final File jar = ClassTools.createTemporaryJar("jarStoreTest", manifest, TestLoadRemoteJarClass.class.getName());
+        jar.deleteOnExit();
+        jarBytes = Files.readAllBytes(jar.toPath());
+    }
+
+    @Test
+    public void testStoredAndAppendedOnce() throws IOException
+    {
+        final JarStore store = new JarStore(recording(), directory());
+
+        final String hash = store.put(jarBytes);
+        assertEquals(hash, store.put(jarBytes));
+        assertTrue(store.appendToSystemClassLoader(hash));
+        assertTrue(store.appendToSystemClassLoader(hash));
+
+        assertEquals(Arrays.asList("system"), appended);
+        assertEquals(Arrays.asList(hash + ".jar"), Arrays.asList(directory().list()));
+    }
+
+    @Test
+    public void testChunkedUpload() throws IOException
+    {
+        final JarStore store = new JarStore(recording(), directory());
+        final String hash = JarStore.hash(jarBytes);
+        assertFalse(store.appendToSystemClassLoader(hash));
+
+        final int half = jarBytes.length / 2;
+        store.write(hash, half, Arrays.copyOfRange(jarBytes, half, jarBytes.length));
+        store.write(hash, 0, Arrays.copyOfRange(jarBytes, 0, half));
+
+        assertTrue(store.appendToSystemClassLoader(hash));
+        assertArrayEquals(jarBytes, Files.readAllBytes(new File(directory(), hash + ".jar").toPath()));
+    }
+
+    @Test
+    public void testIncompleteUpload() throws IOException
+    {
+        final JarStore store = new JarStore(recording(), directory());
+        final String hash = JarStore.hash(jarBytes);
+
+        store.write(hash, 0, Arrays.copyOfRange(jarBytes, 0, jarBytes.length / 2));
+
+        assertFalse(store.appendToSystemClassLoader(hash));
+        assertEquals(0, directory().list().length);
+    }
+
+    @Test
+    public void testSharedBetweenStores() throws IOException
+    {
+        final String hash = new JarStore(recording(), directory()).put(jarBytes);
+
+        // i.e. another vm
+        assertTrue(new JarStore(recording(), directory()).appendToBootstrapClassLoader(hash));
+        assertEquals(Arrays.asList("bootstrap"), appended);
+    }
+
+    @Test
+    public void testRecheckedBeforeAppending() throws IOException
+    {
+        final JarStore store = new JarStore(recording(), directory());
+        final String hash = store.put(jarBytes);
+        assertTrue(store.appendToSystemClassLoader(hash));
+
+        Files.write(new File(directory(), hash + ".jar").toPath(), new byte[] { 1, 2, 3 });
+        assertFalse(store.appendToBootstrapClassLoader(hash));
+        assertEquals(Arrays.asList("system"), appended);
+    }
+
+    @Test(expected = AgentLoadingException.class)
+    public void testNotAHash() throws IOException
+    {
+        new JarStore(recording(), directory()).write("../../etc/passwd", 0, new byte[1]);
+    }
+
+    private File directory() throws IOException
+    {
+        final File directory = new File(folder.getRoot(), "jars");
+        if (!directory.exists())
+        {
+            PrivateFiles.directory(directory);
+        }
+        return directory;
+    }
+
+    private Instrumentation recording()
+    {
+        return (Instrumentation) Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[] { Instrumentation.class }, (proxy, method, args) ->
+        {
+            if ("appendToSystemClassLoaderSearch".equals(method.getName()))
+            {
+                appended.add("system");
+            }
+            else if ("appendToBootstrapClassLoaderSearch".equals(method.getName()))
+            {
+                appended.add("bootstrap");
+            }
+            return null;
+        });
+    }
+}
@@ -0,0 +1,262 @@
+/*******************************************************************************
+ * Copyright (c) 2017, Xavier Miret Andres <xavier.mires@gmail.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *******************************************************************************/
+package org.agenttools;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.lang.instrument.Instrumentation;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+public class LoadedClassIndexTest
+{
+    @Test
+    public void testRegistered()
+    {
+        final LoadedClassIndex index = new LoadedClassIndex(AgentBootstrap.getInstrumentor());
+        final SyntheticClassLoader loader = new SyntheticClassLoader();
+
+        assertFalse(index.isLoaded("org.agenttools.synthetic.Registered"));
+
+        index.transform(loader, "org/agenttools/synthetic/Registered", null, null, null);
+        final Class<?> c = loader.define("org.agenttools.synthetic.Registered");
+
+        assertEquals(Arrays.asList(c), index.find("org.agenttools.synthetic.Registered"));
+    }
+
+    @Test
+    public void testOneEntryPerClassLoader()
+    {
+        final LoadedClassIndex index = new LoadedClassIndex(AgentBootstrap.getInstrumentor());
+        final SyntheticClassLoader one = new SyntheticClassLoader();
+        final SyntheticClassLoader other = new SyntheticClassLoader();
+
+        index.transform(one, "org/agenttools/synthetic/Twice", null, null, null);
+        index.transform(other, "org/agenttools/synthetic/Twice", null, null, null);
+        final Class<?> c1 = one.define("org.agenttools.synthetic.Twice");
+        final Class<?> c2 = other.define("org.agenttools.synthetic.Twice");
+
+        final List<Class<?>> classes = index.find("org.agenttools.synthetic.Twice");
+        assertEquals(2, classes.size());
+        assertTrue(classes.contains(c1));
+        assertTrue(classes.contains(c2));
+    }
+
+    @Test
+    public void testPendingDefinitionIsKept()
+    {
+        final LoadedClassIndex index = new LoadedClassIndex(AgentBootstrap.getInstrumentor());
+        final SyntheticClassLoader loader = new SyntheticClassLoader();
+
+        // registered, not defined yet
+        index.transform(loader, "org/agenttools/synthetic/Pending", null, null, null);
+        assertFalse(index.isLoaded("org.agenttools.synthetic.Pending"));
+        assertEquals(1, index.size());
+
+        final Class<?> c = loader.define("org.agenttools.synthetic.Pending");
+        assertEquals(Arrays.asList(c), index.find("org.agenttools.synthetic.Pending"));
+    }
+
+    @Test
+    public void testPendingDefinitionIsNotScannedFor()
+    {
+        final Instrumentation instrumentation = AgentBootstrap.getInstrumentor();
+        final AtomicInteger scans = new AtomicInteger();
+        final LoadedClassIndex index = new LoadedClassIndex((Instrumentation) Proxy.newProxyInstance(
+                getClass().getClassLoader(), new Class<?>[] { Instrumentation.class }, (proxy, method, args) ->
+                {
+                    if (method.getName().equals("getInitiatedClasses"))
+                    {
+                        scans.incrementAndGet();
+                    }
+                    return method.invoke(instrumentation, args);
+                }));
+        final SyntheticClassLoader loader = new SyntheticClassLoader();
+
+        index.transform(loader, "org/agenttools/synthetic/Resolved", null, null, null);
+        assertTrue(index.find("org.agenttools.synthetic.Resolved").isEmpty());
+        final Class<?> c = loader.define("org.agenttools.synthetic.Resolved");
+        assertEquals(Arrays.asList(c), index.find("org.agenttools.synthetic.Resolved"));
+        assertEquals(0, scans.get());
+    }
+
+    @Test
+    public void testAbandonedDefinitionIsDropped()
+    {
+        final LoadedClassIndex index = new LoadedClassIndex(AgentBootstrap.getInstrumentor(), 0);
+        final SyntheticClassLoader loader = new SyntheticClassLoader();
+
+        // registered, but its definition failed
+        index.transform(loader, "org/agenttools/synthetic/Abandoned", null, null, null);
+        assertEquals(1, index.size());
+        assertFalse(index.isLoaded("org.agenttools.synthetic.Abandoned"));
+        // not scanned for again
+        assertEquals(0, index.size());
+
+        // a later definition is registered afresh
+        index.transform(loader, "org/agenttools/synthetic/Abandoned", null, null, null);
+        final Class<?> c = loader.define("org.agenttools.synthetic.Abandoned");
+        assertEquals(Arrays.asList(c), index.find("org.agenttools.synthetic.Abandoned"));
+    }
+
+    @Test
+    public void testRedefinitionsAreIgnored()
+    {
+        final LoadedClassIndex index = new LoadedClassIndex(AgentBootstrap.getInstrumentor());
+
+        index.transform(getClass().getClassLoader(), "org/agenttools/Cat", Cat.class, null, null);
+        assertEquals(0, index.size());
+    }
+
+    @Test
+    public void testLoaderHint()
+    {
+        final LoadedClassIndex index = new LoadedClassIndex(AgentBootstrap.getInstrumentor());
+        final SyntheticClassLoader one = new SyntheticClassLoader();
+        final SyntheticClassLoader other = new SyntheticClassLoader();
+
+        index.transform(one, "org/agenttools/synthetic/Hinted", null, null, null);
+        index.transform(other, "org/agenttools/synthetic/Hinted", null, null, null);
+        final Class<?> c1 = one.define("org.agenttools.synthetic.Hinted");
+        other.define("org.agenttools.synthetic.Hinted");
+
+        final String hash = Integer.toHexString(System.identityHashCode(one));
+        assertEquals(Arrays.asList(c1), index.find("org.agenttools.synthetic.Hinted", hash));
+        assertEquals(Arrays.asList(c1), index.find("org.agenttools.synthetic.Hinted", "@" + hash));
+        assertEquals(Arrays.asList(c1), index.find("org.agenttools.synthetic.Hinted", LoadedClassIndex.describe(one)));
+        assertEquals(2, index.find("org.agenttools.synthetic.Hinted", SyntheticClassLoader.class.getName()).size());
+        assertTrue(index.find("org.agenttools.synthetic.Hinted", LoadedClassIndex.BOOTSTRAP).isEmpty());
+        assertEquals(2, index.findLoaders("org.agenttools.synthetic.Hinted").size());
+    }
+
+    @Test
+    public void testLookupDoesNotLoad()
+    {
+        final LoadedClassIndex index = new LoadedClassIndex(AgentBootstrap.getInstrumentor());
+        final CountingClassLoader loader = new CountingClassLoader();
+
+        // registered, but never defined: its loader is never asked for it
+        index.transform(loader, "org/agenttools/synthetic/Unloaded", null, null, null);
+        assertTrue(index.find("org.agenttools.synthetic.Unloaded").isEmpty());
+        assertEquals(0, loader.loads);
+    }
+
+    @Test
+    public void testFindClassDoesNotLoad()
+    {
+        final Instrumentor instrumentor = AgentBootstrap.getInstrumentor();
+        final CountingClassLoader loader = new CountingClassLoader();
+
+        // pending in the index of the agent, as a class being defined
+        instrumentor.getLoadedClasses().transform(loader, "org/agenttools/synthetic/Undefined", null, null, null);
+        assertNull(instrumentor.findClass("org.agenttools.synthetic.Undefined", LoadedClassIndex.describe(loader)));
+        assertNull(instrumentor.findClass("org/agenttools/synthetic/Undefined", null));
+        assertEquals(0, loader.loads);
+    }
+
+    @Test
+    public void testFindClass()
+    {
+        final Instrumentor instrumentor = AgentBootstrap.getInstrumentor();
+        assertSame(String.class, instrumentor.findClass("java.lang.String", null));
+        assertSame(String.class, instrumentor.findClass("java/lang/String", LoadedClassIndex.BOOTSTRAP));
+        assertNull(instrumentor.findClass("java.lang.String", "no such loader"));
+        assertNull(instrumentor.findClass("org.agenttools.synthetic.NeverDefined", null));
+
+        final SyntheticClassLoader one = new SyntheticClassLoader();
+        final SyntheticClassLoader other = new SyntheticClassLoader();
+        final Class<?> c1 = one.define("org.agenttools.synthetic.Ambiguous");
+        other.define("org.agenttools.synthetic.Ambiguous");
+        assertSame(c1, instrumentor.findClass("org.agenttools.synthetic.Ambiguous", LoadedClassIndex.describe(one)));
+        try
+        {
+            instrumentor.findClass("org.agenttools.synthetic.Ambiguous", null);
+            fail();
+        }
+        catch (AgentLoadingException e)
+        {
+            // expected
+        }
+    }
+
+    @Test
+    public void testRedefineLoadedBy()
+    {
+        final SyntheticClassLoader one = new SyntheticClassLoader();
+        final SyntheticClassLoader other = new SyntheticClassLoader();
+        one.define("org.agenttools.synthetic.RedefinedOnce");
+        other.define("org.agenttools.synthetic.RedefinedOnce");
+
+        final RedefineResult result = AgentBootstrap.getInstrumentor().redefineLoadedBy(LoadedClassIndex.describe(one),
+                Collections.singletonMap("org.agenttools.synthetic.RedefinedOnce",
+                        SyntheticClassLoader.emptyClass("org.agenttools.synthetic.RedefinedOnce")));
+        assertTrue(result.isSuccess());
+        assertEquals(1, result.getOutcomes().size());
+    }
+
+    @Test
+    public void testLoadedByTheHintedLoader()
+    {
+        final Instrumentor instrumentor = AgentBootstrap.getInstrumentor();
+        final String hint = LoadedClassIndex.describe(Cat.class.getClassLoader());
+        final List<String> seen = new ArrayList<>();
+        instrumentor.retransformLoadedBy(hint, (loader, className, c, domain, bytes) ->
+        {
+            seen.add(className);
+            return null;
+        }, "org.agenttools.LoadedClassIndexTest$LoadedByHint");
+        assertEquals(Arrays.asList("org/agenttools/LoadedClassIndexTest$LoadedByHint"), seen);
+        assertEquals(1, instrumentor.getClassLoaders("org.agenttools.LoadedClassIndexTest$LoadedByHint").size());
+
+        final RedefineResult result = instrumentor.redefineLoadedBy("no such loader", Collections.singletonMap(
+                "org.agenttools.NeverLoaded", new byte[0]));
+        assertFalse(result.isSuccess());
+    }
+
+    // not loaded until a test asks for it
+    static final class LoadedByHint
+    {
+    }
+
+    private static final class CountingClassLoader extends SyntheticClassLoader
+    {
+        int loads = 0;
+
+        @Override
+        protected Class<?> loadClass(String name, boolean resolve) throws ClassNotFoundException
+        {
+            loads++;
+            return super.loadClass(name, resolve);
+        }
+    }
+}
@@ -0,0 +1,108 @@
+/*******************************************************************************
+ * Copyright (c) 2017, Xavier Miret Andres <xavier.mires@gmail.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *******************************************************************************/
+package org.agenttools;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * The overhead of a call timed by {@link MethodTimingTransformer}, over a trivial method.
+ * <p>
+ * A timed call reads the clock twice and looks its thread's histograms up, so the overhead is about two
+ * {@link System#nanoTime()} calls plus a thread local lookup, whatever the method does. With timing paused, the JIT
+ * drops the probe code and {@link #timed()} runs as fast as {@link #plain()}.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Djdk.attach.allowAttachSelf=true")
+public class MethodTimingBenchmark
+{
+    static class Plain
+    {
+        long next(long value)
+        {
+            return value * 31 + 7;
+        }
+    }
+
+    static class Timed
+    {
+        long next(long value)
+        {
+            return value * 31 + 7;
+        }
+    }
+
+    private final Plain plain = new Plain();
+    private final Timed timed = new Timed();
+    private long value;
+
+    @Param({ "true", "false" })
+    boolean enabled;
+
+    @Setup
+    public void setUp()
+    {
+        Agents.timeMethods(Timed.class.getName() + ".next");
+        Agents.setMethodTimingEnabled(enabled);
+    }
+
+    @Benchmark
+    public long plain()
+    {
+        return value = plain.next(value);
+    }
+
+    @Benchmark
+    public long timed()
+    {
+        return value = timed.next(value);
+    }
+
+    @Benchmark
+    public long nanoTime()
+    {
+        return System.nanoTime();
+    }
+
+    public static void main(String[] args) throws RunnerException
+    {
+        new Runner(new OptionsBuilder().include(MethodTimingBenchmark.class.getSimpleName()).build()).run();
+    }
+}
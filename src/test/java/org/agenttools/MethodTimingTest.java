@@ -0,0 +1,338 @@
+/*******************************************************************************
+ * Copyright (c) 2017, Xavier Miret Andres <xavier.mires@gmail.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *******************************************************************************/
+package org.agenttools;
+
+import static org.agenttools.Timings.find;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.lang.reflect.InvocationTargetException;
+
+import org.junit.Test;
+
+public class MethodTimingTest
+{
+    private static final String REMOTE_CAT = "org.testremote.Cat";
+
+    static class Timed
+    {
+        void sleep(long millis) throws InterruptedException
+        {
+            Thread.sleep(millis);
+        }
+
+        int fail(int value)
+        {
+            if (value > 0)
+            {
+                throw new IllegalStateException();
+            }
+            return value;
+        }
+
+        static long fibonacci(int n)
+        {
+            return n < 2 ? n : fibonacci(n - 1) + fibonacci(n - 2);
+        }
+
+        int untimed()
+        {
+            return 1;
+        }
+    }
+
+    @Test
+    public void testBuckets()
+    {
+        long previous = -1;
+        for (int b = 0; b < MethodTimers.BUCKETS; b++)
+        {
+            final long lowest = MethodTimers.lowest(b);
+            assertTrue(lowest > previous);
+            assertEquals(b, MethodTimers.bucket(lowest));
+            assertEquals(b, MethodTimers.bucket(MethodTimers.highest(b)));
+            previous = lowest;
+        }
+        assertEquals(MethodTimers.BUCKETS - 1, MethodTimers.bucket(Long.MAX_VALUE));
+        for (long nanos = 1; nanos < Long.MAX_VALUE / 3; nanos *= 3)
+        {
+            final long lowest = MethodTimers.lowest(MethodTimers.bucket(nanos));
+            assertTrue(nanos - lowest <= nanos / MethodTimers.SUB_BUCKETS);
+            final long highest = MethodTimers.highest(MethodTimers.bucket(nanos));
+            assertTrue(highest >= nanos && highest - nanos <= nanos / MethodTimers.SUB_BUCKETS);
+        }
+    }
+
+    @Test
+    public void testPercentilesAreNeverBelowTheValues()
+    {
+        final long[] buckets = new long[MethodTimers.BUCKETS];
+        buckets[MethodTimers.bucket(1_000)]++;
+        buckets[MethodTimers.bucket(1_000_000)]++;
+        assertTrue(MethodTimers.percentile(buckets, 2, 50) >= 1_000);
+        assertTrue(MethodTimers.percentile(buckets, 2, 50) < 1_000_000);
+        assertTrue(MethodTimers.percentile(buckets, 2, 100) >= 1_000_000);
+    }
+
+    @Test
+    public void testTimesReturnsAndThrows() throws InterruptedException
+    {
+        final Timed timed = new Timed();
+        Agents.timeMethods(Timed.class.getName() + ".sleep", Timed.class.getName() + ".f*");
+
+        for (int i = 0; i < 5; i++)
+        {
+            timed.sleep(20);
+        }
+        for (int i = 0; i < 10; i++)
+        {
+            try
+            {
+                timed.fail(i % 2);
+            }
+            catch (IllegalStateException e)
+            {
+                // timed as well
+            }
+        }
+        assertEquals(55, Timed.fibonacci(10));
+        timed.untimed();
+
+        final MethodTiming sleep = find(Agents.getMethodTimings(), Timed.class.getName() + ".sleep(J)V");
+        assertEquals(5, sleep.getCount());
+        assertTrue(sleep.getMedianNanos() >= 17_500_000);
+        assertTrue(sleep.getMeanNanos() >= 20_000_000);
+        assertEquals(10, find(Agents.getMethodTimings(), Timed.class.getName() + ".fail(I)I").getCount());
+        assertEquals(177, find(Agents.getMethodTimings(), Timed.class.getName() + ".fibonacci(I)J").getCount());
+        assertEquals(null, find(Agents.getMethodTimings(), Timed.class.getName() + ".untimed()I"));
+
+        Agents.reset(Timed.class.getName());
+        timed.sleep(1);
+        assertEquals(5, find(Agents.getMethodTimings(), Timed.class.getName() + ".sleep(J)V").getCount());
+    }
+
+    static class Churned
+    {
+        int call()
+        {
+            return 1;
+        }
+    }
+
+    @Test
+    public void testEndedThreadsAreFolded() throws InterruptedException
+    {
+        final Churned churned = new Churned();
+        Agents.timeMethods(Churned.class.getName() + ".call");
+        for (int i = 0; i < 200; i++)
+        {
+            final Thread thread = new Thread(churned::call);
+            thread.start();
+            thread.join();
+        }
+        assertEquals(200, find(Agents.getMethodTimings(), Churned.class.getName() + ".call()I").getCount());
+        assertTrue(MethodTimers.getRecorderCount() < 200);
+        Agents.reset(Churned.class.getName());
+    }
+
+    @Test
+    public void testEndedThreadsAreFoldedInTheBackground() throws InterruptedException
+    {
+        final int method = MethodTimers.register(Churned.class.getName(), "background", "()V");
+        final int before = MethodTimers.getRecorderCount();
+        for (int i = 0; i < 200; i++)
+        {
+            final Thread thread = new Thread(() -> {
+                MethodTimers.enter();
+                MethodTimers.exit(method);
+            });
+            thread.start();
+            thread.join();
+        }
+        // nothing reads the timings, the recorders of the ended threads are retired by the background task
+        final long deadline = System.currentTimeMillis() + 5000;
+        while (MethodTimers.getRecorderCount() >= before + 200 - MethodTimers.RETIRE_EVERY
+                && System.currentTimeMillis() < deadline)
+        {
+            Thread.sleep(10);
+        }
+        assertTrue(MethodTimers.getRecorderCount() < before + 200 - MethodTimers.RETIRE_EVERY);
+        assertEquals(200, find(Agents.getMethodTimings(), Churned.class.getName() + ".background()V").getCount());
+    }
+
+    public static class Epilogued
+    {
+        public int call()
+        {
+            return 1;
+        }
+    }
+
+    private static int handled;
+
+    public static void raise()
+    {
+        throw new IllegalStateException();
+    }
+
+    public static void handle()
+    {
+        handled++;
+    }
+
+    @Test
+    public void testEpiloguesAreNotHandled() throws Exception
+    {
+        final String name = Epilogued.class.getName();
+        final ClassFileEditor editor = new ClassFileEditor(ClassTools.getClassBytes(name));
+        final String test = MethodTimingTest.class.getName().replace('.', '/');
+        final int raise = editor.addMethodref(test, "raise", "()V");
+        final int handle = editor.addMethodref(test, "handle", "()V");
+        final byte[] edited = editor.edit((access, method, descriptor) -> !"call".equals(method) ? null
+                : new ClassFileEditor.Injection(null, new byte[] { (byte) 0xB8, (byte) (raise >>> 8), (byte) raise },
+                        new byte[] { (byte) 0xB8, (byte) (handle >>> 8), (byte) handle, (byte) 0xBF }, 0));
+        final Class<?> epilogued = new ClassLoader(getClass().getClassLoader())
+        {
+            Class<?> define()
+            {
+                return defineClass(name, edited, 0, edited.length);
+            }
+        }.define();
+
+        handled = 0;
+        try
+        {
+            epilogued.getMethod("call").invoke(epilogued.getConstructor().newInstance());
+            fail();
+        }
+        catch (InvocationTargetException e)
+        {
+            assertTrue(e.getCause() instanceof IllegalStateException);
+        }
+        assertEquals(0, handled);
+    }
+
+    static class Paused
+    {
+        int call()
+        {
+            return 1;
+        }
+    }
+
+    @Test
+    public void testPauseAndResume()
+    {
+        final Paused paused = new Paused();
+        Agents.timeMethods(Paused.class.getName() + ".call");
+        paused.call();
+        try
+        {
+            Agents.setMethodTimingEnabled(false);
+            assertFalse(AgentBootstrap.getInstrumentor().isMethodTimingEnabled());
+            for (int i = 0; i < 10; i++)
+            {
+                paused.call();
+            }
+            assertEquals(1, find(Agents.getMethodTimings(), Paused.class.getName() + ".call()I").getCount());
+        }
+        finally
+        {
+            Agents.setMethodTimingEnabled(true);
+        }
+        paused.call();
+        assertEquals(2, find(Agents.getMethodTimings(), Paused.class.getName() + ".call()I").getCount());
+        Agents.reset(Paused.class.getName());
+    }
+
+    @Test
+    public void testRejectsMethodsWithoutClass()
+    {
+        try
+        {
+            new MethodTimingTransformer("sleep");
+            fail();
+        }
+        catch (IllegalArgumentException e)
+        {
+            // expected
+        }
+    }
+
+    @Test
+    public void testRemoteTimings() throws Exception
+    {
+        assertRemoteTimings();
+    }
+
+    @Test
+    public void testRemoteTimingsOverTheSocket() throws Exception
+    {
+        Agents.setControlTransport(ControlTransport.SOCKET);
+        try
+        {
+            assertRemoteTimings();
+        }
+        finally
+        {
+            Agents.setControlTransport(ControlTransport.JMX);
+        }
+    }
+
+    @Test
+    public void testRemoteTimingsHandedOff() throws Exception
+    {
+        Agents.setPayloadTransport(PayloadTransport.FILE_HANDOFF);
+        try
+        {
+            assertRemoteTimings();
+        }
+        finally
+        {
+            Agents.setPayloadTransport(PayloadTransport.INLINE);
+        }
+    }
+
+    private static void assertRemoteTimings() throws Exception
+    {
+        try (RemoteProcess remote = new RemoteProcess())
+        {
+            // the remote process keeps meowing
+            Agents.timeMethods(remote.getPid(), REMOTE_CAT + ".meow");
+            MethodTiming meow = null;
+            for (int i = 0; i < 100 && meow == null; i++)
+            {
+                Thread.sleep(50);
+                meow = find(Agents.getMethodTimings(remote.getPid()), REMOTE_CAT + ".meow()V");
+            }
+            assertNotNull(meow);
+            assertTrue(meow.getCount() > 0);
+        }
+        finally
+        {
+            RemoteSessions.closeAll();
+        }
+    }
+}
@@ -0,0 +1,144 @@
+/*******************************************************************************
+ * Copyright (c) 2017, Xavier Miret Andres <xavier.mires@gmail.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *******************************************************************************/
+package org.agenttools;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+
+import org.junit.Test;
+
+public class ObjectGraphSizerTest
+{
+    static class Node
+    {
+        Node next;
+        Object payload;
+        final Class<?> type = Node.class;
+    }
+
+    private final ObjectGraphSizer sizer = Agents.getObjectGraphSizer();
+
+    @Test
+    public void testSharedAndCyclic()
+    {
+        final Node a = new Node();
+        final Node b = new Node();
+        final int[] payload = new int[100];
+        a.next = b;
+        b.next = a;
+        a.payload = payload;
+        b.payload = payload;
+
+        final GraphSize size = sizer.size(a, b);
+        assertEquals(3, size.getCount());
+        assertEquals(2 * Agents.getObjectSize(a) + Agents.getObjectSize(payload), size.getBytes());
+        assertEquals(2, size.getClassSize(Node.class).getCount());
+        assertNull(size.getClassSize(Class.class));
+    }
+
+    @Test
+    public void testJdkCollections()
+    {
+        final Map<String, Node> map = new HashMap<>();
+        for (int i = 0; i < 100; i++)
+        {
+            map.put("key" + i, new Node());
+        }
+
+        final GraphSize size = sizer.size(map);
+        assertEquals(100, size.getClassSize(Node.class).getCount());
+        assertEquals(100, size.getClassSize(String.class).getCount());
+        assertEquals(1, size.getClassSize(HashMap.class).getCount());
+    }
+
+    @Test
+    public void testJdkPackagesAreNotOpened() throws ReflectiveOperationException
+    {
+        final Method getModule;
+        try
+        {
+            getModule = Class.class.getMethod("getModule");
+        }
+        catch (NoSuchMethodException e)
+        {
+            return; // java 8, no modules
+        }
+        sizer.size(new HashMap<>(Collections.singletonMap("key", new Node())));
+
+        final Object javaBase = getModule.invoke(HashMap.class);
+        final Method isOpen = javaBase.getClass().getMethod("isOpen", String.class, getModule.getReturnType());
+        assertFalse((Boolean) isOpen.invoke(javaBase, "java.util", getModule.invoke(ObjectGraphSizer.class)));
+    }
+
+    @Test
+    public void testBoundaries()
+    {
+        final Node head = list(10);
+
+        assertEquals(5, sizer.withMaxDepth(4).size(head).getClassSize(Node.class).getCount());
+        assertNull(sizer.withBoundary(ClassSelector.names(Node.class.getName())).size(head).getClassSize(Node.class));
+
+        final long nodeBytes = Agents.getObjectSize(head);
+        final GraphSize capped = sizer.withMaxBytes(nodeBytes * 4).size(head);
+        assertTrue(capped.isTruncated());
+        assertEquals(4, capped.getCount());
+        assertFalse(sizer.size(head).isTruncated());
+    }
+
+    @Test
+    public void testParallel()
+    {
+        final List<Node> roots = new ArrayList<>();
+        for (int i = 0; i < 100; i++)
+        {
+            roots.add(list(1000));
+        }
+
+        final GraphSize sequential = sizer.size(roots);
+        final GraphSize parallel = sizer.withParallelism(new ForkJoinPool(4)).size(roots);
+        assertEquals(100 * 1000, parallel.getClassSize(Node.class).getCount());
+        assertEquals(sequential.getCount(), parallel.getCount());
+        assertEquals(sequential.getBytes(), parallel.getBytes());
+    }
+
+    static Node list(int length)
+    {
+        Node head = null;
+        for (int i = 0; i < length; i++)
+        {
+            final Node n = new Node();
+            n.next = head;
+            head = n;
+        }
+        return head;
+    }
+}
@@ -0,0 +1,153 @@
+/*******************************************************************************
+ * Copyright (c) 2017, Xavier Miret Andres <xavier.mires@gmail.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *******************************************************************************/
+package org.agenttools;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.lang.instrument.ClassFileTransformer;
+
+import org.junit.Test;
+
+public class OriginalClassCacheTest
+{
+    private final ClassLoader loader = getClass().getClassLoader();
+
+    @Test
+    public void testRecordsSelectedClassesOnly() throws IOException
+    {
+        final OriginalClassCache cache = new OriginalClassCache(ClassSelector.names(Cat.class.getName()), 1 << 20);
+        final byte[] cat = ClassTools.getClassBytes(Cat.class.getName());
+
+        load(cache, "org/agenttools/Cat", cat);
+        load(cache, "org/agenttools/Dog", ClassTools.getClassBytes(Dog.class.getName()));
+
+        assertArrayEquals(cat, cache.get(loader, "org/agenttools/Cat"));
+        assertNull(cache.get(loader, "org/agenttools/Dog"));
+        assertNull(cache.get(new SyntheticClassLoader(), "org/agenttools/Cat"));
+
+        assertEquals(1, cache.getHits());
+        assertEquals(2, cache.getMisses());
+        assertTrue(cache.getResidentBytes() > 0);
+    }
+
+    @Test
+    public void testRedefinitionsAreIgnored() throws IOException
+    {
+        final OriginalClassCache cache = new OriginalClassCache(ClassSelector.names(Cat.class.getName()), 1 << 20);
+
+        cache.transform(loader, "org/agenttools/Cat", Cat.class, null, ClassTools.getClassBytes(Cat.class.getName()));
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void testLeastRecentlyUsedEviction()
+    {
+        final byte[] one = SyntheticClassLoader.emptyClass("org.agenttools.synthetic.One");
+        final byte[] two = SyntheticClassLoader.emptyClass("org.agenttools.synthetic.Two");
+        final byte[] three = SyntheticClassLoader.emptyClass("org.agenttools.synthetic.Three");
+
+        final OriginalClassCache sizing = new OriginalClassCache(ClassSelector.packages("org.agenttools.synthetic"), 1 << 20);
+        load(sizing, "org/agenttools/synthetic/One", one);
+        load(sizing, "org/agenttools/synthetic/Two", two);
+
+        // room for two classes only
+        final OriginalClassCache cache = new OriginalClassCache(ClassSelector.packages("org.agenttools.synthetic"), sizing.getResidentBytes() + 2);
+        load(cache, "org/agenttools/synthetic/One", one);
+        load(cache, "org/agenttools/synthetic/Two", two);
+        cache.get(loader, "org/agenttools/synthetic/One");
+        load(cache, "org/agenttools/synthetic/Three", three);
+
+        assertEquals(2, cache.size());
+        assertArrayEquals(one, cache.get(loader, "org/agenttools/synthetic/One"));
+        assertNull(cache.get(loader, "org/agenttools/synthetic/Two"));
+        assertArrayEquals(three, cache.get(loader, "org/agenttools/synthetic/Three"));
+        assertTrue(cache.getResidentBytes() <= sizing.getResidentBytes() + 2);
+    }
+
+    @Test
+    public void testUnloadedLoaderIsNotTheBootstrapOne() throws IOException
+    {
+        final OriginalClassCache cache = new OriginalClassCache(ClassSelector.names(Cat.class.getName()), 1 << 20);
+        cache.transform(null, "org/agenttools/Cat", null, null, ClassTools.getClassBytes(Cat.class.getName()));
+
+        assertNull(cache.get(new SyntheticClassLoader(), "org/agenttools/Cat"));
+        assertEquals(1, cache.size());
+    }
+
+    @Test
+    public void testUnloadedLoadersArePurged() throws IOException, InterruptedException
+    {
+        final OriginalClassCache cache = new OriginalClassCache(ClassSelector.names(Cat.class.getName()), 1 << 20);
+        final byte[] cat = ClassTools.getClassBytes(Cat.class.getName());
+        cache.transform(new SyntheticClassLoader(), "org/agenttools/Cat", null, null, cat);
+
+        // purged by later puts, once the class loader is collected
+        for (int i = 0; i < 100 && cache.size() > 1; i++)
+        {
+            System.gc();
+            Thread.sleep(10);
+            load(cache, "org/agenttools/Cat", cat);
+        }
+        assertEquals(1, cache.size());
+    }
+
+    @Test
+    public void testRecordsBytesBeforeTheAgentTransformers() throws IOException, ClassNotFoundException
+    {
+        final Instrumentor instrumentor = AgentBootstrap.getInstrumentor();
+        // by name, a class literal would load it
+        final String name = "org.agenttools.OriginalClassCacheTest$Recorded";
+        final String internalName = name.replace('.', '/');
+        // the class was compiled along with this test, but isn't loaded yet
+        final byte[] original = ClassTools.getClassBytes(loader, internalName);
+        final ClassFileTransformer emptying = (cl, className, c, domain, bytes) -> internalName.equals(className) ? SyntheticClassLoader.emptyClass(name) : null;
+
+        instrumentor.enableResetCache(ClassSelector.names(name), 1 << 20);
+        instrumentor.addTransformer(emptying);
+        try
+        {
+            Class.forName(name, false, loader);
+            final long hits = instrumentor.getResetCacheHits();
+            assertArrayEquals(original, instrumentor.originalBytes(loader, internalName));
+            assertEquals(hits + 1, instrumentor.getResetCacheHits());
+        }
+        finally
+        {
+            instrumentor.removeTransformer(emptying);
+            instrumentor.disableResetCache();
+        }
+    }
+
+    // loaded by testRecordsBytesBeforeTheAgentTransformers only
+    static final class Recorded
+    {
+    }
+
+    private void load(OriginalClassCache cache, String className, byte[] bytes)
+    {
+        assertNull(cache.transform(loader, className, null, null, bytes));
+    }
+}
@@ -0,0 +1,109 @@
+/*******************************************************************************
+ * Copyright (c) 2017, Xavier Miret Andres <xavier.mires@gmail.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *******************************************************************************/
+package org.agenttools;
+
+import java.lang.instrument.ClassFileTransformer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Re-transforming many classes with a costly transformer: called by the VM one class after the other, against run on
+ * all cores ahead of a single redefinition.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Djdk.attach.allowAttachSelf=true")
+public class ParallelRetransformBenchmark
+{
+    @Param({ "500" })
+    int classes;
+
+    // about 200us per class, as a bytecode rewriting library would take
+    private final ClassFileTransformer costly = (loader, className, classBeingRedefined, protectionDomain,
+            classfileBuffer) ->
+    {
+        final long end = System.nanoTime() + 200_000;
+        while (System.nanoTime() < end)
+        {
+            // busy
+        }
+        return classfileBuffer.clone();
+    };
+
+    private String[] classNames;
+
+    @Setup
+    public void setUp()
+    {
+        // synthetic classes have no class file, their original bytes are recorded when they are defined
+        AgentBootstrap.getInstrumentor().enableResetCache(ClassSelector.packages("org.agenttools.parallel"),
+                64 << 20);
+        final SyntheticClassLoader loader = new SyntheticClassLoader();
+        classNames = new String[classes];
+        for (int i = 0; i < classes; i++)
+        {
+            classNames[i] = "org.agenttools.parallel.Synthetic" + i;
+            loader.define(classNames[i]);
+        }
+    }
+
+    @TearDown
+    public void tearDown()
+    {
+        AgentBootstrap.getInstrumentor().disableResetCache();
+    }
+
+    @Benchmark
+    public void serial()
+    {
+        Agents.retransform(costly, classNames);
+    }
+
+    @Benchmark
+    public RedefineResult parallel()
+    {
+        return Agents.retransformParallel(costly, classNames);
+    }
+
+    public static void main(String... args) throws RunnerException
+    {
+        new Runner(new OptionsBuilder().include(ParallelRetransformBenchmark.class.getSimpleName()).build()).run();
+    }
+}
@@ -0,0 +1,163 @@
+/*******************************************************************************
+ * Copyright (c) 2017, Xavier Miret Andres <xavier.mires@gmail.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *******************************************************************************/
+package org.agenttools;
+
+import static org.agenttools.Timings.find;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.instrument.ClassFileTransformer;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.junit.Test;
+
+public class ParallelRetransformTest
+{
+    private static final String NOT_LOADED = ParallelRetransformTest.class.getName() + "$NotLoaded";
+
+    static class First
+    {
+        int call()
+        {
+            return 1;
+        }
+    }
+
+    static class Second
+    {
+        int call()
+        {
+            return 2;
+        }
+    }
+
+    static class Unchanged
+    {
+        int call()
+        {
+            return 3;
+        }
+    }
+
+    static class NotLoaded
+    {
+        int call()
+        {
+            return 4;
+        }
+    }
+
+    @Test
+    public void testTransformsBeforeRedefining() throws Exception
+    {
+        assertEquals(3, new First().call() + new Second().call());
+        assertEquals(3, new Unchanged().call());
+
+        final MethodTimingTransformer timing = new MethodTimingTransformer(First.class.getName() + ".call",
+                Second.class.getName() + ".call", NOT_LOADED + ".call");
+        // class name -> whether it was loaded
+        final Set<String> transformed = ConcurrentHashMap.newKeySet();
+        final ClassFileTransformer recorded = (loader, className, classBeingRedefined, protectionDomain,
+                classfileBuffer) ->
+        {
+            transformed.add(className + (classBeingRedefined != null));
+            return timing.transform(loader, className, classBeingRedefined, protectionDomain, classfileBuffer);
+        };
+
+        try
+        {
+            final RedefineResult result = Agents.retransformParallel(recorded, First.class.getName(),
+                    Second.class.getName(), Unchanged.class.getName(), NOT_LOADED);
+            assertTrue(result.toString(), result.isSuccess());
+            assertEquals(4, result.getOutcomes().size());
+
+            // once per class, and not again by the redefinition
+            final Set<String> expected = new HashSet<>();
+            expected.add(First.class.getName().replace('.', '/') + true);
+            expected.add(Second.class.getName().replace('.', '/') + true);
+            expected.add(Unchanged.class.getName().replace('.', '/') + true);
+            expected.add(NOT_LOADED.replace('.', '/') + false);
+            assertEquals(expected, transformed);
+
+            new First().call();
+            new Second().call();
+            new Unchanged().call();
+            new NotLoaded().call();
+            final List<MethodTiming> timings = Agents.getMethodTimings();
+            assertEquals(1, find(timings, First.class.getName() + ".call()I").getCount());
+            assertEquals(1, find(timings, Second.class.getName() + ".call()I").getCount());
+            assertEquals(1, find(timings, NOT_LOADED + ".call()I").getCount());
+            assertNull(find(timings, Unchanged.class.getName() + ".call()I"));
+        }
+        finally
+        {
+            Agents.reset(First.class.getName(), Second.class.getName(), NOT_LOADED);
+        }
+    }
+
+    @Test
+    public void testFailuresArePerClass()
+    {
+        final ClassFileTransformer failing = (loader, className, classBeingRedefined, protectionDomain,
+                classfileBuffer) ->
+        {
+            if (className.endsWith("First"))
+            {
+                throw new IllegalStateException("not this one");
+            }
+            return null;
+        };
+        final RedefineResult result = Agents.retransformParallel(failing, First.class.getName(), Second.class
+                .getName());
+        assertFalse(result.isSuccess());
+        assertTrue(result.getOutcome(First.class.getName()).getError().contains("not this one"));
+        assertTrue(result.getOutcome(Second.class.getName()).isSuccess());
+    }
+
+    @Test
+    public void testRemote() throws Exception
+    {
+        try (RemoteProcess remote = new RemoteProcess())
+        {
+            final RedefineResult result = Agents.retransformParallel(remote.getPid(), new MethodTimingTransformer(
+                    "org.testremote.Cat.meow"), "org.testremote.Cat");
+            assertTrue(result.toString(), result.isSuccess());
+            MethodTiming meow = null;
+            for (int i = 0; i < 100 && meow == null; i++)
+            {
+                Thread.sleep(50);
+                meow = find(Agents.getMethodTimings(remote.getPid()), "org.testremote.Cat.meow()V");
+            }
+            assertNotNull(meow);
+        }
+        finally
+        {
+            RemoteSessions.closeAll();
+        }
+    }
+}
@@ -0,0 +1,103 @@
+/*******************************************************************************
+ * Copyright (c) 2017, Xavier Miret Andres <xavier.mires@gmail.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *******************************************************************************/
+package org.agenttools;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.testremote.Main;
+
+/**
+ * Runs {@link Main} in another VM, with the test class path. Used by tests and benchmarks needing a remote process.
+ */
+class RemoteProcess implements AutoCloseable
+{
+    private final Process process;
+    private final int pid;
+
+    RemoteProcess(String... vmArguments) throws IOException
+    {
+        final List<String> command = new ArrayList<>();
+        command.add(System.getProperty("java.home") + File.separator + "bin" + File.separator + "java");
+        command.addAll(Arrays.asList(vmArguments));
+        command.addAll(Arrays.asList("-cp", System.getProperty("java.class.path"), Main.class.getName()));
+        process = new ProcessBuilder(command).redirectErrorStream(true).start();
+
+        final BufferedReader out = new BufferedReader(new InputStreamReader(process.getInputStream()));
+        pid = readPid(out);
+
+        // keep draining, the remote process blocks once the pipe is full
+        final Thread drain = new Thread(() ->
+        {
+            try
+            {
+                while (out.readLine() != null)
+                {
+                }
+            }
+            catch (IOException e)
+            {
+                // process gone
+            }
+        }, "remote-process-drain");
+        drain.setDaemon(true);
+        drain.start();
+    }
+
+    int getPid()
+    {
+        return pid;
+    }
+
+    @Override
+    public void close()
+    {
+        process.destroy();
+        // a dying process is still discovered, see Fleet
+        try
+        {
+            process.waitFor(10, TimeUnit.SECONDS);
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static int readPid(BufferedReader out) throws IOException
+    {
+        for (String line; (line = out.readLine()) != null;)
+        {
+            if (line.matches("\\d+"))
+            {
+                return Integer.parseInt(line);
+            }
+        }
+        throw new IOException("The remote process exited before printing its pid.");
+    }
+}
@@ -0,0 +1,178 @@
+/*******************************************************************************
+ * Copyright (c) 2017, Xavier Miret Andres <xavier.mires@gmail.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *******************************************************************************/
+package org.agenttools;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+public class RemoteSessionsTest
+{
+    private static RemoteProcess remote;
+
+    @BeforeClass
+    public static void startRemote() throws IOException
+    {
+        remote = new RemoteProcess();
+    }
+
+    @AfterClass
+    public static void stopRemote()
+    {
+        remote.close();
+    }
+
+    @After
+    public void closeSessions()
+    {
+        RemoteSessions.closeAll();
+        RemoteSessions.setMaxSessions(16);
+        RemoteSessions.setIdleTimeout(5, TimeUnit.MINUTES);
+        Agents.setPayloadTransport(PayloadTransport.INLINE);
+    }
+
+    @Test
+    public void testReuse()
+    {
+        final RemoteSession session = Agents.session(remote.getPid());
+        final InstrumentorMBean instrumentor = session.getInstrumentor();
+
+        Agents.reset(remote.getPid(), "org.testremote.Dog");
+
+        assertSame(session, Agents.session(remote.getPid()));
+        assertSame(instrumentor, session.getInstrumentor());
+    }
+
+    @Test
+    public void testReconnect()
+    {
+        final RemoteSession session = Agents.session(remote.getPid());
+        final InstrumentorMBean instrumentor = session.getInstrumentor();
+
+        session.disconnect();
+        assertFalse(session.isConnected());
+
+        assertNotSame(instrumentor, session.getInstrumentor());
+        assertEquals(0, session.getInstrumentor().getTransformerCount());
+    }
+
+    @Test
+    public void testBounded()
+    {
+        RemoteSessions.setMaxSessions(1);
+
+        final RemoteSession session = Agents.session(remote.getPid());
+        session.getInstrumentor();
+
+        Agents.session(Integer.MAX_VALUE); // not connected until used
+        assertEquals(1, RemoteSessions.size());
+        assertFalse(session.isConnected());
+    }
+
+    @Test
+    public void testEvictedSessionGoesThroughThePool()
+    {
+        RemoteSessions.setMaxSessions(1);
+
+        final RemoteSession session = Agents.session(remote.getPid());
+        session.getInstrumentor();
+        Agents.session(Integer.MAX_VALUE);
+        assertTrue(session.isEvicted());
+
+        assertEquals(0, session.getInstrumentor().getTransformerCount());
+        assertFalse(session.isConnected());
+        assertEquals(1, RemoteSessions.size());
+        assertTrue(Agents.session(remote.getPid()).isConnected());
+    }
+
+    @Test
+    public void testSessionInUseIsClosedOnRelease()
+    {
+        final RemoteSession session = RemoteSessions.acquire(remote.getPid());
+        final InstrumentorMBean instrumentor = session.getInstrumentor();
+
+        RemoteSessions.setMaxSessions(1);
+        Agents.session(Integer.MAX_VALUE);
+        assertTrue(session.isEvicted());
+
+        // still usable by the operation in flight
+        assertTrue(session.isConnected());
+        assertSame(instrumentor, session.getInstrumentor());
+        assertEquals(0, instrumentor.getTransformerCount());
+
+        session.release();
+        assertFalse(session.isConnected());
+    }
+
+    @Test
+    public void testShrinkingThePool()
+    {
+        final RemoteSession session = Agents.session(remote.getPid());
+        session.getInstrumentor();
+        Agents.session(Integer.MAX_VALUE);
+
+        RemoteSessions.setMaxSessions(1);
+        assertEquals(1, RemoteSessions.size());
+        assertTrue(session.isEvicted());
+        assertFalse(session.isConnected());
+    }
+
+    @Test
+    public void testIdleEviction()
+    {
+        final RemoteSession session = Agents.session(remote.getPid());
+        session.getInstrumentor();
+
+        RemoteSessions.setIdleTimeout(0, TimeUnit.NANOSECONDS);
+        RemoteSessions.evictIdle();
+
+        assertEquals(0, RemoteSessions.size());
+        assertFalse(session.isConnected());
+        assertNotSame(session, Agents.session(remote.getPid()));
+    }
+
+    @Test
+    public void testFileHandoff()
+    {
+        Agents.setPayloadTransport(PayloadTransport.FILE_HANDOFF);
+
+        final InstrumentorMBean instrumentor = Agents.session(remote.getPid()).getInstrumentor();
+        final int count = instrumentor.getTransformerCount();
+        final Onomatopoeia transformer = new Onomatopoeia("woof", "org/testremote/Dog");
+
+        Agents.add(remote.getPid(), transformer);
+        assertEquals(count + 1, instrumentor.getTransformerCount());
+
+        Agents.remove(remote.getPid(), transformer);
+        assertEquals(count, instrumentor.getTransformerCount());
+    }
+}
@@ -0,0 +1,147 @@
+/*******************************************************************************
+ * Copyright (c) 2017, Xavier Miret Andres <xavier.mires@gmail.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *******************************************************************************/
+package org.agenttools;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.lang.instrument.ClassFileTransformer;
+import java.security.ProtectionDomain;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+public class RemoteTransformerTest
+{
+    private static RemoteProcess remote;
+
+    @BeforeClass
+    public static void startRemote() throws IOException
+    {
+        remote = new RemoteProcess();
+    }
+
+    @AfterClass
+    public static void stopRemote()
+    {
+        RemoteSessions.closeAll();
+        remote.close();
+    }
+
+    @Test
+    public void testAddRemove()
+    {
+        final InstrumentorMBean instrumentor = Agents.session(remote.getPid()).getInstrumentor();
+        final int count = instrumentor.getTransformerCount();
+        final Identity transformer = new Identity();
+
+        Agents.add(remote.getPid(), transformer);
+        Agents.add(remote.getPid(), transformer, ClassSelector.names("org.testremote.Dog"));
+        assertEquals(count + 2, instrumentor.getTransformerCount());
+
+        // the copy in the remote VM isn't equal to this one, removal goes by id
+        Agents.remove(remote.getPid(), transformer);
+        Agents.remove(remote.getPid(), transformer);
+        assertEquals(count, instrumentor.getTransformerCount());
+    }
+
+    @Test
+    public void testById()
+    {
+        final InstrumentorMBean instrumentor = Agents.session(remote.getPid()).getInstrumentor();
+        final int count = instrumentor.getTransformerCount();
+        final Identity transformer = new Identity();
+
+        final String id = Agents.register(remote.getPid(), transformer);
+        assertEquals(id, Agents.register(remote.getPid(), transformer));
+        assertTrue(instrumentor.isTransformerRegistered(id));
+        assertEquals(count, instrumentor.getTransformerCount());
+
+        Agents.add(remote.getPid(), id);
+        Agents.retransform(remote.getPid(), id, "org.testremote.Dog");
+        assertEquals(count + 1, instrumentor.getTransformerCount());
+
+        assertTrue(Agents.remove(remote.getPid(), id));
+        assertFalse(Agents.remove(remote.getPid(), id));
+
+        Agents.add(remote.getPid(), id);
+        Agents.unregister(remote.getPid(), id);
+        assertFalse(instrumentor.isTransformerRegistered(id));
+        assertEquals(count, instrumentor.getTransformerCount());
+    }
+
+    @Test
+    public void testRegisteredNotSentAgain()
+    {
+        final Counted transformer = new Counted();
+        final String id = Agents.register(remote.getPid(), transformer);
+        final int sent = Counted.sent.get();
+
+        Agents.retransformLoadedBy(remote.getPid(), null, transformer, "org.testremote.Dog");
+        assertTrue(Agents.retransform(remote.getPid(), transformer, ClassSelector.names("org.testremote.Dog")) >= 0);
+        assertTrue(Agents.retransformParallel(remote.getPid(), transformer, ClassSelector.names("org.testremote.Dog"))
+                .isSuccess());
+        assertEquals(sent, Counted.sent.get());
+
+        // sent again once unregistered
+        Agents.unregister(remote.getPid(), id);
+        Agents.retransform(remote.getPid(), transformer, ClassSelector.names("org.testremote.Dog"));
+        assertEquals(sent + 1, Counted.sent.get());
+        Agents.unregister(remote.getPid(), id);
+    }
+
+    @Test(expected = AgentLoadingException.class)
+    public void testUnknownId()
+    {
+        Agents.add(remote.getPid(), "unknown");
+    }
+
+    static class Identity implements ClassFileTransformer, Serializable
+    {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        public byte[] transform(ClassLoader loader, String className, Class<?> classBeingRedefined, ProtectionDomain protectionDomain, byte[] classfileBuffer)
+        {
+            return null;
+        }
+    }
+
+    static class Counted extends Identity
+    {
+        private static final long serialVersionUID = 1L;
+
+        static final AtomicInteger sent = new AtomicInteger();
+
+        private void writeObject(ObjectOutputStream out) throws IOException
+        {
+            sent.incrementAndGet();
+            out.defaultWriteObject();
+        }
+    }
+}
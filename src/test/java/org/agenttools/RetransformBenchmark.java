@@ -0,0 +1,120 @@
+/*******************************************************************************
+ * Copyright (c) 2017, Xavier Miret Andres <xavier.mires@gmail.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *******************************************************************************/
+package org.agenttools;
+
+import java.lang.instrument.ClassFileTransformer;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Retransform latency against the number of classes loaded in the VM.
+ * <p>
+ * Resolving the classes to retransform goes through the loaded class index, so {@link #lookup()} stays flat whatever
+ * the number of loaded classes, whereas {@link #scan()} (what every retransform used to do) grows with it.
+ * {@link #hintedLookup()}, restricted to a given class loader, stays flat as well.
+ * {@link #retransform()} still grows a bit, the VM walks every loaded class when installing a new class version.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Djdk.attach.allowAttachSelf=true")
+public class RetransformBenchmark
+{
+    @Param({ "0", "10000", "40000" })
+    int extraLoadedClasses;
+
+    private final ClassFileTransformer noop = (l, n, c, p, b) -> null;
+
+    // keep them reachable, so they aren't unloaded
+    private final List<Class<?>> extraClasses = new ArrayList<>();
+
+    private Instrumentor instrumentor;
+    private String catLoader;
+
+    @Setup
+    public void setUp()
+    {
+        instrumentor = AgentBootstrap.getInstrumentor();
+
+        final SyntheticClassLoader loader = new SyntheticClassLoader();
+        for (int i = 0; i < extraLoadedClasses; i++)
+        {
+            extraClasses.add(loader.define("org.agenttools.synthetic.Synthetic" + i));
+        }
+        new Cat(); // loaded
+        catLoader = LoadedClassIndex.describe(Cat.class.getClassLoader());
+    }
+
+    @Benchmark
+    public void retransform()
+    {
+        Agents.retransform(noop, Cat.class.getName());
+    }
+
+    @Benchmark
+    public boolean lookup()
+    {
+        return instrumentor.getLoadedClasses().isLoaded(Cat.class.getName());
+    }
+
+    @Benchmark
+    public Class<?> hintedLookup()
+    {
+        return instrumentor.findClass(Cat.class.getName(), catLoader);
+    }
+
+    @Benchmark
+    public boolean scan()
+    {
+        final Set<String> loaded = new HashSet<>();
+        for (Class<?> c : instrumentor.getAllLoadedClasses())
+        {
+            loaded.add(c.getName());
+        }
+        return loaded.contains(Cat.class.getName());
+    }
+
+    public static void main(String... args) throws RunnerException
+    {
+        new Runner(new OptionsBuilder().include(RetransformBenchmark.class.getSimpleName()).build()).run();
+    }
+}
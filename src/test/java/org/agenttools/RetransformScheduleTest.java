@@ -0,0 +1,153 @@
+/*******************************************************************************
+ * Copyright (c) 2017, Xavier Miret Andres <xavier.mires@gmail.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *******************************************************************************/
+package org.agenttools;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.instrument.ClassFileTransformer;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import org.agenttools.RetransformProgress.State;
+import org.junit.Test;
+
+public class RetransformScheduleTest
+{
+    private static final String REMOTE_CAT = "org.testremote.Cat";
+
+    @Test
+    public void testChunks() throws InterruptedException
+    {
+        final Set<String> transformed = ConcurrentHashMap.newKeySet();
+        final int transformers = AgentBootstrap.getInstrumentor().getTransformerCount();
+        final long id = Agents.scheduleRetransform((l, n, c, p, b) ->
+        {
+            transformed.add(n);
+            return null;
+        }, ClassSelector.globs("org.junit.**"), new RetransformSchedule() //
+                .initialChunkSize(4) //
+                .maxChunkSize(16) //
+                .interval(0, TimeUnit.MILLISECONDS));
+
+        final RetransformProgress progress = await(id);
+        assertEquals(State.DONE, progress.getState());
+        assertTrue(progress.getTotalClasses() > 20);
+        assertEquals(progress.getTotalClasses(), progress.getTransformedClasses());
+        // and the classes loading meanwhile
+        assertTrue(transformed.size() >= progress.getTotalClasses());
+        assertTrue(progress.getChunks() >= progress.getTotalClasses() / 16);
+        assertTrue(progress.getChunkSize() <= 16);
+        assertEquals(progress.getChunks(), progress.getPauseCount());
+        assertTrue(progress.getMaxPauseNanos() > 0);
+        assertEquals(100, progress.getPercentComplete(), 0);
+        assertEquals(0, progress.getEtaNanos());
+        // the transformer is removed once done
+        assertEquals(transformers, AgentBootstrap.getInstrumentor().getTransformerCount());
+    }
+
+    @Test
+    public void testCancel() throws InterruptedException
+    {
+        final long id = Agents.scheduleRetransform((l, n, c, p, b) -> null, ClassSelector.globs("org.junit.**"),
+                new RetransformSchedule().initialChunkSize(1).interval(1, TimeUnit.MINUTES));
+        assertTrue(Agents.cancelRetransform(id));
+
+        final RetransformProgress progress = await(id);
+        assertEquals(State.CANCELLED, progress.getState());
+        assertTrue(progress.getTransformedClasses() <= 1);
+        assertFalse(Agents.cancelRetransform(id));
+    }
+
+    @Test
+    public void testWaitsForLowLoad() throws InterruptedException
+    {
+        final Instrumentor instrumentor = AgentBootstrap.getInstrumentor();
+        final ClassFileTransformer transformer = (l, n, c, p, b) -> null;
+        final List<Class<?>> classes = Arrays.<Class<?>> asList(RetransformScheduleTest.class);
+        final ScheduledRetransform retransform = new ScheduledRetransform(0, "test", classes, instrumentor,
+                instrumentor.install(transformer, ClassSelector.names(RetransformScheduleTest.class.getName())),
+                new RetransformSchedule().waitForCpuLoadBelow(0.5, 300, TimeUnit.MILLISECONDS), () -> 1);
+        retransform.start();
+        Thread.sleep(100);
+        assertEquals(State.WAITING_FOR_LOW_LOAD, retransform.getProgress().getState());
+
+        for (int i = 0; i < 100 && !retransform.isFinished(); i++)
+        {
+            Thread.sleep(50);
+        }
+        final RetransformProgress progress = retransform.getProgress();
+        assertEquals(State.DONE, progress.getState());
+        assertEquals(1, progress.getTransformedClasses());
+        assertTrue(progress.getLoadWaitNanos() >= TimeUnit.MILLISECONDS.toNanos(300));
+    }
+
+    @Test
+    public void testEta()
+    {
+        final RetransformProgress progress = new RetransformProgress(0, "test", State.RUNNING, 10, 4,
+                Collections.singletonList("Failed"), 5, 2, 100, 0, new long[MethodTimers.BUCKETS], 0);
+        assertEquals(50, progress.getPercentComplete(), 0);
+        assertEquals(100, progress.getEtaNanos());
+        assertEquals(0, progress.getPauseCount());
+    }
+
+    @Test
+    public void testRemoteSchedule() throws Exception
+    {
+        try (RemoteProcess remote = new RemoteProcess())
+        {
+            final long id = Agents.scheduleRetransform(remote.getPid(), new MethodTimingTransformer(REMOTE_CAT
+                    + ".meow"), ClassSelector.globs("org.testremote.*"), new RetransformSchedule().initialChunkSize(1));
+            RetransformProgress progress = null;
+            for (int i = 0; i < 100 && (progress == null || !progress.isFinished()); i++)
+            {
+                Thread.sleep(50);
+                progress = Agents.getRetransformProgress(remote.getPid(), id);
+            }
+            assertNotNull(progress);
+            assertEquals(State.DONE, progress.getState());
+            assertTrue(progress.getTransformedClasses() > 0);
+        }
+        finally
+        {
+            RemoteSessions.closeAll();
+        }
+    }
+
+    private static RetransformProgress await(long id) throws InterruptedException
+    {
+        RetransformProgress progress = Agents.getRetransformProgress(id);
+        for (int i = 0; i < 600 && !progress.isFinished(); i++)
+        {
+            Thread.sleep(50);
+            progress = Agents.getRetransformProgress(id);
+        }
+        return progress;
+    }
+}
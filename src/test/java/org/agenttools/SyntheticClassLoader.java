@@ -0,0 +1,77 @@
+/*******************************************************************************
+ * Copyright (c) 2017, Xavier Miret Andres <xavier.mires@gmail.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *******************************************************************************/
+package org.agenttools;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+/**
+ * Defines empty classes on demand. Used to grow the number of loaded classes in tests and benchmarks.
+ */
+class SyntheticClassLoader extends ClassLoader
+{
+    SyntheticClassLoader()
+    {
+        super(SyntheticClassLoader.class.getClassLoader());
+    }
+
+    Class<?> define(String className)
+    {
+        final byte[] bytes = emptyClass(className);
+        return defineClass(className, bytes, 0, bytes.length);
+    }
+
+    // public class <className> extends java.lang.Object {}
+    static byte[] emptyClass(String className)
+    {
+        try
+        {
+            final ByteArrayOutputStream baos = new ByteArrayOutputStream();
+            final DataOutputStream out = new DataOutputStream(baos);
+            out.writeInt(0xCAFEBABE);
+            out.writeShort(0); // minor
+            out.writeShort(49); // major (java 5, no stack map frames required)
+            out.writeShort(5); // constant pool count
+            out.writeByte(7); // #1 class #2
+            out.writeShort(2);
+            out.writeByte(1); // #2 utf8
+            out.writeUTF(className.replace('.', '/'));
+            out.writeByte(7); // #3 class #4
+            out.writeShort(4);
+            out.writeByte(1); // #4 utf8
+            out.writeUTF("java/lang/Object");
+            out.writeShort(0x0021); // public super
+            out.writeShort(1); // this
+            out.writeShort(3); // super
+            out.writeShort(0); // interfaces
+            out.writeShort(0); // fields
+            out.writeShort(0); // methods
+            out.writeShort(0); // attributes
+            return baos.toByteArray();
+        }
+        catch (IOException e)
+        {
+            throw new IllegalStateException(e);
+        }
+    }
+}
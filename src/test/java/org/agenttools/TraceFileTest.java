@@ -0,0 +1,181 @@
+/*******************************************************************************
+ * Copyright (c) 2017, Xavier Miret Andres <xavier.mires@gmail.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *******************************************************************************/
+package org.agenttools;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+public class TraceFileTest
+{
+    // 10 records per segment
+    private static final int SEGMENT_BYTES = TraceLayout.SEGMENT_HEADER_BYTES + 10 * TraceLayout.RECORD;
+
+    @Test
+    @SuppressWarnings("try")
+    public void testTailsTheFile() throws IOException
+    {
+        final File file = File.createTempFile("trace", ".bin");
+        try (EventChannel channel = new EventChannel(1, 1024);
+                TraceWriter writer = new TraceWriter(file, channel, SEGMENT_BYTES, 4);
+                TraceReader reader = new TraceReader(file))
+        {
+            final List<Long> read = new ArrayList<>();
+            assertEquals(0, reader.poll(r -> read.add(r.getFirst())));
+
+            offer(channel, 0, 25);
+            assertEquals(25, reader.poll(r -> read.add(r.getFirst())));
+            offer(channel, 25, 30);
+            assertEquals(5, reader.poll(r -> read.add(r.getFirst())));
+
+            assertEquals(30, read.size());
+            for (int i = 0; i < 30; i++)
+            {
+                assertEquals(i, read.get(i).longValue());
+            }
+            assertEquals(0, reader.getLost());
+            assertEquals(30, reader.getOffered());
+            assertFalse(reader.isClosed());
+        }
+        assertFalse(file.exists());
+    }
+
+    @Test
+    @SuppressWarnings("try")
+    public void testOvertakenReader() throws IOException
+    {
+        final File file = File.createTempFile("trace", ".bin");
+        try (EventChannel channel = new EventChannel(1, 1024);
+                TraceWriter writer = new TraceWriter(file, channel, SEGMENT_BYTES, 4);
+                TraceReader reader = new TraceReader(file))
+        {
+            offer(channel, 0, 100);
+            final List<Long> read = new ArrayList<>();
+            reader.poll(r -> read.add(r.getFirst()));
+
+            // the last 4 segments are left
+            assertEquals(60, reader.getLost());
+            assertEquals(40, read.size());
+            for (int i = 0; i < 40; i++)
+            {
+                assertEquals(60 + i, read.get(i).longValue());
+            }
+        }
+    }
+
+    @Test
+    public void testAgentTrace() throws IOException
+    {
+        final Instrumentor instrumentor = AgentBootstrap.getInstrumentor();
+        final File file = new File(instrumentor.startTrace(SEGMENT_BYTES, 8));
+        try (TraceReader reader = new TraceReader(file))
+        {
+            for (int i = 0; i < 5; i++)
+            {
+                Events.emit(77, i, -i);
+            }
+            Events.channel().flush();
+
+            final List<Long> read = new ArrayList<>();
+            reader.poll(r ->
+            {
+                if (r.getType() == 77)
+                {
+                    read.add(r.getSecond());
+                }
+            });
+            assertEquals(5, read.size());
+            assertEquals(-4, read.get(4).longValue());
+
+            instrumentor.stopTrace();
+            assertTrue(reader.isClosed());
+            assertFalse(file.exists());
+        }
+        finally
+        {
+            instrumentor.stopTrace();
+        }
+    }
+
+    @Test
+    public void testLinkIsNotFollowed() throws IOException
+    {
+        final File target = File.createTempFile("traceTarget", ".bin");
+        final File file = new File(target.getParentFile(), target.getName() + ".trace");
+        try
+        {
+            Files.createSymbolicLink(file.toPath(), target.toPath());
+        }
+        catch (UnsupportedOperationException | IOException e)
+        {
+            target.delete();
+            return; // no links here
+        }
+        try (EventChannel channel = new EventChannel(1, 1024);
+                TraceWriter writer = new TraceWriter(file, channel, SEGMENT_BYTES, 4))
+        {
+            assertEquals(0, target.length());
+            PrivateFiles.checkPrivate(writer.getFile().toPath());
+        }
+        finally
+        {
+            target.delete();
+            file.delete();
+        }
+    }
+
+    @Test
+    public void testRemoteTrace() throws Exception
+    {
+        try (RemoteProcess remote = new RemoteProcess())
+        {
+            final TraceReader reader = Agents.trace(remote.getPid());
+            assertFalse(reader.isClosed());
+            assertEquals(0, reader.poll(r ->
+            {
+            }));
+            reader.close();
+            assertTrue(reader.isClosed());
+        }
+        finally
+        {
+            RemoteSessions.closeAll();
+        }
+    }
+
+    private static void offer(EventChannel channel, int from, int to)
+    {
+        for (int i = from; i < to; i++)
+        {
+            assertTrue(channel.offer(1, i, 0));
+        }
+        channel.flush();
+    }
+}
@@ -0,0 +1,209 @@
+/*******************************************************************************
+ * Copyright (c) 2017, Xavier Miret Andres <xavier.mires@gmail.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *******************************************************************************/
+package org.agenttools;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.instrument.ClassFileTransformer;
+import java.lang.instrument.IllegalClassFormatException;
+import java.util.ArrayList;
+import java.security.ProtectionDomain;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+
+import javassist.CannotCompileException;
+import javassist.ClassPool;
+import javassist.CtClass;
+import javassist.CtMethod;
+
+import org.junit.Assert;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * The cost of transforming the classes of a jar at startup with a javassist transformer: without cache, with a cold
+ * cache (a first run) and a warm one (every later run).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 10)
+@Fork(1)
+public class TransformCacheBenchmark
+{
+    @Param({ "none", "cold", "warm" })
+    private String cache;
+
+    private final List<String> classNames = new ArrayList<>();
+    private final List<byte[]> classBytes = new ArrayList<>();
+    private ClassFileTransformer sound;
+    private File file;
+    private TransformCache transformCache;
+    private ClassFileTransformer transformer;
+
+    @Setup
+    public void setUp() throws IOException
+    {
+        final File jar = new File(Assert.class.getProtectionDomain().getCodeSource().getLocation().getPath());
+        try (JarFile jarFile = new JarFile(jar))
+        {
+            for (Enumeration<JarEntry> entries = jarFile.entries(); entries.hasMoreElements();)
+            {
+                final String entry = entries.nextElement().getName();
+                if (!entry.startsWith("org/junit/") || !entry.endsWith(".class"))
+                {
+                    continue;
+                }
+                classNames.add(entry.substring(0, entry.length() - ".class".length()));
+                try (InputStream in = jarFile.getInputStream(jarFile.getEntry(entry)))
+                {
+                    classBytes.add(ClassTools.readFully(in));
+                }
+            }
+        }
+        sound = new Sound();
+
+        file = File.createTempFile("transforms", ".cache");
+        if ("warm".equals(cache))
+        {
+            try (TransformCache warmUp = new TransformCache(file))
+            {
+                final ClassFileTransformer cached = warmUp.wrap(sound, "1");
+                for (int i = 0; i < classNames.size(); i++)
+                {
+                    transform(cached, i);
+                }
+            }
+        }
+    }
+
+    @Setup(Level.Iteration)
+    public void start() throws IOException
+    {
+        if ("cold".equals(cache))
+        {
+            file.delete();
+        }
+        if (!"none".equals(cache))
+        {
+            transformCache = new TransformCache(file);
+            transformer = transformCache.wrap(sound, "1");
+        }
+        else
+        {
+            transformer = sound;
+        }
+    }
+
+    @TearDown(Level.Iteration)
+    public void stop() throws IOException
+    {
+        if (transformCache != null)
+        {
+            transformCache.close();
+        }
+    }
+
+    @TearDown
+    public void tearDown()
+    {
+        file.delete();
+    }
+
+    @Benchmark
+    public int startup()
+    {
+        int transformed = 0;
+        for (int i = 0; i < classNames.size(); i++)
+        {
+            final byte[] bytes = transform(transformer, i);
+            transformed += bytes == null ? 0 : bytes.length;
+        }
+        return transformed;
+    }
+
+    private byte[] transform(ClassFileTransformer t, int i)
+    {
+        try
+        {
+            return t.transform(null, classNames.get(i), null, null, classBytes.get(i));
+        }
+        catch (IllegalClassFormatException e)
+        {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Inserts code on entering every method, as {@link Onomatopoeia} does, from the given bytes. The inserted code
+     * doesn't reference the JDK classes, which this javassist version can't parse.
+     */
+    private static class Sound implements ClassFileTransformer
+    {
+        @Override
+        public byte[] transform(ClassLoader loader, String className, Class<?> classBeingRedefined,
+                ProtectionDomain protectionDomain, byte[] classfileBuffer)
+        {
+            try
+            {
+                final CtClass clazz = new ClassPool(true).makeClass(new ByteArrayInputStream(classfileBuffer));
+                for (CtMethod method : clazz.getDeclaredMethods())
+                {
+                    if (!method.isEmpty())
+                    {
+                        method.insertBefore("{ int meow = $args.length; }");
+                    }
+                }
+                return clazz.toBytecode();
+            }
+            catch (IOException | CannotCompileException | RuntimeException e)
+            {
+                return null;
+            }
+        }
+    }
+
+    public static void main(String... args) throws RunnerException
+    {
+        new Runner(new OptionsBuilder().include(TransformCacheBenchmark.class.getSimpleName()).build()).run();
+    }
+}
@@ -0,0 +1,237 @@
+/*******************************************************************************
+ * Copyright (c) 2017, Xavier Miret Andres <xavier.mires@gmail.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *******************************************************************************/
+package org.agenttools;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.instrument.ClassFileTransformer;
+import java.lang.instrument.IllegalClassFormatException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TransformCacheTest
+{
+    // room for 2 records of 100 bytes per segment
+    private static final int SEGMENT_BYTES = TransformCache.SEGMENT_HEADER_BYTES + 2
+            * (TransformCache.RECORD_HEADER_BYTES + 100);
+
+    private final AtomicInteger invocations = new AtomicInteger();
+    // appends a byte, leaves the classes starting with 0 unchanged
+    private final ClassFileTransformer appender = (loader, className, classBeingRedefined, protectionDomain,
+            classfileBuffer) ->
+    {
+        invocations.incrementAndGet();
+        if (classfileBuffer[0] == 0)
+        {
+            return null;
+        }
+        final byte[] transformed = new byte[classfileBuffer.length + 1];
+        System.arraycopy(classfileBuffer, 0, transformed, 0, classfileBuffer.length);
+        transformed[classfileBuffer.length] = 42;
+        return transformed;
+    };
+
+    private File file;
+
+    @Before
+    public void setUp() throws IOException
+    {
+        file = File.createTempFile("transforms", ".cache");
+    }
+
+    @After
+    public void tearDown()
+    {
+        file.delete();
+    }
+
+    @Test
+    public void testHitSkipsTheTransformer() throws IOException, IllegalClassFormatException
+    {
+        try (TransformCache cache = new TransformCache(file, SEGMENT_BYTES, 4))
+        {
+            final ClassFileTransformer cached = cache.wrap(appender, "1");
+            final byte[] expected = appender.transform(null, "a/B", null, null, bytes(1, 99));
+            invocations.set(0);
+
+            assertArrayEquals(expected, cached.transform(null, "a/B", null, null, bytes(1, 99)));
+            assertArrayEquals(expected, cached.transform(null, "a/B", null, null, bytes(1, 99)));
+            assertEquals(1, invocations.get());
+
+            // unchanged classes are cached too
+            assertNull(cached.transform(null, "a/C", null, null, bytes(0, 99)));
+            assertNull(cached.transform(null, "a/C", null, null, bytes(0, 99)));
+            assertEquals(2, invocations.get());
+
+            assertEquals(2, cache.getHits());
+            assertEquals(2, cache.getMisses());
+            assertEquals(2, cache.size());
+        }
+    }
+
+    @Test
+    public void testVersionIsPartOfTheKey() throws IOException, IllegalClassFormatException
+    {
+        try (TransformCache cache = new TransformCache(file, SEGMENT_BYTES, 4))
+        {
+            cache.wrap(appender, "1").transform(null, "a/B", null, null, bytes(1, 99));
+            cache.wrap(appender, "2").transform(null, "a/B", null, null, bytes(1, 99));
+            cache.wrap(appender, "1").transform(null, "a/B", null, null, bytes(2, 99));
+            assertEquals(3, invocations.get());
+            assertEquals(0, cache.getHits());
+        }
+    }
+
+    @Test
+    public void testSurvivesRestarts() throws IOException, IllegalClassFormatException
+    {
+        try (TransformCache cache = new TransformCache(file, SEGMENT_BYTES, 4))
+        {
+            final ClassFileTransformer cached = cache.wrap(appender, "1");
+            for (int i = 1; i <= 5; i++)
+            {
+                cached.transform(null, "a/B", null, null, bytes(i, 99));
+            }
+        }
+        invocations.set(0);
+
+        try (TransformCache cache = new TransformCache(file, SEGMENT_BYTES, 4))
+        {
+            assertTrue(cache.isWritable());
+            assertEquals(5, cache.size());
+            final ClassFileTransformer cached = cache.wrap(appender, "1");
+            for (int i = 1; i <= 5; i++)
+            {
+                assertEquals(42, cached.transform(null, "a/B", null, null, bytes(i, 99))[99]);
+            }
+            assertEquals(0, invocations.get());
+
+            // appends after the records of the previous run
+            cached.transform(null, "a/B", null, null, bytes(6, 99));
+            assertEquals(6, cache.size());
+        }
+    }
+
+    @Test
+    public void testEvictsTheOldestSegment() throws IOException, IllegalClassFormatException
+    {
+        try (TransformCache cache = new TransformCache(file, SEGMENT_BYTES, 2))
+        {
+            final ClassFileTransformer cached = cache.wrap(appender, "1");
+            for (int i = 1; i <= 5; i++)
+            {
+                cached.transform(null, "a/B", null, null, bytes(i, 99));
+            }
+            // the first 2 records were overwritten by the 5th one
+            assertEquals(3, cache.size());
+            assertEquals(2, cache.getEvictions());
+            assertTrue(file.length() <= TransformCache.HEADER_BYTES + 2 * SEGMENT_BYTES);
+
+            invocations.set(0);
+            cached.transform(null, "a/B", null, null, bytes(5, 99));
+            assertEquals(0, invocations.get());
+            cached.transform(null, "a/B", null, null, bytes(1, 99));
+            assertEquals(1, invocations.get());
+        }
+    }
+
+    @Test
+    public void testOnlyOneWriter() throws IOException, IllegalClassFormatException
+    {
+        try (TransformCache writer = new TransformCache(file, SEGMENT_BYTES, 4))
+        {
+            writer.wrap(appender, "1").transform(null, "a/B", null, null, bytes(1, 99));
+            try (TransformCache reader = new TransformCache(file, SEGMENT_BYTES, 4))
+            {
+                assertFalse(reader.isWritable());
+                final ClassFileTransformer cached = reader.wrap(appender, "1");
+                cached.transform(null, "a/B", null, null, bytes(1, 99));
+                cached.transform(null, "a/B", null, null, bytes(2, 99));
+                assertEquals(1, reader.getHits());
+                assertEquals(0, reader.getStores());
+            }
+        }
+    }
+
+    @Test
+    public void testCorruptLengthIsAMiss() throws IOException, IllegalClassFormatException
+    {
+        try (TransformCache cache = new TransformCache(file, SEGMENT_BYTES, 2))
+        {
+            final ClassFileTransformer cached = cache.wrap(appender, "1");
+            for (int i = 1; i <= 3; i++)
+            {
+                cached.transform(null, "a/B", null, null, bytes(i, 99));
+            }
+            // the 3rd record is the first one of the last segment, and reaches past the file
+            final int third = TransformCache.HEADER_BYTES + SEGMENT_BYTES + TransformCache.SEGMENT_HEADER_BYTES;
+            setLength(third, SEGMENT_BYTES);
+            invocations.set(0);
+            assertEquals(42, cached.transform(null, "a/B", null, null, bytes(3, 99))[99]);
+            assertEquals(1, invocations.get());
+
+            setLength(TransformCache.HEADER_BYTES + TransformCache.SEGMENT_HEADER_BYTES, Integer.MAX_VALUE);
+        }
+
+        try (TransformCache cache = new TransformCache(file, SEGMENT_BYTES, 2))
+        {
+            // both segments start with a corrupt record, which loses the records after it
+            assertEquals(0, cache.size());
+        }
+    }
+
+    @Test
+    public void testPremainOption()
+    {
+        assertEquals("/tmp/app.tc", AgentBootstrap.option("transform-cache=/tmp/app.tc", AgentBootstrap.TRANSFORM_CACHE));
+        assertEquals("/tmp/app.tc",
+                AgentBootstrap.option("remote,transform-cache=/tmp/app.tc", AgentBootstrap.TRANSFORM_CACHE));
+        assertNull(AgentBootstrap.option(AgentBootstrap.REMOTE, AgentBootstrap.TRANSFORM_CACHE));
+        assertNull(AgentBootstrap.option(null, AgentBootstrap.TRANSFORM_CACHE));
+    }
+
+    private void setLength(int record, int length) throws IOException
+    {
+        try (RandomAccessFile out = new RandomAccessFile(file, "rw"))
+        {
+            out.seek(record + TransformCache.LENGTH);
+            out.writeInt(Integer.reverseBytes(length));
+        }
+    }
+
+    private static byte[] bytes(int first, int length)
+    {
+        final byte[] bytes = new byte[length];
+        bytes[0] = (byte) first;
+        return bytes;
+    }
+}
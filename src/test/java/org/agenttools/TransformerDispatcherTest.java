@@ -0,0 +1,138 @@
+/*******************************************************************************
+ * Copyright (c) 2017, Xavier Miret Andres <xavier.mires@gmail.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *******************************************************************************/
+package org.agenttools;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.lang.instrument.ClassFileTransformer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+public class TransformerDispatcherTest
+{
+    private final TransformerDispatcher dispatcher = new TransformerDispatcher();
+    private final List<String> calls = new ArrayList<>();
+
+    @Test
+    public void testUnselectedIsUntouched()
+    {
+        add("names", ClassSelector.names("org.agenttools.Cat"));
+        add("packages", ClassSelector.packages("org.testremote"));
+
+        assertNull(transform("org/agenttools/Dog"));
+        assertNull(transform("org/Cat"));
+        assertNull(transform("Cat"));
+        assertEquals(0, calls.size());
+    }
+
+    @Test
+    public void testRouting()
+    {
+        add("names", ClassSelector.names("org.agenttools.Cat"));
+        add("packages", ClassSelector.packages("org.testremote"));
+        add("both", ClassSelector.packages("org").or(ClassSelector.names("org/agenttools/Cat")));
+
+        assertArrayEquals("both".getBytes(), transform("org/agenttools/Cat"));
+        assertEquals(Arrays.asList("names", "both"), calls);
+
+        calls.clear();
+        transform("org/testremote/Dog");
+        assertEquals(Arrays.asList("packages", "both"), calls);
+
+        calls.clear();
+        transform("org/testremote/sub/Dog");
+        assertEquals(Arrays.asList("packages", "both"), calls);
+
+        calls.clear();
+        transform("org/testremoteX/Dog");
+        assertEquals(Arrays.asList("both"), calls);
+    }
+
+    @Test
+    public void testRemove()
+    {
+        final TransformerHandle handle = add("names", ClassSelector.names("org.agenttools.Cat"));
+        assertEquals(1, dispatcher.size());
+
+        dispatcher.remove(handle);
+        assertNull(transform("org/agenttools/Cat"));
+        assertEquals(0, dispatcher.size());
+    }
+
+    @Test
+    public void testNotModified()
+    {
+        add("none", ClassSelector.names("org.agenttools.Cat"), (l, n, c, p, b) -> null);
+        assertNull(transform("org/agenttools/Cat"));
+    }
+
+    @Test
+    public void testLoaderHintOnNamesAndPackages()
+    {
+        final ClassLoader hinted = new ClassLoader(getClass().getClassLoader())
+        {
+        };
+        final ClassLoader other = new ClassLoader(getClass().getClassLoader())
+        {
+        };
+        final String hint = LoadedClassIndex.describe(hinted);
+        add("names", ClassSelector.names("org.agenttools.Cat").loadedBy(hint));
+        add("packages", ClassSelector.packages("org.agenttools").loadedBy(hint));
+
+        assertNull(transform(other, "org/agenttools/Cat"));
+        assertEquals(0, calls.size());
+
+        assertArrayEquals("packages".getBytes(), transform(hinted, "org/agenttools/Cat"));
+        assertEquals(Arrays.asList("names", "packages"), calls);
+    }
+
+    private TransformerHandle add(String name, ClassSelector selector)
+    {
+        return add(name, selector, (l, n, c, p, b) ->
+        {
+            calls.add(name);
+            return name.getBytes();
+        });
+    }
+
+    private TransformerHandle add(String name, ClassSelector selector, ClassFileTransformer transformer)
+    {
+        final TransformerHandle handle = new TransformerHandle(null, transformer, transformer);
+        dispatcher.add(handle, selector);
+        return handle;
+    }
+
+    private byte[] transform(String className)
+    {
+        return transform(null, className);
+    }
+
+    private byte[] transform(ClassLoader loader, String className)
+    {
+        return dispatcher.transform(loader, className, null, null, new byte[0]);
+    }
+}